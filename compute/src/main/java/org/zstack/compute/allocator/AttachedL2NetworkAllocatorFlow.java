@@ -19,6 +19,8 @@ public class AttachedL2NetworkAllocatorFlow extends AbstractHostAllocatorFlow {
 
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private HostCapacityIndexManager indexMgr;
 
     @Transactional(readOnly = true)
     private List<HostVO> allocate(Collection<String> l3NetworkUuids, Collection<String> hostUuids) {
@@ -55,6 +57,19 @@ public class AttachedL2NetworkAllocatorFlow extends AbstractHostAllocatorFlow {
             return new ArrayList<>();
         }
 
+        if (hostUuids.isEmpty() && !usePagination()
+                && !Boolean.FALSE.equals(spec.getExtraData().get(HostCapacityIndexManager.INDEXED_CANDIDATES))) {
+            List<String> indexed = indexMgr.findHosts(clusterUuids, spec.getHypervisorType(), spec.getCpuCapacity(), spec.getMemoryCapacity());
+            if (indexed != null && !indexed.isEmpty()) {
+                // only load hosts which can hold the VM by the capacity index, the following flows still check them
+                spec.getExtraData().put(HostCapacityIndexManager.INDEXED_CANDIDATES, true);
+                sql = "select h from HostVO h where h.uuid in (:huuids)";
+                TypedQuery<HostVO> hq = dbf.getEntityManager().createQuery(sql, HostVO.class);
+                hq.setParameter("huuids", indexed);
+                return hq.getResultList();
+            }
+        }
+
         if (hostUuids.isEmpty()) {
             sql = "select h from HostVO h where h.clusterUuid in (:cuuids)";
             TypedQuery<HostVO> hq = dbf.getEntityManager().createQuery(sql, HostVO.class);
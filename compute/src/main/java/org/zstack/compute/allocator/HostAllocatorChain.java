@@ -4,9 +4,6 @@ import org.springframework.beans.factory.annotation.Autowire;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 import org.zstack.core.componentloader.PluginRegistry;
-import org.zstack.core.config.GlobalConfigVO;
-import org.zstack.core.config.GlobalConfigVO_;
-import org.zstack.core.db.Q;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.allocator.*;
 import org.zstack.header.core.ReturnValueCompletion;
@@ -16,7 +13,6 @@ import org.zstack.header.host.HostInventory;
 import org.zstack.header.host.HostVO;
 import org.zstack.header.vm.VmInstanceInventory;
 import org.zstack.utils.DebugUtils;
-import org.zstack.utils.SizeUtils;
 import org.zstack.utils.Utils;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
@@ -58,6 +54,8 @@ public class HostAllocatorChain implements HostAllocatorTrigger, HostAllocatorSt
     private PluginRegistry pluginRgty;
     @Autowired
     private HostCapacityOverProvisioningManager ratioMgr;
+    @Autowired
+    private HostCapacityReserver reserver;
 
     public HostAllocatorSpec getAllocationSpec() {
         return allocationSpec;
@@ -84,30 +82,7 @@ public class HostAllocatorChain implements HostAllocatorTrigger, HostAllocatorSt
     }
 
     void reserveCapacity(final String hostUuid, final long requestCpu, final long requestMemory) {
-        HostCapacityUpdater updater = new HostCapacityUpdater(hostUuid);
-        String reservedMemoryOfGlobalConfig = Q.New(GlobalConfigVO.class).select(GlobalConfigVO_.value).eq(GlobalConfigVO_.name,"reservedMemory").findValue();
-        updater.run(new HostCapacityUpdaterRunnable() {
-            @Override
-            public HostCapacityVO call(HostCapacityVO cap) {
-                long availCpu = cap.getAvailableCpu() - requestCpu;
-                if (requestCpu != 0 && availCpu < 0) {
-                    throw new UnableToReserveHostCapacityException(
-                            String.format("no enough CPU[%s] on the host[uuid:%s]", requestCpu, hostUuid));
-                }
-
-                cap.setAvailableCpu(availCpu);
-
-                long availMemory = cap.getAvailableMemory() - ratioMgr.calculateMemoryByRatio(hostUuid, requestMemory);
-                if (requestMemory != 0 && availMemory - SizeUtils.sizeStringToBytes(reservedMemoryOfGlobalConfig) < 0) {
-                    throw new UnableToReserveHostCapacityException(
-                            String.format("no enough memory[%s] on the host[uuid:%s]", requestMemory, hostUuid));
-                }
-
-                cap.setAvailableMemory(availMemory);
-
-                return cap;
-            }
-        });
+        reserver.reserve(hostUuid, requestCpu, requestMemory);
     }
 
     private void done() {
@@ -247,6 +222,17 @@ public class HostAllocatorChain implements HostAllocatorTrigger, HostAllocatorSt
     }
 
     private void fail(ErrorCode errorCode) {
+        if (Boolean.TRUE.equals(allocationSpec.getExtraData().get(HostCapacityIndexManager.INDEXED_CANDIDATES))) {
+            // the index may be stale, e.g. capacity changed by other management nodes since it's reloaded,
+            // the hosts it rules out are only checked by the database
+            logger.debug(String.format("[Host Allocation]: flow[%s] failed to allocate host from the candidates narrowed down" +
+                    " by the capacity index, will start over allocation without the index; %s",
+                    lastFlow.getClass().getName(), errorCode.getDetails()));
+            allocationSpec.getExtraData().put(HostCapacityIndexManager.INDEXED_CANDIDATES, false);
+            startOver();
+            return;
+        }
+
         result = null;
         if (seriesErrorWhenPagination.isEmpty()) {
             logger.debug(String.format("[Host Allocation] flow[%s] failed to allocate host; %s",
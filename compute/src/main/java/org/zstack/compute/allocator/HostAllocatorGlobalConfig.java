@@ -22,4 +22,14 @@ public class HostAllocatorGlobalConfig {
     public static GlobalConfig PAGINATION_LIMIT = new GlobalConfig(CATEGORY, "paginationLimit");
     @GlobalConfigValidation
     public static GlobalConfig HOST_ALLOCATOR_ALLOW_CONCURRENT = new GlobalConfig(CATEGORY, "hostAllocator.concurrent");
+    @GlobalConfigValidation
+    public static GlobalConfig CAPACITY_INDEX_ENABLED = new GlobalConfig(CATEGORY, "capacityIndex.enabled");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig CAPACITY_INDEX_REFRESH_INTERVAL = new GlobalConfig(CATEGORY, "capacityIndex.refreshInterval");
+    @GlobalConfigValidation(numberGreaterThan = -1)
+    public static GlobalConfig RESERVATION_MAX_RETRIES = new GlobalConfig(CATEGORY, "reservation.maxRetries");
+    @GlobalConfigValidation
+    public static GlobalConfig GANG_ENABLED = new GlobalConfig(CATEGORY, "gang.enabled");
+    @GlobalConfigValidation(validValues = {"BinPacking", "Spread"})
+    public static GlobalConfig GANG_PLACEMENT_STRATEGY = new GlobalConfig(CATEGORY, "gang.placementStrategy");
 }
@@ -2,6 +2,7 @@ package org.zstack.compute.allocator;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.asyncbatch.While;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.MessageSafe;
 import org.zstack.core.componentloader.PluginRegistry;
@@ -17,12 +18,14 @@ import org.zstack.header.AbstractService;
 import org.zstack.header.allocator.*;
 import org.zstack.header.cluster.ReportHostCapacityMessage;
 import org.zstack.header.core.Completion;
+import org.zstack.header.core.NoErrorCompletion;
 import org.zstack.header.core.NopeCompletion;
 import org.zstack.header.core.ReturnValueCompletion;
 import org.zstack.header.core.workflow.Flow;
 import org.zstack.header.core.workflow.FlowRollback;
 import org.zstack.header.core.workflow.FlowTrigger;
 import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.errorcode.OperationFailureException;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.host.*;
 import org.zstack.header.image.APIGetCandidateBackupStorageForCreatingImageMsg;
@@ -39,6 +42,7 @@ import org.zstack.header.vm.VmAbnormalLifeCycleExtensionPoint;
 import org.zstack.header.vm.VmAbnormalLifeCycleStruct;
 import org.zstack.header.vm.VmAbnormalLifeCycleStruct.VmAbnormalLifeCycleOperation;
 import org.zstack.header.vm.VmInstanceState;
+import org.zstack.header.vm.VmInstanceConstant.VmOperation;
 import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.Utils;
 import org.zstack.utils.function.Function;
@@ -49,7 +53,9 @@ import javax.persistence.TypedQuery;
 import java.text.DecimalFormat;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
 
+import static org.zstack.core.Platform.inerr;
 import static org.zstack.core.Platform.operr;
 import static org.zstack.utils.CollectionDSL.list;
 
@@ -76,6 +82,10 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
     private ErrorFacade errf;
     @Autowired
     private ThreadFacade thdf;
+    @Autowired
+    private HostCapacityReserver reserver;
+
+    private final List<AllocateHostMsg> gangQueue = new ArrayList<>();
 
     @Override
     @MessageSafe
@@ -90,6 +100,8 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
     private void handleLocalMessage(Message msg) {
         if (msg instanceof AllocateHostMsg) {
             handle((AllocateHostMsg) msg);
+        } else if (msg instanceof AllocateHostsMsg) {
+            handle((AllocateHostsMsg) msg);
         } else if (msg instanceof ReportHostCapacityMessage) {
             handle((ReportHostCapacityMessage) msg);
         } else if (msg instanceof ReturnHostCapacityMsg) {
@@ -309,7 +321,279 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
         bus.reply(msg, new MessageReply());
     }
 
+    private boolean isGangAllocationCandidate(AllocateHostMsg msg) {
+        return HostAllocatorGlobalConfig.GANG_ENABLED.value(Boolean.class)
+                && !HostAllocatorGlobalConfig.HOST_ALLOCATOR_ALLOW_CONCURRENT.value(Boolean.class)
+                && !msg.isDryRun()
+                && (msg.getClass() == AllocateHostMsg.class || msg.getClass() == DesignatedAllocateHostMsg.class)
+                && VmOperation.NewCreate.toString().equals(msg.getVmOperation())
+                && HostAllocatorConstant.DEFAULT_HOST_ALLOCATOR_STRATEGY_TYPE.equals(msg.getAllocatorStrategy())
+                && pluginRgty.getExtensionList(HostAllocatorReserveExtensionPoint.class).isEmpty();
+    }
+
+    /**
+     * allocations of new VMs queued behind the host-allocator chain are taken out together by the
+     * first task of them reaching the head of the chain and allocated in one gang allocation, later
+     * tasks finding the queue drained do nothing
+     */
+    private void enqueueGangAllocation(AllocateHostMsg msg) {
+        synchronized (gangQueue) {
+            gangQueue.add(msg);
+        }
+
+        thdf.chainSubmit(new ChainTask(msg) {
+            @Override
+            public String getSyncSignature() {
+                return "host-allocator";
+            }
+
+            @Override
+            public void run(SyncTaskChain chain) {
+                List<AllocateHostMsg> msgs;
+                synchronized (gangQueue) {
+                    msgs = new ArrayList<>(gangQueue);
+                    gangQueue.clear();
+                }
+
+                if (msgs.isEmpty()) {
+                    chain.next();
+                    return;
+                }
+
+                if (msgs.size() == 1) {
+                    allocateOneByOne(msgs.get(0), new Completion(chain) {
+                        @Override
+                        public void success() {
+                            chain.next();
+                        }
+
+                        @Override
+                        public void fail(ErrorCode errorCode) {
+                            chain.next();
+                        }
+                    });
+                    return;
+                }
+
+                doHandleGangAllocation(msgs, new NoErrorCompletion(chain) {
+                    @Override
+                    public void done() {
+                        chain.next();
+                    }
+                });
+            }
+
+            @Override
+            public String getName() {
+                return "allocate-host-for-vm-" + msg.getVmInstance().getUuid();
+            }
+        });
+    }
+
+    private void doHandleGangAllocation(List<AllocateHostMsg> msgs, NoErrorCompletion completion) {
+        HostPlacementStrategy placementStrategy = HostPlacementStrategy.valueOf(HostAllocatorGlobalConfig.GANG_PLACEMENT_STRATEGY.value());
+        allocateHosts(msgs, placementStrategy, new ReturnValueCompletion<List<HostInventory>>(completion) {
+            @Override
+            public void success(List<HostInventory> hosts) {
+                for (int i = 0; i < msgs.size(); i++) {
+                    bus.reply(msgs.get(i), new AllocateHostReply(hosts.get(i)));
+                }
+
+                completion.done();
+            }
+
+            @Override
+            public void fail(ErrorCode errorCode) {
+                logger.debug(String.format("[Host Allocation]: failed to allocate hosts for %s VMs in one gang allocation, %s;" +
+                        " allocate them one by one", msgs.size(), errorCode));
+                new While<>(msgs).each((msg, wcmpl) -> allocateOneByOne(msg, new Completion(wcmpl) {
+                    @Override
+                    public void success() {
+                        wcmpl.done();
+                    }
+
+                    @Override
+                    public void fail(ErrorCode errorCode) {
+                        wcmpl.done();
+                    }
+                })).run(completion);
+            }
+        });
+    }
+
+    /**
+     * allocates the host for a message drained from the gang queue, the message is replied even if
+     * the allocation throws, so no drained message is left without a reply
+     */
+    private void allocateOneByOne(AllocateHostMsg msg, Completion completion) {
+        try {
+            doHandleAllocateHost(msg, completion);
+        } catch (Throwable t) {
+            logger.warn(String.format("unhandled exception when allocating the host for the vm[uuid:%s]", msg.getVmInstance().getUuid()), t);
+            ErrorCode err = inerr("unhandled exception when allocating the host, %s", t.getMessage());
+            AllocateHostReply reply = new AllocateHostReply();
+            reply.setError(err);
+            bus.reply(msg, reply);
+            completion.fail(err);
+        }
+    }
+
+    private void handle(final AllocateHostsMsg msg) {
+        thdf.chainSubmit(new ChainTask(msg) {
+            @Override
+            public String getSyncSignature() {
+                return "host-allocator";
+            }
+
+            @Override
+            public void run(SyncTaskChain chain) {
+                HostPlacementStrategy placementStrategy = HostPlacementStrategy.valueOf(msg.getPlacementStrategy() != null ?
+                        msg.getPlacementStrategy() : HostAllocatorGlobalConfig.GANG_PLACEMENT_STRATEGY.value());
+                AllocateHostsReply reply = new AllocateHostsReply();
+                allocateHosts(msg.getSpecs(), placementStrategy, new ReturnValueCompletion<List<HostInventory>>(chain, msg) {
+                    @Override
+                    public void success(List<HostInventory> hosts) {
+                        reply.setHosts(hosts);
+                        bus.reply(msg, reply);
+                        chain.next();
+                    }
+
+                    @Override
+                    public void fail(ErrorCode errorCode) {
+                        reply.setError(errorCode);
+                        bus.reply(msg, reply);
+                        chain.next();
+                    }
+                });
+            }
+
+            @Override
+            public String getName() {
+                return String.format("allocate-hosts-for-%s-vms", msg.getSpecs().size());
+            }
+        });
+    }
+
+    /**
+     * Allocates hosts for all specs in one pass: candidates of every spec are found by a dry run of
+     * its allocator chain, all specs are placed on their candidates at once by HostPlacement and the
+     * capacity of all of them is reserved in one transaction. Either all specs get a host or none.
+     */
+    private void allocateHosts(List<AllocateHostMsg> msgs, HostPlacementStrategy placementStrategy, ReturnValueCompletion<List<HostInventory>> completion) {
+        if (!pluginRgty.getExtensionList(HostAllocatorReserveExtensionPoint.class).isEmpty()) {
+            completion.fail(operr("gang allocation is not supported when extensions reserve resources along with the host capacity"));
+            return;
+        }
+
+        List<Allocation> allocations = new ArrayList<>();
+        List<List<HostInventory>> candidates = new ArrayList<>();
+        List<ErrorCode> errors = new ArrayList<>();
+        new While<>(msgs).each((msg, wcmpl) -> {
+            Allocation allocation;
+            try {
+                allocation = prepareAllocation(msg);
+            } catch (Throwable t) {
+                logger.warn(String.format("unhandled exception when preparing the host allocation for the vm[uuid:%s]",
+                        msg.getVmInstance().getUuid()), t);
+                errors.add(inerr("unhandled exception when preparing the host allocation, %s", t.getMessage()));
+                wcmpl.allDone();
+                return;
+            }
+
+            allocation.spec.setDryRun(true);
+            allocations.add(allocation);
+            allocation.strategy.dryRun(allocation.spec, new ReturnValueCompletion<List<HostInventory>>(wcmpl) {
+                @Override
+                public void success(List<HostInventory> hosts) {
+                    candidates.add(hosts);
+                    wcmpl.done();
+                }
+
+                @Override
+                public void fail(ErrorCode errorCode) {
+                    errors.add(errorCode);
+                    wcmpl.allDone();
+                }
+            });
+        }).run(new NoErrorCompletion(completion) {
+            @Override
+            public void done() {
+                if (!errors.isEmpty()) {
+                    completion.fail(errors.get(0));
+                    return;
+                }
+
+                try {
+                    completion.success(placeAndReserve(msgs, allocations, candidates, placementStrategy));
+                } catch (UnableToReserveHostCapacityException e) {
+                    completion.fail(operr("[Host Allocation]: unable to reserve capacity for %s VMs, %s", msgs.size(), e.getMessage()));
+                } catch (OperationFailureException e) {
+                    completion.fail(e.getErrorCode());
+                } catch (Throwable t) {
+                    logger.warn(String.format("unhandled exception when allocating hosts for %s VMs in one gang allocation", msgs.size()), t);
+                    completion.fail(inerr("[Host Allocation]: unhandled exception when allocating hosts for %s VMs, %s", msgs.size(), t.getMessage()));
+                }
+            }
+        });
+    }
+
+    private List<HostInventory> placeAndReserve(List<AllocateHostMsg> msgs, List<Allocation> allocations,
+                                                List<List<HostInventory>> candidates, HostPlacementStrategy placementStrategy) {
+        Map<String, HostInventory> hosts = new HashMap<>();
+        candidates.forEach(lst -> lst.forEach(h -> hosts.put(h.getUuid(), h)));
+        if (hosts.isEmpty()) {
+            throw new OperationFailureException(operr("[Host Allocation]: no host is available for %s VMs", msgs.size()));
+        }
+
+        HostPlacement placement = new HostPlacement(placementStrategy, ratioMgr::calculateMemoryByRatio);
+        long reservedMemory = reserver.getReservedMemory();
+        List<Tuple> ts = Q.New(HostCapacityVO.class)
+                .select(HostCapacityVO_.uuid, HostCapacityVO_.availableCpu, HostCapacityVO_.availableMemory)
+                .in(HostCapacityVO_.uuid, hosts.keySet())
+                .listTuple();
+        ts.forEach(t -> placement.addHost(t.get(0, String.class), t.get(1, Long.class), t.get(2, Long.class) - reservedMemory));
+
+        List<HostPlacement.Request> requests = new ArrayList<>();
+        for (int i = 0; i < msgs.size(); i++) {
+            requests.add(new HostPlacement.Request(msgs.get(i).getCpuCapacity(), msgs.get(i).getMemoryCapacity(),
+                    candidates.get(i).stream().map(HostInventory::getUuid).collect(Collectors.toList())));
+        }
+
+        List<String> placed = placement.place(requests);
+        long unplaced = placed.stream().filter(Objects::isNull).count();
+        if (unplaced > 0) {
+            throw new OperationFailureException(operr("[Host Allocation]: %s of %s VMs cannot be placed on their candidate hosts" +
+                    " together", unplaced, msgs.size()));
+        }
+
+        List<HostCapacityReserver.Reservation> rs = new ArrayList<>();
+        for (int i = 0; i < msgs.size(); i++) {
+            rs.add(new HostCapacityReserver.Reservation(placed.get(i), msgs.get(i).getCpuCapacity(), msgs.get(i).getMemoryCapacity()));
+        }
+        reserver.reserveAll(rs);
+
+        List<HostInventory> ret = new ArrayList<>();
+        for (int i = 0; i < msgs.size(); i++) {
+            HostAllocatorSpec spec = allocations.get(i).spec;
+            spec.setDryRun(false);
+            for (HostAllocateExtensionPoint exp : pluginRgty.getExtensionList(HostAllocateExtensionPoint.class)) {
+                exp.beforeAllocateHostSuccessReply(spec, placed.get(i));
+            }
+
+            ret.add(hosts.get(placed.get(i)));
+        }
+
+        logger.debug(String.format("[Host Allocation]: placed %s VMs on %s hosts by %s in one gang allocation",
+                msgs.size(), new HashSet<>(placed).size(), placementStrategy));
+        return ret;
+    }
+
     private void handle(final AllocateHostMsg msg) {
+        if (isGangAllocationCandidate(msg)) {
+            enqueueGangAllocation(msg);
+            return;
+        }
+
         if (HostAllocatorGlobalConfig.HOST_ALLOCATOR_ALLOW_CONCURRENT.value(Boolean.class)) {
             doHandleAllocateHost(msg, new NopeCompletion());
             return;
@@ -343,7 +627,13 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
         });
     }
 
-    private void doHandleAllocateHost(final AllocateHostMsg msg, Completion completion) {
+    private class Allocation {
+        HostAllocatorSpec spec;
+        HostAllocatorStrategy strategy;
+        HostSortorStrategy sortors;
+    }
+
+    private Allocation prepareAllocation(AllocateHostMsg msg) {
         HostAllocatorSpec spec = HostAllocatorSpec.fromAllocationMsg(msg);
         spec.setBackupStoragePrimaryStorageMetrics(backupStoragePrimaryStorageMetrics);
 
@@ -362,10 +652,20 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
 
         HostAllocatorStrategyFactory factory = getHostAllocatorStrategyFactory(HostAllocatorStrategyType.valueOf(allocatorStrategyType));
         logger.debug("found strategy factory: " + factory.getClass().getSimpleName());
-        HostAllocatorStrategy strategy = factory.getHostAllocatorStrategy();
-        HostSortorStrategy sortors = factory.getHostSortorStrategy();
 
+        Allocation allocation = new Allocation();
+        allocation.spec = spec;
+        allocation.strategy = factory.getHostAllocatorStrategy();
+        allocation.sortors = factory.getHostSortorStrategy();
         factory.marshalSpec(spec, msg);
+        return allocation;
+    }
+
+    private void doHandleAllocateHost(final AllocateHostMsg msg, Completion completion) {
+        Allocation allocation = prepareAllocation(msg);
+        HostAllocatorSpec spec = allocation.spec;
+        HostAllocatorStrategy strategy = allocation.strategy;
+        HostSortorStrategy sortors = allocation.sortors;
 
         if (msg.isDryRun()) {
             final AllocateHostDryRunReply reply = new AllocateHostDryRunReply();
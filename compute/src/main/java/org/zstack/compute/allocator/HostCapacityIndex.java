@@ -0,0 +1,273 @@
+package org.zstack.compute.allocator;
+
+import org.zstack.header.host.HostState;
+import org.zstack.header.host.HostStatus;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * A columnar in-memory copy of the allocation related fields of hosts. Every host takes a slot;
+ * available CPU and memory are kept in primitive arrays and the zone, cluster, hypervisor type,
+ * state and status are kept in bitsets, so filtering thousands of hosts touches no entities.
+ */
+public class HostCapacityIndex {
+    public static class Row {
+        public String uuid;
+        public String zoneUuid;
+        public String clusterUuid;
+        public String hypervisorType;
+        public HostState state;
+        public HostStatus status;
+        public long availableCpu;
+        public long availableMemory;
+    }
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private String[] uuids = new String[0];
+    private String[] zones = new String[0];
+    private String[] clusters = new String[0];
+    private String[] hypervisors = new String[0];
+    private long[] availableCpu = new long[0];
+    private long[] availableMemory = new long[0];
+    private final BitSet enabled = new BitSet();
+    private final BitSet connected = new BitSet();
+    private final Map<String, BitSet> byZone = new HashMap<>();
+    private final Map<String, BitSet> byCluster = new HashMap<>();
+    private final Map<String, BitSet> byHypervisor = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public void put(Row row) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.get(row.uuid);
+            if (slot == null) {
+                slot = allocateSlot(row.uuid);
+            } else {
+                unindex(slot);
+            }
+
+            zones[slot] = row.zoneUuid;
+            clusters[slot] = row.clusterUuid;
+            hypervisors[slot] = row.hypervisorType;
+            availableCpu[slot] = row.availableCpu;
+            availableMemory[slot] = row.availableMemory;
+            enabled.set(slot, row.state == HostState.Enabled);
+            connected.set(slot, row.status == HostStatus.Connected);
+            index(byZone, row.zoneUuid, slot);
+            index(byCluster, row.clusterUuid, slot);
+            index(byHypervisor, row.hypervisorType, slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String uuid) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.remove(uuid);
+            if (slot == null) {
+                return;
+            }
+
+            unindex(slot);
+            enabled.clear(slot);
+            connected.clear(slot);
+            uuids[slot] = null;
+            freeSlots.push(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * replaces the whole content of the index
+     */
+    public void load(Collection<Row> rows) {
+        lock.writeLock().lock();
+        try {
+            slots.clear();
+            freeSlots.clear();
+            enabled.clear();
+            connected.clear();
+            byZone.clear();
+            byCluster.clear();
+            byHypervisor.clear();
+            uuids = new String[0];
+            zones = new String[0];
+            clusters = new String[0];
+            hypervisors = new String[0];
+            availableCpu = new long[0];
+            availableMemory = new long[0];
+            rows.forEach(this::put);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return false if the host is not in the index
+     */
+    public boolean updateCapacity(String uuid, long cpu, long memory) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.get(uuid);
+            if (slot == null) {
+                return false;
+            }
+
+            availableCpu[slot] = cpu;
+            availableMemory[slot] = memory;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean updateStatus(String uuid, HostStatus status) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.get(uuid);
+            if (slot == null) {
+                return false;
+            }
+
+            connected.set(slot, status == HostStatus.Connected);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean updateState(String uuid, HostState state) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.get(uuid);
+            if (slot == null) {
+                return false;
+            }
+
+            enabled.set(slot, state == HostState.Enabled);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * finds Enabled and Connected hosts having enough CPU and memory
+     *
+     * @param zoneUuids null for all zones
+     * @param clusterUuids null for all clusters
+     * @param hypervisorType null for all hypervisor types
+     * @param memoryByRatio converts the available memory of a host to the memory it can offer,
+     *                      e.g. applying the over provisioning ratio of the host
+     */
+    public List<String> find(Collection<String> zoneUuids, Collection<String> clusterUuids, String hypervisorType,
+                             long cpu, long memory, ToLongBiFunction<String, Long> memoryByRatio) {
+        List<String> ret = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            BitSet bits = (BitSet) enabled.clone();
+            bits.and(connected);
+            if (hypervisorType != null) {
+                bits.and(byHypervisor.getOrDefault(hypervisorType, new BitSet()));
+            }
+            if (zoneUuids != null) {
+                bits.and(union(byZone, zoneUuids));
+            }
+            if (clusterUuids != null) {
+                bits.and(union(byCluster, clusterUuids));
+            }
+
+            for (int slot = bits.nextSetBit(0); slot >= 0; slot = bits.nextSetBit(slot + 1)) {
+                if (cpu != 0 && availableCpu[slot] < cpu) {
+                    continue;
+                }
+
+                if (memory != 0 && memoryByRatio.applyAsLong(uuids[slot], availableMemory[slot]) < memory) {
+                    continue;
+                }
+
+                ret.add(uuids[slot]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return ret;
+    }
+
+    private static BitSet union(Map<String, BitSet> index, Collection<String> keys) {
+        BitSet ret = new BitSet();
+        for (String key : keys) {
+            BitSet bits = index.get(key);
+            if (bits != null) {
+                ret.or(bits);
+            }
+        }
+
+        return ret;
+    }
+
+    private int allocateSlot(String uuid) {
+        int slot;
+        if (!freeSlots.isEmpty()) {
+            slot = freeSlots.pop();
+        } else {
+            slot = slots.size();
+            if (slot >= uuids.length) {
+                int capacity = Math.max(16, uuids.length * 2);
+                uuids = Arrays.copyOf(uuids, capacity);
+                zones = Arrays.copyOf(zones, capacity);
+                clusters = Arrays.copyOf(clusters, capacity);
+                hypervisors = Arrays.copyOf(hypervisors, capacity);
+                availableCpu = Arrays.copyOf(availableCpu, capacity);
+                availableMemory = Arrays.copyOf(availableMemory, capacity);
+            }
+        }
+
+        slots.put(uuid, slot);
+        uuids[slot] = uuid;
+        return slot;
+    }
+
+    private static void index(Map<String, BitSet> index, String key, int slot) {
+        if (key != null) {
+            index.computeIfAbsent(key, k -> new BitSet()).set(slot);
+        }
+    }
+
+    private void unindex(int slot) {
+        unindex(byZone, zones[slot], slot);
+        unindex(byCluster, clusters[slot], slot);
+        unindex(byHypervisor, hypervisors[slot], slot);
+    }
+
+    private static void unindex(Map<String, BitSet> index, String key, int slot) {
+        if (key == null) {
+            return;
+        }
+
+        BitSet bits = index.get(key);
+        if (bits != null) {
+            bits.clear(slot);
+            if (bits.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
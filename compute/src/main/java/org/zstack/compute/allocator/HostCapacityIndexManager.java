@@ -0,0 +1,27 @@
+package org.zstack.compute.allocator;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ */
+public interface HostCapacityIndexManager {
+    /**
+     * key of HostAllocatorSpec.getExtraData(), true if the candidates of the first flow were narrowed down
+     * by the index, false if the index must not be used for the allocation
+     */
+    String INDEXED_CANDIDATES = "HostCapacityIndexManager.indexedCandidates";
+
+    /**
+     * @param clusterUuids null for all clusters
+     * @param hypervisorType null for all hypervisor types
+     * @return uuids of Enabled and Connected hosts having enough CPU and memory by the index,
+     * or null if the index is not available and callers should query the database
+     */
+    List<String> findHosts(Collection<String> clusterUuids, String hypervisorType, long cpu, long memory);
+
+    /**
+     * applied after the current transaction commits if there is one
+     */
+    void updateCapacity(String hostUuid, long availableCpu, long availableMemory);
+}
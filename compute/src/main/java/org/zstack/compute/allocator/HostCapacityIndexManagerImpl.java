@@ -0,0 +1,170 @@
+package org.zstack.compute.allocator;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.db.SQL;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.allocator.HostCapacityOverProvisioningManager;
+import org.zstack.header.host.*;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.Tuple;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps a HostCapacityIndex of all hosts. Capacity changes made by this management node are applied
+ * after their transactions commit, status changes and deletions are applied on their canonical
+ * events, and the whole index is reloaded every hostAllocator.capacityIndex.refreshInterval seconds
+ * to catch up changes made by other management nodes.
+ *
+ * The index only narrows down candidates, allocator flows still check the hosts they load from the
+ * database. Until the next reload the index may rule out hosts having capacity freed by other
+ * management nodes, so HostAllocatorChain starts over without the index if the flows reject all
+ * candidates narrowed down by it.
+ */
+public class HostCapacityIndexManagerImpl implements HostCapacityIndexManager, HostChangeStateExtensionPoint, Component {
+    private static final CLogger logger = Utils.getLogger(HostCapacityIndexManagerImpl.class);
+
+    private static final String QUERY = "select h.uuid, h.zoneUuid, h.clusterUuid, h.hypervisorType, h.state, h.status," +
+            " c.availableCpu, c.availableMemory from HostVO h, HostCapacityVO c where h.uuid = c.uuid";
+
+    @Autowired
+    private EventFacade evtf;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private HostCapacityOverProvisioningManager ratioMgr;
+
+    private final HostCapacityIndex index = new HostCapacityIndex();
+    private volatile boolean loaded;
+
+    private boolean isEnabled() {
+        return loaded && HostAllocatorGlobalConfig.CAPACITY_INDEX_ENABLED.value(Boolean.class);
+    }
+
+    @Override
+    public List<String> findHosts(Collection<String> clusterUuids, String hypervisorType, long cpu, long memory) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        return index.find(null, clusterUuids, hypervisorType, cpu, memory, ratioMgr::calculateHostAvailableMemoryByRatio);
+    }
+
+    @Override
+    public void updateCapacity(String hostUuid, long availableCpu, long availableMemory) {
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            doUpdateCapacity(hostUuid, availableCpu, availableMemory);
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                doUpdateCapacity(hostUuid, availableCpu, availableMemory);
+            }
+        });
+    }
+
+    private void doUpdateCapacity(String hostUuid, long availableCpu, long availableMemory) {
+        if (!index.updateCapacity(hostUuid, availableCpu, availableMemory)) {
+            reload(hostUuid);
+        }
+    }
+
+    private static HostCapacityIndex.Row toRow(Tuple t) {
+        HostCapacityIndex.Row row = new HostCapacityIndex.Row();
+        row.uuid = t.get(0, String.class);
+        row.zoneUuid = t.get(1, String.class);
+        row.clusterUuid = t.get(2, String.class);
+        row.hypervisorType = t.get(3, String.class);
+        row.state = t.get(4, HostState.class);
+        row.status = t.get(5, HostStatus.class);
+        row.availableCpu = t.get(6, Long.class);
+        row.availableMemory = t.get(7, Long.class);
+        return row;
+    }
+
+    private void reload(String hostUuid) {
+        List<Tuple> ts = SQL.New(QUERY + " and h.uuid = :huuid", Tuple.class).param("huuid", hostUuid).list();
+        if (ts.isEmpty()) {
+            index.remove(hostUuid);
+        } else {
+            index.put(toRow(ts.get(0)));
+        }
+    }
+
+    private void reloadAll() {
+        List<Tuple> ts = SQL.New(QUERY, Tuple.class).list();
+        index.load(ts.stream().map(HostCapacityIndexManagerImpl::toRow).collect(Collectors.toList()));
+        loaded = true;
+    }
+
+    private void scheduleReload() {
+        thdf.submitTimeoutTask(() -> {
+            try {
+                if (HostAllocatorGlobalConfig.CAPACITY_INDEX_ENABLED.value(Boolean.class)) {
+                    reloadAll();
+                }
+            } catch (Throwable t) {
+                logger.warn("failed to reload the host capacity index", t);
+            } finally {
+                scheduleReload();
+            }
+        }, TimeUnit.SECONDS, HostAllocatorGlobalConfig.CAPACITY_INDEX_REFRESH_INTERVAL.value(Long.class));
+    }
+
+    @Override
+    public boolean start() {
+        evtf.on(HostCanonicalEvents.HOST_STATUS_CHANGED_PATH, new EventCallback() {
+            @Override
+            protected void run(Map tokens, Object data) {
+                HostCanonicalEvents.HostStatusChangedData d = (HostCanonicalEvents.HostStatusChangedData) data;
+                if (!index.updateStatus(d.getHostUuid(), HostStatus.valueOf(d.getNewStatus()))) {
+                    // a new host
+                    reload(d.getHostUuid());
+                }
+            }
+        });
+
+        evtf.on(HostCanonicalEvents.HOST_DELETED_PATH, new EventCallback() {
+            @Override
+            protected void run(Map tokens, Object data) {
+                HostCanonicalEvents.HostDeletedData d = (HostCanonicalEvents.HostDeletedData) data;
+                index.remove(d.getHostUuid());
+            }
+        });
+
+        reloadAll();
+        logger.debug(String.format("loaded %s hosts into the host capacity index", index.size()));
+        scheduleReload();
+        return true;
+    }
+
+    @Override
+    public void preChangeHostState(HostInventory inventory, HostStateEvent event, HostState nextState) throws HostException {
+    }
+
+    @Override
+    public void beforeChangeHostState(HostInventory inventory, HostStateEvent event, HostState nextState) {
+    }
+
+    @Override
+    public void afterChangeHostState(HostInventory inventory, HostStateEvent event, HostState previousState) {
+        index.updateState(inventory.getUuid(), HostState.valueOf(inventory.getState()));
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+}
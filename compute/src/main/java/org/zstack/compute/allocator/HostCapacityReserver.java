@@ -0,0 +1,263 @@
+package org.zstack.compute.allocator;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.config.GlobalConfig;
+import org.zstack.core.config.GlobalConfigFacade;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.DeadlockAutoRestart;
+import org.zstack.core.db.Q;
+import org.zstack.core.db.SQL;
+import org.zstack.core.debug.DebugManager;
+import org.zstack.core.debug.DebugSignalHandler;
+import org.zstack.header.Component;
+import org.zstack.header.allocator.HostCapacityOverProvisioningManager;
+import org.zstack.header.allocator.HostCapacityVO;
+import org.zstack.header.allocator.HostCapacityVO_;
+import org.zstack.header.allocator.UnableToReserveHostCapacityException;
+import org.zstack.utils.SizeUtils;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.LockModeType;
+import javax.persistence.Tuple;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reserves CPU and memory of hosts without locking HostCapacityVO rows.
+ *
+ * The capacity is read without a lock and written back by a compare-and-set update conditioned
+ * on the values read, so the available CPU and memory act as the version stamp of the row. A
+ * conflicting update of another thread or management node makes the update miss and the
+ * reservation is retried up to hostAllocator.reservation.maxRetries times before falling back to
+ * HostCapacityUpdater, which locks the row. The admission check only looks at the row read, a
+ * reservation missing the update re-reads the row with the reservations committed meanwhile.
+ */
+public class HostCapacityReserver implements Component, DebugSignalHandler {
+    private static final CLogger logger = Utils.getLogger(HostCapacityReserver.class);
+
+    public static final String DUMP_HOST_CAPACITY_RESERVER_DEBUG_SIGNAL = "DumpHostCapacityReserver";
+
+    private static final String RESERVED_MEMORY_CONFIG_CATEGORY = "kvm";
+    private static final String RESERVED_MEMORY_CONFIG_NAME = "reservedMemory";
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private GlobalConfigFacade gcf;
+    @Autowired
+    private HostCapacityOverProvisioningManager ratioMgr;
+    @Autowired
+    private HostCapacityIndexManager indexMgr;
+
+    public static class Reservation {
+        private final String hostUuid;
+        private final long cpu;
+        private final long memory;
+
+        public Reservation(String hostUuid, long cpu, long memory) {
+            this.hostUuid = hostUuid;
+            this.cpu = cpu;
+            this.memory = memory;
+        }
+    }
+
+    private final AtomicLong reservations = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong fallbackLockTimeNanos = new AtomicLong();
+
+    long getReservedMemory() {
+        GlobalConfig c = gcf.getAllConfig().get(GlobalConfig.produceIdentity(RESERVED_MEMORY_CONFIG_CATEGORY, RESERVED_MEMORY_CONFIG_NAME));
+        return c == null ? 0 : SizeUtils.sizeStringToBytes(c.value());
+    }
+
+    /**
+     * reserves the capacity on the host, a negative capacity returns it
+     *
+     * @throws UnableToReserveHostCapacityException if the host doesn't have enough capacity
+     */
+    public void reserve(String hostUuid, long requestCpu, long requestMemory) {
+        reservations.incrementAndGet();
+        long memory = ratioMgr.calculateMemoryByRatio(hostUuid, requestMemory);
+        long reservedMemory = getReservedMemory();
+
+        try {
+            for (int i = 0; i <= HostAllocatorGlobalConfig.RESERVATION_MAX_RETRIES.value(Integer.class); i++) {
+                if (compareAndSet(hostUuid, requestCpu, memory, requestMemory, reservedMemory)) {
+                    return;
+                }
+
+                conflicts.incrementAndGet();
+            }
+        } catch (UnableToReserveHostCapacityException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+
+        fallbacks.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            reserveWithLock(hostUuid, requestCpu, memory, requestMemory, reservedMemory);
+        } catch (UnableToReserveHostCapacityException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            fallbackLockTimeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void reserveWithLock(String hostUuid, long requestCpu, long memory, long requestMemory, long reservedMemory) {
+        new HostCapacityUpdater(hostUuid).run(new HostCapacityUpdaterRunnable() {
+            @Override
+            public HostCapacityVO call(HostCapacityVO cap) {
+                long availCpu = cap.getAvailableCpu() - requestCpu;
+                if (requestCpu != 0 && availCpu < 0) {
+                    throw new UnableToReserveHostCapacityException(
+                            String.format("no enough CPU[%s] on the host[uuid:%s]", requestCpu, hostUuid));
+                }
+
+                long availMemory = cap.getAvailableMemory() - memory;
+                if (requestMemory != 0 && availMemory - reservedMemory < 0) {
+                    throw new UnableToReserveHostCapacityException(
+                            String.format("no enough memory[%s] on the host[uuid:%s]", requestMemory, hostUuid));
+                }
+
+                cap.setAvailableCpu(availCpu);
+                cap.setAvailableMemory(availMemory);
+                return cap;
+            }
+        });
+    }
+
+    /**
+     * reserves capacities on several hosts in one transaction, either all of them are reserved or none.
+     * Rows of the hosts are locked in the order of their uuids, so batches sharing hosts don't deadlock
+     *
+     * @throws UnableToReserveHostCapacityException if any of the hosts doesn't have enough capacity
+     */
+    @DeadlockAutoRestart
+    public void reserveAll(List<Reservation> rs) {
+        reservations.addAndGet(rs.size());
+        batches.incrementAndGet();
+
+        // sum up reservations of the same host, converting the memory by the ratio of the host
+        Map<String, long[]> requests = new TreeMap<>();
+        for (Reservation r : rs) {
+            long[] req = requests.computeIfAbsent(r.hostUuid, k -> new long[2]);
+            req[0] += r.cpu;
+            req[1] += ratioMgr.calculateMemoryByRatio(r.hostUuid, r.memory);
+        }
+
+        List<HostCapacityVO> caps;
+        try {
+            caps = doReserveAll(requests, getReservedMemory());
+        } catch (UnableToReserveHostCapacityException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+
+        caps.forEach(cap -> indexMgr.updateCapacity(cap.getUuid(), cap.getAvailableCpu(), cap.getAvailableMemory()));
+    }
+
+    @Transactional
+    private List<HostCapacityVO> doReserveAll(Map<String, long[]> requests, long reservedMemory) {
+        List<HostCapacityVO> caps = new ArrayList<>();
+        for (Map.Entry<String, long[]> e : requests.entrySet()) {
+            String hostUuid = e.getKey();
+            long cpu = e.getValue()[0];
+            long memory = e.getValue()[1];
+
+            HostCapacityVO cap = dbf.getEntityManager().find(HostCapacityVO.class, hostUuid, LockModeType.PESSIMISTIC_WRITE);
+            if (cap == null) {
+                throw new UnableToReserveHostCapacityException(
+                        String.format("the host[uuid:%s] has been deleted", hostUuid));
+            }
+
+            if (cpu != 0 && cap.getAvailableCpu() - cpu < 0) {
+                throw new UnableToReserveHostCapacityException(
+                        String.format("no enough CPU[%s] on the host[uuid:%s]", cpu, hostUuid));
+            }
+
+            if (memory != 0 && cap.getAvailableMemory() - memory - reservedMemory < 0) {
+                throw new UnableToReserveHostCapacityException(
+                        String.format("no enough memory[%s] on the host[uuid:%s]", memory, hostUuid));
+            }
+
+            cap.setAvailableCpu(cap.getAvailableCpu() - cpu);
+            cap.setAvailableMemory(cap.getAvailableMemory() - memory);
+            caps.add(dbf.getEntityManager().merge(cap));
+        }
+
+        return caps;
+    }
+
+    private boolean compareAndSet(String hostUuid, long requestCpu, long memory, long requestMemory, long reservedMemory) {
+        Tuple t = Q.New(HostCapacityVO.class).select(HostCapacityVO_.availableCpu, HostCapacityVO_.availableMemory)
+                .eq(HostCapacityVO_.uuid, hostUuid).findTuple();
+        if (t == null) {
+            logger.warn(String.format("[Host Capacity] unable to update capacity for the host[uuid:%s]. It may have been deleted, cannot find it in database",
+                    hostUuid));
+            return true;
+        }
+
+        long cpu = t.get(0, Long.class);
+        long mem = t.get(1, Long.class);
+
+        long availCpu = cpu - requestCpu;
+        if (requestCpu > 0 && availCpu < 0) {
+            throw new UnableToReserveHostCapacityException(
+                    String.format("no enough CPU[%s] on the host[uuid:%s]", requestCpu, hostUuid));
+        }
+
+        long availMemory = mem - memory;
+        if (requestMemory > 0 && availMemory - reservedMemory < 0) {
+            throw new UnableToReserveHostCapacityException(
+                    String.format("no enough memory[%s] on the host[uuid:%s]", requestMemory, hostUuid));
+        }
+
+        int updated = SQL.New("update HostCapacityVO c set c.availableCpu = :ncpu, c.availableMemory = :nmem" +
+                " where c.uuid = :uuid and c.availableCpu = :ocpu and c.availableMemory = :omem")
+                .param("ncpu", availCpu)
+                .param("nmem", availMemory)
+                .param("uuid", hostUuid)
+                .param("ocpu", cpu)
+                .param("omem", mem)
+                .execute();
+        if (updated == 0) {
+            return false;
+        }
+
+        if (logger.isTraceEnabled()) {
+            logger.trace(String.format("[Host Capacity] reserved cpu[%s], memory[%s] on the host[uuid:%s], available cpu: %s --> %s," +
+                    " available memory: %s --> %s", requestCpu, memory, hostUuid, cpu, availCpu, mem, availMemory));
+        }
+
+        indexMgr.updateCapacity(hostUuid, availCpu, availMemory);
+        return true;
+    }
+
+    @Override
+    public void handleDebugSignal() {
+        long r = reservations.get();
+        logger.debug(String.format("\n================= BEGIN HOST CAPACITY RESERVER DUMP ================" +
+                        "\nreservations: %s, batches: %s, failures: %s, CAS conflicts: %s (%.2f per reservation), locked fallbacks: %s, time in locked fallbacks: %sms" +
+                        "\n================= END HOST CAPACITY RESERVER DUMP ================",
+                r, batches.get(), failures.get(), conflicts.get(), r == 0 ? 0 : (double) conflicts.get() / r, fallbacks.get(),
+                fallbackLockTimeNanos.get() / 1000000));
+    }
+
+    @Override
+    public boolean start() {
+        DebugManager.registerDebugSignalHandler(DUMP_HOST_CAPACITY_RESERVER_DEBUG_SIGNAL, this);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+}
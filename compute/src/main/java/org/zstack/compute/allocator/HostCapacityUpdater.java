@@ -23,6 +23,8 @@ public class HostCapacityUpdater {
 
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private HostCapacityIndexManager indexMgr;
 
     private String hostUuid;
     private TypedQuery<HostCapacityVO> query;
@@ -115,7 +117,12 @@ public class HostCapacityUpdater {
 
     @DeadlockAutoRestart
     public boolean run(HostCapacityUpdaterRunnable runnable) {
-        return _run(runnable);
+        boolean updated = _run(runnable);
+        if (updated) {
+            indexMgr.updateCapacity(capacityVO.getUuid(), capacityVO.getAvailableCpu(), capacityVO.getAvailableMemory());
+        }
+
+        return updated;
     }
 
 }
@@ -0,0 +1,101 @@
+package org.zstack.compute.allocator;
+
+import org.zstack.header.allocator.HostPlacementStrategy;
+
+import java.util.*;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * Places a batch of VMs on their candidate hosts in memory, deducting the capacity of every
+ * placed VM before placing the next one, so the batch never over commits a host it has
+ * already chosen. VMs are placed in descending order of memory, i.e. first fit decreasing
+ * for HostPlacementStrategy.BinPacking.
+ */
+public class HostPlacement {
+    public static class Request {
+        private final long cpu;
+        private final long memory;
+        private final List<String> candidateHostUuids;
+
+        public Request(long cpu, long memory, List<String> candidateHostUuids) {
+            this.cpu = cpu;
+            this.memory = memory;
+            this.candidateHostUuids = candidateHostUuids;
+        }
+    }
+
+    private final HostPlacementStrategy strategy;
+    private final ToLongBiFunction<String, Long> memoryByRatio;
+    private final Map<String, long[]> capacities = new HashMap<>();
+
+    /**
+     * @param memoryByRatio converts the memory requested by a VM to the memory it takes on a host,
+     *                      e.g. applying the over provisioning ratio of the host
+     */
+    public HostPlacement(HostPlacementStrategy strategy, ToLongBiFunction<String, Long> memoryByRatio) {
+        this.strategy = strategy;
+        this.memoryByRatio = memoryByRatio;
+    }
+
+    /**
+     * @param availableMemory the memory VMs can take on the host, the reserved memory of the host excluded
+     */
+    public void addHost(String hostUuid, long availableCpu, long availableMemory) {
+        capacities.put(hostUuid, new long[]{availableCpu, availableMemory});
+    }
+
+    /**
+     * @return uuids of hosts the requests are placed on, in the order of the requests; null for a
+     * request none of whose candidate hosts has enough capacity left
+     */
+    public List<String> place(List<Request> requests) {
+        Integer[] order = new Integer[requests.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong((Integer i) -> requests.get(i).memory).reversed());
+
+        String[] ret = new String[requests.size()];
+        for (int i : order) {
+            ret[i] = place(requests.get(i));
+        }
+
+        return Arrays.asList(ret);
+    }
+
+    private String place(Request req) {
+        String chosen = null;
+        long chosenMemoryLeft = 0;
+        long chosenCpuLeft = 0;
+
+        for (String hostUuid : req.candidateHostUuids) {
+            long[] cap = capacities.get(hostUuid);
+            if (cap == null) {
+                continue;
+            }
+
+            long cpuLeft = cap[0] - req.cpu;
+            long memoryLeft = cap[1] - memoryByRatio.applyAsLong(hostUuid, req.memory);
+            if (cpuLeft < 0 || memoryLeft < 0) {
+                continue;
+            }
+
+            if (chosen == null || isBetter(memoryLeft, cpuLeft, chosenMemoryLeft, chosenCpuLeft)) {
+                chosen = hostUuid;
+                chosenMemoryLeft = memoryLeft;
+                chosenCpuLeft = cpuLeft;
+            }
+        }
+
+        if (chosen != null) {
+            capacities.put(chosen, new long[]{chosenCpuLeft, chosenMemoryLeft});
+        }
+
+        return chosen;
+    }
+
+    private boolean isBetter(long memoryLeft, long cpuLeft, long chosenMemoryLeft, long chosenCpuLeft) {
+        int c = memoryLeft != chosenMemoryLeft ? Long.compare(memoryLeft, chosenMemoryLeft) : Long.compare(cpuLeft, chosenCpuLeft);
+        return strategy == HostPlacementStrategy.BinPacking ? c < 0 : c > 0;
+    }
+}
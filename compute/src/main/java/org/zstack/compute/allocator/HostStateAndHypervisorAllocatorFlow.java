@@ -24,8 +24,21 @@ public class HostStateAndHypervisorAllocatorFlow extends AbstractHostAllocatorFl
 
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private HostCapacityIndexManager indexMgr;
 
     private List<HostVO> allocate(String hypervisorType) {
+        if (!usePagination() && !Boolean.FALSE.equals(spec.getExtraData().get(HostCapacityIndexManager.INDEXED_CANDIDATES))) {
+            List<String> indexed = indexMgr.findHosts(null, hypervisorType, spec.getCpuCapacity(), spec.getMemoryCapacity());
+            if (indexed != null && !indexed.isEmpty()) {
+                // only load hosts which can hold the VM by the capacity index
+                spec.getExtraData().put(HostCapacityIndexManager.INDEXED_CANDIDATES, true);
+                SimpleQuery<HostVO> query = dbf.createQuery(HostVO.class);
+                query.add(HostVO_.uuid, Op.IN, indexed);
+                return allocate(query.list(), hypervisorType);
+            }
+        }
+
         SimpleQuery<HostVO> query = dbf.createQuery(HostVO.class);
         query.add(HostVO_.state, Op.EQ, HostState.Enabled);
         query.add(HostVO_.status, Op.EQ, HostStatus.Connected);
@@ -3,6 +3,7 @@ package org.zstack.compute.host;
 import org.springframework.beans.factory.annotation.Autowire;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
+import org.zstack.core.ansible.AnsibleDeploymentManifest;
 import org.zstack.core.asyncbatch.While;
 import org.zstack.core.cascade.CascadeConstant;
 import org.zstack.core.cascade.CascadeFacade;
@@ -857,6 +858,11 @@ public abstract class HostBase extends AbstractHost {
         data.setInventory(HostInventory.valueOf(self));
         evtf.fire(HostCanonicalEvents.HOST_STATUS_CHANGED_PATH, data);
 
+        if (next == HostStatus.Disconnected) {
+            // the host failed to connect or to be pinged, check its agent files next time it's deployed
+            AnsibleDeploymentManifest.invalidate(self.getManagementIp());
+        }
+
         CollectionUtils.safeForEach(pluginRgty.getExtensionList(AfterChangeHostStatusExtensionPoint.class),
                 new ForEachFunction<AfterChangeHostStatusExtensionPoint>() {
                     @Override
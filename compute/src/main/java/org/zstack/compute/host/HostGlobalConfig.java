@@ -45,5 +45,13 @@ public class HostGlobalConfig {
     public static GlobalConfig HOST_MAINTENANCE_POLICY = new GlobalConfig(CATEGORY, "host.maintenance.policy");
     @GlobalConfigValidation(numberGreaterThan = 0)
     public static GlobalConfig AUTO_RECONNECT_ON_ERROR_MAX_ATTEMPT_NUM = new GlobalConfig(CATEGORY, "connection.autoReconnectOnError.maxAttemptsNum");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig RECONNECT_PARALLELISM_DEGREE = new GlobalConfig(CATEGORY, "reconnect.parallelismDegree");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig RECONNECT_RATE = new GlobalConfig(CATEGORY, "reconnect.rate");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig RECONNECT_BACKOFF_INITIAL = new GlobalConfig(CATEGORY, "reconnect.backoff.initial");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig RECONNECT_BACKOFF_MAX = new GlobalConfig(CATEGORY, "reconnect.backoff.max");
 
 }
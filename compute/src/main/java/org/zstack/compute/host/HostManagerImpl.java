@@ -78,6 +78,8 @@ public class HostManagerImpl extends AbstractService implements HostManager, Man
     @Autowired
     protected HostTracker tracker;
     @Autowired
+    private HostReconnectScheduler reconnectScheduler;
+    @Autowired
     private TagManager tagMgr;
     @Autowired
     private HostCpuOverProvisioningManager cpuRatioMgr;
@@ -101,6 +103,8 @@ public class HostManagerImpl extends AbstractService implements HostManager, Man
             handle((APIAddHostMsg) msg);
         } else if (msg instanceof APIGetHypervisorTypesMsg) {
             handle((APIGetHypervisorTypesMsg) msg);
+        } else if (msg instanceof APIGetHostReconnectQueueMsg) {
+            handle((APIGetHostReconnectQueueMsg) msg);
         } else if (msg instanceof HostMessage) {
             HostMessage hmsg = (HostMessage) msg;
             passThrough(hmsg);
@@ -116,6 +120,16 @@ public class HostManagerImpl extends AbstractService implements HostManager, Man
         bus.reply(msg, reply);
     }
 
+    private void handle(APIGetHostReconnectQueueMsg msg) {
+        APIGetHostReconnectQueueReply reply = new APIGetHostReconnectQueueReply();
+        HostReconnectScheduler.QueueStatus s = reconnectScheduler.getQueueStatus();
+        reply.setQueueDepth(s.queued);
+        reply.setRunning(s.running);
+        reply.setBackingOff(s.backingOff);
+        reply.setEtaInSeconds(s.etaInSeconds);
+        bus.reply(msg, reply);
+    }
+
     private void passThrough(HostMessage msg) {
         HostVO vo = dbf.findByUuid(msg.getHostUuid(), HostVO.class);
         if (vo == null && allowedMessageAfterSoftDeletion.contains(msg.getClass())) {
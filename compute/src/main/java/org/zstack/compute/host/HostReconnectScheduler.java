@@ -0,0 +1,304 @@
+package org.zstack.compute.host;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.db.Q;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.core.Completion;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.host.HostConstant;
+import org.zstack.header.host.ReconnectHostMsg;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.vm.VmInstanceState;
+import org.zstack.header.vm.VmInstanceVO;
+import org.zstack.header.vm.VmInstanceVO_;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.zstack.core.Platform.operr;
+
+/**
+ * Admits reconnects of hosts managed by this management node, so a management node restart
+ * or a network blip doesn't reconnect all hosts at once:
+ *
+ * 1. at most host.reconnect.parallelismDegree reconnects run at the same time
+ * 2. at most host.reconnect.rate reconnects start per second
+ * 3. hosts with more running VMs reconnect first
+ * 4. a host failing to reconnect waits host.reconnect.backoff.initial seconds before its next
+ * reconnect, doubled on every consecutive failure up to host.reconnect.backoff.max seconds
+ *
+ * Reconnects of the same host requested before the previous one completes are merged.
+ */
+public class HostReconnectScheduler implements Component {
+    private static final CLogger logger = Utils.getLogger(HostReconnectScheduler.class);
+
+    @Autowired
+    private CloudBus bus;
+    @Autowired
+    private ThreadFacade thdf;
+
+    public static class QueueStatus {
+        public int queued;
+        public int running;
+        public int backingOff;
+        public long etaInSeconds;
+    }
+
+    private static class Request {
+        final String hostUuid;
+        final long runningVms;
+        final long submitTime;
+        final List<Completion> completions = new ArrayList<>();
+        long startTime;
+
+        Request(String hostUuid, long runningVms) {
+            this.hostUuid = hostUuid;
+            this.runningVms = runningVms;
+            this.submitTime = System.currentTimeMillis();
+        }
+    }
+
+    private static class Backoff {
+        int failures;
+        long notBefore;
+    }
+
+    private final PriorityQueue<Request> queue = new PriorityQueue<>(
+            Comparator.comparingLong((Request r) -> -r.runningVms).thenComparingLong(r -> r.submitTime));
+    private final Map<String, Request> requests = new HashMap<>();
+    private final Map<String, Request> running = new HashMap<>();
+    private final Map<String, Backoff> backoffs = new HashMap<>();
+
+    private double tokens;
+    private long lastRefillTime = System.currentTimeMillis();
+    // exponentially weighted moving average of reconnect durations
+    private double averageDurationMs;
+    private Future<Void> ticker;
+
+    public void reconnect(String hostUuid, Completion completion) {
+        synchronized (this) {
+            Request req = requests.get(hostUuid);
+            if (req != null) {
+                req.completions.add(completion);
+                return;
+            }
+        }
+
+        long runningVms = Q.New(VmInstanceVO.class)
+                .eq(VmInstanceVO_.hostUuid, hostUuid)
+                .eq(VmInstanceVO_.state, VmInstanceState.Running)
+                .count();
+
+        synchronized (this) {
+            Request req = requests.get(hostUuid);
+            if (req == null) {
+                req = new Request(hostUuid, runningVms);
+                requests.put(hostUuid, req);
+                queue.add(req);
+            }
+
+            req.completions.add(completion);
+        }
+
+        dispatch();
+    }
+
+    /**
+     * fails queued reconnects of the hosts, reconnects already started are not interrupted
+     */
+    public void cancel(Collection<String> hostUuids) {
+        List<Request> canceled = new ArrayList<>();
+        synchronized (this) {
+            for (String hostUuid : hostUuids) {
+                backoffs.remove(hostUuid);
+                Request req = requests.get(hostUuid);
+                if (req != null && queue.remove(req)) {
+                    requests.remove(hostUuid);
+                    canceled.add(req);
+                }
+            }
+        }
+
+        canceled.forEach(req -> complete(req, operr("the reconnect of the host[uuid:%s] is canceled", req.hostUuid)));
+    }
+
+    public synchronized QueueStatus getQueueStatus() {
+        long now = System.currentTimeMillis();
+        QueueStatus s = new QueueStatus();
+        s.queued = queue.size();
+        s.running = running.size();
+
+        long lastBackoffEnd = now;
+        for (Request req : queue) {
+            Backoff b = backoffs.get(req.hostUuid);
+            if (b != null && b.notBefore > now) {
+                s.backingOff ++;
+                lastBackoffEnd = Math.max(lastBackoffEnd, b.notBefore);
+            }
+        }
+
+        // the throughput is bounded by both the rate and how fast the running reconnects complete
+        double perSecond = getRate();
+        if (averageDurationMs > 0) {
+            perSecond = Math.min(perSecond, getParallelismDegree() * 1000 / averageDurationMs);
+        }
+
+        long drain = (long) Math.ceil(s.queued / perSecond);
+        s.etaInSeconds = Math.max(drain, TimeUnit.MILLISECONDS.toSeconds(lastBackoffEnd - now));
+        return s;
+    }
+
+    private int getParallelismDegree() {
+        return HostGlobalConfig.RECONNECT_PARALLELISM_DEGREE.value(Integer.class);
+    }
+
+    private int getRate() {
+        return HostGlobalConfig.RECONNECT_RATE.value(Integer.class);
+    }
+
+    private void refillTokens(long now) {
+        int rate = getRate();
+        tokens = Math.min(rate, tokens + (now - lastRefillTime) * rate / 1000.0);
+        lastRefillTime = now;
+    }
+
+    private void dispatch() {
+        long now = System.currentTimeMillis();
+        List<Request> toRun = new ArrayList<>();
+
+        synchronized (this) {
+            refillTokens(now);
+
+            List<Request> backingOff = new ArrayList<>();
+            while (!queue.isEmpty() && running.size() < getParallelismDegree() && tokens >= 1) {
+                Request req = queue.poll();
+                Backoff b = backoffs.get(req.hostUuid);
+                if (b != null && b.notBefore > now) {
+                    backingOff.add(req);
+                    continue;
+                }
+
+                tokens -= 1;
+                req.startTime = now;
+                running.put(req.hostUuid, req);
+                toRun.add(req);
+            }
+
+            queue.addAll(backingOff);
+        }
+
+        toRun.forEach(this::doReconnect);
+    }
+
+    private void doReconnect(Request req) {
+        if (logger.isTraceEnabled()) {
+            logger.trace(String.format("start reconnecting the host[uuid:%s] which has %s running VMs, waited %sms",
+                    req.hostUuid, req.runningVms, req.startTime - req.submitTime));
+        }
+
+        ReconnectHostMsg msg = new ReconnectHostMsg();
+        msg.setHostUuid(req.hostUuid);
+        msg.setSkipIfHostConnected(true);
+        bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, req.hostUuid);
+        bus.send(msg, new CloudBusCallBack(null) {
+            @Override
+            public void run(MessageReply reply) {
+                done(req, reply.isSuccess() ? null : reply.getError());
+            }
+        });
+    }
+
+    private void done(Request req, ErrorCode error) {
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            running.remove(req.hostUuid);
+            requests.remove(req.hostUuid);
+            averageDurationMs = averageDurationMs == 0 ? now - req.startTime : averageDurationMs * 0.9 + (now - req.startTime) * 0.1;
+
+            if (error == null) {
+                backoffs.remove(req.hostUuid);
+            } else {
+                Backoff b = backoffs.computeIfAbsent(req.hostUuid, k -> new Backoff());
+                b.failures ++;
+                long initial = HostGlobalConfig.RECONNECT_BACKOFF_INITIAL.value(Long.class);
+                long max = HostGlobalConfig.RECONNECT_BACKOFF_MAX.value(Long.class);
+                long delay = Math.min(max, initial << Math.min(b.failures - 1, 20));
+                b.notBefore = now + TimeUnit.SECONDS.toMillis(delay);
+                logger.debug(String.format("failed to reconnect the host[uuid:%s] %s times in a row, back off %s seconds",
+                        req.hostUuid, b.failures, delay));
+            }
+        }
+
+        complete(req, error);
+        dispatch();
+    }
+
+    private void complete(Request req, ErrorCode error) {
+        List<Completion> completions;
+        synchronized (this) {
+            completions = new ArrayList<>(req.completions);
+        }
+
+        for (Completion c : completions) {
+            try {
+                if (error == null) {
+                    c.success();
+                } else {
+                    c.fail(error);
+                }
+            } catch (Throwable t) {
+                logger.warn(String.format("unhandled exception while completing the reconnect of the host[uuid:%s]", req.hostUuid), t);
+            }
+        }
+    }
+
+    @Override
+    public boolean start() {
+        // dispatches reconnects waiting for tokens or backoffs
+        ticker = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return 1;
+            }
+
+            @Override
+            public String getName() {
+                return String.format("host-reconnect-scheduler-managementNode-%s", Platform.getManagementServerId());
+            }
+
+            @Override
+            public void run() {
+                try {
+                    dispatch();
+                } catch (Throwable t) {
+                    logger.warn("unhandled throwable", t);
+                }
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (ticker != null) {
+            ticker.cancel(true);
+        }
+
+        return true;
+    }
+}
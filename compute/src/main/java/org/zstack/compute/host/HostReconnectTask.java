@@ -4,15 +4,11 @@ import org.springframework.beans.factory.annotation.Autowire;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 import org.zstack.core.cloudbus.CloudBus;
-import org.zstack.core.cloudbus.CloudBusCallBack;
 import org.zstack.core.thread.AsyncTimer;
 import org.zstack.header.core.Completion;
 import org.zstack.header.core.NoErrorCompletion;
 import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.header.exception.CloudRuntimeException;
-import org.zstack.header.host.HostConstant;
-import org.zstack.header.host.ReconnectHostMsg;
-import org.zstack.header.message.MessageReply;
 
 import java.util.concurrent.TimeUnit;
 
@@ -23,6 +19,8 @@ public abstract class HostReconnectTask extends AsyncTimer {
 
     @Autowired
     protected CloudBus bus;
+    @Autowired
+    private HostReconnectScheduler reconnectScheduler;
 
     public enum CanDoAnswer {
         Ready,
@@ -41,20 +39,7 @@ public abstract class HostReconnectTask extends AsyncTimer {
     }
 
     private void reconnectNow(String uuid, Completion completion) {
-        ReconnectHostMsg msg = new ReconnectHostMsg();
-        msg.setHostUuid(uuid);
-        msg.setSkipIfHostConnected(true);
-        bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, uuid);
-        bus.send(msg, new CloudBusCallBack(completion) {
-            @Override
-            public void run(MessageReply reply) {
-                if (reply.isSuccess()) {
-                    completion.success();
-                } else {
-                    completion.fail(reply.getError());
-                }
-            }
-        });
+        reconnectScheduler.reconnect(uuid, completion);
     }
 
     @Override
@@ -6,7 +6,7 @@ import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.Q;
 import org.zstack.core.db.SQLBatch;
-import org.zstack.core.thread.AsyncTimer;
+import org.zstack.core.tacker.PingScheduler;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.Component;
 import org.zstack.header.core.Completion;
@@ -28,10 +28,14 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
-public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener, Component, ManagementNodeReadyExtensionPoint {
+import static org.zstack.core.Platform.operr;
+
+public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener, Component, ManagementNodeReadyExtensionPoint,
+        HostChangeStateExtensionPoint {
     private final static CLogger logger = Utils.getLogger(HostTrackImpl.class);
 
-    private Map<String, Tracker> trackers = new HashMap<>();
+    private Map<String, TrackedHost> trackers = new ConcurrentHashMap<>();
+    private PingScheduler.Group pingGroup;
 
     @Autowired
     private DatabaseFacade dbf;
@@ -45,6 +49,10 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
     private PluginRegistry pluginRgty;
     @Autowired
     protected EventFacade evtf;
+    @Autowired
+    private PingScheduler pingScheduler;
+    @Autowired
+    private HostReconnectScheduler reconnectScheduler;
 
     private static Map<String, HostReconnectTaskFactory> hostReconnectTaskFactories = new HashMap<>();
 
@@ -63,69 +71,42 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
     }
 
     private void reconnectNow(String uuid, Completion completion) {
-        ReconnectHostMsg msg = new ReconnectHostMsg();
-        msg.setHostUuid(uuid);
-        msg.setSkipIfHostConnected(true);
-        bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, uuid);
-        bus.send(msg, new CloudBusCallBack(completion) {
-            @Override
-            public void run(MessageReply reply) {
-                if (reply.isSuccess()) {
-                    completion.success();
-                } else {
-                    completion.fail(reply.getError());
-                }
-            }
-        });
+        reconnectScheduler.reconnect(uuid, completion);
     }
 
-    private class Tracker extends AsyncTimer {
+    private class TrackedHost {
         private String uuid;
         private String hypervisorType;
+        private volatile HostState state;
         private HostReconnectTask reconnectTask;
 
-        public Tracker(String uuid) {
-            super(TimeUnit.SECONDS, HostGlobalConfig.PING_HOST_INTERVAL.value(Long.class));
+        TrackedHost(String uuid, String hypervisorType, HostState state) {
             this.uuid = uuid;
-            hypervisorType = Q.New(HostVO.class).select(HostVO_.hypervisorType)
-                    .eq(HostVO_.uuid, uuid).findValue();
-            if (hypervisorType == null) {
-                throw new CloudRuntimeException(String.format("host[uuid:%s] is deleted, why you submit a tracker for it???", uuid));
-            }
-
-
-            __name__ = String.format("host-tracker-%s-hypervisor-%s", uuid, hypervisorType);
+            this.hypervisorType = hypervisorType;
+            this.state = state;
         }
 
-        @Override
-        protected void execute() {
-            track();
-        }
-
-        private void track()  {
-            Tuple t = Q.New(HostVO.class).select(HostVO_.state, HostVO_.status)
-                    .eq(HostVO_.uuid, uuid).findTuple();
-
-            if (t == null) {
-                logger.debug(String.format("host[uuid:%s] seems to be deleted, stop tracking it", uuid));
-                return;
-            }
-
-            HostState state = t.get(0, HostState.class);
-
+        private void track(Completion completion) {
             if (state == HostState.PreMaintenance || state == HostState.Maintenance) {
                 logger.debug(String.format("host[uuid:%s] is in state of %s, not tracking it this time", uuid, state));
-                continueToRunThisTimer();
+                completion.success();
                 return;
             }
 
             PingHostMsg msg = new PingHostMsg();
             msg.setHostUuid(uuid);
             bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, uuid);
-            bus.send(msg, new CloudBusCallBack(null) {
+            bus.send(msg, new CloudBusCallBack(completion) {
                 @Override
                 public void run(MessageReply reply) {
-                    decideWhatToDoNext(makeReconnectDecision(reply));
+                    if (!reply.isSuccess() && !Q.New(HostVO.class).eq(HostVO_.uuid, uuid).isExists()) {
+                        logger.debug(String.format("host[uuid:%s] seems to be deleted, stop tracking it", uuid));
+                        untrackHost(uuid);
+                        completion.success();
+                        return;
+                    }
+
+                    decideWhatToDoNext(makeReconnectDecision(reply), reply, completion);
                 }
 
                 private ReconnectDecision makeReconnectDecision(MessageReply reply) {
@@ -167,37 +148,38 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
             });
         }
 
-        private void decideWhatToDoNext(ReconnectDecision decision) {
+        private void decideWhatToDoNext(ReconnectDecision decision, MessageReply reply, Completion completion) {
             if (decision == ReconnectDecision.DoNothing) {
-                continueToRunThisTimer();
+                if (reply.isSuccess()) {
+                    completion.success();
+                } else {
+                    completion.fail(reply.getError());
+                }
             } else if (decision == ReconnectDecision.ReconnectNow) {
-                reconnectNow(uuid, new Completion(new NoErrorCompletion() {
-                    @Override
-                    public void done() {
-                        continueToRunThisTimer();
-                    }
-                }) {
+                reconnectNow(uuid, new Completion(completion) {
                     @Override
                     public void success() {
-                        continueToRunThisTimer();
+                        completion.success();
                     }
 
                     @Override
                     public void fail(ErrorCode errorCode) {
-                        submitReconnectTask();
+                        submitReconnectTask(errorCode, completion);
                     }
                 });
             } else if (decision == ReconnectDecision.StopPing) {
-                cancel();
+                untrackHost(uuid);
+                completion.success();
             } else if (decision == ReconnectDecision.SubmitReconnectTask) {
-                submitReconnectTask();
+                submitReconnectTask(operr("host[uuid:%s] is disconnected", uuid), completion);
             } else {
                 throw new CloudRuntimeException("should not be here");
             }
         }
 
-        private void submitReconnectTask() {
-            if (isCanceled()) {
+        private synchronized void submitReconnectTask(ErrorCode cause, Completion completion) {
+            if (trackers.get(uuid) != this) {
+                completion.fail(cause);
                 return;
             }
 
@@ -205,59 +187,71 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
                 reconnectTask.cancel();
             }
 
-            reconnectTask = getHostReconnectTaskFactory(hypervisorType).createTask(uuid, new NoErrorCompletion() {
+            reconnectTask = getHostReconnectTaskFactory(hypervisorType).createTask(uuid, new NoErrorCompletion(completion) {
                 @Override
                 public void done() {
-                    continueToRunThisTimer();
+                    completion.fail(cause);
                 }
             });
 
             reconnectTask.start();
         }
 
-        @Override
-        public void cancel() {
+        private synchronized void cancel() {
             if (reconnectTask != null) {
                 reconnectTask.cancel();
             }
-
-            super.cancel();
-
-            trackers.remove(uuid);
         }
     }
 
-
     public void trackHost(String hostUuid) {
-        Tracker t = trackers.get(hostUuid);
-        if (t != null) {
-            t.cancel();
-        }
-
-        t = new Tracker(hostUuid);
-        trackers.put(hostUuid, t);
-        t.start();
-        logger.debug(String.format("starting tracking hosts[uuid:%s]", hostUuid));
+        trackHost(Collections.singletonList(hostUuid));
     }
 
     @Override
     public void untrackHost(String huuid) {
-        Tracker t = trackers.get(huuid);
-        if (t != null) {
-            t.cancel();
-        }
-        trackers.remove(huuid);
-        logger.debug(String.format("stop tracking host[uuid:%s]", huuid));
+        untrackHost(Collections.singletonList(huuid));
     }
 
     @Override
     public void trackHost(Collection<String> huuids) {
-        huuids.forEach(this::trackHost);
+        if (huuids.isEmpty()) {
+            return;
+        }
+
+        List<Tuple> ts = Q.New(HostVO.class).select(HostVO_.uuid, HostVO_.hypervisorType, HostVO_.state)
+                .in(HostVO_.uuid, huuids).listTuple();
+        if (ts.size() != new HashSet<>(huuids).size()) {
+            Set<String> found = ts.stream().map(t -> t.get(0, String.class)).collect(Collectors.toSet());
+            List<String> deleted = huuids.stream().filter(huuid -> !found.contains(huuid)).collect(Collectors.toList());
+            throw new CloudRuntimeException(String.format("hosts%s are deleted, why you submit a tracker for them???", deleted));
+        }
+
+        pingGroup.untrack(huuids);
+        for (Tuple t : ts) {
+            TrackedHost h = new TrackedHost(t.get(0, String.class), t.get(1, String.class), t.get(2, HostState.class));
+            TrackedHost old = trackers.put(h.uuid, h);
+            if (old != null) {
+                old.cancel();
+            }
+        }
+
+        pingGroup.track(huuids);
+        huuids.forEach(huuid -> logger.debug(String.format("starting tracking hosts[uuid:%s]", huuid)));
     }
 
     @Override
     public void untrackHost(Collection<String> huuids) {
-        huuids.forEach(this::untrackHost);
+        pingGroup.untrack(huuids);
+        reconnectScheduler.cancel(huuids);
+
+        for (String huuid : huuids) {
+            TrackedHost h = trackers.remove(huuid);
+            if (h != null) {
+                h.cancel();
+                logger.debug(String.format("stop tracking host[uuid:%s]", huuid));
+            }
+        }
     }
 
     private void reScanHost() {
@@ -266,7 +260,7 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
 
     private void reScanHost(boolean skipExisting) {
         if (!skipExisting) {
-            new HashSet<>(trackers.values()).forEach(Tracker::cancel);
+            untrackHost(new ArrayList<>(trackers.keySet()));
         }
 
         new SQLBatch() {
@@ -322,10 +316,33 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
         populateExtensions();
         onHostStatusChange();
 
+        pingGroup = pingScheduler.createGroup("host", new PingScheduler.PingHandler() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getPingInterval() {
+                return HostGlobalConfig.PING_HOST_INTERVAL.value(Long.class);
+            }
+
+            @Override
+            public void ping(String resourceUuid, Completion completion) {
+                TrackedHost h = trackers.get(resourceUuid);
+                if (h == null) {
+                    completion.success();
+                    return;
+                }
+
+                h.track(completion);
+            }
+        });
+
         HostGlobalConfig.PING_HOST_INTERVAL.installUpdateExtension((oldConfig, newConfig) -> {
-            logger.debug(String.format("%s change from %s to %s, restart host trackers",
+            logger.debug(String.format("%s change from %s to %s, reschedule host pings",
                     oldConfig.getCanonicalName(), oldConfig.value(), newConfig.value()));
-            reScanHost();
+            pingGroup.reschedule();
         });
 
         HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.installUpdateExtension((oc, nc)-> {
@@ -366,6 +383,22 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
         });
     }
 
+    @Override
+    public void preChangeHostState(HostInventory inventory, HostStateEvent event, HostState nextState) throws HostException {
+    }
+
+    @Override
+    public void beforeChangeHostState(HostInventory inventory, HostStateEvent event, HostState nextState) {
+    }
+
+    @Override
+    public void afterChangeHostState(HostInventory inventory, HostStateEvent event, HostState previousState) {
+        TrackedHost h = trackers.get(inventory.getUuid());
+        if (h != null) {
+            h.state = HostState.valueOf(inventory.getState());
+        }
+    }
+
     @Override
     public boolean stop() {
         return true;
@@ -47,15 +47,23 @@ public abstract class VmTracer {
         Set<String> vmsToSkipHostSide;
         Map<String, VmInstanceState> hostSideStates;
         Map<String, VmInstanceState> mgmtSideStates;
+        // null means checking all VMs on the host
+        Collection<String> vmsToCheck;
 
         @Transactional(readOnly = true)
         private void buildManagementServerSideVmStates() {
             mgmtSideStates = new HashMap<>();
-            String sql = "select vm.uuid, vm.state from VmInstanceVO vm where vm.hostUuid = :huuid or (vm.hostUuid is null and vm.lastHostUuid = :huuid)" +
+            String condition = "vm.hostUuid = :huuid or (vm.hostUuid is null and vm.lastHostUuid = :huuid)" +
                     " and vm.state not in (:vmstates)";
+            String sql = vmsToCheck == null ? "select vm.uuid, vm.state from VmInstanceVO vm where " + condition :
+                    String.format("select vm.uuid, vm.state from VmInstanceVO vm where (%s) and vm.uuid in (:uuids)", condition);
+
             TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
             q.setParameter("huuid", hostUuid);
             q.setParameter("vmstates", list(VmInstanceState.Destroyed, VmInstanceState.Destroying));
+            if (vmsToCheck != null) {
+                q.setParameter("uuids", vmsToCheck);
+            }
             List<Tuple> ts = q.getResultList();
 
             for (Tuple t : ts) {
@@ -70,6 +78,10 @@ public abstract class VmTracer {
             for (Map.Entry<String, VmInstanceState> e : hostSideStates.entrySet()) {
                 String vmUuid = e.getKey();
 
+                if (vmsToCheck != null && !vmsToCheck.contains(vmUuid)) {
+                    continue;
+                }
+
                 if (vmsToSkipHostSide != null && vmsToSkipHostSide.contains(vmUuid)) {
                     continue;
                 }
@@ -147,6 +159,10 @@ public abstract class VmTracer {
         }
 
         void trace() {
+            if (vmsToCheck != null && vmsToCheck.isEmpty()) {
+                return;
+            }
+
             buildManagementServerSideVmStates();
             checkFromHostSide();
             checkFromManagementServerSide();
@@ -154,6 +170,16 @@ public abstract class VmTracer {
     }
 
     protected void reportVmState(final String hostUuid, final Map<String, VmInstanceState> vmStates, final Set<String> vmsToSkipHostSide) {
+        reportVmState(hostUuid, vmStates, null, vmsToSkipHostSide);
+    }
+
+    /**
+     * @param vmStates states of all VMs on the host
+     * @param vmsToCheck VMs whose states need to be traced, e.g. VMs changed since the last sync;
+     *                   null to trace all VMs on the host
+     */
+    protected void reportVmState(final String hostUuid, final Map<String, VmInstanceState> vmStates,
+                                 final Collection<String> vmsToCheck, final Set<String> vmsToSkipHostSide) {
         if (logger.isTraceEnabled()) {
             for (Map.Entry<String, VmInstanceState> e : vmStates.entrySet()) {
                 logger.trace(String.format("reportVmState vm: %s, state: %s", e.getKey(), e.getValue().toString()));
@@ -193,6 +219,7 @@ public abstract class VmTracer {
                 t.hostUuid = hostUuid;
                 t.hostSideStates = vmStates;
                 t.vmsToSkipHostSide = vmsToSkipHostSide;
+                t.vmsToCheck = vmsToCheck;
                 t.trace();
                 return null;
             }
@@ -64,4 +64,6 @@ public class CoreGlobalProperty {
     public static boolean ENABLE_ELABORATION;
     @GlobalProperty(name = "recordElaboration", defaultValue = "false")
     public static boolean RECORD_TO_DB_ELABORATION;
+    @GlobalProperty(name = "PingScheduler.tickInterval", defaultValue = "200")
+    public static long PING_SCHEDULER_TICK_INTERVAL;
 }
@@ -0,0 +1,287 @@
+package org.zstack.core.ansible;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.zstack.header.errorcode.OperationFailureException;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.ssh.Ssh;
+import org.zstack.utils.ssh.SshResult;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.zstack.core.Platform.operr;
+
+/**
+ * Files an agent deployment puts on a remote host, with their md5 sums expected on the host.
+ *
+ * The md5 sums are computed on the management node and cached until the source files change.
+ * The host is checked by one script in one SSH session instead of one SSH exchange per file, and
+ * a host matching the manifest is remembered, so the host is not checked again until the manifest,
+ * i.e. the version of the agent, changes, or Ansible.deploymentManifest.matchedHostTtl seconds
+ * pass. A host is forgotten at once when it fails to connect or to be pinged, because its files
+ * may have been changed behind the management node.
+ */
+public class AnsibleDeploymentManifest {
+    private static final CLogger logger = Utils.getLogger(AnsibleDeploymentManifest.class);
+
+    private static final String MISSING = "MISSING";
+
+    private static class SourceMd5 {
+        long lastModified;
+        long length;
+        String md5;
+    }
+
+    private static class Matched {
+        String hostname;
+        String digest;
+        long expiredAt;
+    }
+
+    private static final Map<String, SourceMd5> sourceMd5s = new ConcurrentHashMap<>();
+    // host:port -> the manifest the host matched last time
+    private static final Map<String, Matched> matchedHosts = new ConcurrentHashMap<>();
+
+    // dest file -> md5
+    private final Map<String, String> files = new TreeMap<>();
+    // dest folder -> file path relative to the folder -> md5
+    private final Map<String, Map<String, String>> folders = new TreeMap<>();
+
+    private String hostname;
+    private int port = 22;
+    private String username;
+    private String password;
+    private String privateKey;
+
+    public AnsibleDeploymentManifest setHostname(String hostname) {
+        this.hostname = hostname;
+        return this;
+    }
+
+    public AnsibleDeploymentManifest setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public AnsibleDeploymentManifest setUsername(String username) {
+        this.username = username;
+        return this;
+    }
+
+    public AnsibleDeploymentManifest setPassword(String password) {
+        this.password = password;
+        return this;
+    }
+
+    public AnsibleDeploymentManifest setPrivateKey(String privateKey) {
+        this.privateKey = privateKey;
+        return this;
+    }
+
+    public void addFile(String srcPath, String destPath) {
+        files.put(destPath, md5(new File(srcPath)));
+    }
+
+    public void addFolder(String srcFolder, String destFolder) {
+        Path root = new File(srcFolder).toPath();
+        Map<String, String> md5s = new TreeMap<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path p : paths.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                md5s.put(root.relativize(p).toString(), md5(p.toFile()));
+            }
+        } catch (IOException e) {
+            throw new OperationFailureException(operr("cannot check md5sum of files in the folder[%s], %s", srcFolder, e.getMessage()));
+        }
+
+        folders.put(destFolder, md5s);
+    }
+
+    public boolean isEmpty() {
+        return files.isEmpty() && folders.isEmpty();
+    }
+
+    private static String md5(File f) {
+        String path = f.getAbsolutePath();
+        SourceMd5 cached = sourceMd5s.get(path);
+        if (cached != null && cached.lastModified == f.lastModified() && cached.length == f.length()) {
+            return cached.md5;
+        }
+
+        SourceMd5 s = new SourceMd5();
+        s.lastModified = f.lastModified();
+        s.length = f.length();
+        try (InputStream in = new FileInputStream(f)) {
+            s.md5 = DigestUtils.md5Hex(in);
+        } catch (IOException e) {
+            throw new CloudRuntimeException(String.format("cannot calculate md5sum of the file[%s]", path), e);
+        }
+
+        sourceMd5s.put(path, s);
+        return s.md5;
+    }
+
+    private String getHostKey() {
+        return String.format("%s:%s", hostname, port);
+    }
+
+    private boolean isMatched(String digest) {
+        Matched m = matchedHosts.get(getHostKey());
+        if (m == null) {
+            return false;
+        }
+
+        if (m.expiredAt < System.currentTimeMillis()) {
+            matchedHosts.remove(getHostKey(), m);
+            return false;
+        }
+
+        return m.digest.equals(digest);
+    }
+
+    private void putMatched(String digest) {
+        Matched m = new Matched();
+        m.hostname = hostname;
+        m.digest = digest;
+        m.expiredAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(AnsibleGlobalProperty.DEPLOYMENT_MANIFEST_MATCHED_HOST_TTL);
+        matchedHosts.put(getHostKey(), m);
+    }
+
+    private static String normalizePath(String path) {
+        return Paths.get(path).normalize().toString();
+    }
+
+    private String getDigest() {
+        StringBuilder sb = new StringBuilder();
+        files.forEach((path, md5) -> sb.append(path).append(' ').append(md5).append('\n'));
+        folders.forEach((folder, md5s) -> md5s.forEach((path, md5) ->
+                sb.append(folder).append(':').append(path).append(' ').append(md5).append('\n')));
+        return DigestUtils.md5Hex(sb.toString());
+    }
+
+    public String buildScript() {
+        StringBuilder sb = new StringBuilder();
+        for (String f : files.keySet()) {
+            sb.append(String.format("if [ -f '%1$s' ]; then md5sum '%1$s'; else echo '%2$s %1$s'; fi\n", f, MISSING));
+        }
+        for (String d : folders.keySet()) {
+            sb.append(String.format("if [ -d '%1$s' ]; then find '%1$s' -type f -exec md5sum {} +; else echo '%2$s %1$s'; fi\n", d, MISSING));
+        }
+        sb.append("exit 0\n");
+        return sb.toString();
+    }
+
+    /**
+     * @param output lines of md5sum printed by the script of buildScript()
+     * @return the first difference found between the output and the manifest, null if they match
+     */
+    public String diff(String output) {
+        Map<String, String> remote = new HashMap<>();
+        for (String line : output.split("\n")) {
+            if (StringUtils.isBlank(line)) {
+                continue;
+            }
+
+            String[] pair = line.trim().split(" +", 2);
+            if (pair.length == 2) {
+                remote.put(normalizePath(pair[1]), pair[0]);
+            }
+        }
+
+        for (Map.Entry<String, String> e : files.entrySet()) {
+            String md5 = remote.get(normalizePath(e.getKey()));
+            if (!e.getValue().equals(md5)) {
+                return String.format("the file[%s] expects md5 %s but got %s", e.getKey(), e.getValue(), md5);
+            }
+        }
+
+        for (Map.Entry<String, Map<String, String>> e : folders.entrySet()) {
+            String folder = e.getKey();
+            Path folderPath = Paths.get(folder).normalize();
+            if (MISSING.equals(remote.get(folderPath.toString()))) {
+                return String.format("the folder[%s] is missing", folder);
+            }
+
+            // compare whole path segments, so files of /opt/agent-old are not counted in /opt/agent
+            long remoteCount = remote.keySet().stream().map(Paths::get)
+                    .filter(p -> p.startsWith(folderPath) && !p.equals(folderPath)).count();
+            if (remoteCount != e.getValue().size()) {
+                return String.format("the folder[%s] expects %s files but got %s", folder, e.getValue().size(), remoteCount);
+            }
+
+            for (Map.Entry<String, String> fe : e.getValue().entrySet()) {
+                String md5 = remote.get(folderPath.resolve(fe.getKey()).normalize().toString());
+                if (!fe.getValue().equals(md5)) {
+                    return String.format("the file[%s] in the folder[%s] expects md5 %s but got %s", fe.getKey(), folder, fe.getValue(), md5);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    public boolean needDeploy() {
+        String digest = getDigest();
+        if (isMatched(digest)) {
+            logger.debug(String.format("the host[ip:%s] matched the deployment manifest[digest:%s] before, skip checking it", hostname, digest));
+            return false;
+        }
+
+        Ssh ssh = new Ssh();
+        ssh.setUsername(username).setPrivateKey(privateKey)
+                .setPassword(password).setPort(port)
+                .setHostname(hostname);
+        SshResult ret = ssh.shell(buildScript()).runAndClose();
+        if (ret.getReturnCode() != 0) {
+            logger.debug(String.format("failed to check the deployment manifest on the host[ip:%s], stdout: %s, stderr: %s",
+                    hostname, ret.getStdout(), ret.getStderr()));
+            return true;
+        }
+
+        String diff = diff(ret.getStdout());
+        if (diff != null) {
+            logger.debug(String.format("the host[ip:%s] doesn't match the deployment manifest, %s", hostname, diff));
+            return true;
+        }
+
+        putMatched(digest);
+        return false;
+    }
+
+    /**
+     * remembers the host has all files of the manifest, e.g. after a successful deployment
+     */
+    public void markMatched() {
+        putMatched(getDigest());
+    }
+
+    /**
+     * forgets the host matched the manifest, so its files are checked next time
+     */
+    public void invalidate() {
+        matchedHosts.remove(getHostKey());
+    }
+
+    /**
+     * forgets the host matched any manifest on any SSH port, e.g. when the host fails to connect
+     */
+    public static void invalidate(String hostname) {
+        if (hostname == null) {
+            return;
+        }
+
+        matchedHosts.values().removeIf(m -> hostname.equals(m.hostname));
+    }
+}
@@ -23,4 +23,8 @@ public class AnsibleGlobalProperty {
     public static boolean DEBUG_MODE;
     @GlobalProperty(name = "Ansible.debugMode2", defaultValue = "false")
     public static boolean DEBUG_MODE2;
+    @GlobalProperty(name = "Ansible.deploymentManifest", defaultValue = "true")
+    public static boolean DEPLOYMENT_MANIFEST;
+    @GlobalProperty(name = "Ansible.deploymentManifest.matchedHostTtl", defaultValue = "3600")
+    public static long DEPLOYMENT_MANIFEST_MATCHED_HOST_TTL;
 }
@@ -0,0 +1,9 @@
+package org.zstack.core.ansible;
+
+/**
+ * an AnsibleChecker checking files on the remote host, whose check AnsibleRunner merges into
+ * one AnsibleDeploymentManifest checked in one SSH session
+ */
+public interface AnsibleManifestChecker extends AnsibleChecker {
+    void addTo(AnsibleDeploymentManifest manifest);
+}
@@ -281,6 +281,7 @@ public class AnsibleRunner {
             @Override
             public void run(MessageReply reply) {
                 if (reply.isSuccess()) {
+                    markManifestMatched();
                     completion.success(true);
                 } else {
                     cleanup();
@@ -290,12 +291,51 @@ public class AnsibleRunner {
         });
     }
 
+    private AnsibleDeploymentManifest buildManifest() {
+        AnsibleDeploymentManifest manifest = new AnsibleDeploymentManifest()
+                .setHostname(targetIp)
+                .setPort(sshPort)
+                .setUsername(username)
+                .setPassword(password)
+                .setPrivateKey(privateKey);
+        checkers.stream().filter(c -> c instanceof AnsibleManifestChecker)
+                .forEach(c -> ((AnsibleManifestChecker) c).addTo(manifest));
+        return manifest;
+    }
+
+    private void markManifestMatched() {
+        if (!AnsibleGlobalProperty.DEPLOYMENT_MANIFEST) {
+            return;
+        }
+
+        try {
+            buildManifest().markMatched();
+        } catch (Exception e) {
+            logger.warn(String.format("failed to build the deployment manifest of the host[ip:%s]", targetIp), e);
+        }
+    }
+
     private boolean runChecker() {
         for (AnsibleChecker checker : checkers) {
             ErrorCode err = checker.stopAnsible();
             if (err != null) {
                 throw new OperationFailureException(err);
             }
+        }
+
+        // files checked by all AnsibleManifestCheckers are checked together in one SSH session
+        if (AnsibleGlobalProperty.DEPLOYMENT_MANIFEST) {
+            AnsibleDeploymentManifest manifest = buildManifest();
+            if (!manifest.isEmpty() && manifest.needDeploy()) {
+                logger.debug("deployment manifest reports deploy is needed");
+                return true;
+            }
+        }
+
+        for (AnsibleChecker checker : checkers) {
+            if (AnsibleGlobalProperty.DEPLOYMENT_MANIFEST && checker instanceof AnsibleManifestChecker) {
+                continue;
+            }
 
             if (checker.needDeploy()) {
                 logger.debug(String.format("checker[%s] reports deploy is needed", checker.getClass()));
@@ -357,6 +397,8 @@ public class AnsibleRunner {
         for (AnsibleChecker checker : checkers) {
             checker.deleteDestFile();
         }
+
+        new AnsibleDeploymentManifest().setHostname(targetIp).setPort(sshPort).invalidate();
     }
 
     public void run(ReturnValueCompletion<Boolean> completion) {
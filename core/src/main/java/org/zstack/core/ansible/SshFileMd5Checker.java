@@ -13,7 +13,7 @@ import java.util.List;
 
 /**
  */
-public class SshFileMd5Checker implements AnsibleChecker {
+public class SshFileMd5Checker implements AnsibleManifestChecker {
     private static final CLogger logger = Utils.getLogger(SshFileMd5Checker.class);
 
     private List<SrcDestPair> srcDestPairs = new ArrayList<SrcDestPair>();
@@ -70,6 +70,13 @@ public class SshFileMd5Checker implements AnsibleChecker {
         return false;
     }
 
+    @Override
+    public void addTo(AnsibleDeploymentManifest manifest) {
+        for (SrcDestPair b : srcDestPairs) {
+            manifest.addFile(b.srcPath, b.destPath);
+        }
+    }
+
     @Override
     public void deleteDestFile() {
         for (SrcDestPair b : srcDestPairs) {
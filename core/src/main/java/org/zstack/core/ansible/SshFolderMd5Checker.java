@@ -25,7 +25,7 @@ import static org.zstack.utils.StringDSL.ln;
  * Created by frank on 12/6/2015.
  */
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
-public class SshFolderMd5Checker implements AnsibleChecker {
+public class SshFolderMd5Checker implements AnsibleManifestChecker {
     private static final CLogger logger = Utils.getLogger(SshFolderMd5Checker.class);
 
     @Autowired
@@ -174,6 +174,11 @@ public class SshFolderMd5Checker implements AnsibleChecker {
         return false;
     }
 
+    @Override
+    public void addTo(AnsibleDeploymentManifest manifest) {
+        manifest.addFolder(srcFolder, dstFolder);
+    }
+
     @Override
     public void deleteDestFile() {
         // do nothing
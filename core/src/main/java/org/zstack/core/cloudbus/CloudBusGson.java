@@ -149,4 +149,15 @@ public class CloudBusGson {
             return httpGson.toJson(obj);
         }
     }
+
+    /**
+     * serializes obj directly into the writer without building the whole JSON string in memory
+     */
+    public static void toJsonForHttpResponse(Object obj, Appendable writer) {
+        if (obj instanceof Message) {
+            httpGson.toJson(obj, Message.class, writer);
+        } else {
+            httpGson.toJson(obj, writer);
+        }
+    }
 }
@@ -1,14 +1,35 @@
 package org.zstack.core.job;
 
 import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.serializable.SerializableHelper;
 
-import java.io.Serializable;
+import java.io.*;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * The context of a job saved in JobQueueEntryVO.
+ *
+ * Contexts are written in a compact format: the class name and the names of the fields are written
+ * as strings, values of common types are written as they are and only other values go through
+ * Java serialization. Contexts written by Java serialization of the whole object by earlier versions
+ * are still read.
+ */
 final class JobContextObject implements Serializable {
+    private static final byte COMPACT_FORMAT_VERSION = 1;
+    // the first byte of a Java serialization stream
+    private static final byte JAVA_SERIALIZATION_MAGIC = (byte) 0xAC;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte INTEGER = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte SERIALIZED = 5;
+
     private final String className;
     private Map<String, Object> args = new HashMap<String, Object>();
 
@@ -17,6 +38,98 @@ final class JobContextObject implements Serializable {
         save(job);
     }
 
+    private JobContextObject(String className, Map<String, Object> args) {
+        this.className = className;
+        this.args = args;
+    }
+
+    byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bstream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bstream);
+        out.writeByte(COMPACT_FORMAT_VERSION);
+        out.writeUTF(className);
+        out.writeInt(args.size());
+        for (Map.Entry<String, Object> e : args.entrySet()) {
+            out.writeUTF(e.getKey());
+            writeValue(out, e.getValue());
+        }
+        out.close();
+        return bstream.toByteArray();
+    }
+
+    private static void writeValue(DataOutputStream out, Object val) throws IOException {
+        byte[] bytes;
+        if (val == null) {
+            out.writeByte(NULL);
+        } else if (val instanceof String) {
+            // writeUTF() is limited to 64K bytes
+            bytes = ((String) val).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (val instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) val);
+        } else if (val instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) val);
+        } else if (val instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) val);
+        } else {
+            bytes = SerializableHelper.writeObject(val);
+            out.writeByte(SERIALIZED);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static JobContextObject fromBytes(byte[] bits) throws IOException, ClassNotFoundException {
+        if (bits.length > 0 && bits[0] == JAVA_SERIALIZATION_MAGIC) {
+            return SerializableHelper.readObject(bits);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bits));
+        byte version = in.readByte();
+        if (version != COMPACT_FORMAT_VERSION) {
+            throw new IOException(String.format("unknown format version[%s] of the job context", version));
+        }
+
+        String className = in.readUTF();
+        int size = in.readInt();
+        Map<String, Object> args = new HashMap<String, Object>();
+        for (int i = 0; i < size; i++) {
+            String name = in.readUTF();
+            args.put(name, readValue(in));
+        }
+        return new JobContextObject(className, args);
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte type = in.readByte();
+        byte[] bytes;
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            case LONG:
+                return in.readLong();
+            case INTEGER:
+                return in.readInt();
+            case BOOLEAN:
+                return in.readBoolean();
+            case SERIALIZED:
+                bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return SerializableHelper.readObject(bytes);
+            default:
+                throw new IOException(String.format("unknown value type[%s] in the job context", type));
+        }
+    }
+
     private void save(Job obj) {
         Class<?> currClass = obj.getClass();
         Field debugField = null;
@@ -17,4 +17,10 @@ public class JobGlobalProperty {
     public static String QUARTZ_DB_PASSWORD;
     @GlobalProperty(name = "QuartzJdbcJobFacade.maxDbConnection", defaultValue = "10")
     public static int QUARTZ_DB_MAX_CONNECTIONS;
+    /**
+     * runs jobs not annotated by @RestartableJob in in-memory queues of the management node issuing them,
+     * without saving them into the database
+     */
+    @GlobalProperty(name = "JobQueueFacade.inMemoryNonRestartableJobs", defaultValue = "true")
+    public static boolean IN_MEMORY_NON_RESTARTABLE_JOBS;
 }
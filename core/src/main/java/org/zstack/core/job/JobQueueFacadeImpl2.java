@@ -28,8 +28,8 @@ import org.zstack.utils.DebugUtils;
 import org.zstack.utils.JsonWrapper;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
-import org.zstack.utils.serializable.SerializableHelper;
 
+import javax.persistence.Query;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import java.io.IOException;
@@ -40,6 +40,12 @@ import static org.zstack.core.Platform.err;
 import static org.zstack.core.Platform.inerr;
 
 /**
+ * Jobs of the same queue run one by one in the order they are issued.
+ *
+ * Jobs annotated by @RestartableJob are saved into the database and survive the management node
+ * running them. Other jobs run in in-memory queues of the management node issuing them when
+ * JobQueueFacade.inMemoryNonRestartableJobs is on, they are ordered with the non-restartable jobs of the same
+ * queue issued by the same management node, and fail with the management node as before.
  */
 public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListener, Component, ManagementNodeChangeListener {
     private static final CLogger logger = Utils.getLogger(JobQueueFacadeImpl2.class);
@@ -48,6 +54,18 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
     private static final int LOCK_TIMEOUT = 60;
 
     private Map<Long, JobWrapper> wrappers = Collections.synchronizedMap(new HashMap<Long, JobWrapper>());
+    // jobs waiting for the job running in an in-memory queue, a queue exists as long as it has a job running
+    private final Map<String, Deque<InMemoryJob>> inMemoryQueues = new HashMap<>();
+
+    private static class InMemoryJob {
+        final Job job;
+        final ReturnValueCompletion completion;
+
+        InMemoryJob(Job job, ReturnValueCompletion completion) {
+            this.job = job;
+            this.completion = completion;
+        }
+    }
 
     @Autowired
     private DatabaseFacade dbf;
@@ -211,7 +229,6 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                     qvo.setWorkerManagementNodeId(Platform.getManagementServerId());
                     dbf.getEntityManager().persist(qvo);
                     dbf.getEntityManager().flush();
-                    dbf.getEntityManager().refresh(qvo);
                     logger.debug(String.format("[JobQueue created] id: %s, owner: %s, queue name: %s", qvo.getId(), owner, queueName));
                     ret = qvo;
                 } else if (qvo.getWorkerManagementNodeId() == null) {
@@ -226,7 +243,6 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
 
                 JobQueueEntryVO ne = dbf.getEntityManager().merge(entry);
                 dbf.getEntityManager().flush();
-                dbf.getEntityManager().refresh(ne);
                 logger.debug(String.format("[Job added] job queue name: %s, job class name: %s, job id: %s", qvo.getName(), ne.getName(),
                         ne.getId()));
 
@@ -235,27 +251,58 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                 return ret;
             }
 
-            private void jobFail(JobQueueEntryVO jvo, ErrorCode err) {
+            private JobEvent jobDone(JobQueueEntryVO jvo, Object ret) {
                 jvo.setDoneDate(new Timestamp(new Date().getTime()));
-                jvo.setState(JobState.Error);
-                dbf.update(jvo);
+                jvo.setState(JobState.Completed);
 
                 JobEvent evt = new JobEvent();
                 evt.setJobId(jvo.getId());
-                evt.setErrorCode(err);
-                bus.publish(evt);
+                if (ret != null) {
+                    evt.setReturnValue(JsonWrapper.wrap(ret));
+                }
+                return evt;
             }
 
-            private void jobDone(JobQueueEntryVO jvo, Object ret) {
+            private JobEvent jobError(JobQueueEntryVO jvo, ErrorCode err) {
                 jvo.setDoneDate(new Timestamp(new Date().getTime()));
-                jvo.setState(JobState.Completed);
-                dbf.update(jvo);
+                jvo.setState(JobState.Error);
 
                 JobEvent evt = new JobEvent();
                 evt.setJobId(jvo.getId());
-                if (ret != null) {
-                    evt.setReturnValue(JsonWrapper.wrap(ret));
+                evt.setErrorCode(err);
+                return evt;
+            }
+
+            private void setJobState(JobQueueEntryVO jvo) {
+                String sql = "update JobQueueEntryVO e set e.state = :state, e.doneDate = :doneDate where e.id = :id";
+                Query q = dbf.getEntityManager().createQuery(sql);
+                q.setParameter("state", jvo.getState());
+                q.setParameter("doneDate", jvo.getDoneDate());
+                q.setParameter("id", jvo.getId());
+                q.executeUpdate();
+            }
+
+            @Transactional
+            private void finishJob(JobQueueEntryVO done) {
+                setJobState(done);
+            }
+
+            // the event is published by the caller after the transaction commits
+            private void jobFail(JobQueueEntryVO jvo, ErrorCode err, List<JobEvent> events) {
+                events.add(jobError(jvo, err));
+                setJobState(jvo);
+            }
+
+            // the job is done but failed to be recorded, reports it as failed instead of what it returned
+            private void failDoneJob(JobQueueEntryVO jvo, Throwable t) {
+                JobEvent evt = jobError(jvo, inerr("failed to record the job[id:%s, name:%s] as done, %s",
+                        jvo.getId(), jvo.getName(), t.getMessage()));
+                try {
+                    finishJob(jvo);
+                } catch (Throwable t1) {
+                    logger.warn(String.format("failed to mark the job[id:%s, name:%s] as Error", jvo.getId(), jvo.getName()), t1);
                 }
+
                 bus.publish(evt);
             }
 
@@ -268,47 +315,86 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                 return q.find();
             }
 
-            private Bucket takeJob(final JobQueueVO qvo) {
-                GLock lock = new GLock(LOCK_NAME, LOCK_TIMEOUT);
-                lock.lock();
-                try {
-                    JobQueueEntryVO jobe = findJob(qvo);
-                    if (jobe == null) {
-                        // nothing to do, release queue
-                        dbf.remove(qvo);
-                        logger.debug(String.format("[JobQueue released, no pending task, delete the queue] last owner: %s, queue name: %s, queue id: %s",
-                                qvo.getOwner(), qvo.getName(), qvo.getId()));
-                        return null;
-                    }
+            // finishes the job done and takes the next job in one transaction, events of jobs failed to
+            // de-serialize are added to the events to publish after the commit
+            @Transactional
+            private Bucket finishAndTakeJob(final JobQueueVO qvo, final JobQueueEntryVO done, final List<JobEvent> events) {
+                if (done != null) {
+                    setJobState(done);
+                }
 
-                    while (true) {
-                        try {
-                            JobContextObject ctx = SerializableHelper.readObject(jobe.getContext());
-                            Job theJob = ctx.load();
-                            jobe.setState(JobState.Processing);
-                            jobe = dbf.updateAndRefresh(jobe);
-                            return Bucket.newBucket(jobe, theJob);
-                        } catch (Exception e1) {
-                            ErrorCode ierr = inerr("[Job de-serialize failed, the job will be marked as Error] queue name: %s, job id: %s, %s", qvo.getName(),
-                                    jobe.getId(), e1.getMessage());
-                            jobFail(jobe, ierr);
-                            logger.warn(ierr.getDetails(), e1);
-                            jobe = findJob(qvo);
+                JobQueueEntryVO jobe = findJob(qvo);
+                if (jobe == null) {
+                    // nothing to do, release queue
+                    dbf.remove(qvo);
+                    logger.debug(String.format("[JobQueue released, no pending task, delete the queue] last owner: %s, queue name: %s, queue id: %s",
+                            qvo.getOwner(), qvo.getName(), qvo.getId()));
+                    return null;
+                }
+
+                while (true) {
+                    try {
+                        JobContextObject ctx = JobContextObject.fromBytes(jobe.getContext());
+                        Job theJob = ctx.load();
+                        jobe.setState(JobState.Processing);
+                        setJobState(jobe);
+                        return Bucket.newBucket(jobe, theJob);
+                    } catch (Exception e1) {
+                        ErrorCode ierr = inerr("[Job de-serialize failed, the job will be marked as Error] queue name: %s, job id: %s, %s", qvo.getName(),
+                                jobe.getId(), e1.getMessage());
+                        jobFail(jobe, ierr, events);
+                        logger.warn(ierr.getDetails(), e1);
+                        jobe = findJob(qvo);
+                        if (jobe == null) {
+                            dbf.remove(qvo);
+                            return null;
                         }
                     }
+                }
+            }
+
+            private Bucket takeJob(final JobQueueVO qvo, final JobQueueEntryVO done, final List<JobEvent> events) {
+                GLock lock = new GLock(LOCK_NAME, LOCK_TIMEOUT);
+                lock.lock();
+                try {
+                    return finishAndTakeJob(qvo, done, events);
                 } finally {
                     lock.unlock();
                 }
             }
 
             @AsyncThread
-            private void process(final JobQueueVO qvo) {
-                if (stopped) {
-                    logger.warn(String.format("[Job Facade Stopped]: stop processing job"));
+            private void process(final JobQueueVO qvo, final JobQueueEntryVO done, final JobEvent doneEvent) {
+                // events are published only after the states they report are committed
+                List<JobEvent> events = new ArrayList<>();
+                if (doneEvent != null) {
+                    events.add(doneEvent);
+                }
+
+                Bucket ret = null;
+                try {
+                    if (stopped) {
+                        logger.warn(String.format("[Job Facade Stopped]: stop processing job"));
+                        if (done != null) {
+                            finishJob(done);
+                        }
+                    } else {
+                        ret = takeJob(qvo, done, events);
+                    }
+                } catch (Throwable t) {
+                    // rolled back, jobs failed to de-serialize are still pending
+                    logger.warn(String.format("failed to finish the job[id:%s] and take the next job of the queue[name:%s]",
+                            done == null ? null : done.getId(), qvo.getName()), t);
+                    if (done != null) {
+                        failDoneJob(done, t);
+                    }
                     return;
                 }
 
-                Bucket ret = takeJob(qvo);
+                for (JobEvent evt : events) {
+                    bus.publish(evt);
+                }
+
                 if (ret == null) {
                     return;
                 }
@@ -320,28 +406,22 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                 job.run(new ReturnValueCompletion<Object>(null) {
                     @Override
                     public void success(Object returnValue) {
+                        JobEvent evt;
                         try {
-                            jobDone(e, returnValue);
+                            evt = jobDone(e, returnValue);
                             logger.debug(String.format("[Job Success] job[id:%s, name:%s] succeed", e.getId(), e.getName()));
                         } catch (Throwable t){
                             logger.warn(String.format("unhandled exception happened when calling %s", job.getClass().getName()), t);
-                            jobFail(e, inerr(t.getMessage()));
-                        } finally {
-                            process(qvo);
+                            evt = jobError(e, inerr(t.getMessage()));
                         }
+
+                        process(qvo, e, evt);
                     }
 
                     @Override
                     public void fail(ErrorCode errorCode) {
-                        try {
-                            jobFail(e, errorCode);
-                            logger.debug(String.format("[Job Failure] job[id:%s, name:%s] failed", e.getId(), e.getName()));
-                        } catch (Throwable t){
-                            logger.warn(String.format("unhandled exception happened when calling %s", job.getClass().getName()), t);
-                            jobFail(e, inerr(t.getMessage()));
-                        } finally {
-                            process(qvo);
-                        }
+                        logger.debug(String.format("[Job Failure] job[id:%s, name:%s] failed", e.getId(), e.getName()));
+                        process(qvo, e, jobError(e, errorCode));
                     }
                 });
             }
@@ -365,7 +445,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                     }
 
                     if (qvo != null) {
-                        process(qvo);
+                        process(qvo, null, null);
                     }
                 } catch (IOException e1) {
                     throw new CloudRuntimeException(String.format("unable to serialize job: %s", entry.getName()), e1);
@@ -388,14 +468,110 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
         }.run();
     }
 
+    private <T> void executeInMemory(final String queueName, final Job job, final ReturnValueCompletion<T> completion) {
+        InMemoryJob ij = new InMemoryJob(job, completion);
+        synchronized (inMemoryQueues) {
+            Deque<InMemoryJob> waiting = inMemoryQueues.get(queueName);
+            if (waiting != null) {
+                waiting.offer(ij);
+                return;
+            }
+
+            inMemoryQueues.put(queueName, new ArrayDeque<>());
+        }
+
+        processInMemory(queueName, ij);
+    }
+
+    @AsyncThread
+    private void processInMemory(final String queueName, final InMemoryJob ij) {
+        if (stopped) {
+            logger.warn(String.format("[Job Facade Stopped]: skip to run job[queueName:%s, name:%s]",
+                    queueName, ij.job.getClass().getName()));
+            return;
+        }
+
+        final String name = ij.job.getClass().getName();
+        logger.debug(String.format("[Job Start] start executing in-memory job[queue:%s, name:%s]", queueName, name));
+        ReturnValueCompletion<Object> completion = new ReturnValueCompletion<Object>(null) {
+            private boolean done;
+
+            private synchronized boolean complete() {
+                if (done) {
+                    return false;
+                }
+
+                done = true;
+                return true;
+            }
+
+            @Override
+            public void success(Object returnValue) {
+                if (!complete()) {
+                    return;
+                }
+
+                try {
+                    logger.debug(String.format("[Job Success] in-memory job[queue:%s, name:%s] succeed", queueName, name));
+                    ij.completion.success(returnValue);
+                } catch (Throwable t) {
+                    logger.warn(String.format("unhandled exception happened when completing %s", name), t);
+                } finally {
+                    processNextInMemory(queueName);
+                }
+            }
+
+            @Override
+            public void fail(ErrorCode errorCode) {
+                if (!complete()) {
+                    return;
+                }
+
+                try {
+                    logger.debug(String.format("[Job Failure] in-memory job[queue:%s, name:%s] failed", queueName, name));
+                    ij.completion.fail(errorCode);
+                } catch (Throwable t) {
+                    logger.warn(String.format("unhandled exception happened when failing %s", name), t);
+                } finally {
+                    processNextInMemory(queueName);
+                }
+            }
+        };
+
+        try {
+            ij.job.run(completion);
+        } catch (Throwable t) {
+            logger.warn(String.format("unhandled exception happened when calling %s", name), t);
+            completion.fail(inerr(t.getMessage()));
+        }
+    }
+
+    private void processNextInMemory(String queueName) {
+        InMemoryJob next;
+        synchronized (inMemoryQueues) {
+            next = inMemoryQueues.get(queueName).poll();
+            if (next == null) {
+                inMemoryQueues.remove(queueName);
+                return;
+            }
+        }
+
+        processInMemory(queueName, next);
+    }
+
     @Override
     public <T> void execute(final String queueName, final String owner, final Job job, final ReturnValueCompletion<T> completion, final Class<? extends T> returnType) {
+        boolean restartable = job.getClass().isAnnotationPresent(RestartableJob.class);
+        if (!restartable && JobGlobalProperty.IN_MEMORY_NON_RESTARTABLE_JOBS) {
+            executeInMemory(queueName, job, completion);
+            return;
+        }
+
         try {
             JobQueueEntryVO e = new JobQueueEntryVO();
             JobContextObject ctx = new JobContextObject(job);
-            byte[] bits = SerializableHelper.writeObject(ctx);
-            e.setContext(bits);
-            e.setRestartable(job.getClass().isAnnotationPresent(RestartableJob.class));
+            e.setContext(ctx.toBytes());
+            e.setRestartable(restartable);
             e.setName(job.getClass().getName());
             execute(queueName, owner, e, completion, returnType);
         } catch (IOException e1) {
@@ -0,0 +1,365 @@
+package org.zstack.core.tacker;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.Platform;
+import org.zstack.core.debug.DebugManager;
+import org.zstack.core.debug.DebugSignalHandler;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.core.Completion;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single scheduler pinging all resources tracked by this management node. Every tracked
+ * resource gets a random phase within the ping interval so pings are spread evenly over the
+ * interval instead of firing in bursts; a resource is pinged again one interval after its
+ * previous schedule once the previous ping completes.
+ */
+public class PingScheduler implements Component, DebugSignalHandler {
+    private static final CLogger logger = Utils.getLogger(PingScheduler.class);
+
+    public static final String DUMP_PING_SCHEDULER_DEBUG_SIGNAL = "DumpPingScheduler";
+
+    @Autowired
+    private ThreadFacade thdf;
+
+    public interface PingHandler {
+        TimeUnit getTimeUnit();
+
+        long getPingInterval();
+
+        /**
+         * @return the max number of in-flight pings of the group
+         */
+        default int getParallelismDegree() {
+            return Integer.MAX_VALUE;
+        }
+
+        /**
+         * the completion must be called when the ping and the work triggered by it are done,
+         * the resource is not pinged again before that
+         */
+        void ping(String resourceUuid, Completion completion);
+    }
+
+    public static class PingStats {
+        public String group;
+        public int tracked;
+        public int inflight;
+        public long pings;
+        public long failures;
+        public double recentFailureRate;
+        public long averageLagMs;
+        public long maxLagMs;
+
+        @Override
+        public String toString() {
+            return String.format("group: %s, tracked: %s, in-flight: %s, pings: %s, failures: %s, recent failure rate: %.2f%%," +
+                            " average lag: %sms, max lag: %sms", group, tracked, inflight, pings, failures, recentFailureRate * 100,
+                    averageLagMs, maxLagMs);
+        }
+    }
+
+    private class Entry {
+        final Group group;
+        final String uuid;
+        // breaks ties of the due time in the queue
+        final long seq = entrySeq++;
+        // must not be changed while the entry is in the queue
+        long due;
+        boolean inflight;
+
+        Entry(Group group, String uuid, long due) {
+            this.group = group;
+            this.uuid = uuid;
+            this.due = due;
+        }
+    }
+
+    public class Group {
+        private final String name;
+        private final PingHandler handler;
+        private final Map<String, Entry> entries = new HashMap<>();
+        private final AtomicInteger inflight = new AtomicInteger(0);
+        private final AtomicLong pings = new AtomicLong(0);
+        private final AtomicLong failures = new AtomicLong(0);
+        // exponentially weighted moving averages
+        private volatile double recentFailureRate;
+        private volatile double averageLagMs;
+        private final AtomicLong maxLagMs = new AtomicLong(0);
+
+        private Group(String name, PingHandler handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+
+        private long getIntervalInMillis() {
+            return Math.max(handler.getTimeUnit().toMillis(handler.getPingInterval()), 1);
+        }
+
+        public void track(String uuid) {
+            track(Collections.singletonList(uuid));
+        }
+
+        public void track(Collection<String> uuids) {
+            long now = System.currentTimeMillis();
+            long interval = getIntervalInMillis();
+
+            synchronized (PingScheduler.this) {
+                for (String uuid : uuids) {
+                    if (entries.containsKey(uuid)) {
+                        continue;
+                    }
+
+                    Entry e = new Entry(this, uuid, now + ThreadLocalRandom.current().nextLong(interval));
+                    entries.put(uuid, e);
+                    queue.add(e);
+                }
+            }
+        }
+
+        public void untrack(String uuid) {
+            untrack(Collections.singletonList(uuid));
+        }
+
+        public void untrack(Collection<String> uuids) {
+            synchronized (PingScheduler.this) {
+                for (String uuid : uuids) {
+                    Entry e = entries.remove(uuid);
+                    if (e == null) {
+                        continue;
+                    }
+
+                    queue.remove(e);
+                    if (e.inflight) {
+                        // the handler may never complete a ping it has given up
+                        e.inflight = false;
+                        inflight.decrementAndGet();
+                    }
+                }
+            }
+        }
+
+        public void untrackAll() {
+            synchronized (PingScheduler.this) {
+                untrack(new ArrayList<>(entries.keySet()));
+            }
+        }
+
+        public boolean isTracking(String uuid) {
+            synchronized (PingScheduler.this) {
+                return entries.containsKey(uuid);
+            }
+        }
+
+        /**
+         * spreads pings of the group over the interval again, called after the interval changes
+         */
+        public void reschedule() {
+            long now = System.currentTimeMillis();
+            long interval = getIntervalInMillis();
+
+            synchronized (PingScheduler.this) {
+                for (Entry e : entries.values()) {
+                    if (e.inflight) {
+                        continue;
+                    }
+
+                    queue.remove(e);
+                    e.due = now + ThreadLocalRandom.current().nextLong(interval);
+                    queue.add(e);
+                }
+            }
+        }
+
+        public PingStats getStats() {
+            PingStats s = new PingStats();
+            s.group = name;
+            synchronized (PingScheduler.this) {
+                s.tracked = entries.size();
+            }
+            s.inflight = inflight.get();
+            s.pings = pings.get();
+            s.failures = failures.get();
+            s.recentFailureRate = recentFailureRate;
+            s.averageLagMs = Math.round(averageLagMs);
+            s.maxLagMs = maxLagMs.get();
+            return s;
+        }
+
+        private void recordLag(long lag) {
+            averageLagMs = averageLagMs * 0.9 + lag * 0.1;
+            maxLagMs.accumulateAndGet(lag, Math::max);
+        }
+
+        private void recordResult(boolean success) {
+            pings.incrementAndGet();
+            if (!success) {
+                failures.incrementAndGet();
+            }
+            recentFailureRate = recentFailureRate * 0.9 + (success ? 0 : 0.1);
+        }
+    }
+
+    private final Map<String, Group> groups = new LinkedHashMap<>();
+    // ordered by the due time, removing an entry is O(log n) so untracking and rescheduling scale with the tracked resources
+    private final TreeSet<Entry> queue = new TreeSet<>(Comparator.<Entry>comparingLong(e -> e.due).thenComparingLong(e -> e.seq));
+    private long entrySeq;
+    private Future<Void> ticker;
+
+    public synchronized Group createGroup(String name, PingHandler handler) {
+        if (groups.containsKey(name)) {
+            throw new CloudRuntimeException(String.format("duplicate ping group[%s]", name));
+        }
+
+        Group g = new Group(name, handler);
+        groups.put(name, g);
+        startTicker();
+        return g;
+    }
+
+    public synchronized List<PingStats> getStats() {
+        List<PingStats> ret = new ArrayList<>();
+        groups.values().forEach(g -> ret.add(g.getStats()));
+        return ret;
+    }
+
+    private synchronized void startTicker() {
+        if (ticker != null) {
+            return;
+        }
+
+        ticker = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.MILLISECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return CoreGlobalProperty.PING_SCHEDULER_TICK_INTERVAL;
+            }
+
+            @Override
+            public String getName() {
+                return String.format("ping-scheduler-managementNode-%s", Platform.getManagementServerId());
+            }
+
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch (Throwable t) {
+                    logger.warn("unhandled throwable", t);
+                }
+            }
+        });
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        List<Entry> toPing = new ArrayList<>();
+        List<Entry> postponed = new ArrayList<>();
+
+        synchronized (this) {
+            while (!queue.isEmpty() && queue.first().due <= now) {
+                Entry e = queue.pollFirst();
+                if (e.group.inflight.get() >= e.group.handler.getParallelismDegree()) {
+                    postponed.add(e);
+                    continue;
+                }
+
+                e.inflight = true;
+                e.group.inflight.incrementAndGet();
+                toPing.add(e);
+            }
+
+            // the due time is kept so the lag keeps growing until there is room to ping
+            queue.addAll(postponed);
+        }
+
+        toPing.forEach(e -> ping(e, now));
+    }
+
+    private void ping(Entry e, long now) {
+        e.group.recordLag(now - e.due);
+
+        Completion completion = new Completion(null) {
+            @Override
+            public void success() {
+                done(e, true);
+            }
+
+            @Override
+            public void fail(ErrorCode errorCode) {
+                done(e, false);
+            }
+        };
+
+        try {
+            e.group.handler.ping(e.uuid, completion);
+        } catch (Throwable t) {
+            logger.warn(String.format("unhandled exception while pinging %s[uuid:%s]", e.group.name, e.uuid), t);
+            done(e, false);
+        }
+    }
+
+    private void done(Entry e, boolean success) {
+        long now = System.currentTimeMillis();
+        long interval = e.group.getIntervalInMillis();
+        // up to 5% of the interval, keeps pings from drifting into bursts
+        long jitterRange = interval / 20;
+        long jitter = jitterRange == 0 ? 0 : ThreadLocalRandom.current().nextLong(-jitterRange, jitterRange + 1);
+
+        synchronized (this) {
+            if (!e.inflight) {
+                // the resource has been untracked, or the completion is called more than once
+                return;
+            }
+
+            e.inflight = false;
+            e.group.inflight.decrementAndGet();
+            e.group.recordResult(success);
+
+            long next = e.due + interval + jitter;
+            e.due = next > now ? next : now + interval + jitter;
+            queue.add(e);
+        }
+    }
+
+    @Override
+    public void handleDebugSignal() {
+        StringBuilder sb = new StringBuilder("\n================= BEGIN PING SCHEDULER DUMP ================");
+        getStats().forEach(s -> sb.append("\n").append(s));
+        sb.append("\n================= END PING SCHEDULER DUMP ================");
+        logger.debug(sb.toString());
+    }
+
+    @Override
+    public boolean start() {
+        DebugManager.registerDebugSignalHandler(DUMP_PING_SCHEDULER_DEBUG_SIGNAL, this);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean stop() {
+        if (ticker != null) {
+            ticker.cancel(true);
+            ticker = null;
+        }
+
+        return true;
+    }
+}
@@ -1,21 +1,18 @@
 package org.zstack.core.tacker;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.zstack.core.CoreGlobalProperty;
-import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
-import org.zstack.core.cloudbus.CloudBusSteppingCallback;
-import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.cloudbus.CloudBusCallBack;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.Component;
+import org.zstack.header.core.Completion;
 import org.zstack.header.message.MessageReply;
 import org.zstack.header.message.NeedReplyMessage;
-import org.zstack.utils.DebugUtils;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
-import java.util.*;
-import java.util.concurrent.Future;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -29,70 +26,47 @@ public abstract class PingTracker implements Component {
 
     private final static CLogger logger = Utils.getLogger(PingTracker.class);
 
-    private final List<String> resourceUuids = Collections.synchronizedList(new ArrayList<String>());
-    private Set<String> resourceInTracking = Collections.synchronizedSet(new HashSet<String>());
-    private Future<Void> trackerThread = null;
+    private PingScheduler.Group pingGroup;
 
     @Autowired
     protected CloudBus bus;
     @Autowired
     protected ThreadFacade thdf;
+    @Autowired
+    private PingScheduler pingScheduler;
 
-    private class Tracker implements PeriodicTask {
+    private class Tracker implements PingScheduler.PingHandler {
         @Override
         public TimeUnit getTimeUnit() {
             return TimeUnit.SECONDS;
         }
 
         @Override
-        public long getInterval() {
-            return getPingInterval();
+        public long getPingInterval() {
+            return PingTracker.this.getPingInterval();
         }
 
         @Override
-        public String getName() {
-            return String.format("pingTracker-for-%s-managementNode-%s", getResourceName(), Platform.getManagementServerId());
+        public int getParallelismDegree() {
+            return PingTracker.this.getParallelismDegree();
         }
 
         @Override
-        public void run() {
-            try {
-                List<NeedReplyMessage> msgs = null;
-                synchronized (resourceUuids) {
-                    final Map<NeedReplyMessage, String> tmp = new HashMap<NeedReplyMessage, String>();
-
-                    msgs = new ArrayList<NeedReplyMessage>();
-                    for (String resUuid : resourceUuids) {
-                        if (resourceInTracking.contains(resUuid)) {
-                            continue;
+        public void ping(String resUuid, Completion completion) {
+            bus.send(getPingMessage(resUuid), new CloudBusCallBack(completion) {
+                @Override
+                public void run(MessageReply reply) {
+                    try {
+                        handleReply(resUuid, reply);
+                    } finally {
+                        if (reply.isSuccess()) {
+                            completion.success();
+                        } else {
+                            completion.fail(reply.getError());
                         }
-
-                        NeedReplyMessage msg = getPingMessage(resUuid);
-                        msgs.add(msg);
-                        resourceInTracking.add(resUuid);
-                        tmp.put(msg, resUuid);
-                    }
-
-                    if (msgs.isEmpty()) {
-                        return;
                     }
-
-                    bus.send(msgs, getParallelismDegree(), new CloudBusSteppingCallback(null) {
-                        @Override
-                        public void run(NeedReplyMessage msg, MessageReply reply) {
-                            String resUuid = tmp.get(msg);
-                            DebugUtils.Assert(resUuid!=null, "where is my resource uuid???");
-                            try {
-                                handleReply(resUuid, reply);
-                            } finally {
-                                resourceInTracking.remove(resUuid);
-                            }
-                        }
-                    });
                 }
-            } catch (Throwable t) {
-                logger.warn("unhandled throwable", t);
-            }
+            });
         }
     }
 
@@ -106,78 +80,54 @@ public abstract class PingTracker implements Component {
     }
 
     protected void pingIntervalChanged() {
-        startTracker();
+        pingGroup.reschedule();
     }
     
     public void track(String resUuid) {
-        synchronized (resourceUuids) {
-            if (!resourceUuids.contains(resUuid)) {
-                resourceUuids.add(resUuid);
-                trackHook(resUuid);
-                logger.debug(String.format("start tracking %s[uuid:%s]", getResourceName(), resUuid));
-            }
-        }
+        track(Collections.singletonList(resUuid));
     }
 
-    public void untrackAll() {
-        synchronized (resourceUuids) {
-            resourceUuids.clear();
-            logger.debug(String.format("untrack all %s", getResourceName()));
-        }
+    public synchronized void untrackAll() {
+        pingGroup.untrackAll();
+        logger.debug(String.format("untrack all %s", getResourceName()));
     }
 
     public void untrack(String resUuid) {
-        synchronized (resourceUuids) {
-            resourceUuids.remove(resUuid);
-            untrackHook(resUuid);
-            logger.debug(String.format("stop tracking %s[uuid:%s]", getResourceName(), resUuid));
-        }
+        untrack(Collections.singletonList(resUuid));
     }
 
-    public void track(Collection<String> resUuids) {
-        synchronized (resourceUuids) {
-            for (String resUuid : resUuids) {
-                if (!resourceUuids.contains(resUuid)) {
-                    resourceUuids.add(resUuid);
-                    trackHook(resUuid);
-                    logger.debug(String.format("start tracking %s[uuid:%s]", getResourceName(), resUuid));
-                }
+    public synchronized void track(Collection<String> resUuids) {
+        for (String resUuid : resUuids) {
+            if (!pingGroup.isTracking(resUuid)) {
+                pingGroup.track(resUuid);
+                trackHook(resUuid);
+                logger.debug(String.format("start tracking %s[uuid:%s]", getResourceName(), resUuid));
             }
         }
     }
 
-    public void untrack(Collection<String> resUuids) {
-        synchronized (resourceUuids) {
-            for (String resUuid : resUuids) {
-                resourceUuids.remove(resUuid);
-                untrackHook(resUuid);
-                logger.debug(String.format("stop tracking %s[uuid:%s]", getResourceName(), resUuid));
-            }
+    public synchronized void untrack(Collection<String> resUuids) {
+        pingGroup.untrack(resUuids);
+        for (String resUuid : resUuids) {
+            untrackHook(resUuid);
+            logger.debug(String.format("stop tracking %s[uuid:%s]", getResourceName(), resUuid));
         }
     }
 
-    protected void startTracker() {
-        if (trackerThread != null) {
-            trackerThread.cancel(true);
-        }
-
-        if (CoreGlobalProperty.UNIT_TEST_ON) {
-            trackerThread = thdf.submitPeriodicTask(new Tracker(), getPingInterval());
-        } else {
-            trackerThread = thdf.submitPeriodicTask(new Tracker(), getPingInterval() + new Random().nextInt(30));
-        }
+    public PingScheduler.PingStats getPingStats() {
+        return pingGroup.getStats();
     }
 
     @Override
     public boolean start() {
-        startTracker();
+        pingGroup = pingScheduler.createGroup(getResourceName(), new Tracker());
         startHook();
         return true;
     }
 
     @Override
     public boolean stop() {
-        trackerThread.cancel(true);
+        pingGroup.untrackAll();
         return true;
     }
 }
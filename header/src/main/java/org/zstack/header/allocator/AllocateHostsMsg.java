@@ -0,0 +1,30 @@
+package org.zstack.header.allocator;
+
+import org.zstack.header.message.NeedReplyMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * allocates hosts for a batch of VMs in one pass, either hosts of all specs are allocated or none
+ */
+public class AllocateHostsMsg extends NeedReplyMessage {
+    private List<AllocateHostMsg> specs = new ArrayList<>();
+    private String placementStrategy;
+
+    public List<AllocateHostMsg> getSpecs() {
+        return specs;
+    }
+
+    public void setSpecs(List<AllocateHostMsg> specs) {
+        this.specs = specs;
+    }
+
+    public String getPlacementStrategy() {
+        return placementStrategy;
+    }
+
+    public void setPlacementStrategy(String placementStrategy) {
+        this.placementStrategy = placementStrategy;
+    }
+}
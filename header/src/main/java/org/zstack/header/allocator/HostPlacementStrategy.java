@@ -0,0 +1,15 @@
+package org.zstack.header.allocator;
+
+/**
+ * how AllocateHostsMsg places a batch of VMs on candidate hosts
+ */
+public enum HostPlacementStrategy {
+    /**
+     * fills the host having the least capacity left that still fits a VM first, keeping other hosts free
+     */
+    BinPacking,
+    /**
+     * places every VM on the host having the most capacity left, spreading VMs across hosts
+     */
+    Spread
+}
@@ -0,0 +1,22 @@
+package org.zstack.header.host;
+
+import org.springframework.http.HttpMethod;
+import org.zstack.header.message.APISyncCallMessage;
+import org.zstack.header.rest.RestRequest;
+
+/**
+ * get the reconnect queue of hosts on the management node receiving this message
+ */
+@RestRequest(
+        path = "/hosts/reconnect-queue",
+        method = HttpMethod.GET,
+        responseClass = APIGetHostReconnectQueueReply.class
+)
+public class APIGetHostReconnectQueueMsg extends APISyncCallMessage {
+
+    public static APIGetHostReconnectQueueMsg __example__() {
+        APIGetHostReconnectQueueMsg msg = new APIGetHostReconnectQueueMsg();
+        return msg;
+    }
+
+}
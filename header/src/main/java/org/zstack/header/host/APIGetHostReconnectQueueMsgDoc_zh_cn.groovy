@@ -0,0 +1,51 @@
+package org.zstack.header.host
+
+import org.zstack.header.host.APIGetHostReconnectQueueReply
+
+doc {
+    title "GetHostReconnectQueue"
+
+    category "host"
+
+    desc """获取管理节点的物理机重连队列"""
+
+    rest {
+        request {
+			url "GET /v1/hosts/reconnect-queue"
+
+			header (Authorization: 'OAuth the-session-uuid')
+
+            clz APIGetHostReconnectQueueMsg.class
+
+            desc """获取接收请求的管理节点上等待重连的物理机数量及预计完成时间"""
+            
+			params {
+
+				column {
+					name "systemTags"
+					enclosedIn ""
+					desc "系统标签"
+					location "query"
+					type "List"
+					optional true
+					since "3.6.0"
+					
+				}
+				column {
+					name "userTags"
+					enclosedIn ""
+					desc "用户标签"
+					location "query"
+					type "List"
+					optional true
+					since "3.6.0"
+					
+				}
+			}
+        }
+
+        response {
+            clz APIGetHostReconnectQueueReply.class
+        }
+    }
+}
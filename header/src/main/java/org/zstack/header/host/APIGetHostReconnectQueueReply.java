@@ -0,0 +1,54 @@
+package org.zstack.header.host;
+
+import org.zstack.header.message.APIReply;
+import org.zstack.header.rest.RestResponse;
+
+@RestResponse(fieldsTo = {"all"})
+public class APIGetHostReconnectQueueReply extends APIReply {
+    private int queueDepth;
+    private int running;
+    private int backingOff;
+    private long etaInSeconds;
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    public int getRunning() {
+        return running;
+    }
+
+    public void setRunning(int running) {
+        this.running = running;
+    }
+
+    public int getBackingOff() {
+        return backingOff;
+    }
+
+    public void setBackingOff(int backingOff) {
+        this.backingOff = backingOff;
+    }
+
+    public long getEtaInSeconds() {
+        return etaInSeconds;
+    }
+
+    public void setEtaInSeconds(long etaInSeconds) {
+        this.etaInSeconds = etaInSeconds;
+    }
+
+    public static APIGetHostReconnectQueueReply __example__() {
+        APIGetHostReconnectQueueReply reply = new APIGetHostReconnectQueueReply();
+        reply.setQueueDepth(120);
+        reply.setRunning(30);
+        reply.setBackingOff(5);
+        reply.setEtaInSeconds(12);
+        return reply;
+    }
+
+}
@@ -0,0 +1,47 @@
+package org.zstack.header.host
+
+import org.zstack.header.errorcode.ErrorCode
+
+doc {
+
+	title "物理机重连队列"
+
+	ref {
+		name "error"
+		path "org.zstack.header.host.APIGetHostReconnectQueueReply.error"
+		desc "错误码，若不为null，则表示操作失败, 操作成功时该字段为null",false
+		type "ErrorCode"
+		since "3.6.0"
+		clz ErrorCode.class
+	}
+	field {
+		name "queueDepth"
+		desc "等待重连的物理机数量"
+		type "int"
+		since "3.6.0"
+	}
+	field {
+		name "running"
+		desc "正在重连的物理机数量"
+		type "int"
+		since "3.6.0"
+	}
+	field {
+		name "backingOff"
+		desc "因重连失败而退避等待的物理机数量"
+		type "int"
+		since "3.6.0"
+	}
+	field {
+		name "etaInSeconds"
+		desc "预计重连队列清空所需的时间，单位秒"
+		type "long"
+		since "3.6.0"
+	}
+	field {
+		name "success"
+		desc ""
+		type "boolean"
+		since "3.6.0"
+	}
+}
@@ -3,6 +3,8 @@ package org.zstack.header.storage.primary;
 import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.header.message.NeedJsonSchema;
 
+import java.util.List;
+
 /**
  * Created by xing5 on 2016/3/23.
  */
@@ -12,6 +14,58 @@ public class PrimaryStorageCanonicalEvent {
     public static final String PRIMARY_STORAGE_STATE_CHANGED_PATH = "/primaryStorage/state/change";
     public static final String PRIMARY_STORAGE_HOST_STATUS_CHANGED_PATH = "/primaryStorage/host/status/change";
     public static final String PRIMARY_STORAGE_DISCONNECTED = "/primaryStorage/disconnected";
+    public static final String PRIMARY_STORAGE_USAGE_CHANGED_PATH = "/primaryStorage/usage/change";
+
+    public static class UsageChange {
+        private String usageType;
+        private String resourceId;
+        private String primaryStorageUuid;
+        private long size;
+
+        public String getUsageType() {
+            return usageType;
+        }
+
+        public void setUsageType(String usageType) {
+            this.usageType = usageType;
+        }
+
+        public String getResourceId() {
+            return resourceId;
+        }
+
+        public void setResourceId(String resourceId) {
+            this.resourceId = resourceId;
+        }
+
+        public String getPrimaryStorageUuid() {
+            return primaryStorageUuid;
+        }
+
+        public void setPrimaryStorageUuid(String primaryStorageUuid) {
+            this.primaryStorageUuid = primaryStorageUuid;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public void setSize(long size) {
+            this.size = size;
+        }
+    }
+
+    public static class UsageChangedData {
+        private List<UsageChange> changes;
+
+        public List<UsageChange> getChanges() {
+            return changes;
+        }
+
+        public void setChanges(List<UsageChange> changes) {
+            this.changes = changes;
+        }
+    }
 
     public static class DisconnectedData {
         private String primaryStorageUuid;
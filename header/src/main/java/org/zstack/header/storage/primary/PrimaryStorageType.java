@@ -11,6 +11,7 @@ public class PrimaryStorageType {
     private final String typeName;
     private boolean exposed = true;
     private boolean supportHeartbeatFile;
+    private boolean imageCachedPerHost;
     protected boolean supportVmLiveMigration = true;
     private boolean supportVolumeMigration;
     private boolean supportVolumeMigrationInCurrentPrimaryStorage;
@@ -103,6 +104,14 @@ public class PrimaryStorageType {
         this.supportHeartbeatFile = supportHeartbeatFile;
     }
 
+    public boolean isImageCachedPerHost() {
+        return imageCachedPerHost;
+    }
+
+    public void setImageCachedPerHost(boolean imageCachedPerHost) {
+        this.imageCachedPerHost = imageCachedPerHost;
+    }
+
     public boolean isSupportVmLiveMigration() {
         return supportVmLiveMigration;
     }
@@ -178,8 +178,9 @@ public class VolumeSnapshotTree {
         private VolumeSnapshotInventory inventory;
         private SnapshotLeaf parent;
         private List<SnapshotLeaf> children = new ArrayList<SnapshotLeaf>();
-        private List<VolumeSnapshotInventory> descendants;
-        private List<VolumeSnapshotInventory> ancestors;
+        // computed lazily, leafs of a cached tree are shared by threads
+        private volatile List<VolumeSnapshotInventory> descendants;
+        private volatile List<VolumeSnapshotInventory> ancestors;
 
         public VolumeSnapshotInventory getInventory() {
             return inventory;
@@ -220,66 +221,65 @@ public class VolumeSnapshotTree {
             VolumeSnapshotTree tree = new VolumeSnapshotTree();
             tree.root = this;
             tree.volumeUuid = inventory.getVolumeUuid();
-            return tree;
-        }
-
-        private SnapshotLeaf walkUp(SnapshotLeaf leaf, Function<Boolean, VolumeSnapshotInventory> func) {
-            if (func.call(leaf.inventory)) {
-                return leaf;
-            }
 
-            if (leaf.getParent() == null) {
-                return null;
+            Deque<SnapshotLeaf> stack = new ArrayDeque<SnapshotLeaf>();
+            stack.push(this);
+            while (!stack.isEmpty()) {
+                SnapshotLeaf leaf = stack.pop();
+                tree.leafs.put(leaf.getUuid(), leaf);
+                tree.inventories.add(leaf.inventory);
+                pushChildren(stack, leaf);
             }
 
-            return walkUp(leaf.getParent(), func);
+            return tree;
         }
 
         public SnapshotLeaf walkUp(Function<Boolean, VolumeSnapshotInventory> func) {
-            if (func.call(inventory)) {
-                return this;
-            }
-
-            if (getParent() == null) {
-                return null;
+            for (SnapshotLeaf leaf = this; leaf != null; leaf = leaf.getParent()) {
+                if (func.call(leaf.inventory)) {
+                    return leaf;
+                }
             }
 
-            return walkUp(getParent(), func);
+            return null;
         }
 
+        /**
+         * walks the sub tree in pre-order without recursion, a long snapshot chain doesn't overflow the stack
+         */
         public SnapshotLeaf walkDown(Function<Boolean, VolumeSnapshotInventory> func) {
-            return walkDown(this, func);
-        }
+            Deque<SnapshotLeaf> stack = new ArrayDeque<SnapshotLeaf>();
+            stack.push(this);
+            while (!stack.isEmpty()) {
+                SnapshotLeaf leaf = stack.pop();
+                if (func.call(leaf.inventory)) {
+                    return leaf;
+                }
 
-        private SnapshotLeaf walkDown(SnapshotLeaf leaf, Function<Boolean, VolumeSnapshotInventory> func) {
-            if (func.call(leaf.inventory)) {
-                return leaf;
+                pushChildren(stack, leaf);
             }
 
-            if (leaf.getChildren().isEmpty()) {
-                return null;
-            }
+            return null;
+        }
 
-            for (SnapshotLeaf l : leaf.getChildren()) {
-                SnapshotLeaf ret = walkDown(l, func);
-                if (ret != null) {
-                    return ret;
-                }
+        private static void pushChildren(Deque<SnapshotLeaf> stack, SnapshotLeaf leaf) {
+            // pushed in reverse, so children are popped in order
+            for (ListIterator<SnapshotLeaf> it = leaf.children.listIterator(leaf.children.size()); it.hasPrevious(); ) {
+                stack.push(it.previous());
             }
-
-            return null;
         }
 
         public List<VolumeSnapshotInventory> getDescendants() {
             if (descendants == null) {
-                descendants = new ArrayList<VolumeSnapshotInventory>();
+                final List<VolumeSnapshotInventory> ret = new ArrayList<VolumeSnapshotInventory>();
                 walkDown(new Function<Boolean, VolumeSnapshotInventory>() {
                     @Override
                     public Boolean call(VolumeSnapshotInventory arg) {
-                        descendants.add(arg);
+                        ret.add(arg);
                         return false;
                     }
                 });
+                descendants = ret;
             }
 
             return descendants;
@@ -288,42 +288,57 @@ public class VolumeSnapshotTree {
 
         public List<VolumeSnapshotInventory> getAncestors() {
             if (ancestors == null) {
-                ancestors = new ArrayList<VolumeSnapshotInventory>();
+                final List<VolumeSnapshotInventory> ret = new ArrayList<VolumeSnapshotInventory>();
                 walkUp(new Function<Boolean, VolumeSnapshotInventory>() {
                     @Override
                     public Boolean call(VolumeSnapshotInventory arg) {
-                        ancestors.add(arg);
+                        ret.add(arg);
                         return false;
                     }
                 });
 
-                Collections.reverse(ancestors);
+                Collections.reverse(ret);
+                ancestors = ret;
             }
 
             return ancestors;
         }
 
         public SnapshotLeafInventory toLeafInventory() {
-            SnapshotLeafInventory leafInventory = new SnapshotLeafInventory();
-            leafInventory.setInventory(getInventory());
-            if (parent != null) {
-                leafInventory.setParentUuid(parent.getUuid());
-            }
+            Map<SnapshotLeaf, SnapshotLeafInventory> invs = new IdentityHashMap<SnapshotLeaf, SnapshotLeafInventory>();
+            Deque<SnapshotLeaf> stack = new ArrayDeque<SnapshotLeaf>();
+            stack.push(this);
+            while (!stack.isEmpty()) {
+                SnapshotLeaf leaf = stack.pop();
+                SnapshotLeafInventory leafInventory = new SnapshotLeafInventory();
+                leafInventory.setInventory(leaf.getInventory());
+                if (leaf.parent != null) {
+                    leafInventory.setParentUuid(leaf.parent.getUuid());
+                }
 
-            for (SnapshotLeaf leaf : children) {
-                leafInventory.getChildren().add(leaf.toLeafInventory());
+                if (leaf != this) {
+                    // parents are popped before children, and siblings in order
+                    invs.get(leaf.parent).getChildren().add(leafInventory);
+                }
+
+                invs.put(leaf, leafInventory);
+                pushChildren(stack, leaf);
             }
 
-            return leafInventory;
+            return invs.get(this);
         }
     }
 
     private SnapshotLeaf root;
     private String volumeUuid;
+    // snapshot uuid -> leaf
+    private Map<String, SnapshotLeaf> leafs = new HashMap<String, SnapshotLeaf>();
+    private List<VolumeSnapshotInventory> inventories = new ArrayList<VolumeSnapshotInventory>();
 
     public static VolumeSnapshotTree fromInventories(List<VolumeSnapshotInventory> invs) {
         VolumeSnapshotTree tree = new VolumeSnapshotTree();
-        Map<String, SnapshotLeaf> map = new HashMap<String, SnapshotLeaf>();
+        tree.inventories = new ArrayList<VolumeSnapshotInventory>(invs);
+        Map<String, SnapshotLeaf> map = tree.leafs;
         for (VolumeSnapshotInventory inv : invs) {
             SnapshotLeaf leaf = map.get(inv.getUuid());
             if (leaf == null) {
@@ -375,25 +390,41 @@ public class VolumeSnapshotTree {
         this.volumeUuid = volumeUuid;
     }
 
-    private SnapshotLeaf findSnapshot(final List<SnapshotLeaf> leafs, final Function<Boolean, VolumeSnapshotInventory> func) {
-        for (SnapshotLeaf leaf : leafs) {
-            SnapshotLeaf ret = findSnapshot(leaf.children, func);
-            if (ret != null) {
-                return ret;
-            }
-
-            if (func.call(leaf.getInventory())) {
-                return leaf;
-            }
-        }
+    /**
+     * @return inventories the tree is built from
+     */
+    public List<VolumeSnapshotInventory> getInventories() {
+        return inventories;
+    }
 
-        return null;
+    public SnapshotLeaf findSnapshot(String snapshotUuid) {
+        return leafs.get(snapshotUuid);
     }
 
+    /**
+     * checks the root first, then descendants of the root in post-order, without recursion
+     */
     public SnapshotLeaf findSnapshot(Function<Boolean, VolumeSnapshotInventory> func) {
         if (func.call(root.getInventory())) {
             return root;
         }
-        return findSnapshot(root.children, func);
+
+        // reversed post-order: a leaf is pushed before its children, which are pushed in order
+        Deque<SnapshotLeaf> stack = new ArrayDeque<SnapshotLeaf>();
+        Deque<SnapshotLeaf> postOrder = new ArrayDeque<SnapshotLeaf>();
+        stack.addAll(root.children);
+        while (!stack.isEmpty()) {
+            SnapshotLeaf leaf = stack.pollLast();
+            postOrder.push(leaf);
+            stack.addAll(leaf.children);
+        }
+
+        for (SnapshotLeaf leaf : postOrder) {
+            if (func.call(leaf.getInventory())) {
+                return leaf;
+            }
+        }
+
+        return null;
     }
 }
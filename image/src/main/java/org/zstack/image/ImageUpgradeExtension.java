@@ -7,8 +7,7 @@ import org.zstack.core.cloudbus.CloudBusListCallBack;
 import org.zstack.core.cloudbus.EventCallback;
 import org.zstack.core.cloudbus.EventFacade;
 import org.zstack.core.db.DatabaseFacade;
-import org.zstack.core.db.SimpleQuery;
-import org.zstack.core.db.UpdateQuery;
+import org.zstack.core.db.Q;
 import org.zstack.header.Component;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.image.*;
@@ -151,10 +150,12 @@ public class ImageUpgradeExtension implements Component {
                         }
 
                         for (Map.Entry<String, Long> entry: res.entrySet()) {
-                            UpdateQuery.New(ImageCacheVO.class)
-                                    .set(ImageCacheVO_.size, entry.getValue())
-                                    .condAnd(ImageCacheVO_.imageUuid, SimpleQuery.Op.EQ, entry.getKey())
-                                    .update();
+                            // update the entities so the usage of primary storage is tracked by their lifecycle
+                            List<ImageCacheVO> caches = Q.New(ImageCacheVO.class)
+                                    .eq(ImageCacheVO_.imageUuid, entry.getKey())
+                                    .list();
+                            caches.forEach(c -> c.setSize(entry.getValue()));
+                            dbf.updateCollection(caches);
                         }
 
                         // Ask primary storage service to recalculate the capacities
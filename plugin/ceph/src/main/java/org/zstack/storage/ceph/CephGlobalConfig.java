@@ -25,4 +25,6 @@ public class CephGlobalConfig {
     public static GlobalConfig BACKUP_STORAGE_MON_AUTO_RECONNECT = new GlobalConfig(CATEGORY, "backupStorage.mon.autoReconnect");
     @GlobalConfigValidation
     public static GlobalConfig GC_INTERVAL = new GlobalConfig(CATEGORY, "deletion.gcInterval");
+    @GlobalConfigValidation(numberGreaterThan = -1)
+    public static GlobalConfig MON_HEDGE_DELAY = new GlobalConfig(CATEGORY, "mon.hedgeDelay");
 }
@@ -0,0 +1,196 @@
+package org.zstack.storage.ceph;
+
+import org.zstack.core.debug.DebugManager;
+import org.zstack.core.debug.DebugSignalHandler;
+import org.zstack.header.Component;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Orders the mons of ceph primary storage and backup storage for agent calls.
+ *
+ * Every call made on a mon feeds the EWMA of its latency and its error rate. A storage sticks to
+ * a preferred mon as long as the mon stays healthy and is not much slower than the fastest healthy
+ * one, instead of spreading calls randomly over all connected mons; the other mons follow, healthy
+ * ones by score first, those without fresh samples next and unhealthy ones last.
+ *
+ * Callers of read-only commands may hedge: if the mon called doesn't answer in
+ * ceph.mon.hedgeDelay milliseconds, the call is sent to the next mon as well and the first answer wins.
+ */
+public class CephMonSelector implements Component, DebugSignalHandler {
+    private static final CLogger logger = Utils.getLogger(CephMonSelector.class);
+
+    public static final String DUMP_CEPH_MON_SELECTOR_DEBUG_SIGNAL = "DumpCephMonSelector";
+
+    private static final double ALPHA = 0.3;
+    // a mon failing all calls scores as slow as 10 times its latency
+    private static final double ERROR_PENALTY = 10;
+    private static final double UNHEALTHY_ERROR_RATE = 0.5;
+    // the preferred mon is given up only if it scores worse than twice the best healthy mon
+    private static final double SWITCH_FACTOR = 2;
+    // samples older than this no longer tell the health of a mon
+    private static final long STALE_PERIOD = TimeUnit.MINUTES.toMillis(10);
+
+    private static class MonStats {
+        double latency;
+        double errorRate;
+        long lastSampleTime;
+        long calls;
+        long failures;
+
+        synchronized void sample(long elapsed, boolean success) {
+            if (calls == 0 || isStale()) {
+                latency = elapsed;
+                errorRate = success ? 0 : 1;
+            } else {
+                latency = ALPHA * elapsed + (1 - ALPHA) * latency;
+                errorRate = ALPHA * (success ? 0 : 1) + (1 - ALPHA) * errorRate;
+            }
+
+            lastSampleTime = System.currentTimeMillis();
+            calls++;
+            failures += success ? 0 : 1;
+        }
+
+        synchronized boolean isStale() {
+            return calls == 0 || System.currentTimeMillis() - lastSampleTime > STALE_PERIOD;
+        }
+
+        synchronized boolean isHealthy() {
+            return errorRate < UNHEALTHY_ERROR_RATE;
+        }
+
+        synchronized double score() {
+            return latency * (1 + ERROR_PENALTY * errorRate);
+        }
+    }
+
+    private final Map<String, MonStats> stats = new ConcurrentHashMap<>();
+    private final Map<String, String> preferredMons = new ConcurrentHashMap<>();
+
+    private final AtomicLong switches = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    private MonStats getStats(String monUuid) {
+        return stats.computeIfAbsent(monUuid, k -> new MonStats());
+    }
+
+    /**
+     * @return the mons in the order to call them, the preferred mon of the storage first
+     */
+    public <M> List<M> order(String storageUuid, List<M> mons, Function<M, String> getMonUuid) {
+        List<M> healthy = new ArrayList<>();
+        List<M> unknown = new ArrayList<>();
+        List<M> unhealthy = new ArrayList<>();
+        for (M m : mons) {
+            MonStats s = getStats(getMonUuid.apply(m));
+            if (s.isStale()) {
+                unknown.add(m);
+            } else if (s.isHealthy()) {
+                healthy.add(m);
+            } else {
+                unhealthy.add(m);
+            }
+        }
+
+        Comparator<M> byScore = Comparator.comparingDouble(m -> getStats(getMonUuid.apply(m)).score());
+        healthy.sort(byScore);
+        unhealthy.sort(byScore);
+        // spreads probing of mons without fresh samples
+        Collections.shuffle(unknown);
+
+        List<M> ordered = new ArrayList<>(mons.size());
+        ordered.addAll(healthy);
+        ordered.addAll(unknown);
+        ordered.addAll(unhealthy);
+        if (ordered.isEmpty()) {
+            return ordered;
+        }
+
+        String preferred = preferredMons.get(storageUuid);
+        M preferredMon = ordered.stream().filter(m -> getMonUuid.apply(m).equals(preferred)).findFirst().orElse(null);
+        if (preferredMon != null && isStillPreferred(getStats(preferred), healthy.isEmpty() ? null : getStats(getMonUuid.apply(healthy.get(0))))) {
+            ordered.remove(preferredMon);
+            ordered.add(0, preferredMon);
+            return ordered;
+        }
+
+        String newPreferred = getMonUuid.apply(ordered.get(0));
+        preferredMons.put(storageUuid, newPreferred);
+        if (preferred != null) {
+            switches.incrementAndGet();
+            logger.debug(String.format("the preferred mon of the ceph storage[uuid:%s] is changed from %s to %s",
+                    storageUuid, preferred, newPreferred));
+        }
+
+        return ordered;
+    }
+
+    private boolean isStillPreferred(MonStats preferred, MonStats best) {
+        if (preferred.isStale()) {
+            return true;
+        }
+
+        if (!preferred.isHealthy()) {
+            return false;
+        }
+
+        return best == null || preferred.score() <= best.score() * SWITCH_FACTOR;
+    }
+
+    public void record(String storageUuid, String monUuid, long elapsed, boolean success) {
+        getStats(monUuid).sample(elapsed, success);
+        if (!success && preferredMons.remove(storageUuid, monUuid)) {
+            // the next call picks a preferred mon by score again
+            switches.incrementAndGet();
+        }
+    }
+
+    public void hedged() {
+        hedges.incrementAndGet();
+    }
+
+    public void hedgeWon() {
+        hedgeWins.incrementAndGet();
+    }
+
+    public long getHedgeDelay() {
+        return CephGlobalConfig.MON_HEDGE_DELAY.value(Long.class);
+    }
+
+    @Override
+    public void handleDebugSignal() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n================= BEGIN CEPH MON SELECTOR DUMP ================");
+        sb.append(String.format("\npreferred mon switches: %s, hedged calls: %s, hedged calls won: %s",
+                switches.get(), hedges.get(), hedgeWins.get()));
+        preferredMons.forEach((storageUuid, monUuid) ->
+                sb.append(String.format("\nceph storage[uuid:%s]: preferred mon: %s", storageUuid, monUuid)));
+        stats.forEach((monUuid, s) -> {
+            synchronized (s) {
+                sb.append(String.format("\nmon[uuid:%s]: latency: %.1fms, error rate: %.2f, calls: %s, failures: %s, stale: %s",
+                        monUuid, s.latency, s.errorRate, s.calls, s.failures, s.isStale()));
+            }
+        });
+        sb.append("\n================= END CEPH MON SELECTOR DUMP ================");
+        logger.debug(sb.toString());
+    }
+
+    @Override
+    public boolean start() {
+        DebugManager.registerDebugSignalHandler(DUMP_CEPH_MON_SELECTOR_DEBUG_SIGNAL, this);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+}
@@ -76,6 +76,8 @@ public class CephBackupStorageBase extends BackupStorageBase {
     protected RESTFacade restf;
     @Autowired
     protected CephBackupStorageMetaDataMaker metaDataMaker;
+    @Autowired
+    private CephMonSelector monSelector;
 
     public enum PingOperationFailure {
         UnableToCreateFile,
@@ -641,9 +643,15 @@ public class CephBackupStorageBase extends BackupStorageBase {
         new HttpCaller<>(path, cmd, retClass, callback, unit, timeout).call();
     }
 
+    // read-only commands, safe to send to another mon while the first one is still running
+    private static final Set<String> HEDGED_PATHS = new HashSet<>(Arrays.asList(
+            GET_IMAGE_SIZE_PATH,
+            CHECK_POOL_PATH
+    ));
+
     protected class HttpCaller<T extends AgentResponse> {
         private Iterator<CephBackupStorageMonBase> it;
-        private List<ErrorCode> errorCodes = new ArrayList<ErrorCode>();
+        private List<ErrorCode> errorCodes = Collections.synchronizedList(new ArrayList<ErrorCode>());
 
         private final String path;
         private final AgentCommand cmd;
@@ -654,6 +662,10 @@ public class CephBackupStorageBase extends BackupStorageBase {
 
         private boolean tryNext = false;
 
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+        private int inflight;
+        private long hedgeDelay;
+
         HttpCaller(String path, AgentCommand cmd, Class<T> retClass, ReturnValueCompletion<T> callback) {
             this(path, cmd, retClass, callback, null, 0);
         }
@@ -670,6 +682,7 @@ public class CephBackupStorageBase extends BackupStorageBase {
         void call() {
             it = prepareMons().iterator();
             prepareCmd();
+            hedgeDelay = HEDGED_PATHS.contains(path) ? monSelector.getHedgeDelay() : 0;
             doCall();
         }
 
@@ -689,39 +702,72 @@ public class CephBackupStorageBase extends BackupStorageBase {
                 mons.add(new CephBackupStorageMonBase(monvo));
             }
 
-            Collections.shuffle(mons);
-
             mons.removeIf(it -> it.getSelf().getStatus() != MonStatus.Connected);
             if (mons.isEmpty()) {
                 throw new OperationFailureException(
                         operr("all ceph mons are Disconnected in ceph backup storage[uuid:%s]", self.getUuid())
                 );
             }
-            return mons;
+            return monSelector.order(self.getUuid(), mons, it -> it.getSelf().getUuid());
         }
 
         private void doCall() {
-            if (!it.hasNext()) {
-                callback.fail(operr("all mons failed to execute http call[%s], errors are %s",
-                        path, JSONObjectUtil.toJsonString(errorCodes)));
+            doCall(false);
+        }
+
+        private void doCall(boolean hedged) {
+            CephBackupStorageMonBase base = null;
+            synchronized (this) {
+                if (completed.get()) {
+                    return;
+                }
+
+                if (it.hasNext()) {
+                    base = it.next();
+                    inflight++;
+                    if (hedged) {
+                        monSelector.hedged();
+                    }
+                } else if (inflight > 0) {
+                    // the call still running on another mon completes the caller
+                    return;
+                }
+            }
+
+            if (base == null) {
+                if (completed.compareAndSet(false, true)) {
+                    callback.fail(operr("all mons failed to execute http call[%s], errors are %s",
+                            path, JSONObjectUtil.toJsonString(errorCodes)));
+                }
 
                 return;
             }
 
-            CephBackupStorageMonBase base = it.next();
+            CephBackupStorageMonBase mon = base;
+            long startTime = System.currentTimeMillis();
+            AtomicBoolean answered = new AtomicBoolean(false);
 
             ReturnValueCompletion<T> completion = new ReturnValueCompletion<T>(callback) {
                 @Override
                 public void success(T ret) {
+                    answer(true);
                     if (!ret.success) {
                         if (tryNext) {
                             doCall();
-                        } else {
+                        } else if (completed.compareAndSet(false, true)) {
                             callback.fail(operr("operation error, because:%s", ret.error));
                         }
                         return;
                     }
 
+                    if (!completed.compareAndSet(false, true)) {
+                        return;
+                    }
+
+                    if (hedged) {
+                        monSelector.hedgeWon();
+                    }
+
                     if (!(cmd instanceof InitCmd)) {
                         updateCapacityIfNeeded(ret);
                     }
@@ -730,17 +776,36 @@ public class CephBackupStorageBase extends BackupStorageBase {
 
                 @Override
                 public void fail(ErrorCode errorCode) {
-                    String details = String.format("[mon:%s], %s", base.getSelf().getHostname(), errorCode.getDetails());
+                    answer(false);
+                    String details = String.format("[mon:%s], %s", mon.getSelf().getHostname(), errorCode.getDetails());
                     errorCode.setDetails(details);
                     errorCodes.add(errorCode);
                     doCall();
                 }
-                };
+
+                private void answer(boolean success) {
+                    answered.set(true);
+                    monSelector.record(self.getUuid(), mon.getSelf().getUuid(), System.currentTimeMillis() - startTime, success);
+                    synchronized (HttpCaller.this) {
+                        inflight--;
+                    }
+                }
+            };
 
             if (unit == null) {
-                base.httpCall(path, cmd, retClass, completion);
+                mon.httpCall(path, cmd, retClass, completion);
             } else {
-                base.httpCall(path, cmd, retClass, completion, unit, timeout);
+                mon.httpCall(path, cmd, retClass, completion, unit, timeout);
+            }
+
+            if (hedgeDelay > 0) {
+                thdf.submitTimeoutTask(() -> {
+                    if (!answered.get() && !completed.get()) {
+                        logger.debug(String.format("mon[%s] doesn't answer http call[%s] in %sms, try the next mon as well",
+                                mon.getSelf().getHostname(), path, hedgeDelay));
+                        doCall(true);
+                    }
+                }, TimeUnit.MILLISECONDS, hedgeDelay);
             }
         }
     }
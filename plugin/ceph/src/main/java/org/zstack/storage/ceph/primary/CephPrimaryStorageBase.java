@@ -92,6 +92,8 @@ public class CephPrimaryStorageBase extends PrimaryStorageBase {
     @Autowired
     private ThreadFacade thdf;
     @Autowired
+    private CephMonSelector monSelector;
+    @Autowired
     private ApiTimeoutManager timeoutMgr;
     @Autowired
     private CephImageCacheCleaner imageCacheCleaner;
@@ -1835,6 +1837,7 @@ public class CephPrimaryStorageBase extends PrimaryStorageBase {
 
                         @Override
                         public void run(final FlowTrigger trigger, Map data) {
+                            imageCacheSingleFlight.progress(self.getUuid(), image.getInventory().getUuid(), null, "downloading");
                             MediatorDowloadParam param = new MediatorDowloadParam();
                             param.setImage(image);
                             param.setInstallPath(makeCacheInstallPath(image.getInventory().getUuid()));
@@ -1978,6 +1981,10 @@ public class CephPrimaryStorageBase extends PrimaryStorageBase {
         }
 
         void download(final ReturnValueCompletion<ImageCacheVO> completion) {
+            imageCacheSingleFlight.populate(self.getUuid(), image.getInventory().getUuid(), null, completion, this::populate);
+        }
+
+        private void populate(final ReturnValueCompletion<ImageCacheVO> completion) {
             thdf.chainSubmit(new ChainTask(completion) {
                 @Override
                 public String getSyncSignature() {
@@ -2505,9 +2512,19 @@ public class CephPrimaryStorageBase extends PrimaryStorageBase {
         new HttpCaller<>(path, cmd, retClass, callback, unit, timeout).call();
     }
 
+    // read-only commands, safe to send to another mon while the first one is still running
+    private static final Set<String> HEDGED_PATHS = new HashSet<>(Arrays.asList(
+            GET_VOLUME_SIZE_PATH,
+            GET_VOLUME_SNAPSHOT_SIZE_PATH,
+            GET_VOLUME_SNAPINFOS_PATH,
+            CHECK_POOL_PATH,
+            CHECK_BITS_PATH,
+            GET_FACTS
+    ));
+
     protected class HttpCaller<T extends AgentResponse> {
         private Iterator<CephPrimaryStorageMonBase> it;
-        private List<ErrorCode> errorCodes = new ArrayList<ErrorCode>();
+        private List<ErrorCode> errorCodes = Collections.synchronizedList(new ArrayList<ErrorCode>());
 
         private final String path;
         private final AgentCommand cmd;
@@ -2519,6 +2536,10 @@ public class CephPrimaryStorageBase extends PrimaryStorageBase {
         private String randomFactor = null;
         private boolean tryNext = false;
 
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+        private int inflight;
+        private long hedgeDelay;
+
         HttpCaller(String path, AgentCommand cmd, Class<T> retClass, ReturnValueCompletion<T> callback) {
             this(path, cmd, retClass, callback, null, 0);
         }
@@ -2535,6 +2556,8 @@ public class CephPrimaryStorageBase extends PrimaryStorageBase {
         void call() {
             it = prepareMons().iterator();
             prepareCmd();
+            // calls in a specified order must reach the same mon, they never hedge
+            hedgeDelay = randomFactor == null && HEDGED_PATHS.contains(path) ? monSelector.getHedgeDelay() : 0;
             doCall();
         }
 
@@ -2562,8 +2585,6 @@ public class CephPrimaryStorageBase extends PrimaryStorageBase {
 
             if (randomFactor != null) {
                 CollectionUtils.shuffleByKeySeed(mons, randomFactor, it -> it.getSelf().getUuid());
-            } else {
-                Collections.shuffle(mons);
             }
 
             mons.removeIf(it -> it.getSelf().getStatus() != MonStatus.Connected);
@@ -2572,33 +2593,70 @@ public class CephPrimaryStorageBase extends PrimaryStorageBase {
                         "all ceph mons of primary storage[uuid:%s] are not in Connected state", self.getUuid())
                 );
             }
-            return mons;
+
+            return randomFactor != null ? mons : monSelector.order(self.getUuid(), mons, it -> it.getSelf().getUuid());
         }
 
         private void doCall() {
-            if (!it.hasNext()) {
-                callback.fail(operr(
-                        "all mons failed to execute http call[%s], errors are %s", path, JSONObjectUtil.toJsonString(errorCodes))
-                );
+            doCall(false);
+        }
+
+        private void doCall(boolean hedged) {
+            CephPrimaryStorageMonBase base = null;
+            synchronized (this) {
+                if (completed.get()) {
+                    return;
+                }
+
+                if (it.hasNext()) {
+                    base = it.next();
+                    inflight++;
+                    if (hedged) {
+                        monSelector.hedged();
+                    }
+                } else if (inflight > 0) {
+                    // the call still running on another mon completes the caller
+                    return;
+                }
+            }
+
+            if (base == null) {
+                if (completed.compareAndSet(false, true)) {
+                    callback.fail(operr(
+                            "all mons failed to execute http call[%s], errors are %s", path, JSONObjectUtil.toJsonString(errorCodes))
+                    );
+                }
 
                 return;
             }
 
-            CephPrimaryStorageMonBase base = it.next();
-            cmd.monUuid = base.getSelf().getUuid();
+            CephPrimaryStorageMonBase mon = base;
+            String monUuid = mon.getSelf().getUuid();
+            cmd.monUuid = monUuid;
+            long startTime = System.currentTimeMillis();
+            AtomicBoolean answered = new AtomicBoolean(false);
 
             ReturnValueCompletion<T> completion = new ReturnValueCompletion<T>(callback) {
                 @Override
                 public void success(T ret) {
+                    answer(true);
                     if (!ret.success) {
                         if (tryNext) {
                             doCall();
-                        } else {
+                        } else if (completed.compareAndSet(false, true)) {
                             callback.fail(operr("operation error, because:%s", ret.error));
                         }
                         return;
                     }
 
+                    if (!completed.compareAndSet(false, true)) {
+                        return;
+                    }
+
+                    if (hedged) {
+                        monSelector.hedgeWon();
+                    }
+
                     if (!(cmd instanceof InitCmd)) {
                         updateCapacityIfNeeded(ret);
                     }
@@ -2607,17 +2665,36 @@ public class CephPrimaryStorageBase extends PrimaryStorageBase {
 
                 @Override
                 public void fail(ErrorCode errorCode) {
+                    answer(false);
                     logger.warn(String.format("mon[%s] failed to execute http call[%s], error is: %s",
-                            base.getSelf().getHostname(), path, JSONObjectUtil.toJsonString(errorCode)));
+                            mon.getSelf().getHostname(), path, JSONObjectUtil.toJsonString(errorCode)));
                     errorCodes.add(errorCode);
                     doCall();
                 }
+
+                private void answer(boolean success) {
+                    answered.set(true);
+                    monSelector.record(self.getUuid(), monUuid, System.currentTimeMillis() - startTime, success);
+                    synchronized (HttpCaller.this) {
+                        inflight--;
+                    }
+                }
             };
 
             if (unit == null) {
-                base.httpCall(path, cmd, retClass, completion);
+                mon.httpCall(path, cmd, retClass, completion);
             } else {
-                base.httpCall(path, cmd, retClass, completion, unit, timeout);
+                mon.httpCall(path, cmd, retClass, completion, unit, timeout);
+            }
+
+            if (hedgeDelay > 0) {
+                thdf.submitTimeoutTask(() -> {
+                    if (!answered.get() && !completed.get()) {
+                        logger.debug(String.format("mon[%s] doesn't answer http call[%s] in %sms, try the next mon as well",
+                                mon.getSelf().getHostname(), path, hedgeDelay));
+                        doCall(true);
+                    }
+                }, TimeUnit.MILLISECONDS, hedgeDelay);
             }
         }
     }
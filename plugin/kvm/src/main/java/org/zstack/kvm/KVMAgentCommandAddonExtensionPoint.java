@@ -0,0 +1,17 @@
+package org.zstack.kvm;
+
+import org.zstack.kvm.KVMAgentCommands.AgentCommand;
+
+import java.util.Map;
+
+/**
+ * Contributes addons sent to the KVM agent along with a command, under the
+ * key KVMConstant.KVM_HOST_ADDONS of the command JSON.
+ */
+public interface KVMAgentCommandAddonExtensionPoint {
+    /**
+     * @param cmd null if the command is given as a JSON string
+     * @return addons keyed by name, null or empty if no addon for the command
+     */
+    Map<String, Object> getAgentCommandAddons(String path, AgentCommand cmd, Map<String, String> header);
+}
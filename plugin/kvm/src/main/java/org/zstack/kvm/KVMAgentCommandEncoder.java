@@ -0,0 +1,72 @@
+package org.zstack.kvm;
+
+import com.google.gson.stream.JsonWriter;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.kvm.KVMAgentCommands.AgentCommand;
+import org.zstack.utils.gson.JSONObjectUtil;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+
+/**
+ * Encodes an agent command with its addons. The addons are written into the command
+ * object while the command is being serialized, so the command is encoded only once.
+ */
+public class KVMAgentCommandEncoder {
+    private static class AddonAppendingWriter extends JsonWriter {
+        private final Map<String, Object> addons;
+        private int depth;
+        private boolean appended;
+
+        AddonAppendingWriter(StringWriter out, Map<String, Object> addons) {
+            super(out);
+            this.addons = addons;
+        }
+
+        @Override
+        public JsonWriter beginObject() throws IOException {
+            depth ++;
+            return super.beginObject();
+        }
+
+        @Override
+        public JsonWriter endObject() throws IOException {
+            depth --;
+            if (depth == 0 && !appended) {
+                appended = true;
+                name(KVMConstant.KVM_HOST_ADDONS);
+                JSONObjectUtil.toJson(addons, this);
+            }
+
+            return super.endObject();
+        }
+    }
+
+    public static String encode(AgentCommand cmd, Map<String, Object> addons) {
+        StringWriter out = new StringWriter();
+        JSONObjectUtil.toJson(cmd, new AddonAppendingWriter(out, addons));
+        return out.toString();
+    }
+
+    /**
+     * @param commandStr a command already encoded as a JSON object
+     */
+    public static String encode(String commandStr, Map<String, Object> addons) {
+        int end = commandStr.lastIndexOf('}');
+        if (end < 0) {
+            throw new CloudRuntimeException(String.format("the agent command[%s] is not a JSON object", commandStr));
+        }
+
+        StringBuilder sb = new StringBuilder(commandStr.length() + 64);
+        sb.append(commandStr, 0, end);
+        if (!commandStr.substring(commandStr.indexOf('{') + 1, end).trim().isEmpty()) {
+            sb.append(',');
+        }
+
+        sb.append('"').append(KVMConstant.KVM_HOST_ADDONS).append("\":")
+                .append(JSONObjectUtil.toJsonString(addons))
+                .append(commandStr, end, commandStr.length());
+        return sb.toString();
+    }
+}
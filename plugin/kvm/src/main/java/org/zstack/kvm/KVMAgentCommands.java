@@ -1,5 +1,6 @@
 package org.zstack.kvm;
 
+import com.google.gson.JsonElement;
 import org.zstack.core.validation.ConditionalValidation;
 import org.zstack.header.core.validation.Validation;
 import org.zstack.header.vm.VmBootDevice;
@@ -55,6 +56,19 @@ public class KVMAgentCommands {
         public LinkedHashMap kvmHostAddons;
     }
 
+    public static class BatchedCommandRsp {
+        // false if the agent failed to run the command, e.g. no handler for the path
+        public boolean success;
+        public String error;
+        // kept as parsed json and decoded to the response class of the command only once
+        public JsonElement rsp;
+    }
+
+    public static class BatchCommandsRsp extends AgentResponse {
+        // in the same order as the commands of the batch
+        public List<BatchedCommandRsp> responses;
+    }
+
     public static class CheckVmStateCmd extends AgentCommand {
         public List<String> vmUuids;
         public String hostUuid;
@@ -1521,10 +1535,26 @@ public class KVMAgentCommands {
 
 
     public static class VmSyncCmd extends AgentCommand {
+        // null asks for states of all VMs, otherwise only states changed after this generation
+        private Long sinceGeneration;
+
+        public Long getSinceGeneration() {
+            return sinceGeneration;
+        }
+
+        public void setSinceGeneration(Long sinceGeneration) {
+            this.sinceGeneration = sinceGeneration;
+        }
     }
 
     public static class VmSyncResponse extends AgentResponse {
         private HashMap<String, String> states;
+        // null if the agent doesn't track state generations, states are always full then
+        private Long generation;
+        // true if states are of all VMs rather than changes since the requested generation
+        private boolean fullSync = true;
+        // VMs gone from the host since the requested generation
+        private List<String> removedVms;
 
         public HashMap<String, String> getStates() {
             return states;
@@ -1533,6 +1563,30 @@ public class KVMAgentCommands {
         public void setStates(HashMap<String, String> states) {
             this.states = states;
         }
+
+        public Long getGeneration() {
+            return generation;
+        }
+
+        public void setGeneration(Long generation) {
+            this.generation = generation;
+        }
+
+        public boolean isFullSync() {
+            return fullSync;
+        }
+
+        public void setFullSync(boolean fullSync) {
+            this.fullSync = fullSync;
+        }
+
+        public List<String> getRemovedVms() {
+            return removedVms;
+        }
+
+        public void setRemovedVms(List<String> removedVms) {
+            this.removedVms = removedVms;
+        }
     }
 
     public static class RefreshAllRulesOnHostCmd extends AgentCommand {
@@ -5,7 +5,11 @@ import java.util.Map;
 
 /**
  * Create by weiwang at 2018/6/4
+ *
+ * @deprecated the command has to be encoded and parsed again for this extension point,
+ * use KVMAgentCommandAddonExtensionPoint instead
  */
+@Deprecated
 public interface KVMBeforeAsyncJsonPostExtensionPoint {
     LinkedHashMap kvmBeforeAsyncJsonPostExtensionPoint(String path, LinkedHashMap commandMap, Map header);
 }
@@ -21,4 +21,18 @@ public class KVMGlobalProperty {
     public static int AGENT_SERVER_PORT;
     @GlobalProperty(name="KvmHost.iptables.rule.", defaultValue = "")
     public static List<String> IPTABLES_RULES;
+    @GlobalProperty(name="KvmHost.commandPipeline.enabled", defaultValue = "false")
+    public static boolean COMMAND_PIPELINE_ENABLED;
+    @GlobalProperty(name="KvmHost.commandPipeline.window", defaultValue = "20")
+    public static long COMMAND_PIPELINE_WINDOW;
+    @GlobalProperty(name="KvmHost.commandPipeline.maxBatchSize", defaultValue = "50")
+    public static int COMMAND_PIPELINE_MAX_BATCH_SIZE;
+    @GlobalProperty(name="KvmHost.commandPipeline.paths", defaultValue = "/vm/checkstate,/vm/getvncport,/vm/attachnic,/vm/detachnic," +
+            "/vm/updatenic,/vm/iso/attach,/vm/iso/detach,/vm/attachdatavolume,/vm/detachdatavolume,/securitygroup/applyrules," +
+            "/flatnetworkprovider/dhcp/apply,/flatnetworkprovider/dhcp/release")
+    public static String COMMAND_PIPELINE_PATHS;
+    @GlobalProperty(name="KvmHost.vmStateReport.window", defaultValue = "200")
+    public static long VM_STATE_REPORT_WINDOW;
+    @GlobalProperty(name="KvmHost.vmStateReport.parallelismDegree", defaultValue = "20")
+    public static int VM_STATE_REPORT_PARALLELISM_DEGREE;
 }
@@ -287,73 +287,75 @@ public class KVMHost extends HostBase implements Host {
         void call(String resourceUuid, ReturnValueCompletion<T> completion)  {
             Map<String, String> header = new HashMap<>();
             header.put(Constants.AGENT_HTTP_HEADER_RESOURCE_UUID, resourceUuid == null ? self.getUuid() : resourceUuid);
-            runBeforeAsyncJsonPostExts(header);
-            if (commandStr != null) {
-                restf.asyncJsonPost(path, commandStr, header, new JsonAsyncRESTCallback<T>(completion) {
-                    @Override
-                    public void fail(ErrorCode err) {
-                        completion.fail(err);
-                    }
+            String body = encodeCommand(header);
 
+            String batchablePath = KVMHostCommandPipeline.getBatchablePath(path);
+            if (batchablePath != null) {
+                KVMHostCommandPipeline pipeline = context.getCommandPipeline(() -> new KVMHostCommandPipeline(self.getUuid(),
+                        context.buildUrl(KVMConstant.KVM_BATCH_COMMANDS_PATH), restf, thdf));
+                pipeline.submit(path, batchablePath, body, header, timeoutManager.getTimeout(), responseClass, new KVMHostCommandPipeline.Callback<T>() {
                     @Override
-                    public void success(T ret) {
-                        completion.success(ret);
+                    public void success(T rsp) {
+                        completion.success(rsp);
                     }
 
-                    @Override
-                    public Class<T> getReturnClass() {
-                        return responseClass;
-                    }
-                }, TimeUnit.MILLISECONDS, timeoutManager.getTimeout());
-            } else {
-                restf.asyncJsonPost(path, cmd, header, new JsonAsyncRESTCallback<T>(completion) {
                     @Override
                     public void fail(ErrorCode err) {
                         completion.fail(err);
                     }
+                });
+                return;
+            }
 
-                    @Override
-                    public void success(T ret) {
-                        completion.success(ret);
-                    }
+            restf.asyncJsonPost(path, body, header, new JsonAsyncRESTCallback<T>(completion) {
+                @Override
+                public void fail(ErrorCode err) {
+                    completion.fail(err);
+                }
 
-                    @Override
-                    public Class<T> getReturnClass() {
-                        return responseClass;
-                    }
-                }); // DO NOT pass unit, timeout here, they are null
-            }
+                @Override
+                public void success(T ret) {
+                    completion.success(ret);
+                }
+
+                @Override
+                public Class<T> getReturnClass() {
+                    return responseClass;
+                }
+            }, TimeUnit.MILLISECONDS, timeoutManager.getTimeout());
         }
 
-        void runBeforeAsyncJsonPostExts(Map<String, String> header) {
-            if (commandStr == null) {
-                commandStr = JSONObjectUtil.toJsonString(cmd);
+        private String encodeCommand(Map<String, String> header) {
+            if (cmd == null && (commandStr == null || commandStr.isEmpty())) {
+                logger.warn(String.format("commandStr is empty, path: %s, header: %s", path, header));
+                return commandStr;
             }
 
-            if (commandStr == null || commandStr.isEmpty()) {
-                logger.warn(String.format("commandStr is empty, path: %s, header: %s", path, header));
-                return;
+            LinkedHashMap<String, Object> kvmHostAddon = new LinkedHashMap<>();
+            for (KVMAgentCommandAddonExtensionPoint extp : pluginRegistry.getExtensionList(KVMAgentCommandAddonExtensionPoint.class)) {
+                Map<String, Object> addons = extp.getAgentCommandAddons(path, cmd, header);
+                if (addons != null) {
+                    kvmHostAddon.putAll(addons);
+                }
             }
 
-            LinkedHashMap commandMap = JSONObjectUtil.toObject(commandStr, LinkedHashMap.class);
-            LinkedHashMap kvmHostAddon = new LinkedHashMap();
-            for (KVMBeforeAsyncJsonPostExtensionPoint extp : pluginRegistry.getExtensionList(KVMBeforeAsyncJsonPostExtensionPoint.class)) {
-                LinkedHashMap tmpHashMap = extp.kvmBeforeAsyncJsonPostExtensionPoint(path, commandMap, header);
+            List<KVMBeforeAsyncJsonPostExtensionPoint> legacyExts = pluginRegistry.getExtensionList(KVMBeforeAsyncJsonPostExtensionPoint.class);
+            if (!legacyExts.isEmpty()) {
+                if (commandStr == null) {
+                    commandStr = JSONObjectUtil.toJsonString(cmd);
+                }
 
-                if (tmpHashMap != null && !tmpHashMap.isEmpty()) {
-                    tmpHashMap.keySet().stream().forEachOrdered((key -> {
-                        kvmHostAddon.put(key, tmpHashMap.get(key));
-                    }));
+                LinkedHashMap commandMap = JSONObjectUtil.toObject(commandStr, LinkedHashMap.class);
+                for (KVMBeforeAsyncJsonPostExtensionPoint extp : legacyExts) {
+                    LinkedHashMap tmpHashMap = extp.kvmBeforeAsyncJsonPostExtensionPoint(path, commandMap, header);
+                    if (tmpHashMap != null) {
+                        kvmHostAddon.putAll(tmpHashMap);
+                    }
                 }
             }
 
-            if (commandStr.equals("{}")) {
-                commandStr = commandStr.replaceAll("\\}$",
-                        String.format("\"%s\":%s}", KVMConstant.KVM_HOST_ADDONS, JSONObjectUtil.toJsonString(kvmHostAddon)));
-            } else {
-                commandStr = commandStr.replaceAll("\\}$",
-                        String.format(",\"%s\":%s}", KVMConstant.KVM_HOST_ADDONS, JSONObjectUtil.toJsonString(kvmHostAddon)));
-            }
+            return commandStr != null ? KVMAgentCommandEncoder.encode(commandStr, kvmHostAddon) :
+                    KVMAgentCommandEncoder.encode(cmd, kvmHostAddon);
         }
     }
 
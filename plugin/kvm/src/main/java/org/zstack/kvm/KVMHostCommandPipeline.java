@@ -0,0 +1,210 @@
+package org.zstack.kvm;
+
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Constants;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.rest.JsonAsyncRESTCallback;
+import org.zstack.header.rest.RESTFacade;
+import org.zstack.kvm.KVMAgentCommands.BatchCommandsRsp;
+import org.zstack.kvm.KVMAgentCommands.BatchedCommandRsp;
+import org.zstack.utils.Utils;
+import org.zstack.utils.gson.JSONObjectUtil;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.zstack.core.Platform.operr;
+
+/**
+ * Batches commands sent to the agent of a host within KvmHost.commandPipeline.window milliseconds
+ * into one request to KVMConstant.KVM_BATCH_COMMANDS_PATH:
+ *
+ * {"commands": [{"path": "/vm/attachnic", "headers": {...}, "cmd": {...}}, ...]}
+ *
+ * The agent runs the commands in the order of the list and replies a BatchCommandsRsp carrying
+ * the response of every command in the same order.
+ */
+public class KVMHostCommandPipeline {
+    private static final CLogger logger = Utils.getLogger(KVMHostCommandPipeline.class);
+
+    private static Set<String> batchablePaths;
+
+    public interface Callback<T> {
+        void success(T rsp);
+
+        void fail(ErrorCode err);
+    }
+
+    private static class PendingCommand {
+        String url;
+        String path;
+        String body;
+        Map<String, String> header;
+        long timeout;
+        Class returnClass;
+        Callback callback;
+    }
+
+    private final String hostUuid;
+    private final String batchUrl;
+    private final RESTFacade restf;
+    private final ThreadFacade thdf;
+    private List<PendingCommand> pending = new ArrayList<>();
+
+    KVMHostCommandPipeline(String hostUuid, String batchUrl, RESTFacade restf, ThreadFacade thdf) {
+        this.hostUuid = hostUuid;
+        this.batchUrl = batchUrl;
+        this.restf = restf;
+        this.thdf = thdf;
+    }
+
+    private static Set<String> getBatchablePaths() {
+        if (batchablePaths == null) {
+            batchablePaths = Arrays.stream(KVMGlobalProperty.COMMAND_PIPELINE_PATHS.split(","))
+                    .map(String::trim).filter(p -> !p.isEmpty()).collect(Collectors.toSet());
+        }
+
+        return batchablePaths;
+    }
+
+    /**
+     * @param url the full url of the command
+     * @return the agent path of the url if commands to it can be batched, otherwise null
+     */
+    static String getBatchablePath(String url) {
+        if (!KVMGlobalProperty.COMMAND_PIPELINE_ENABLED) {
+            return null;
+        }
+
+        for (String p : getBatchablePaths()) {
+            if (url.endsWith(p)) {
+                return p;
+            }
+        }
+
+        return null;
+    }
+
+    <T> void submit(String url, String path, String body, Map<String, String> header, long timeout,
+                    Class<T> returnClass, Callback<T> callback) {
+        PendingCommand cmd = new PendingCommand();
+        cmd.url = url;
+        cmd.path = path;
+        cmd.body = body;
+        cmd.header = header;
+        cmd.timeout = timeout;
+        cmd.returnClass = returnClass;
+        cmd.callback = callback;
+
+        boolean first;
+        boolean full;
+        synchronized (this) {
+            pending.add(cmd);
+            first = pending.size() == 1;
+            full = pending.size() >= KVMGlobalProperty.COMMAND_PIPELINE_MAX_BATCH_SIZE;
+        }
+
+        if (full) {
+            flush();
+        } else if (first) {
+            thdf.submitTimeoutTask(this::flush, TimeUnit.MILLISECONDS, KVMGlobalProperty.COMMAND_PIPELINE_WINDOW);
+        }
+    }
+
+    private void flush() {
+        List<PendingCommand> cmds;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            cmds = pending;
+            pending = new ArrayList<>();
+        }
+
+        if (cmds.size() == 1) {
+            send(cmds.get(0));
+        } else {
+            send(cmds);
+        }
+    }
+
+    private void send(PendingCommand cmd) {
+        restf.asyncJsonPost(cmd.url, cmd.body, cmd.header, new JsonAsyncRESTCallback<Object>(null) {
+            @Override
+            public void fail(ErrorCode err) {
+                cmd.callback.fail(err);
+            }
+
+            @Override
+            public void success(Object ret) {
+                cmd.callback.success(ret);
+            }
+
+            @Override
+            public Class<Object> getReturnClass() {
+                return cmd.returnClass;
+            }
+        }, TimeUnit.MILLISECONDS, cmd.timeout);
+    }
+
+    private void send(List<PendingCommand> cmds) {
+        StringBuilder sb = new StringBuilder("{\"commands\":[");
+        long timeout = 0;
+        for (int i = 0; i < cmds.size(); i++) {
+            PendingCommand cmd = cmds.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+
+            sb.append("{\"path\":").append(JSONObjectUtil.toJsonString(cmd.path))
+                    .append(",\"headers\":").append(JSONObjectUtil.toJsonString(cmd.header))
+                    .append(",\"cmd\":").append(cmd.body).append('}');
+            timeout = Math.max(timeout, cmd.timeout);
+        }
+        sb.append("]}");
+
+        if (logger.isTraceEnabled()) {
+            logger.trace(String.format("send %s commands to the host[uuid:%s] in one batch", cmds.size(), hostUuid));
+        }
+
+        Map<String, String> header = new HashMap<>();
+        header.put(Constants.AGENT_HTTP_HEADER_RESOURCE_UUID, hostUuid);
+        restf.asyncJsonPost(batchUrl, sb.toString(), header, new JsonAsyncRESTCallback<BatchCommandsRsp>(null) {
+            @Override
+            public void fail(ErrorCode err) {
+                cmds.forEach(cmd -> cmd.callback.fail(err));
+            }
+
+            @Override
+            public void success(BatchCommandsRsp ret) {
+                if (!ret.isSuccess()) {
+                    ErrorCode err = operr("failed to run batched commands on the host[uuid:%s], %s", hostUuid, ret.getError());
+                    cmds.forEach(cmd -> cmd.callback.fail(err));
+                    return;
+                }
+
+                List<BatchedCommandRsp> rsps = ret.responses == null ? Collections.emptyList() : ret.responses;
+                for (int i = 0; i < cmds.size(); i++) {
+                    PendingCommand cmd = cmds.get(i);
+                    BatchedCommandRsp rsp = i < rsps.size() ? rsps.get(i) : null;
+                    if (rsp == null || (rsp.success && (rsp.rsp == null || rsp.rsp.isJsonNull()))) {
+                        cmd.callback.fail(operr("no response of the batched command[path:%s] from the host[uuid:%s]", cmd.path, hostUuid));
+                    } else if (!rsp.success) {
+                        cmd.callback.fail(operr("failed to run the batched command[path:%s] on the host[uuid:%s], %s",
+                                cmd.path, hostUuid, rsp.error));
+                    } else {
+                        cmd.callback.success(JSONObjectUtil.fromJsonElement(rsp.rsp, cmd.returnClass));
+                    }
+                }
+            }
+
+            @Override
+            public Class<BatchCommandsRsp> getReturnClass() {
+                return BatchCommandsRsp.class;
+            }
+        }, TimeUnit.MILLISECONDS, timeout);
+    }
+}
@@ -2,9 +2,12 @@ package org.zstack.kvm;
 
 import org.springframework.web.util.UriComponentsBuilder;
 
+import java.util.function.Supplier;
+
 public class KVMHostContext {
     private KVMHostInventory inventory;
     private String baseUrl;
+    private KVMHostCommandPipeline commandPipeline;
 
     public KVMHostInventory getInventory() {
         return inventory;
@@ -19,6 +22,14 @@ public class KVMHostContext {
         this.baseUrl = baseUrl;
     }
 
+    public synchronized KVMHostCommandPipeline getCommandPipeline(Supplier<KVMHostCommandPipeline> creator) {
+        if (commandPipeline == null) {
+            commandPipeline = creator.get();
+        }
+
+        return commandPipeline;
+    }
+
     public String buildUrl(String...path) {
         UriComponentsBuilder ub = UriComponentsBuilder.fromHttpUrl(baseUrl);
         for (String p : path) {
@@ -0,0 +1,159 @@
+package org.zstack.kvm;
+
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusSteppingCallback;
+import org.zstack.core.db.Q;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.message.NeedReplyMessage;
+import org.zstack.header.vm.*;
+import org.zstack.kvm.KVMAgentCommands.ReportVmStateCmd;
+import org.zstack.kvm.KVMConstant.KvmVmState;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.Tuple;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Collapses VM states reported by agents within KvmHost.vmStateReport.window milliseconds to
+ * the latest state of every VM on every host, looks up states of the VMs in the database by one
+ * query and sends VmStateChangedOnHostMsg of them in a batch.
+ *
+ * Reports are collapsed by the VM and the host, because both the source and the destination host
+ * report the VM during a migration and one must not overwrite the other.
+ *
+ * A VM with a report still being handled, from any host, is held back until the reply of that
+ * report arrives, so reports of one VM are handled in order and its state in the database is read
+ * after the previous report has been applied. Other VMs of the same batch don't wait for it.
+ */
+class KVMVmStateReportCoalescer {
+    private static final CLogger logger = Utils.getLogger(KVMVmStateReportCoalescer.class);
+
+    private final CloudBus bus;
+    private final ThreadFacade thdf;
+
+    // by the VM and the host
+    private Map<String, ReportVmStateCmd> pending = new LinkedHashMap<>();
+    // by the VM
+    private final Set<String> inflight = new HashSet<>();
+    private boolean flushScheduled;
+
+    KVMVmStateReportCoalescer(CloudBus bus, ThreadFacade thdf) {
+        this.bus = bus;
+        this.thdf = thdf;
+    }
+
+    void report(ReportVmStateCmd cmd) {
+        synchronized (this) {
+            // the latest report of the VM on the host wins
+            String key = keyOf(cmd);
+            pending.remove(key);
+            pending.put(key, cmd);
+            scheduleFlush();
+        }
+    }
+
+    private static String keyOf(ReportVmStateCmd cmd) {
+        return cmd.vmUuid + "@" + cmd.hostUuid;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+
+        flushScheduled = true;
+        thdf.submitTimeoutTask(this::flush, TimeUnit.MILLISECONDS, KVMGlobalProperty.VM_STATE_REPORT_WINDOW);
+    }
+
+    private void flush() {
+        List<ReportVmStateCmd> cmds = new ArrayList<>();
+        synchronized (this) {
+            flushScheduled = false;
+
+            Iterator<Map.Entry<String, ReportVmStateCmd>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, ReportVmStateCmd> e = it.next();
+                if (inflight.add(e.getValue().vmUuid)) {
+                    cmds.add(e.getValue());
+                    it.remove();
+                }
+            }
+        }
+
+        if (cmds.isEmpty()) {
+            return;
+        }
+
+        try {
+            send(cmds);
+        } catch (Throwable t) {
+            logger.warn(String.format("unhandled exception while handling states of %s VMs reported by agents", cmds.size()), t);
+            done(cmds);
+        }
+    }
+
+    private void send(List<ReportVmStateCmd> cmds) {
+        Map<String, VmInstanceState> statesInDb = new HashMap<>();
+        List<Tuple> ts = Q.New(VmInstanceVO.class).select(VmInstanceVO_.uuid, VmInstanceVO_.state)
+                .in(VmInstanceVO_.uuid, cmds.stream().map(cmd -> cmd.vmUuid).distinct().collect(Collectors.toList()))
+                .listTuple();
+        ts.forEach(t -> statesInDb.put(t.get(0, String.class), t.get(1, VmInstanceState.class)));
+
+        List<VmStateChangedOnHostMsg> msgs = new ArrayList<>();
+        Map<String, ReportVmStateCmd> sent = new HashMap<>();
+        List<ReportVmStateCmd> anonymous = new ArrayList<>();
+        for (ReportVmStateCmd cmd : cmds) {
+            VmInstanceState state = KvmVmState.valueOf(cmd.vmState).toVmInstanceState();
+            VmInstanceState stateInDb = statesInDb.get(cmd.vmUuid);
+            if (stateInDb == null) {
+                logger.warn(String.format("an anonymous VM[uuid:%s, state:%s] is detected on the host[uuid:%s]", cmd.vmUuid, state, cmd.hostUuid));
+                anonymous.add(cmd);
+                continue;
+            }
+
+            VmStateChangedOnHostMsg msg = new VmStateChangedOnHostMsg();
+            msg.setVmStateAtTracingMoment(stateInDb);
+            msg.setVmInstanceUuid(cmd.vmUuid);
+            msg.setStateOnHost(state);
+            msg.setHostUuid(cmd.hostUuid);
+            bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, cmd.vmUuid);
+            msgs.add(msg);
+            sent.put(msg.getId(), cmd);
+        }
+
+        done(anonymous);
+        if (msgs.isEmpty()) {
+            return;
+        }
+
+        bus.send(msgs, KVMGlobalProperty.VM_STATE_REPORT_PARALLELISM_DEGREE, new CloudBusSteppingCallback(null) {
+            @Override
+            public void run(NeedReplyMessage msg, MessageReply reply) {
+                ReportVmStateCmd cmd = sent.get(msg.getId());
+                if (!reply.isSuccess()) {
+                    logger.warn(String.format("failed to report state[%s] of the vm[uuid:%s] on the host[uuid:%s], %s",
+                            cmd.vmState, cmd.vmUuid, cmd.hostUuid, reply.getError()));
+                }
+
+                done(Collections.singletonList(cmd));
+            }
+        });
+    }
+
+    private void done(List<ReportVmStateCmd> cmds) {
+        if (cmds.isEmpty()) {
+            return;
+        }
+
+        synchronized (this) {
+            cmds.forEach(cmd -> inflight.remove(cmd.vmUuid));
+            if (!pending.isEmpty()) {
+                scheduleFlush();
+            }
+        }
+    }
+}
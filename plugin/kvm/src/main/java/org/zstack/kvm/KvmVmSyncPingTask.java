@@ -6,11 +6,6 @@ import org.zstack.compute.vm.VmTracer;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusCallBack;
 import org.zstack.core.cloudbus.ReplyMessagePreSendingExtensionPoint;
-import org.zstack.core.db.DatabaseFacade;
-import org.zstack.core.db.SimpleQuery;
-import org.zstack.core.db.SimpleQuery.Op;
-import org.zstack.core.thread.ChainTask;
-import org.zstack.core.thread.SyncTaskChain;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.core.timeout.ApiTimeoutManager;
 import org.zstack.header.Component;
@@ -40,14 +35,13 @@ import static org.zstack.core.Platform.getReflections;
 import static org.zstack.core.Platform.operr;
 
 public class KvmVmSyncPingTask extends VmTracer implements KVMPingAgentNoFailureExtensionPoint, KVMHostConnectExtensionPoint,
-        ReplyMessagePreSendingExtensionPoint, HostConnectionReestablishExtensionPoint, HostAfterConnectedExtensionPoint, Component {
+        ReplyMessagePreSendingExtensionPoint, HostConnectionReestablishExtensionPoint, HostAfterConnectedExtensionPoint,
+        AfterChangeHostStatusExtensionPoint, HostDeleteExtensionPoint, Component {
     private static final CLogger logger = Utils.getLogger(KvmVmSyncPingTask.class);
 
     @Autowired
     private RESTFacade restf;
     @Autowired
-    private DatabaseFacade dbf;
-    @Autowired
     private CloudBus bus;
     @Autowired
     private ThreadFacade thdf;
@@ -117,9 +111,42 @@ public class KvmVmSyncPingTask extends VmTracer implements KVMPingAgentNoFailure
         }
     }
 
+    /**
+     * VM states last reported by a host, kept to apply the incremental reports of agents
+     * tracking state generations
+     */
+    private static class HostVmStates {
+        long generation;
+        Map<String, VmInstanceState> states = new HashMap<>();
+        // changed VMs skipped by the tracer, they must be traced again once not skipped
+        Set<String> vmsToRecheck = new HashSet<>();
+    }
+
+    private final Map<String, HostVmStates> hostVmStates = new ConcurrentHashMap<>();
+
+    private static VmInstanceState toTracedState(String kvmState) {
+        VmInstanceState state = KvmVmState.valueOf(kvmState).toVmInstanceState();
+        if (state == VmInstanceState.Running || state == VmInstanceState.Paused || state == VmInstanceState.Unknown) {
+            return state;
+        }
+
+        return null;
+    }
+
     private void syncVm(final HostInventory host, final Completion completion) {
+        syncVm(host, true, completion);
+    }
+
+    private void syncVm(final HostInventory host, final boolean full, final Completion completion) {
+        HostVmStates known = full ? null : hostVmStates.get(host.getUuid());
+
         KVMHostAsyncHttpCallMsg msg = new KVMHostAsyncHttpCallMsg();
         VmSyncCmd cmd = new VmSyncCmd();
+        if (known != null) {
+            synchronized (known) {
+                cmd.setSinceGeneration(known.generation);
+            }
+        }
         msg.setCommand(cmd);
         msg.setNoStatusCheck(true);
         msg.setHostUuid(host.getUuid());
@@ -134,35 +161,114 @@ public class KvmVmSyncPingTask extends VmTracer implements KVMPingAgentNoFailure
                 }
                 KVMHostAsyncHttpCallReply r = reply.castReply();
                 VmSyncResponse ret = r.toResponse(VmSyncResponse.class);
-                if (ret.isSuccess()) {
-                    Map<String, VmInstanceState> states = new HashMap<>(ret.getStates().size());
-                    Set<String> vmsToSkipSetHostSide = new HashSet<>(vmsToSkip.keySet());
-                    Collection<String> vmUuidsInDeleteVmGC = DeleteVmGC.queryVmInGC(host.getUuid(), ret.getStates().keySet());
-
-                    for (Map.Entry<String, String> e : ret.getStates().entrySet()) {
-                        if (logger.isTraceEnabled()) {
-                            logger.trace(String.format("state from vmsync vm %s state %s", e.getKey(), e.getValue()));
-                        }
-                        if (vmUuidsInDeleteVmGC != null && vmUuidsInDeleteVmGC.contains(e.getKey())) {
-                            /*the vm has been deleted and recovered that no resource, so skip to trace */
-                            vmsToSkipSetHostSide.add(e.getKey());
-                        }
+                if (!ret.isSuccess()) {
+                    ErrorCode errorCode = operr("unable to do vm sync on host[uuid:%s, ip:%s] because %s", host.getUuid(), host.getManagementIp(), ret.getError());
+                    completion.fail(errorCode);
+                    return;
+                }
 
-                        VmInstanceState state = KvmVmState.valueOf(e.getValue()).toVmInstanceState();
-                        if (state == VmInstanceState.Running || state == VmInstanceState.Paused || state == VmInstanceState.Unknown) {
-                            states.put(e.getKey(), state);
+                if (ret.getGeneration() == null) {
+                    // the agent doesn't track state generations
+                    hostVmStates.remove(host.getUuid());
+                    traceAllVms(host.getUuid(), ret.getStates());
+                } else if (ret.isFullSync() || cmd.getSinceGeneration() == null) {
+                    HostVmStates states = new HostVmStates();
+                    states.generation = ret.getGeneration();
+                    ret.getStates().forEach((vmUuid, kvmState) -> {
+                        VmInstanceState state = toTracedState(kvmState);
+                        if (state != null) {
+                            states.states.put(vmUuid, state);
                         }
+                    });
+
+                    hostVmStates.put(host.getUuid(), states);
+                    traceAllVms(host.getUuid(), ret.getStates());
+                } else if (ret.getGeneration() < cmd.getSinceGeneration()) {
+                    logger.debug(String.format("the VM state generation of the host[uuid:%s] goes back from %s to %s," +
+                            " do a full sync", host.getUuid(), cmd.getSinceGeneration(), ret.getGeneration()));
+                    syncVm(host, true, completion);
+                    return;
+                } else {
+                    traceChangedVms(host.getUuid(), known, ret);
+                }
+
+                completion.success();
+            }
+        });
+    }
+
+    private void traceAllVms(String hostUuid, Map<String, String> kvmStates) {
+        Map<String, VmInstanceState> states = new HashMap<>(kvmStates.size());
+        Set<String> vmsToSkipSetHostSide = new HashSet<>(vmsToSkip.keySet());
+        Collection<String> vmUuidsInDeleteVmGC = DeleteVmGC.queryVmInGC(hostUuid, kvmStates.keySet());
+
+        for (Map.Entry<String, String> e : kvmStates.entrySet()) {
+            if (logger.isTraceEnabled()) {
+                logger.trace(String.format("state from vmsync vm %s state %s", e.getKey(), e.getValue()));
+            }
+            if (vmUuidsInDeleteVmGC != null && vmUuidsInDeleteVmGC.contains(e.getKey())) {
+                /*the vm has been deleted and recovered that no resource, so skip to trace */
+                vmsToSkipSetHostSide.add(e.getKey());
+            }
 
+            VmInstanceState state = toTracedState(e.getValue());
+            if (state != null) {
+                states.put(e.getKey(), state);
+            }
+        }
+
+        reportVmState(hostUuid, states, vmsToSkipSetHostSide);
+    }
+
+    private void traceChangedVms(String hostUuid, HostVmStates known, VmSyncResponse ret) {
+        Map<String, VmInstanceState> states;
+        Set<String> vmsToCheck;
+        Set<String> vmsToSkipSetHostSide = new HashSet<>(vmsToSkip.keySet());
+
+        synchronized (known) {
+            if (ret.getGeneration() < known.generation) {
+                // a newer report has been applied
+                return;
+            }
+
+            vmsToCheck = new HashSet<>(known.vmsToRecheck);
+            if (ret.getStates() != null) {
+                for (Map.Entry<String, String> e : ret.getStates().entrySet()) {
+                    if (logger.isTraceEnabled()) {
+                        logger.trace(String.format("state change from vmsync vm %s state %s", e.getKey(), e.getValue()));
                     }
 
-                    reportVmState(host.getUuid(), states, vmsToSkipSetHostSide);
-                    completion.success();
-                } else {
-                    ErrorCode errorCode = operr("unable to do vm sync on host[uuid:%s, ip:%s] because %s", host.getUuid(), host.getManagementIp(), ret.getError());
-                    completion.fail(errorCode);
+                    VmInstanceState state = toTracedState(e.getValue());
+                    if (state != null) {
+                        known.states.put(e.getKey(), state);
+                    } else {
+                        known.states.remove(e.getKey());
+                    }
+                    vmsToCheck.add(e.getKey());
                 }
             }
-        });
+
+            if (ret.getRemovedVms() != null) {
+                ret.getRemovedVms().forEach(known.states::remove);
+                vmsToCheck.addAll(ret.getRemovedVms());
+            }
+
+            known.generation = ret.getGeneration();
+            known.vmsToRecheck = new HashSet<>(vmsToCheck);
+            known.vmsToRecheck.retainAll(vmsToSkipSetHostSide);
+            states = new HashMap<>(known.states);
+        }
+
+        if (vmsToCheck.isEmpty()) {
+            return;
+        }
+
+        Collection<String> vmUuidsInDeleteVmGC = DeleteVmGC.queryVmInGC(hostUuid, vmsToCheck);
+        if (vmUuidsInDeleteVmGC != null) {
+            vmsToSkipSetHostSide.addAll(vmUuidsInDeleteVmGC);
+        }
+
+        reportVmState(hostUuid, states, vmsToCheck, vmsToSkipSetHostSide);
     }
 
     @Override
@@ -177,57 +283,11 @@ public class KvmVmSyncPingTask extends VmTracer implements KVMPingAgentNoFailure
 
     @Override
     public boolean start() {
+        KVMVmStateReportCoalescer coalescer = new KVMVmStateReportCoalescer(bus, thdf);
         restf.registerSyncHttpCallHandler(KVMConstant.KVM_REPORT_VM_STATE, ReportVmStateCmd.class, new SyncHttpCallHandler<ReportVmStateCmd>() {
-            private void reportState(final ReportVmStateCmd cmd) {
-                thdf.chainSubmit(new ChainTask(null) {
-                    @Override
-                    public String getSyncSignature() {
-                        return String.format("report-state-of-vm-%s", cmd.vmUuid);
-                    }
-
-                    @Override
-                    public void run(final SyncTaskChain chain) {
-                        VmInstanceState state = KvmVmState.valueOf(cmd.vmState).toVmInstanceState();
-
-                        SimpleQuery<VmInstanceVO> q = dbf.createQuery(VmInstanceVO.class);
-                        q.select(VmInstanceVO_.state);
-                        q.add(VmInstanceVO_.uuid, Op.EQ, cmd.vmUuid);
-                        VmInstanceState stateInDb = q.findValue();
-                        if (stateInDb == null) {
-                            logger.warn(String.format("an anonymous VM[uuid:%s, state:%s] is detected on the host[uuid:%s]", cmd.vmUuid, state, cmd.hostUuid));
-                            chain.next();
-                            return;
-                        }
-
-                        VmStateChangedOnHostMsg msg = new VmStateChangedOnHostMsg();
-                        msg.setVmStateAtTracingMoment(stateInDb);
-                        msg.setVmInstanceUuid(cmd.vmUuid);
-                        msg.setStateOnHost(state);
-                        msg.setHostUuid(cmd.hostUuid);
-                        bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, cmd.vmUuid);
-                        bus.send(msg, new CloudBusCallBack(chain) {
-                            @Override
-                            public void run(MessageReply reply) {
-                                if (!reply.isSuccess()) {
-                                    logger.warn(String.format("failed to report state[%s] of the vm[uuid:%s] on the host[uuid:%s], %s",
-                                            cmd.vmState, cmd.vmUuid, cmd.hostUuid, reply.getError()));
-                                }
-
-                                chain.next();
-                            }
-                        });
-                    }
-
-                    @Override
-                    public String getName() {
-                        return "report-vm-state";
-                    }
-                });
-            }
-
             @Override
             public String handleSyncHttpCall(ReportVmStateCmd cmd) {
-                reportState(cmd);
+                coalescer.report(cmd);
                 return null;
             }
         });
@@ -244,6 +304,27 @@ public class KvmVmSyncPingTask extends VmTracer implements KVMPingAgentNoFailure
         //syncVm has done the same work, so abandon it
     }
 
+    @Override
+    public void afterChangeHostStatus(String hostUuid, HostStatus before, HostStatus next) {
+        if (next != HostStatus.Connected) {
+            // the agent may be restarted while disconnected, the next sync is a full one
+            hostVmStates.remove(hostUuid);
+        }
+    }
+
+    @Override
+    public void preDeleteHost(HostInventory inventory) throws HostException {
+    }
+
+    @Override
+    public void beforeDeleteHost(HostInventory inventory) {
+    }
+
+    @Override
+    public void afterDeleteHost(HostInventory inventory) {
+        hostVmStates.remove(inventory.getUuid());
+    }
+
     @Override
     public Flow createKvmHostConnectingFlow(final KVMHostConnectedContext context) {
         return new NoRollbackFlow() {
@@ -273,7 +354,7 @@ public class KvmVmSyncPingTask extends VmTracer implements KVMPingAgentNoFailure
             return;
         }
 
-        syncVm(host, new Completion(completion) {
+        syncVm(host, false, new Completion(completion) {
             @Override
             public void success() {
                 completion.done();
@@ -43,6 +43,7 @@ import org.zstack.storage.primary.PrimaryStorageCapacityUpdater;
 import org.zstack.storage.primary.PrimaryStoragePhysicalCapacityManager;
 import org.zstack.storage.primary.local.APIGetLocalStorageHostDiskCapacityReply.HostDiskCapacity;
 import org.zstack.storage.primary.local.MigrateBitsStruct.ResourceInfo;
+import org.zstack.storage.snapshot.VolumeSnapshotTreeCache;
 import org.zstack.tag.SystemTagCreator;
 import org.zstack.utils.CollectionDSL;
 import org.zstack.utils.CollectionUtils;
@@ -78,6 +79,10 @@ public class LocalStorageBase extends PrimaryStorageBase {
     private LocalStorageImageCleaner imageCacheCleaner;
     @Autowired
     private EventFacade eventf;
+    @Autowired
+    private VolumeSnapshotTreeCache snapshotTreeCache;
+    @Autowired
+    private LocalStorageHostCapacityView capacityView;
 
     static class FactoryCluster {
         LocalStorageHypervisorFactory factory;
@@ -653,6 +658,7 @@ public class LocalStorageBase extends PrimaryStorageBase {
                 originVolumeStatus = volume.getStatus();
                 volume.setStatus(VolumeStatus.Migrating);
                 SQL.New(VolumeVO.class).set(VolumeVO_.status, VolumeStatus.Migrating).eq(VolumeVO_.uuid, volume.getUuid()).update();
+                usageTracker.volumeChanged(volume.getUuid());
             }
 
             @Override
@@ -783,6 +789,7 @@ public class LocalStorageBase extends PrimaryStorageBase {
                                         .eq(VolumeVO_.uuid, volumeRefVO.getResourceUuid())
                                         .set(VolumeVO_.status, originVolumeStatus)
                                         .update();
+                                usageTracker.volumeChanged(volumeRefVO.getResourceUuid());
 
                                 LocalStorageResourceRefVO vo = Q.New(LocalStorageResourceRefVO.class)
                                         .eq(LocalStorageResourceRefVO_.resourceUuid, volumeRefVO.getResourceUuid())
@@ -1459,6 +1466,7 @@ public class LocalStorageBase extends PrimaryStorageBase {
                 .find();
         // jira: http://jira.zstack.io/browse/ZSTAC-9635
         deleteResourceRef(msg.getHostUuid());
+        capacityView.forget(msg.getPrimaryStorageUuid(), msg.getHostUuid());
         if (ref != null) {
             dbf.remove(ref);
             decreaseCapacity(ref.getTotalCapacity(),
@@ -1487,9 +1495,12 @@ public class LocalStorageBase extends PrimaryStorageBase {
             protected void scripts() {
 
                 // delete the image cache
-                sql("delete from ImageCacheVO ic where ic.primaryStorageUuid = :psUuid and" +
-                        " ic.installUrl like :url").param("psUuid", self.getUuid())
-                        .param("url", String.format("%%%s%%", hostUuid)).execute();
+                List<Long> imageCacheIds = sql("select ic.id from ImageCacheVO ic where ic.primaryStorageUuid = :psUuid and" +
+                        " ic.installUrl like :url", Long.class).param("psUuid", self.getUuid())
+                        .param("url", String.format("%%%s%%", hostUuid)).list();
+                if (!imageCacheIds.isEmpty()) {
+                    sql("delete from ImageCacheVO ic where ic.id in (:ids)").param("ids", imageCacheIds).execute();
+                }
 
                 List<LocalStorageResourceRefVO> refs = sql(
                         "select ref from LocalStorageResourceRefVO ref where ref.hostUuid = :huuid" +
@@ -1497,6 +1508,7 @@ public class LocalStorageBase extends PrimaryStorageBase {
                 ).param("huuid", hostUuid).param("psUuid", self.getUuid()).list();
 
                 if (refs.isEmpty()) {
+                    usageTracker.removed(Collections.emptyList(), Collections.emptyList(), imageCacheIds);
                     return;
                 }
 
@@ -1521,6 +1533,7 @@ public class LocalStorageBase extends PrimaryStorageBase {
 
                     sql("delete from VolumeSnapshotVO sp where sp.uuid in (:uuids)")
                             .param("uuids", snapshotUuids).execute();
+                    snapshotTreeUuids.forEach(snapshotTreeCache::invalidate);
 
                     logger.debug(String.format("delete volume snapshots%s because the host[uuid:%s] is removed from" +
                             " the local storage[name:%s, uuid:%s]", snapshotUuids, hostUuid, self.getName(), self.getUuid()));
@@ -1575,6 +1588,9 @@ public class LocalStorageBase extends PrimaryStorageBase {
                     dbf.getEntityManager().merge(ref);
                     dbf.getEntityManager().remove(ref);
                 }
+
+                // the deletions above bypass the entity lifecycle
+                usageTracker.removed(volumesUuids, snapshotUuids, imageCacheIds);
             }
         }.execute();
     }
@@ -1623,6 +1639,7 @@ public class LocalStorageBase extends PrimaryStorageBase {
                             ref.setTotalPhysicalCapacity(c.totalPhysicalSize);
                             ref.setTotalCapacity(c.totalPhysicalSize);
                             dbf.update(ref);
+                            capacityView.forget(self.getUuid(), msg.getHostUuid());
 
                             // the host's local storage capacity changed
                             // need to recalculate the capacity in the database
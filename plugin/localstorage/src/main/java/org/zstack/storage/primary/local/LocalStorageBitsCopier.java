@@ -0,0 +1,206 @@
+package org.zstack.storage.primary.local;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.db.Q;
+import org.zstack.core.debug.DebugManager;
+import org.zstack.core.debug.DebugSignalHandler;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.core.ReturnValueCompletion;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.host.HostConstant;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.storage.primary.PrimaryStorageVO;
+import org.zstack.header.storage.primary.PrimaryStorageVO_;
+import org.zstack.kvm.KVMHostAsyncHttpCallMsg;
+import org.zstack.kvm.KVMHostAsyncHttpCallReply;
+import org.zstack.storage.primary.local.LocalStorageKvmMigrateVmFlow.CopyBitsFromRemoteCmd;
+import org.zstack.storage.primary.local.LocalStorageKvmMigrateVmFlow.CopyBitsFromRemoteRsp;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.zstack.core.Platform.operr;
+
+/**
+ * Copies bits of local storage from a host to another for volume and vm migration.
+ *
+ * With localStoragePrimaryStorage.migration.chunked.enable, the agent splits the copy into
+ * checksummed chunks moved over several streams, and reports the chunks verified on the destination
+ * even when the transfer fails; the copy is then resumed from those chunks instead of restarting, up to
+ * migration.resumeTimes times. Other errors, e.g. the source host is unreachable, are not resumed.
+ * The bandwidth cap of a source host is shared by the chunked copies running from it; the share is
+ * computed when an attempt starts and isn't rebalanced while the attempt runs.
+ */
+public class LocalStorageBitsCopier implements Component, DebugSignalHandler {
+    private static final CLogger logger = Utils.getLogger(LocalStorageBitsCopier.class);
+
+    public static final String DUMP_LOCAL_STORAGE_BITS_COPIER_DEBUG_SIGNAL = "DumpLocalStorageBitsCopier";
+
+    private static final long RESUME_DELAY = 5;
+
+    @Autowired
+    private CloudBus bus;
+    @Autowired
+    private ThreadFacade thdf;
+
+    private final Map<String, Integer> chunkedCopiesBySrcHost = new HashMap<>();
+
+    private final AtomicLong copies = new AtomicLong();
+    private final AtomicLong chunkedCopies = new AtomicLong();
+    private final AtomicLong resumes = new AtomicLong();
+    private final AtomicLong resumedCopies = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public void copy(String srcHostUuid, String psUuid, CopyBitsFromRemoteCmd cmd, ReturnValueCompletion<CopyBitsFromRemoteRsp> completion) {
+        copies.incrementAndGet();
+        cmd.uuid = psUuid;
+        cmd.storagePath = Q.New(PrimaryStorageVO.class)
+                .eq(PrimaryStorageVO_.uuid, psUuid)
+                .select(PrimaryStorageVO_.url)
+                .findValue();
+
+        if (!LocalStoragePrimaryStorageGlobalConfig.MIGRATION_CHUNKED_ENABLE.value(Boolean.class)) {
+            attempt(srcHostUuid, psUuid, cmd, 0, completion);
+            return;
+        }
+
+        chunkedCopies.incrementAndGet();
+        cmd.chunkSize = LocalStoragePrimaryStorageGlobalConfig.MIGRATION_CHUNK_SIZE.value(Long.class) * 1024 * 1024;
+        cmd.streams = LocalStoragePrimaryStorageGlobalConfig.MIGRATION_STREAMS.value(Integer.class);
+        if (cmd.verifiedChunks == null) {
+            cmd.verifiedChunks = new HashMap<>();
+        }
+
+        synchronized (chunkedCopiesBySrcHost) {
+            chunkedCopiesBySrcHost.merge(srcHostUuid, 1, Integer::sum);
+        }
+
+        attempt(srcHostUuid, psUuid, cmd, 0, new ReturnValueCompletion<CopyBitsFromRemoteRsp>(completion) {
+            @Override
+            public void success(CopyBitsFromRemoteRsp rsp) {
+                done();
+                completion.success(rsp);
+            }
+
+            @Override
+            public void fail(ErrorCode errorCode) {
+                done();
+                completion.fail(errorCode);
+            }
+
+            private void done() {
+                synchronized (chunkedCopiesBySrcHost) {
+                    chunkedCopiesBySrcHost.computeIfPresent(srcHostUuid, (k, v) -> v == 1 ? null : v - 1);
+                }
+            }
+        });
+    }
+
+    private long shareBandwidth(String srcHostUuid) {
+        long bandwidth = LocalStoragePrimaryStorageGlobalConfig.MIGRATION_BANDWIDTH.value(Long.class);
+        if (bandwidth == 0) {
+            return 0;
+        }
+
+        int running;
+        synchronized (chunkedCopiesBySrcHost) {
+            running = chunkedCopiesBySrcHost.getOrDefault(srcHostUuid, 1);
+        }
+
+        return Math.max(1, bandwidth / running);
+    }
+
+    private void attempt(String srcHostUuid, String psUuid, CopyBitsFromRemoteCmd cmd, int resumed, ReturnValueCompletion<CopyBitsFromRemoteRsp> completion) {
+        if (cmd.chunkSize != null) {
+            cmd.bandwidth = shareBandwidth(srcHostUuid);
+        }
+
+        KVMHostAsyncHttpCallMsg msg = new KVMHostAsyncHttpCallMsg();
+        msg.setCommand(cmd);
+        msg.setPath(LocalStorageKvmMigrateVmFlow.COPY_TO_REMOTE_BITS_PATH);
+        msg.setHostUuid(srcHostUuid);
+        bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, srcHostUuid);
+        bus.send(msg, new CloudBusCallBack(completion) {
+            @Override
+            public void run(MessageReply reply) {
+                CopyBitsFromRemoteRsp rsp = null;
+                ErrorCode error = null;
+                if (!reply.isSuccess()) {
+                    error = reply.getError();
+                } else {
+                    KVMHostAsyncHttpCallReply r = reply.castReply();
+                    rsp = r.toResponse(CopyBitsFromRemoteRsp.class);
+                    if (!rsp.isSuccess()) {
+                        error = operr("operation error, because:%s", rsp.getError());
+                    }
+
+                    if (rsp.getTotalCapacity() != null && rsp.getAvailableCapacity() != null) {
+                        new LocalStorageCapacityUpdater().updatePhysicalCapacityByKvmAgentResponse(psUuid, srcHostUuid, rsp);
+                    }
+                }
+
+                if (error == null) {
+                    if (resumed > 0) {
+                        resumedCopies.incrementAndGet();
+                    }
+
+                    completion.success(rsp);
+                    return;
+                }
+
+                // only a transfer interrupted in the agent, which reports the chunks verified so far, is resumed;
+                // other errors, e.g. an unreachable host, fail the copy at once
+                boolean interrupted = rsp != null && rsp.verifiedChunks != null;
+                if (cmd.chunkSize == null || !interrupted
+                        || resumed >= LocalStoragePrimaryStorageGlobalConfig.MIGRATION_RESUME_TIMES.value(Integer.class)) {
+                    failures.incrementAndGet();
+                    completion.fail(error);
+                    return;
+                }
+
+                rsp.verifiedChunks.forEach((path, chunks) -> {
+                    Set<Integer> merged = new TreeSet<>(cmd.verifiedChunks.getOrDefault(path, new ArrayList<>()));
+                    merged.addAll(chunks);
+                    cmd.verifiedChunks.put(path, new ArrayList<>(merged));
+                });
+
+                resumes.incrementAndGet();
+                logger.warn(String.format("failed to copy %s from the host[uuid:%s] to %s, resume it from %s verified chunks in %s seconds, %s",
+                        cmd.paths, srcHostUuid, cmd.dstIp, cmd.verifiedChunks.values().stream().mapToInt(List::size).sum(),
+                        RESUME_DELAY, error));
+                thdf.submitTimeoutTask(() -> attempt(srcHostUuid, psUuid, cmd, resumed + 1, completion), TimeUnit.SECONDS, RESUME_DELAY);
+            }
+        });
+    }
+
+    @Override
+    public void handleDebugSignal() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n================= BEGIN LOCAL STORAGE BITS COPIER DUMP ================");
+        sb.append(String.format("\ncopies: %s, chunked copies: %s, resumes: %s, copies completed after resuming: %s, failed copies: %s",
+                copies.get(), chunkedCopies.get(), resumes.get(), resumedCopies.get(), failures.get()));
+        synchronized (chunkedCopiesBySrcHost) {
+            chunkedCopiesBySrcHost.forEach((hostUuid, count) ->
+                    sb.append(String.format("\nhost[uuid:%s]: chunked copies running: %s", hostUuid, count)));
+        }
+        sb.append("\n================= END LOCAL STORAGE BITS COPIER DUMP ================");
+        logger.debug(sb.toString());
+    }
+
+    @Override
+    public boolean start() {
+        DebugManager.registerDebugSignalHandler(DUMP_LOCAL_STORAGE_BITS_COPIER_DEBUG_SIGNAL, this);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+}
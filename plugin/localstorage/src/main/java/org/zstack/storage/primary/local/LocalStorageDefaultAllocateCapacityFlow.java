@@ -171,6 +171,8 @@ public class LocalStorageDefaultAllocateCapacityFlow implements Flow {
         if (!spec.getDataDiskOfferings().isEmpty()) {
             boolean hasOtherNonLocalStoragePrimaryStorage = isThereOtherNonLocalStoragePrimaryStorageForTheHost(
                     spec.getDestHost().getUuid(), localStorageUuid);
+            // the local storage for data volumes is looked up once for all data volumes
+            String dataVolumeLocalStorageUuid = null;
 
             for (DiskOfferingInventory dinv : spec.getDataDiskOfferings()) {
                 AllocatePrimaryStorageMsg amsg = new AllocatePrimaryStorageMsg();
@@ -202,8 +204,13 @@ public class LocalStorageDefaultAllocateCapacityFlow implements Flow {
                     amsg.addExcludeAllocatorStrategy(LocalStorageConstants.LOCAL_STORAGE_ALLOCATOR_STRATEGY);
                     logger.debug("there are non-local primary storage in the cluster, use it for data volumes");
                 } else {
+                    if (dataVolumeLocalStorageUuid == null) {
+                        dataVolumeLocalStorageUuid = Objects.equals(spec.getRequiredPrimaryStorageUuidForDataVolume(), spec.getRequiredPrimaryStorageUuidForRootVolume()) ?
+                                localStorageUuid : getRequiredStorageUuid(spec.getDestHost().getUuid(), spec.getRequiredPrimaryStorageUuidForDataVolume());
+                    }
+
                     amsg.setAllocationStrategy(LocalStorageConstants.LOCAL_STORAGE_ALLOCATOR_STRATEGY);
-                    amsg.setRequiredPrimaryStorageUuid(getRequiredStorageUuid(spec.getDestHost().getUuid(), spec.getRequiredPrimaryStorageUuidForDataVolume()));
+                    amsg.setRequiredPrimaryStorageUuid(dataVolumeLocalStorageUuid);
                 }
 
                 amsg.setPossiblePrimaryStorageTypes(primaryStorageTypes);
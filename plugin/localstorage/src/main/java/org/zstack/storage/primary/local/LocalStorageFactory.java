@@ -79,6 +79,7 @@ public class LocalStorageFactory implements PrimaryStorageFactory, Component,
         type.setSupportVmLiveMigration(true);
         type.setSupportVolumeMigration(true);
         type.setSupportVolumeMigrationInCurrentPrimaryStorage(true);
+        type.setImageCachedPerHost(true);
         type.setOrder(999);
     }
 
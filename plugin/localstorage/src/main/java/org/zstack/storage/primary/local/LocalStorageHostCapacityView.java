@@ -0,0 +1,265 @@
+package org.zstack.storage.primary.local;
+
+import org.zstack.core.db.SQLBatch;
+import org.zstack.core.debug.DebugManager;
+import org.zstack.core.debug.DebugSignalHandler;
+import org.zstack.header.Component;
+import org.zstack.header.storage.primary.PrimaryStorageCapacityUpdaterRunnable;
+import org.zstack.header.storage.primary.PrimaryStorageCapacityVO;
+import org.zstack.storage.primary.PrimaryStorageCapacityUpdater;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the physical capacity of the hosts of local primary storage reported by agents in memory.
+ *
+ * A report equal to what was applied last for the host is dropped without touching the database.
+ * Reports of hosts of the same primary storage submitted while an update of it is running are
+ * queued, only the latest report of each host is kept, and the next thread taking the lead applies
+ * all of them in one transaction with one update of the capacity of the primary storage.
+ *
+ * The view is refreshed at least every EXPIRE_PERIOD, and forgotten when a host ref is written
+ * by other paths, e.g. a host reconnecting or being removed.
+ *
+ * The view covers one management node only: it remembers what this node applied and is forgotten
+ * only by writes on this node. A host ref rewritten by another management node is not noticed until
+ * the entry expires, so for at most EXPIRE_PERIOD a report equal to what this node applied last is
+ * still dropped even if the database holds another value. Reports of a host are handled by the
+ * management node the host belongs to, which is also the node handling its reconnection.
+ */
+public class LocalStorageHostCapacityView implements Component, DebugSignalHandler {
+    private static final CLogger logger = Utils.getLogger(LocalStorageHostCapacityView.class);
+
+    public static final String DUMP_LOCAL_STORAGE_HOST_CAPACITY_VIEW_DEBUG_SIGNAL = "DumpLocalStorageHostCapacityView";
+
+    private static final long EXPIRE_PERIOD = TimeUnit.MINUTES.toMillis(5);
+
+    private static class Capacity {
+        final long total;
+        final long available;
+        final long time = System.currentTimeMillis();
+
+        Capacity(long total, long available) {
+            this.total = total;
+            this.available = available;
+        }
+
+        boolean isSame(long t, long a) {
+            return total == t && available == a && System.currentTimeMillis() - time < EXPIRE_PERIOD;
+        }
+    }
+
+    private static class Report {
+        final String hostUuid;
+        final long total;
+        final long available;
+
+        Report(String hostUuid, long total, long available) {
+            this.hostUuid = hostUuid;
+            this.total = total;
+            this.available = available;
+        }
+    }
+
+    private static class Slot {
+        // the latest report of every host
+        final Map<String, Report> pending = new LinkedHashMap<>();
+        long submitted;
+        long applied;
+        boolean applying;
+    }
+
+    private final Map<String, Capacity> capacities = new ConcurrentHashMap<>();
+    private final Map<String, Slot> slots = new HashMap<>();
+
+    private final AtomicLong reports = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong refsUpdated = new AtomicLong();
+
+    private static String makeKey(String psUuid, String hostUuid) {
+        return String.format("%s/%s", psUuid, hostUuid);
+    }
+
+    /**
+     * applies the physical capacity of the host reported by the agent, it returns after the report,
+     * or a later report of the same host, is applied, even if the thread is interrupted while waiting
+     */
+    public void report(String psUuid, String hostUuid, long total, long available) {
+        reports.incrementAndGet();
+
+        Capacity c = capacities.get(makeKey(psUuid, hostUuid));
+        if (c != null && c.isSame(total, available)) {
+            unchanged.incrementAndGet();
+            return;
+        }
+
+        long generation;
+        boolean lead = false;
+        boolean interrupted = false;
+        synchronized (slots) {
+            Slot s = slots.computeIfAbsent(psUuid, k -> new Slot());
+            if (s.pending.put(hostUuid, new Report(hostUuid, total, available)) != null) {
+                superseded.incrementAndGet();
+            }
+            generation = ++s.submitted;
+
+            while (s.applied < generation) {
+                if (!s.applying) {
+                    s.applying = true;
+                    lead = true;
+                    break;
+                }
+
+                try {
+                    slots.wait();
+                } catch (InterruptedException e) {
+                    // the report is still queued, it's applied by the leader or by this thread taking the lead
+                    // before returning, the interrupt is restored then
+                    interrupted = true;
+                }
+            }
+        }
+
+        try {
+            if (lead) {
+                drain(psUuid);
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void drain(String psUuid) {
+        List<Report> batch;
+        long upTo;
+        synchronized (slots) {
+            Slot s = slots.get(psUuid);
+            batch = new ArrayList<>(s.pending.values());
+            s.pending.clear();
+            upTo = s.submitted;
+        }
+
+        try {
+            apply(psUuid, batch);
+        } catch (RuntimeException e) {
+            logger.warn(String.format("failed to apply physical capacity reports of %s hosts of the local primary storage[uuid:%s]",
+                    batch.size(), psUuid), e);
+            batch.forEach(r -> capacities.remove(makeKey(psUuid, r.hostUuid)));
+        } finally {
+            synchronized (slots) {
+                Slot s = slots.get(psUuid);
+                s.applied = upTo;
+                s.applying = false;
+                if (s.pending.isEmpty()) {
+                    slots.remove(psUuid);
+                }
+                // a waiting thread whose report came after the batch takes the lead
+                slots.notifyAll();
+            }
+        }
+    }
+
+    private void apply(String psUuid, List<Report> batch) {
+        batches.incrementAndGet();
+
+        Map<String, Report> byHost = new HashMap<>();
+        batch.forEach(r -> byHost.put(r.hostUuid, r));
+        // hosts without a ref are not remembered, their reports are checked against the database again
+        Set<String> found = new HashSet<>();
+
+        new SQLBatch() {
+            @Override
+            protected void scripts() {
+                List<LocalStorageHostRefVO> refs = q(LocalStorageHostRefVO.class)
+                        .eq(LocalStorageHostRefVO_.primaryStorageUuid, psUuid)
+                        .in(LocalStorageHostRefVO_.hostUuid, byHost.keySet())
+                        .list();
+
+                long totalChange = 0;
+                long availChange = 0;
+                List<LocalStorageHostRefVO> changed = new ArrayList<>();
+                for (LocalStorageHostRefVO ref : refs) {
+                    Report r = byHost.get(ref.getHostUuid());
+                    found.add(ref.getHostUuid());
+                    if (ref.getTotalPhysicalCapacity() == r.total && ref.getAvailablePhysicalCapacity() == r.available) {
+                        continue;
+                    }
+
+                    totalChange += r.total - ref.getTotalPhysicalCapacity();
+                    availChange += r.available - ref.getAvailablePhysicalCapacity();
+
+                    if (logger.isTraceEnabled()) {
+                        logger.trace(String.format("[Local Storage Capacity] changed the physical capacity of the host[uuid:%s] of " +
+                                        "the local primary storage[uuid:%s] as:\n" +
+                                        "physical total: %s --> %s\n" +
+                                        "physical available: %s --> %s\n",
+                                ref.getHostUuid(), psUuid, ref.getTotalPhysicalCapacity(), r.total,
+                                ref.getAvailablePhysicalCapacity(), r.available));
+                    }
+
+                    ref.setTotalPhysicalCapacity(r.total);
+                    ref.setAvailablePhysicalCapacity(r.available);
+                    changed.add(ref);
+                }
+
+                if (changed.isEmpty()) {
+                    return;
+                }
+
+                final long totalDelta = totalChange;
+                final long availDelta = availChange;
+                new PrimaryStorageCapacityUpdater(psUuid).run(new PrimaryStorageCapacityUpdaterRunnable() {
+                    @Override
+                    public PrimaryStorageCapacityVO call(PrimaryStorageCapacityVO cap) {
+                        cap.setTotalPhysicalCapacity(cap.getTotalPhysicalCapacity() + totalDelta);
+                        cap.setAvailablePhysicalCapacity(cap.getAvailablePhysicalCapacity() + availDelta);
+                        return cap;
+                    }
+                });
+
+                changed.forEach(this::merge);
+                refsUpdated.addAndGet(changed.size());
+            }
+        }.execute();
+
+        byHost.values().stream().filter(r -> found.contains(r.hostUuid))
+                .forEach(r -> capacities.put(makeKey(psUuid, r.hostUuid), new Capacity(r.total, r.available)));
+    }
+
+    /**
+     * drops what the view of this management node knows about the host, call it after writing the physical
+     * capacity of the host ref
+     */
+    public void forget(String psUuid, String hostUuid) {
+        capacities.remove(makeKey(psUuid, hostUuid));
+    }
+
+    @Override
+    public void handleDebugSignal() {
+        logger.debug(String.format("\n================= BEGIN LOCAL STORAGE HOST CAPACITY VIEW DUMP ================" +
+                        "\nhosts in view: %s, reports: %s, unchanged reports dropped: %s, reports superseded by later ones: %s," +
+                        " batches applied: %s, host refs updated: %s" +
+                        "\n================= END LOCAL STORAGE HOST CAPACITY VIEW DUMP ================",
+                capacities.size(), reports.get(), unchanged.get(), superseded.get(), batches.get(), refsUpdated.get()));
+    }
+
+    @Override
+    public boolean start() {
+        DebugManager.registerDebugSignalHandler(DUMP_LOCAL_STORAGE_HOST_CAPACITY_VIEW_DEBUG_SIGNAL, this);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+}
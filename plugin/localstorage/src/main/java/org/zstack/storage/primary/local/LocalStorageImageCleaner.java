@@ -152,54 +152,39 @@ public class LocalStorageImageCleaner extends ImageCacheCleaner implements Manag
         });
     }
 
-    private void cleanUpVolumeCache(String psUuid, NoErrorCompletion completion) {
-        List<ImageCacheShadowVO> shadowVOs = createShadowImageCacheVOs(psUuid);
-        if (shadowVOs == null || shadowVOs.isEmpty()) {
-            completion.done();
-            return;
-        }
-
-        new While<>(shadowVOs).each((vo, whileCompletion) -> {
-            if (!destMaker.isManagedByUs(vo.getImageUuid())) {
-                whileCompletion.done();
-                return;
-            }
+    @Override
+    protected String getCleanupGroup(ImageCacheShadowVO vo) {
+        CacheInstallPath p = new CacheInstallPath();
+        p.fullPath = vo.getInstallUrl();
+        p.disassemble();
+        return String.format("%s/%s", vo.getPrimaryStorageUuid(), p.hostUuid);
+    }
 
-            CacheInstallPath p = new CacheInstallPath();
-            p.fullPath = vo.getInstallUrl();
-            p.disassemble();
+    @Override
+    protected void deleteStaleImageCache(ImageCacheShadowVO vo, Completion completion) {
+        CacheInstallPath p = new CacheInstallPath();
+        p.fullPath = vo.getInstallUrl();
+        p.disassemble();
 
-            if (!dbf.isExist(p.hostUuid, HostVO.class)){
-                dbf.removeByPrimaryKey(vo.getId(), ImageCacheShadowVO.class);
-                whileCompletion.done();
-                return;
-            }
-            LocalStorageDeleteImageCacheOnPrimaryStorageMsg msg = new LocalStorageDeleteImageCacheOnPrimaryStorageMsg();
-            msg.setHostUuid(p.hostUuid);
-            msg.setImageUuid(vo.getImageUuid());
-            msg.setInstallPath(p.installPath);
-            msg.setPrimaryStorageUuid(vo.getPrimaryStorageUuid());
-            bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, vo.getPrimaryStorageUuid());
-            bus.send(msg, new CloudBusCallBack(whileCompletion) {
-                @Override
-                public void run(MessageReply reply) {
-                    if (!reply.isSuccess()) {
-                        logger.warn(String.format("failed to delete the stale image cache[%s] on the primary storage[%s], %s," +
-                                "will re-try later", vo.getInstallUrl(), vo.getPrimaryStorageUuid(), reply.getError()));
-                        whileCompletion.done();
-                        return;
-                    }
+        if (!dbf.isExist(p.hostUuid, HostVO.class)) {
+            completion.success();
+            return;
+        }
 
-                    logger.debug(String.format("successfully deleted the stale image cache[%s] on the primary storage[%s]",
-                            vo.getInstallUrl(), vo.getPrimaryStorageUuid()));
-                    dbf.remove(vo);
-                    whileCompletion.done();
-                }
-            });
-        }).run(new NoErrorCompletion() {
+        LocalStorageDeleteImageCacheOnPrimaryStorageMsg msg = new LocalStorageDeleteImageCacheOnPrimaryStorageMsg();
+        msg.setHostUuid(p.hostUuid);
+        msg.setImageUuid(vo.getImageUuid());
+        msg.setInstallPath(p.installPath);
+        msg.setPrimaryStorageUuid(vo.getPrimaryStorageUuid());
+        bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, vo.getPrimaryStorageUuid());
+        bus.send(msg, new CloudBusCallBack(completion) {
             @Override
-            public void done() {
-                completion.done();
+            public void run(MessageReply reply) {
+                if (reply.isSuccess()) {
+                    completion.success();
+                } else {
+                    completion.fail(reply.getError());
+                }
             }
         });
     }
@@ -55,6 +55,7 @@ import org.zstack.identity.AccountManager;
 import org.zstack.kvm.*;
 import org.zstack.storage.primary.PrimaryStoragePathMaker;
 import org.zstack.storage.primary.local.LocalStorageKvmMigrateVmFlow.CopyBitsFromRemoteCmd;
+import org.zstack.storage.primary.local.LocalStorageKvmMigrateVmFlow.CopyBitsFromRemoteRsp;
 import org.zstack.storage.primary.local.MigrateBitsStruct.ResourceInfo;
 import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.DebugUtils;
@@ -89,6 +90,8 @@ public class LocalStorageKvmBackend extends LocalStorageHypervisorBackend {
     private RESTFacade restf;
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private LocalStorageBitsCopier bitsCopier;
 
 
     public static class AgentCommand extends KVMAgentCommands.AgentCommand {
@@ -1054,8 +1057,12 @@ public class LocalStorageKvmBackend extends LocalStorageHypervisorBackend {
 
         void download(final ReturnValueCompletion<ImageCacheInventory> completion) {
             DebugUtils.Assert(image != null, "image cannot be null");
-            DebugUtils.Assert(backupStorage != null, "backup storage cannot be null");
             DebugUtils.Assert(hostUuid != null, "host uuid cannot be null");
+            imageCacheSingleFlight.populate(self.getUuid(), image.getUuid(), hostUuid, completion, this::populate);
+        }
+
+        private void populate(final ReturnValueCompletion<ImageCacheInventory> completion) {
+            DebugUtils.Assert(backupStorage != null, "backup storage cannot be null");
             DebugUtils.Assert(primaryStorageInstallPath != null, "primaryStorageInstallPath cannot be null");
             DebugUtils.Assert(backupStorageInstallPath != null, "backupStorageInstallPath cannot be null");
 
@@ -1142,6 +1149,7 @@ public class LocalStorageKvmBackend extends LocalStorageHypervisorBackend {
 
                                 @Override
                                 public void run(final FlowTrigger trigger, Map data) {
+                                    imageCacheSingleFlight.progress(self.getUuid(), image.getUuid(), hostUuid, "downloading");
                                     LocalStorageBackupStorageMediator m = localStorageFactory.getBackupStorageMediator(KVMConstant.KVM_HYPERVISOR_TYPE, backupStorage.getType());
                                     m.downloadBits(getSelfInventory(), backupStorage,
                                             backupStorageInstallPath, primaryStorageInstallPath,
@@ -2253,10 +2261,10 @@ public class LocalStorageKvmBackend extends LocalStorageHypervisorBackend {
                                 cmd.volumeUuid = context.rootVolumeUuid;
                                 cmd.stage = PrimaryStorageConstant.MIGRATE_VOLUME_BACKING_FILE_COPY_STAGE;
 
-                                httpCall(LocalStorageKvmMigrateVmFlow.COPY_TO_REMOTE_BITS_PATH, struct.getSrcHostUuid(), cmd, false,
-                                        AgentResponse.class, new ReturnValueCompletion<AgentResponse>(trigger, chain) {
+                                bitsCopier.copy(struct.getSrcHostUuid(), self.getUuid(), cmd,
+                                        new ReturnValueCompletion<CopyBitsFromRemoteRsp>(trigger, chain) {
                                             @Override
-                                            public void success(AgentResponse rsp) {
+                                            public void success(CopyBitsFromRemoteRsp rsp) {
                                                 s = true;
                                                 trigger.next();
                                                 chain.next();
@@ -2507,10 +2515,10 @@ public class LocalStorageKvmBackend extends LocalStorageHypervisorBackend {
                 });
                 cmd.volumeUuid = struct.getInfos().get(0).getResourceRef().getResourceUuid();
 
-                httpCall(LocalStorageKvmMigrateVmFlow.COPY_TO_REMOTE_BITS_PATH, struct.getSrcHostUuid(), cmd, false,
-                        AgentResponse.class, new ReturnValueCompletion<AgentResponse>(trigger) {
+                bitsCopier.copy(struct.getSrcHostUuid(), self.getUuid(), cmd,
+                        new ReturnValueCompletion<CopyBitsFromRemoteRsp>(trigger) {
                             @Override
-                            public void success(AgentResponse rsp) {
+                            public void success(CopyBitsFromRemoteRsp rsp) {
                                 migrated = cmd.paths;
                                 trigger.next();
                             }
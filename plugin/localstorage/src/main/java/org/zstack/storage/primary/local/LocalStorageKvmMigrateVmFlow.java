@@ -77,6 +77,8 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
     private ApiTimeoutManager timeoutMgr;
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private LocalStorageBitsCopier bitsCopier;
 
     public static final String VERIFY_SNAPSHOT_CHAIN_PATH = "/localstorage/snapshot/verifychain";
     public static final String REBASE_SNAPSHOT_BACKING_FILES_PATH = "/localstorage/snapshot/rebasebackingfiles";
@@ -106,6 +108,17 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
         public Integer dstPort = 22;
         public String stage;
         public String volumeUuid;
+        // set only for the chunked copy, an agent without it copies the bits in one transfer
+        public Long chunkSize;
+        public Integer streams;
+        public Long bandwidth;
+        // chunks of each path verified on the destination, the copy skips them when resuming
+        public Map<String, List<Integer>> verifiedChunks;
+    }
+
+    public static class CopyBitsFromRemoteRsp extends LocalStorageKvmBackend.AgentResponse {
+        // also reported when the copy fails, to resume the copy from
+        public Map<String, List<Integer>> verifiedChunks;
     }
 
     class BackingImage {
@@ -341,10 +354,10 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
                                     cmd.paths = list(backingImage.path);
                                     cmd.volumeUuid = rootVolume.getUuid();
 
-                                    callKvmHost(srcHostUuid, ref.getPrimaryStorageUuid(), COPY_TO_REMOTE_BITS_PATH, cmd, AgentResponse.class,
-                                            new ReturnValueCompletion<AgentResponse>(trigger, chain) {
+                                    bitsCopier.copy(srcHostUuid, ref.getPrimaryStorageUuid(), cmd,
+                                            new ReturnValueCompletion<CopyBitsFromRemoteRsp>(trigger, chain) {
                                         @Override
-                                        public void success(AgentResponse rsp) {
+                                        public void success(CopyBitsFromRemoteRsp rsp) {
                                             s = true;
                                             trigger.next();
                                             chain.next();
@@ -1090,9 +1103,9 @@ public class LocalStorageKvmMigrateVmFlow extends NoRollbackFlow {
                     cmd.dstUsername = username;
                     cmd.dstPort = port;
                     cmd.volumeUuid = p.volume.getUuid();
-                    callKvmHost(srcHostUuid, p.volume.getPrimaryStorageUuid(), COPY_TO_REMOTE_BITS_PATH, cmd, AgentResponse.class, new ReturnValueCompletion<AgentResponse>(trigger) {
+                    bitsCopier.copy(srcHostUuid, p.volume.getPrimaryStorageUuid(), cmd, new ReturnValueCompletion<CopyBitsFromRemoteRsp>(trigger) {
                         @Override
-                        public void success(AgentResponse returnValue) {
+                        public void success(CopyBitsFromRemoteRsp returnValue) {
                             trigger.next();
                         }
 
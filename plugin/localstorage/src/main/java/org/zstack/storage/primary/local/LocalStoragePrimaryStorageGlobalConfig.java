@@ -13,4 +13,14 @@ public class LocalStoragePrimaryStorageGlobalConfig {
 
     @GlobalConfigValidation
     public static GlobalConfig ALLOW_LIVE_MIGRATION = new GlobalConfig(CATEGORY, "liveMigrationWithStorage.allow");
+    @GlobalConfigValidation
+    public static GlobalConfig MIGRATION_CHUNKED_ENABLE = new GlobalConfig(CATEGORY, "migration.chunked.enable");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig MIGRATION_CHUNK_SIZE = new GlobalConfig(CATEGORY, "migration.chunkSize");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig MIGRATION_STREAMS = new GlobalConfig(CATEGORY, "migration.streams");
+    @GlobalConfigValidation(numberGreaterThan = -1)
+    public static GlobalConfig MIGRATION_BANDWIDTH = new GlobalConfig(CATEGORY, "migration.bandwidth");
+    @GlobalConfigValidation(numberGreaterThan = -1)
+    public static GlobalConfig MIGRATION_RESUME_TIMES = new GlobalConfig(CATEGORY, "migration.resumeTimes");
 }
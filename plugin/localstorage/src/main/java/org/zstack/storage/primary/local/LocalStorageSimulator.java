@@ -5,6 +5,7 @@ import org.springframework.web.servlet.ModelAndView;
 import org.zstack.core.thread.AsyncThread;
 import org.zstack.storage.primary.local.LocalStorageKvmBackend.*;
 import org.zstack.storage.primary.local.LocalStorageKvmMigrateVmFlow.CopyBitsFromRemoteCmd;
+import org.zstack.storage.primary.local.LocalStorageKvmMigrateVmFlow.CopyBitsFromRemoteRsp;
 import org.zstack.storage.primary.local.LocalStorageKvmMigrateVmFlow.RebaseSnapshotBackingFilesCmd;
 import org.zstack.storage.primary.local.LocalStorageKvmMigrateVmFlow.VerifySnapshotChainCmd;
 import org.zstack.storage.primary.local.LocalStorageKvmSftpBackupStorageMediatorImpl.SftpDownloadBitsCmd;
@@ -133,7 +134,7 @@ public class LocalStorageSimulator {
     public @ResponseBody
     String copyBitsFromRemote(HttpEntity<String> entity) {
         CopyBitsFromRemoteCmd cmd = JSONObjectUtil.toObject(entity.getBody(), CopyBitsFromRemoteCmd.class);
-        AgentResponse rsp = new AgentResponse();
+        CopyBitsFromRemoteRsp rsp = new CopyBitsFromRemoteRsp();
         if (config.copyBitsFromRemoteSuccess) {
             config.copyBitsFromRemoteCmds.add(cmd);
         } else {
@@ -22,6 +22,7 @@ import org.zstack.header.storage.backup.BackupStorageType;
 import org.zstack.header.storage.backup.BackupStorageVO;
 import org.zstack.header.storage.primary.*;
 import org.zstack.header.vm.VmInstanceSpec.ImageSpec;
+import org.zstack.storage.primary.ImageCacheSingleFlight;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
@@ -46,6 +47,8 @@ public class NfsDownloadImageToCacheJob implements Job {
     private NfsPrimaryStorageManager nfsMgr;
     @Autowired
     private CloudBus bus;
+    @Autowired
+    private ImageCacheSingleFlight imageCacheSingleFlight;
 
     @Override
     public void run(final ReturnValueCompletion<Object> completion) {
@@ -123,6 +126,7 @@ public class NfsDownloadImageToCacheJob implements Job {
 
                     @Override
                     public void run(final FlowTrigger trigger, Map data) {
+                        imageCacheSingleFlight.progress(primaryStorage.getUuid(), image.getInventory().getUuid(), null, "downloading");
                         mediator.downloadBits(primaryStorage, backupStorage, image.getSelectedBackupStorage().getInstallPath(), cacheInstallPath, false, new Completion(trigger) {
                             @Override
                             public void success() {
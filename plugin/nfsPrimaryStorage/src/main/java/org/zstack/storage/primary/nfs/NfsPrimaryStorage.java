@@ -686,12 +686,7 @@ public class NfsPrimaryStorage extends PrimaryStorageBase {
                     flow(new NoRollbackFlow() {
                         @Override
                         public void run(final FlowTrigger trigger, Map data) {
-                            NfsDownloadImageToCacheJob job = new NfsDownloadImageToCacheJob();
-                            job.setImage(msg.getTemplateSpec());
-                            job.setPrimaryStorage(primaryStorage);
-
-                            jobf.execute(NfsPrimaryStorageKvmHelper.makeDownloadImageJobName(image, primaryStorage),
-                                    NfsPrimaryStorageKvmHelper.makeJobOwnerName(primaryStorage), job,
+                            downloadImageToCache(msg.getTemplateSpec(),
                                     new ReturnValueCompletion<ImageCacheInventory>(trigger) {
                                         @Override
                                         public void success(ImageCacheInventory returnValue) {
@@ -703,7 +698,7 @@ public class NfsPrimaryStorage extends PrimaryStorageBase {
                                         public void fail(ErrorCode errorCode) {
                                             trigger.fail(errorCode);
                                         }
-                                    }, ImageCacheInventory.class);
+                                    });
                         }
                     });
 
@@ -1045,13 +1040,8 @@ public class NfsPrimaryStorage extends PrimaryStorageBase {
     protected void handle(final DownloadIsoToPrimaryStorageMsg msg) {
         final DownloadIsoToPrimaryStorageReply reply = new DownloadIsoToPrimaryStorageReply();
         final PrimaryStorageInventory pinv = getSelfInventory();
-        NfsDownloadImageToCacheJob job = new NfsDownloadImageToCacheJob();
-        job.setPrimaryStorage(pinv);
-        job.setImage(msg.getIsoSpec());
-
         final ImageInventory img = msg.getIsoSpec().getInventory();
-        jobf.execute(NfsPrimaryStorageKvmHelper.makeDownloadImageJobName(msg.getIsoSpec().getInventory(), pinv),
-                NfsPrimaryStorageKvmHelper.makeJobOwnerName(pinv), job,
+        downloadImageToCache(msg.getIsoSpec(),
                 new ReturnValueCompletion<ImageCacheInventory>(msg) {
 
                     @Override
@@ -1073,10 +1063,40 @@ public class NfsPrimaryStorage extends PrimaryStorageBase {
                         reply.setError(errorCode);
                         bus.reply(msg, reply);
                     }
-                }, ImageCacheInventory.class);
+                });
 
     }
 
+    @Override
+    protected void handle(DownloadVolumeTemplateToPrimaryStorageMsg msg) {
+        final DownloadVolumeTemplateToPrimaryStorageReply reply = new DownloadVolumeTemplateToPrimaryStorageReply();
+        downloadImageToCache(msg.getTemplateSpec(), new ReturnValueCompletion<ImageCacheInventory>(msg) {
+            @Override
+            public void success(ImageCacheInventory cache) {
+                reply.setImageCache(cache);
+                bus.reply(msg, reply);
+            }
+
+            @Override
+            public void fail(ErrorCode errorCode) {
+                reply.setError(errorCode);
+                bus.reply(msg, reply);
+            }
+        });
+    }
+
+    private void downloadImageToCache(ImageSpec ispec, ReturnValueCompletion<ImageCacheInventory> completion) {
+        final PrimaryStorageInventory pinv = getSelfInventory();
+        imageCacheSingleFlight.populate(pinv.getUuid(), ispec.getInventory().getUuid(), null, completion, c -> {
+            NfsDownloadImageToCacheJob job = new NfsDownloadImageToCacheJob();
+            job.setPrimaryStorage(pinv);
+            job.setImage(ispec);
+
+            jobf.execute(NfsPrimaryStorageKvmHelper.makeDownloadImageJobName(ispec.getInventory(), pinv),
+                    NfsPrimaryStorageKvmHelper.makeJobOwnerName(pinv), job, c, ImageCacheInventory.class);
+        });
+    }
+
     @Override
     protected void handle(DeleteIsoFromPrimaryStorageMsg msg) {
         DeleteIsoFromPrimaryStorageReply reply = new DeleteIsoFromPrimaryStorageReply();
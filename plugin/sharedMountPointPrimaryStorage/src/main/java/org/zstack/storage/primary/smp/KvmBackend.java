@@ -428,6 +428,10 @@ public class KvmBackend extends HypervisorBackend {
 
         void download(final ReturnValueCompletion<ImageCacheInventory> completion) {
             DebugUtils.Assert(image != null, "image cannot be null");
+            imageCacheSingleFlight.populate(self.getUuid(), image.getUuid(), null, completion, this::populate);
+        }
+
+        private void populate(final ReturnValueCompletion<ImageCacheInventory> completion) {
             DebugUtils.Assert(backupStorageUuid != null, "backup storage UUID cannot be null");
             DebugUtils.Assert(primaryStorageInstallPath != null, "primaryStorageInstallPath cannot be null");
             DebugUtils.Assert(backupStorageInstallPath != null, "backupStorageInstallPath cannot be null");
@@ -491,6 +495,7 @@ public class KvmBackend extends HypervisorBackend {
 
                                 @Override
                                 public void run(final FlowTrigger trigger, Map data) {
+                                    imageCacheSingleFlight.progress(self.getUuid(), image.getUuid(), null, "downloading");
                                     BackupStorageKvmDownloader downloader = getBackupStorageKvmDownloader(backupStorageUuid);
                                     downloader.downloadBits(backupStorageInstallPath, primaryStorageInstallPath, false, new Completion(trigger) {
                                         @Override
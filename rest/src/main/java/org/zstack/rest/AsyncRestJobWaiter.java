@@ -0,0 +1,74 @@
+package org.zstack.rest;
+
+import org.zstack.header.message.APIEvent;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parks HTTP requests waiting for async API jobs to complete. RestServer notifies
+ * this registry from handleEvent() so waiting clients are woken up without polling
+ * the AsyncRestApiStore.
+ */
+class AsyncRestJobWaiter {
+    private final Map<String, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+    private final AtomicInteger waiterCount = new AtomicInteger(0);
+
+    class Waiter implements AutoCloseable {
+        private final Set<String> uuids;
+        private final LinkedBlockingQueue<APIEvent> completed = new LinkedBlockingQueue<>();
+
+        private Waiter(Collection<String> uuids) {
+            this.uuids = new LinkedHashSet<>(uuids);
+        }
+
+        APIEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return completed.poll(timeout, unit);
+        }
+
+        @Override
+        public void close() {
+            for (String uuid : uuids) {
+                waiters.computeIfPresent(uuid, (k, s) -> {
+                    s.remove(this);
+                    return s.isEmpty() ? null : s;
+                });
+            }
+
+            waiterCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return null if there are already RestGlobalProperty.MAX_ASYNC_JOB_WAITERS requests waiting
+     */
+    Waiter register(Collection<String> uuids) {
+        if (waiterCount.incrementAndGet() > RestGlobalProperty.MAX_ASYNC_JOB_WAITERS) {
+            waiterCount.decrementAndGet();
+            return null;
+        }
+
+        Waiter w = new Waiter(uuids);
+        for (String uuid : w.uuids) {
+            waiters.computeIfAbsent(uuid, k -> ConcurrentHashMap.newKeySet()).add(w);
+        }
+
+        return w;
+    }
+
+    void notifyCompleted(APIEvent evt) {
+        Set<Waiter> ws = waiters.remove(evt.getApiId());
+        if (ws == null) {
+            return;
+        }
+
+        ws.forEach(w -> w.completed.offer(evt));
+    }
+
+    int getWaiterCount() {
+        return waiterCount.get();
+    }
+}
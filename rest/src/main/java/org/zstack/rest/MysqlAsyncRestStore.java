@@ -2,12 +2,13 @@ package org.zstack.rest;
 
 import org.apache.commons.collections.map.LRUMap;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.CoreGlobalProperty;
 import org.zstack.core.cloudbus.ResourceDestinationMaker;
 import org.zstack.core.config.GlobalConfig;
 import org.zstack.core.config.GlobalConfigUpdateExtensionPoint;
 import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.Q;
+import org.zstack.core.db.SQL;
 import org.zstack.core.thread.PeriodicTask;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.Component;
@@ -20,8 +21,7 @@ import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.Query;
 import java.sql.Timestamp;
-import java.util.Collections;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -40,6 +40,10 @@ public class MysqlAsyncRestStore implements AsyncRestApiStore, Component {
 
     // cache 2000 API results
     private Map<String, APIEvent> results = Collections.synchronizedMap(new LRUMap(RestGlobalProperty.MAX_CACHED_API_RESULTS));
+    // requests received by this node and not completed yet, they are answered without touching the
+    // database when completed. Records are persisted before requests are put here, so an evicted
+    // request is still completed by markDone()
+    private Map<String, RequestData> inflight = Collections.synchronizedMap(new LRUMap(RestGlobalProperty.MAX_INFLIGHT_API_RECORDS));
     private Future cleanupThread;
 
     @Override
@@ -49,31 +53,43 @@ public class MysqlAsyncRestStore implements AsyncRestApiStore, Component {
         vo.setUuid(d.apiMessage.getId());
         vo.setRequestData(d.toJson());
         vo.setState(AsyncRestState.processing);
+        // persisted before the API is sent, other management nodes polling the job find the record
         dbf.persist(vo);
+        inflight.put(vo.getUuid(), d);
+    }
+
+    private boolean markDone(String uuid, String result) {
+        return SQL.New("update AsyncRestVO vo set vo.state = :done, vo.result = :result" +
+                " where vo.uuid = :uuid and vo.state = :processing")
+                .param("done", AsyncRestState.done)
+                .param("processing", AsyncRestState.processing)
+                .param("result", result)
+                .param("uuid", uuid)
+                .execute() > 0;
     }
 
     @Override
     public RequestData complete(APIEvent evt) {
         RequestData d = null;
 
-        if (destinationMaker.isManagedByUs(evt.getApiId())) {
-            AsyncRestVO vo = dbf.findByUuid(evt.getApiId(), AsyncRestVO.class);
-
-            if (vo == null) {
+        RequestData local = inflight.remove(evt.getApiId());
+        if (local != null) {
+            // the request was received by this node, no need to look up the record
+            if (markDone(evt.getApiId(), ApiEventResult.toJson(evt))) {
+                d = local;
+            }
+        } else if (destinationMaker.isManagedByUs(evt.getApiId())) {
+            // the node received the request may have been restarted, the conditional
+            // update makes sure only one node completes the record
+            if (markDone(evt.getApiId(), ApiEventResult.toJson(evt))) {
+                String requestData = Q.New(AsyncRestVO.class).select(AsyncRestVO_.requestData)
+                        .eq(AsyncRestVO_.uuid, evt.getApiId()).findValue();
+                d = requestData == null ? null : RequestData.fromJson(requestData);
+            } else if (logger.isTraceEnabled()) {
                 // for cases that directly send API message which we don't
                 // have records
-                if (logger.isTraceEnabled()) {
-                    logger.warn(String.format("cannot find record for the API event %s", JSONObjectUtil.toJsonString(evt)));
-                }
-
-                return null;
+                logger.trace(String.format("cannot find record for the API event %s", JSONObjectUtil.toJsonString(evt)));
             }
-
-            vo.setState(AsyncRestState.done);
-            vo.setResult(ApiEventResult.toJson(evt));
-            dbf.update(vo);
-
-            d = RequestData.fromJson(vo.getRequestData());
         }
 
         if (!CoreGlobalProperty.UNIT_TEST_ON) {
@@ -97,6 +113,11 @@ public class MysqlAsyncRestStore implements AsyncRestApiStore, Component {
             return result;
         }
 
+        if (inflight.containsKey(uuid)) {
+            result.setState(AsyncRestState.processing);
+            return result;
+        }
+
         AsyncRestVO vo = dbf.findByUuid(uuid, AsyncRestVO.class);
         if (vo == null) {
             result.setState(AsyncRestState.expired);
@@ -168,14 +189,24 @@ public class MysqlAsyncRestStore implements AsyncRestApiStore, Component {
                 return (Timestamp) q.getSingleResult();
             }
 
-            @Transactional
             private void cleanup() {
                 Integer expiredPeriod = RestGlobalConfig.COMPLETED_API_EXPIRED_PERIOD.value(Integer.class);
-                String sql = "DELETE FROM AsyncRestVO vo WHERE vo.state = :state and vo.createDate < :date";
-                Query q = dbf.getEntityManager().createQuery(sql);
-                q.setParameter("state", AsyncRestState.done);
-                q.setParameter("date", new Timestamp(getCurrentSqlTime().getTime() - expiredPeriod * 1000L));
-                q.executeUpdate();
+                Timestamp date = new Timestamp(getCurrentSqlTime().getTime() - expiredPeriod * 1000L);
+                int batchSize = RestGlobalProperty.EXPIRED_API_CLEANUP_BATCH_SIZE;
+
+                // delete in small batches so the table is not locked by one huge statement
+                List<String> uuids;
+                do {
+                    uuids = SQL.New("select vo.uuid from AsyncRestVO vo where vo.state = :state and vo.createDate < :date", String.class)
+                            .param("state", AsyncRestState.done)
+                            .param("date", date)
+                            .limit(batchSize)
+                            .list();
+
+                    if (!uuids.isEmpty()) {
+                        SQL.New(AsyncRestVO.class).in(AsyncRestVO_.uuid, uuids).hardDelete();
+                    }
+                } while (uuids.size() == batchSize);
             }
         });
     }
@@ -6,6 +6,9 @@ package org.zstack.rest;
 public interface RestConstants {
     String API_VERSION = "/v1";
     String ASYNC_JOB_PATH = "/api-jobs";
+    String ASYNC_JOB_WAIT_SECONDS = "waitSeconds";
+    String ASYNC_JOB_UUIDS = "uuids";
+    String EVENT_STREAM_CONTENT_TYPE = "text/event-stream;charset=utf-8";
     String ALL_PATH = "/v1/**";
 
     String HEADER_JSON_SCHEMA = "X-JSON-Schema";
@@ -10,4 +10,21 @@ import org.zstack.core.GlobalPropertyDefinition;
 public class RestGlobalProperty {
     @GlobalProperty(name="RestServer.maxCachedApiResults", defaultValue = "2000")
     public static int MAX_CACHED_API_RESULTS;
+    // every waiter holds a servlet thread until its jobs complete, keep it well below the thread pool of the
+    // servlet container (200 threads by default in Tomcat) so synchronous APIs are still served
+    @GlobalProperty(name="RestServer.maxAsyncJobWaiters", defaultValue = "50")
+    public static int MAX_ASYNC_JOB_WAITERS;
+    @GlobalProperty(name="RestServer.maxAsyncJobWaitSeconds", defaultValue = "60")
+    public static long MAX_ASYNC_JOB_WAIT_SECONDS;
+    // a comment is pushed to an idle job event stream at this interval, so a client gone is found before the wait ends
+    @GlobalProperty(name="RestServer.asyncJobEventStreamHeartbeatSeconds", defaultValue = "5")
+    public static long ASYNC_JOB_EVENT_STREAM_HEARTBEAT_SECONDS;
+    @GlobalProperty(name="RestServer.maxInflightApiRecords", defaultValue = "10000")
+    public static int MAX_INFLIGHT_API_RECORDS;
+    @GlobalProperty(name="RestServer.expiredApiCleanupBatchSize", defaultValue = "1000")
+    public static int EXPIRED_API_CLEANUP_BATCH_SIZE;
+    @GlobalProperty(name="RestServer.compressQueryResponse", defaultValue = "true")
+    public static boolean COMPRESS_QUERY_RESPONSE;
+    @GlobalProperty(name="RestServer.responseBufferSize", defaultValue = "8192")
+    public static int RESPONSE_BUFFER_SIZE;
 }
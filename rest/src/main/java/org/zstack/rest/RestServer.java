@@ -52,13 +52,12 @@ import javax.net.ssl.X509TrustManager;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
-import java.io.File;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.*;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -67,6 +66,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 import static java.util.Arrays.asList;
 
@@ -138,6 +138,9 @@ public class RestServer implements Component, CloudBusEventListener {
     }
 
     private static final String ASYNC_JOB_PATH_PATTERN = String.format("%s/%s/{uuid}", RestConstants.API_VERSION, RestConstants.ASYNC_JOB_PATH);
+    private static final String ASYNC_JOBS_PATH = String.format("%s%s", RestConstants.API_VERSION, RestConstants.ASYNC_JOB_PATH);
+
+    private AsyncRestJobWaiter jobWaiter = new AsyncRestJobWaiter();
 
     public static void generateDocTemplate(String path, DocumentGenerator.DocMode mode) {
         DocumentGenerator rg =  GroovyUtils.newInstance("scripts/RestDocumentationGenerator.groovy");
@@ -203,6 +206,7 @@ public class RestServer implements Component, CloudBusEventListener {
     public boolean handleEvent(Event e) {
         if (e instanceof APIEvent) {
             RequestData d = asyncStore.complete((APIEvent) e);
+            jobWaiter.notifyCompleted((APIEvent) e);
 
             if (d != null && d.webHook != null) {
                 try {
@@ -575,6 +579,11 @@ public class RestServer implements Component, CloudBusEventListener {
             return;
         }
 
+        if (ASYNC_JOBS_PATH.equals(path)) {
+            handleMultipleJobsWait(req, rsp);
+            return;
+        }
+
         Object api = apis.get(path);
         if (api == null) {
             for (String p : apis.keySet()) {
@@ -626,6 +635,18 @@ public class RestServer implements Component, CloudBusEventListener {
         String uuid = vars.get("uuid");
         AsyncRestQueryResult ret = asyncStore.query(uuid);
 
+        long waitSeconds;
+        try {
+            waitSeconds = getJobWaitSeconds(req);
+        } catch (RestException e) {
+            sendResponse(e.statusCode, e.error, rsp);
+            return;
+        }
+
+        if (ret.getState() == AsyncRestState.processing && waitSeconds > 0) {
+            ret = waitForJob(uuid, waitSeconds);
+        }
+
         if (ret.getState() == AsyncRestState.expired) {
             sendResponse(HttpStatus.NOT_FOUND.value(), "the job has been expired", rsp);
             return;
@@ -640,20 +661,211 @@ public class RestServer implements Component, CloudBusEventListener {
 
         // task is done
         APIEvent evt = ret.getResult();
+        sendResponse(writeJobResponse(response, evt), response, rsp);
+    }
+
+    private long getJobWaitSeconds(HttpServletRequest req) throws RestException {
+        String waitSeconds = req.getParameter(RestConstants.ASYNC_JOB_WAIT_SECONDS);
+        if (waitSeconds == null) {
+            return 0;
+        }
+
+        try {
+            long ret = Long.parseLong(waitSeconds);
+            if (ret < 0) {
+                throw new NumberFormatException();
+            }
+
+            return Math.min(ret, RestGlobalProperty.MAX_ASYNC_JOB_WAIT_SECONDS);
+        } catch (NumberFormatException e) {
+            throw new RestException(HttpStatus.BAD_REQUEST.value(), String.format("invalid query parameter[%s=%s], it must be a" +
+                    " non-negative integer", RestConstants.ASYNC_JOB_WAIT_SECONDS, waitSeconds));
+        }
+    }
+
+    private AsyncRestQueryResult waitForJob(String uuid, long waitSeconds) {
+        AsyncRestJobWaiter.Waiter waiter = jobWaiter.register(Collections.singletonList(uuid));
+        if (waiter == null) {
+            // too many parked requests, let the client fall back to polling
+            AsyncRestQueryResult ret = new AsyncRestQueryResult();
+            ret.setUuid(uuid);
+            ret.setState(AsyncRestState.processing);
+            return ret;
+        }
+
+        try {
+            // the job may have completed before the waiter was registered
+            AsyncRestQueryResult ret = asyncStore.query(uuid);
+            if (ret.getState() != AsyncRestState.processing) {
+                return ret;
+            }
+
+            APIEvent evt = waiter.poll(waitSeconds, TimeUnit.SECONDS);
+            if (evt != null) {
+                ret.setState(AsyncRestState.done);
+                ret.setResult(evt);
+            }
+
+            return ret;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return asyncStore.query(uuid);
+        } finally {
+            waiter.close();
+        }
+    }
+
+    private int writeJobResponse(ApiResponse response, APIEvent evt) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
         if (evt.isSuccess()) {
             RestResponseWrapper w = responseAnnotationByClass.get(evt.getClass());
             if (w == null) {
                 throw new CloudRuntimeException(String.format("cannot find RestResponseWrapper for the class[%s]", evt.getClass()));
             }
-            writeResponse(response, w, ret.getResult());
-            sendResponse(HttpStatus.OK.value(), response, rsp);
+            writeResponse(response, w, evt);
+            return HttpStatus.OK.value();
         } else {
             response.setError(evt.getError());
-            sendResponse(HttpStatus.SERVICE_UNAVAILABLE.value(), response, rsp);
+            return HttpStatus.SERVICE_UNAVAILABLE.value();
+        }
+    }
+
+    /**
+     * waits for several jobs in one connection, every job result is pushed to the client
+     * as a server-sent event once it's available; the stream ends when all jobs
+     * are finished or the wait times out
+     */
+    private void handleMultipleJobsWait(HttpServletRequest req, HttpServletResponse rsp) throws IOException, IllegalAccessException, NoSuchMethodException, InvocationTargetException {
+        if (!req.getMethod().equals(HttpMethod.GET.name())) {
+            sendResponse(HttpStatus.METHOD_NOT_ALLOWED.value(), "only GET method is allowed for waiting jobs", rsp);
+            return;
+        }
+
+        String[] params = req.getParameterValues(RestConstants.ASYNC_JOB_UUIDS);
+        Set<String> uuids = new LinkedHashSet<>();
+        if (params != null) {
+            for (String p : params) {
+                for (String uuid : p.split(",")) {
+                    if (!uuid.trim().isEmpty()) {
+                        uuids.add(uuid.trim());
+                    }
+                }
+            }
+        }
+
+        if (uuids.isEmpty()) {
+            sendResponse(HttpStatus.BAD_REQUEST.value(), String.format("missing query parameter[%s]", RestConstants.ASYNC_JOB_UUIDS), rsp);
+            return;
+        }
+
+        long waitSeconds;
+        try {
+            waitSeconds = getJobWaitSeconds(req);
+        } catch (RestException e) {
+            sendResponse(e.statusCode, e.error, rsp);
+            return;
+        }
+
+        AsyncRestJobWaiter.Waiter waiter = jobWaiter.register(uuids);
+        if (waiter == null) {
+            sendResponse(HttpStatus.SERVICE_UNAVAILABLE.value(), "too many requests waiting for jobs, please query the jobs later", rsp);
+            return;
+        }
+
+        try {
+            rsp.setStatus(HttpStatus.OK.value());
+            rsp.setContentType(RestConstants.EVENT_STREAM_CONTENT_TYPE);
+            rsp.setHeader("Cache-Control", "no-cache");
+
+            Set<String> pending = new HashSet<>(uuids);
+            for (String uuid : uuids) {
+                AsyncRestQueryResult ret = asyncStore.query(uuid);
+                if (ret.getState() != AsyncRestState.processing) {
+                    writeJobEvent(ret, rsp);
+                    pending.remove(uuid);
+                }
+            }
+
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(waitSeconds);
+            long heartbeat = Math.max(TimeUnit.SECONDS.toMillis(RestGlobalProperty.ASYNC_JOB_EVENT_STREAM_HEARTBEAT_SECONDS), 1);
+            while (!pending.isEmpty()) {
+                long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0) {
+                    break;
+                }
+
+                APIEvent evt = waiter.poll(Math.min(timeout, heartbeat), TimeUnit.MILLISECONDS);
+                if (evt == null) {
+                    // the servlet thread is parked until the wait ends, writing finds out if the client has gone
+                    writeEventStream(":\n\n", rsp);
+                    continue;
+                }
+
+                if (!pending.remove(evt.getApiId())) {
+                    continue;
+                }
+
+                AsyncRestQueryResult ret = new AsyncRestQueryResult();
+                ret.setUuid(evt.getApiId());
+                ret.setState(AsyncRestState.done);
+                ret.setResult(evt);
+                writeJobEvent(ret, rsp);
+            }
+
+            for (String uuid : pending) {
+                AsyncRestQueryResult ret = new AsyncRestQueryResult();
+                ret.setUuid(uuid);
+                ret.setState(AsyncRestState.processing);
+                writeJobEvent(ret, rsp);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.debug(String.format("stop pushing events of the jobs%s, %s", uuids, e.getMessage()));
+        } finally {
+            waiter.close();
+        }
+    }
+
+    private void writeEventStream(String text, HttpServletResponse rsp) throws IOException {
+        PrintWriter writer = rsp.getWriter();
+        writer.write(text);
+        writer.flush();
+        // the writer of the servlet response doesn't throw IO errors
+        if (writer.checkError()) {
+            throw new IOException("the client has closed the connection");
         }
     }
 
+    private void writeJobEvent(AsyncRestQueryResult ret, HttpServletResponse rsp) throws IOException, IllegalAccessException, NoSuchMethodException, InvocationTargetException {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("uuid", ret.getUuid());
+        data.put("state", ret.getState().toString());
+
+        if (ret.getState() == AsyncRestState.done) {
+            ApiResponse response = new ApiResponse();
+            data.put("statusCode", writeJobResponse(response, ret.getResult()));
+            data.put("response", response);
+        } else if (ret.getState() == AsyncRestState.expired) {
+            data.put("statusCode", HttpStatus.NOT_FOUND.value());
+        } else {
+            data.put("statusCode", HttpStatus.ACCEPTED.value());
+        }
+
+        String body = CloudBusGson.toJsonForHttpResponse(data);
+        if (requestLogger.isTraceEnabled() && needLog(requestInfo.get())) {
+            RequestInfo info = requestInfo.get();
+            requestLogger.trace(String.format("[ID: %s] Push job event to %s (%s), Body: %s", info.session.getId(),
+                    info.remoteHost, info.requestUrl, body));
+        }
+
+        writeEventStream(String.format("id: %s\nevent: job\ndata: %s\n\n", ret.getUuid(), body), rsp);
+    }
+
     private void sendResponse(int statusCode, ApiResponse response, HttpServletResponse rsp) throws IOException {
+        sendResponse(statusCode, response, rsp, false);
+    }
+
+    private void sendResponse(int statusCode, ApiResponse response, HttpServletResponse rsp, boolean compressible) throws IOException {
         RequestInfo info = requestInfo.get();
         if (requestLogger.isTraceEnabled() && needLog(info)) {
             String body = CloudBusGson.toJson(response);
@@ -665,9 +877,33 @@ public class RestServer implements Component, CloudBusEventListener {
             requestLogger.trace(sb.toString());
         }
 
-        String body = CloudBusGson.toJsonForHttpResponse(response);
         rsp.setStatus(statusCode);
-        rsp.getWriter().write(body == null ? "" : body);
+
+        // stream the JSON to the client instead of materializing the whole body as a string,
+        // large query results would otherwise be held in memory several times
+        boolean compress = compressible && RestGlobalProperty.COMPRESS_QUERY_RESPONSE;
+        if (compress) {
+            // the body depends on Accept-Encoding, caches must not serve one encoding to clients asking for the other
+            rsp.setHeader("Vary", "Accept-Encoding");
+        }
+
+        if (compress && isGzipAccepted(info)) {
+            rsp.setHeader("Content-Encoding", "gzip");
+            GZIPOutputStream gzip = new GZIPOutputStream(rsp.getOutputStream(), RestGlobalProperty.RESPONSE_BUFFER_SIZE);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8), RestGlobalProperty.RESPONSE_BUFFER_SIZE);
+            CloudBusGson.toJsonForHttpResponse(response, writer);
+            writer.flush();
+            gzip.finish();
+        } else {
+            Writer writer = rsp.getWriter();
+            CloudBusGson.toJsonForHttpResponse(response, writer);
+            writer.flush();
+        }
+    }
+
+    private boolean isGzipAccepted(RequestInfo info) {
+        List<String> encodings = info.headers.get("Accept-Encoding");
+        return encodings != null && encodings.stream().anyMatch(e -> e.toLowerCase().contains("gzip"));
     }
 
     private void handleNonUniqueApi(Collection<Api> apis, HttpEntity<String> entity, HttpServletRequest req, HttpServletResponse rsp) throws RestException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException, IOException {
@@ -1124,7 +1360,7 @@ public class RestServer implements Component, CloudBusEventListener {
         // the api succeeded
 
         writeResponse(response, responseAnnotationByClass.get(api.apiResponseClass), reply);
-        sendResponse(HttpStatus.OK.value(), response, rsp);
+        sendResponse(HttpStatus.OK.value(), response, rsp, reply instanceof APIQueryReply);
     }
 
     private void sendMessage(APIMessage msg, Api api, HttpServletResponse rsp) throws IOException, IllegalAccessException, NoSuchMethodException, InvocationTargetException {
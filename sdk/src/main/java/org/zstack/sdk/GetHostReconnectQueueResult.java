@@ -0,0 +1,38 @@
+package org.zstack.sdk;
+
+
+
+public class GetHostReconnectQueueResult {
+    public int queueDepth;
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+    public int getQueueDepth() {
+        return this.queueDepth;
+    }
+
+    public int running;
+    public void setRunning(int running) {
+        this.running = running;
+    }
+    public int getRunning() {
+        return this.running;
+    }
+
+    public int backingOff;
+    public void setBackingOff(int backingOff) {
+        this.backingOff = backingOff;
+    }
+    public int getBackingOff() {
+        return this.backingOff;
+    }
+
+    public long etaInSeconds;
+    public void setEtaInSeconds(long etaInSeconds) {
+        this.etaInSeconds = etaInSeconds;
+    }
+    public long getEtaInSeconds() {
+        return this.etaInSeconds;
+    }
+
+}
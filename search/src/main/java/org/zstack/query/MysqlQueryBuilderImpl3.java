@@ -913,15 +913,17 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 }
 
                 final LinkedHashMap flatMap = new LinkedHashMap();
-                final List primaryKeysNeedResolve = new ArrayList();
+                // primary keys of child inventories grouped by the entity they must be reloaded from
+                final Map<EntityInfo, List> primaryKeysNeedResolve = new LinkedHashMap<>();
                 for (Object vo : vos) {
                     String type = (String) root.info.entityTypeField.get(vo);
                     Object priKey = root.info.getPrimaryKeyValue(vo);
-                    if (!root.info.flatTypeEntityMap.containsKey(type)) {
+                    EntityInfo child = root.info.flatTypeEntityMap.get(type);
+                    if (child == null) {
                         flatMap.put(priKey, root.info.inventoryValueOf.invoke(inventoryClass, vo));
                     } else {
                         flatMap.put(priKey, null);
-                        primaryKeysNeedResolve.add(priKey);
+                        primaryKeysNeedResolve.computeIfAbsent(child, k -> new ArrayList()).add(priKey);
                     }
 
                 }
@@ -931,18 +933,10 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 }
 
                 // the inventory has child inventory inheriting it, we have to find out all child inventory and
-                // reload them from DB and keep them in order.
+                // reload them from DB and keep them in order. Only the child entities that actually appear in
+                // the result are queried, each with one IN query over its own primary keys.
                 class SubInventoryResolver {
-
-                    class SQL {
-                        String sql;
-                        EntityInfo entityInfo;
-                    }
-
-                    List<SQL> subInventoryQuerySQL = new ArrayList<SQL>();
-
                     List resolve() throws InvocationTargetException, IllegalAccessException {
-                        buildSubInventoryQuerySQL(root.info.children);
                         querySubInventory();
 
                         List result = new ArrayList(flatMap.values().size());
@@ -952,37 +946,35 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
 
                     @Transactional(readOnly = true)
                     private void querySubInventory() throws InvocationTargetException, IllegalAccessException {
-                        for (SQL sql : subInventoryQuerySQL) {
-                            if (primaryKeysNeedResolve.isEmpty()) {
-                                break;
-                            }
-
-                            TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql.sql, Tuple.class);
-                            q.setParameter("ids", primaryKeysNeedResolve);
-                            List<Tuple> res = q.getResultList();
-
-                            for (Tuple t : res) {
-                                Object priKey = t.get(0);
-                                Object vo = t.get(1);
-                                flatMap.put(priKey, sql.entityInfo.inventoryValueOf.invoke(sql.entityInfo.inventoryClass, vo));
-                                primaryKeysNeedResolve.remove(priKey);
-                            }
+                        for (Map.Entry<EntityInfo, List> e : primaryKeysNeedResolve.entrySet()) {
+                            querySubInventory(e.getKey(), new LinkedHashSet(e.getValue()));
                         }
                     }
 
-                    private void buildSubInventoryQuerySQL(List<EntityInfo> infos) {
+                    private void querySubInventory(EntityInfo info, Set ids) throws InvocationTargetException, IllegalAccessException {
                         // child queries execute first
-                        for (EntityInfo info : infos) {
-                            if (!info.children.isEmpty()) {
-                                buildSubInventoryQuerySQL(info.children);
+                        for (EntityInfo child : info.children) {
+                            if (ids.isEmpty()) {
+                                return;
                             }
+
+                            querySubInventory(child, ids);
                         }
 
-                        for (EntityInfo info : infos) {
-                            SQL sql = new SQL();
-                            sql.entityInfo = info;
-                            sql.sql = String.format("select e.%s, e from %s e where e.%s in (:ids)", info.primaryKey, info.entityClass.getSimpleName(), info.primaryKey);
-                            subInventoryQuerySQL.add(sql);
+                        if (ids.isEmpty()) {
+                            return;
+                        }
+
+                        String sql = String.format("select e.%s, e from %s e where e.%s in (:ids)", info.primaryKey, info.entityClass.getSimpleName(), info.primaryKey);
+                        TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+                        q.setParameter("ids", ids);
+                        List<Tuple> res = q.getResultList();
+
+                        for (Tuple t : res) {
+                            Object priKey = t.get(0);
+                            Object vo = t.get(1);
+                            flatMap.put(priKey, info.inventoryValueOf.invoke(info.inventoryClass, vo));
+                            ids.remove(priKey);
                         }
                     }
                 }
@@ -1009,14 +1001,15 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             }
 
             EntityInfo info = entityInfos.get(inventoryClass);
+            // resolve the fields once for all rows
+            Field[] fields = msg.getFields().stream().map(info.allFieldsMap::get).toArray(Field[]::new);
             List ret = new ArrayList(fieldTuple.size());
             for (Object t : fieldTuple) {
                 Tuple tuple = (Tuple) t;
                 Object inv = info.objectInstantiator.newInstance();
-                for (int i = 0; i < msg.getFields().size(); i++) {
-                    String fname = msg.getFields().get(i);
+                for (int i = 0; i < fields.length; i++) {
                     Object value = tuple.get(i);
-                    Field f = info.allFieldsMap.get(fname);
+                    Field f = fields[i];
                     try {
                         if (value != null && String.class.isAssignableFrom(f.getType())) {
                             value = value.toString();
@@ -0,0 +1,312 @@
+package org.zstack.search;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process inverted index over short texts of resources, e.g. names, descriptions,
+ * tags and IPs. Every resource is a document identified by its uuid and carrying several
+ * named texts; terms serve prefix searches and trigrams serve substring searches.
+ */
+public class InventoryTextIndex {
+    private static final Pattern TOKEN_SPLITTER = Pattern.compile("[^\\p{L}\\p{N}.:]+");
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+    private static final int GRAM = 3;
+
+    public static class Doc {
+        String uuid;
+        String resourceType;
+        Map<String, String> texts = new HashMap<>();
+
+        public Doc(String uuid, String resourceType) {
+            this.uuid = uuid;
+            this.resourceType = resourceType;
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        public Map<String, String> getTexts() {
+            return texts;
+        }
+
+        private Doc copy() {
+            Doc d = new Doc(uuid, resourceType);
+            d.texts.putAll(texts);
+            return d;
+        }
+    }
+
+    private final Map<String, Doc> docs = new HashMap<>();
+    private final TreeMap<String, Set<String>> terms = new TreeMap<>();
+    private final Map<String, Set<String>> grams = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * sets the text under the key of the resource, a null text removes the key;
+     * the resource is removed once it has no text
+     */
+    public void put(String uuid, String resourceType, String key, String text) {
+        lock.writeLock().lock();
+        try {
+            Doc doc = docs.get(uuid);
+            if (doc == null && text == null) {
+                return;
+            }
+
+            if (doc == null) {
+                doc = new Doc(uuid, resourceType);
+                docs.put(uuid, doc);
+            } else {
+                unindex(doc);
+                if (resourceType != null) {
+                    doc.resourceType = resourceType;
+                }
+            }
+
+            if (text == null) {
+                doc.texts.remove(key);
+            } else {
+                doc.texts.put(key, text);
+            }
+
+            if (doc.texts.isEmpty()) {
+                docs.remove(uuid);
+            } else {
+                index(doc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public String get(String uuid, String key) {
+        lock.readLock().lock();
+        try {
+            Doc doc = docs.get(uuid);
+            return doc == null ? null : doc.texts.get(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String uuid) {
+        lock.readLock().lock();
+        try {
+            return docs.containsKey(uuid);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void remove(String uuid) {
+        lock.writeLock().lock();
+        try {
+            Doc doc = docs.remove(uuid);
+            if (doc != null) {
+                unindex(doc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * replaces the whole content of the index
+     */
+    public void load(Collection<Doc> newDocs) {
+        lock.writeLock().lock();
+        try {
+            docs.clear();
+            terms.clear();
+            grams.clear();
+            for (Doc d : newDocs) {
+                Doc doc = d.copy();
+                docs.put(doc.uuid, doc);
+                index(doc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public List<Doc> snapshot() {
+        lock.readLock().lock();
+        try {
+            List<Doc> ret = new ArrayList<>(docs.size());
+            docs.values().forEach(d -> ret.add(d.copy()));
+            return ret;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docs.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param resourceType null to search all resource types
+     * @return uuids of resources having a word or a text starting with the prefix
+     */
+    public List<String> searchByPrefix(String prefix, String resourceType, int limit) {
+        String p = normalize(prefix);
+        Set<String> ret = new LinkedHashSet<>();
+
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, Set<String>> e : terms.tailMap(p, true).entrySet()) {
+                if (!e.getKey().startsWith(p) || ret.size() >= limit) {
+                    break;
+                }
+
+                collect(e.getValue(), resourceType, ret, limit);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return new ArrayList<>(ret);
+    }
+
+    /**
+     * @param resourceType null to search all resource types
+     * @return uuids of resources having a text containing the str
+     */
+    public List<String> searchBySubstring(String str, String resourceType, int limit) {
+        String s = normalize(str);
+        List<String> ret = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            Collection<String> candidates;
+            if (s.length() < GRAM) {
+                candidates = docs.keySet();
+            } else {
+                candidates = null;
+                for (String g : grams(s)) {
+                    Set<String> uuids = grams.get(g);
+                    if (uuids == null) {
+                        return ret;
+                    }
+
+                    if (candidates == null || uuids.size() < candidates.size()) {
+                        candidates = uuids;
+                    }
+                }
+            }
+
+            for (String uuid : candidates) {
+                if (ret.size() >= limit) {
+                    break;
+                }
+
+                Doc doc = docs.get(uuid);
+                if (resourceType != null && !resourceType.equals(doc.resourceType)) {
+                    continue;
+                }
+
+                if (doc.texts.values().stream().anyMatch(t -> normalize(t).contains(s))) {
+                    ret.add(uuid);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return ret;
+    }
+
+    private void collect(Set<String> uuids, String resourceType, Set<String> ret, int limit) {
+        for (String uuid : uuids) {
+            if (ret.size() >= limit) {
+                return;
+            }
+
+            if (resourceType == null || resourceType.equals(docs.get(uuid).resourceType)) {
+                ret.add(uuid);
+            }
+        }
+    }
+
+    /**
+     * lower cased and diacritics removed, so searches match what a case and accent insensitive
+     * collation of MySQL matches
+     */
+    private static String normalize(String text) {
+        return DIACRITICS.matcher(Normalizer.normalize(text.trim(), Normalizer.Form.NFD)).replaceAll("").toLowerCase();
+    }
+
+    private static Set<String> terms(Doc doc) {
+        Set<String> ret = new HashSet<>();
+        for (String text : doc.texts.values()) {
+            String t = normalize(text);
+            if (t.isEmpty()) {
+                continue;
+            }
+
+            ret.add(t);
+            for (String token : TOKEN_SPLITTER.split(t)) {
+                if (!token.isEmpty()) {
+                    ret.add(token);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    private static Set<String> grams(String text) {
+        Set<String> ret = new HashSet<>();
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            ret.add(text.substring(i, i + GRAM));
+        }
+
+        return ret;
+    }
+
+    private static Set<String> grams(Doc doc) {
+        Set<String> ret = new HashSet<>();
+        doc.texts.values().forEach(t -> ret.addAll(grams(normalize(t))));
+        return ret;
+    }
+
+    private void index(Doc doc) {
+        for (String t : terms(doc)) {
+            terms.computeIfAbsent(t, k -> new LinkedHashSet<>()).add(doc.uuid);
+        }
+
+        for (String g : grams(doc)) {
+            grams.computeIfAbsent(g, k -> new HashSet<>()).add(doc.uuid);
+        }
+    }
+
+    private void unindex(Doc doc) {
+        for (String t : terms(doc)) {
+            Set<String> uuids = terms.get(t);
+            if (uuids != null && uuids.remove(doc.uuid) && uuids.isEmpty()) {
+                terms.remove(t);
+            }
+        }
+
+        for (String g : grams(doc)) {
+            Set<String> uuids = grams.get(g);
+            if (uuids != null && uuids.remove(doc.uuid) && uuids.isEmpty()) {
+                grams.remove(g);
+            }
+        }
+    }
+}
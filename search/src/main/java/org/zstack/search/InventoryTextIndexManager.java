@@ -0,0 +1,26 @@
+package org.zstack.search;
+
+import java.util.List;
+
+/**
+ * Searches resources by name, description, tags and IPs through the in-process
+ * InventoryTextIndex, without an external search service.
+ */
+public interface InventoryTextIndexManager {
+    /**
+     * @param resourceType the base resource type, e.g. VmInstanceVO; null for all types
+     * @return uuids of matched resources
+     */
+    List<String> searchByPrefix(String prefix, String resourceType, int limit);
+
+    /**
+     * @param resourceType the base resource type, e.g. VmInstanceVO; null for all types
+     * @return uuids of matched resources
+     */
+    List<String> searchBySubstring(String str, String resourceType, int limit);
+
+    /**
+     * @return false if the index is disabled or has not been built yet
+     */
+    boolean isReady();
+}
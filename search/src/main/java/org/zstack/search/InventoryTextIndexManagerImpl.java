@@ -0,0 +1,470 @@
+package org.zstack.search;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.EntityEvent;
+import org.zstack.core.db.SQL;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.Task;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.tag.SystemTagVO;
+import org.zstack.header.tag.TagAO;
+import org.zstack.header.tag.UserTagVO;
+import org.zstack.header.vm.VmInstanceVO;
+import org.zstack.header.vm.VmNicVO;
+import org.zstack.header.vo.ResourceTypeMetadata;
+import org.zstack.header.vo.ResourceVO;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.path.PathUtil;
+
+import javax.persistence.Entity;
+import javax.persistence.Tuple;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an InventoryTextIndex of resource names, descriptions, tags and nic IPs.
+ *
+ * The index is fed from entity life cycle events of this management node after their transactions
+ * commit, changes are broadcast to other management nodes through a canonical event. On start the
+ * index is loaded from the local snapshot and journal, then rebuilt from the database in background
+ * to catch up the changes made by other nodes while this node was down; the index is ready for
+ * InventoryTextIndexZQLExtension only after the rebuild.
+ */
+public class InventoryTextIndexManagerImpl implements InventoryTextIndexManager, Component {
+    private static final CLogger logger = Utils.getLogger(InventoryTextIndexManagerImpl.class);
+
+    public static final String INDEX_CHANGED_PATH = "/inventoryTextIndex/changed";
+
+    private static final String NAME = "name";
+    private static final String TAG_PREFIX = "tag:";
+    private static final String NIC_IP_PREFIX = "nicIp:";
+    // String fields of resources that are indexed besides the name
+    private static final List<String> INDEXED_FIELDS = Arrays.asList("description", "ip", "managementIp");
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private EventFacade evtf;
+    @Autowired
+    private ThreadFacade thdf;
+
+    private InventoryTextIndex index = new InventoryTextIndex();
+    private InventoryTextIndexSegment segment;
+    private volatile boolean ready;
+    // changes applied while the index is being rebuilt, replayed after the rebuild
+    private List<Change> changesDuringRebuild;
+    private List<Change> changesToBroadcast = new ArrayList<>();
+    private final Object broadcastLock = new Object();
+    private Map<Class, List<Field>> indexedFields = new ConcurrentHashMap<>();
+    private static final Map<String, String> baseResourceTypes = new ConcurrentHashMap<>();
+    private Future snapshotTask;
+    private Future broadcastTask;
+
+    public static class Change {
+        public String uuid;
+        public String resourceType;
+        public String key;
+        public String text;
+        public boolean removed;
+    }
+
+    public static class IndexChangedData {
+        public List<Change> changes;
+    }
+
+    @Override
+    public List<String> searchByPrefix(String prefix, String resourceType, int limit) {
+        return index.searchByPrefix(prefix, resourceType, limit);
+    }
+
+    @Override
+    public List<String> searchBySubstring(String str, String resourceType, int limit) {
+        return index.searchBySubstring(str, resourceType, limit);
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public boolean start() {
+        if (!SearchGlobalProperty.INVENTORY_TEXT_INDEX_ENABLED) {
+            return true;
+        }
+
+        segment = new InventoryTextIndexSegment(new File(PathUtil.getFolderUnderZStackHomeFolder(SearchGlobalProperty.INVENTORY_TEXT_INDEX_FOLDER)));
+        InventoryTextIndexSegment.Snapshot snapshot = segment.readSnapshot();
+        if (snapshot != null) {
+            index.load(snapshot.docs);
+            int changes = segment.replayJournal(index);
+            logger.debug(String.format("loaded %s resources into the inventory text index from the snapshot taken at %s, %s changes replayed",
+                    index.size(), new Date(snapshot.createTime), changes));
+        }
+
+        installEntityLifeCycleCallbacks();
+        evtf.on(INDEX_CHANGED_PATH, new EventCallback() {
+            @Override
+            protected void run(Map tokens, Object data) {
+                if (evtf.isFromThisManagementNode(tokens)) {
+                    return;
+                }
+
+                ((IndexChangedData) data).changes.forEach(c -> apply(c));
+            }
+        });
+
+        startPeriodicTasks();
+        rebuildInBackground();
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (segment == null) {
+            return true;
+        }
+
+        if (snapshotTask != null) {
+            snapshotTask.cancel(true);
+        }
+        if (broadcastTask != null) {
+            broadcastTask.cancel(true);
+        }
+
+        broadcast();
+        segment.close();
+        return true;
+    }
+
+    private void installEntityLifeCycleCallbacks() {
+        dbf.installEntityLifeCycleCallback(null, EntityEvent.POST_PERSIST, (evt, o) -> onEntityChanged(o, false));
+        dbf.installEntityLifeCycleCallback(null, EntityEvent.POST_UPDATE, (evt, o) -> onEntityChanged(o, false));
+        dbf.installEntityLifeCycleCallback(null, EntityEvent.POST_REMOVE, (evt, o) -> onEntityChanged(o, true));
+    }
+
+    private void onEntityChanged(Object o, boolean removed) {
+        List<Change> changes = new ArrayList<>();
+        try {
+            if (o instanceof ResourceVO) {
+                collectResourceChanges((ResourceVO) o, removed, changes);
+            } else if (o instanceof TagAO) {
+                TagAO tag = (TagAO) o;
+                changes.add(change(tag.getResourceUuid(), baseResourceType(tag.getResourceType()), TAG_PREFIX + tag.getUuid(), removed ? null : tag.getTag()));
+            }
+        } catch (Throwable t) {
+            logger.warn(String.format("failed to update the inventory text index for %s", o.getClass().getSimpleName()), t);
+            return;
+        }
+
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            commit(changes);
+            return;
+        }
+
+        // entity life cycle callbacks run in the flush of a transaction, which may still roll back
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                commit(changes);
+            }
+        });
+    }
+
+    private void commit(List<Change> changes) {
+        try {
+            // only real changes of the indexed texts go to the index and other management nodes
+            changes.removeIf(c -> c.removed ? !index.contains(c.uuid) : Objects.equals(index.get(c.uuid, c.key), c.text));
+            if (changes.isEmpty()) {
+                return;
+            }
+
+            changes.forEach(this::apply);
+            synchronized (broadcastLock) {
+                changesToBroadcast.addAll(changes);
+            }
+        } catch (Throwable t) {
+            logger.warn("failed to update the inventory text index", t);
+        }
+    }
+
+    /**
+     * @return the simple name of the base resource type of the resource type, e.g. VmInstanceVO of ApplianceVmVO,
+     * the same as ResourceVO.resourceType
+     */
+    private static String baseResourceType(String resourceType) {
+        if (resourceType == null) {
+            return null;
+        }
+
+        return baseResourceTypes.computeIfAbsent(resourceType, k -> {
+            for (Map.Entry<Class, Class> e : ResourceTypeMetadata.concreteBaseTypeMapping.entrySet()) {
+                if (e.getKey().getSimpleName().equals(k)) {
+                    return e.getValue().getSimpleName();
+                }
+            }
+
+            return k;
+        });
+    }
+
+    private void collectResourceChanges(ResourceVO vo, boolean removed, List<Change> changes) throws IllegalAccessException {
+        String resourceType = ResourceTypeMetadata.getBaseResourceTypeFromConcreteType(vo.getClass()).getSimpleName();
+
+        if (vo instanceof VmNicVO) {
+            VmNicVO nic = (VmNicVO) vo;
+            if (nic.getVmInstanceUuid() != null) {
+                changes.add(change(nic.getVmInstanceUuid(), VmInstanceVO.class.getSimpleName(), NIC_IP_PREFIX + nic.getUuid(),
+                        removed ? null : nic.getIp()));
+            }
+        }
+
+        if (removed) {
+            Change c = new Change();
+            c.uuid = vo.getUuid();
+            c.removed = true;
+            changes.add(c);
+            return;
+        }
+
+        changes.add(change(vo.getUuid(), resourceType, NAME, vo.getValueOfNameField()));
+        for (Field f : getIndexedFields(vo.getClass())) {
+            changes.add(change(vo.getUuid(), resourceType, f.getName(), (String) f.get(vo)));
+        }
+    }
+
+    private List<Field> getIndexedFields(Class clz) {
+        return indexedFields.computeIfAbsent(clz, k -> collectIndexedFields(k, false));
+    }
+
+    /**
+     * @param stopAtParentEntity stops at the first parent annotated by @Entity, its fields are in its own table;
+     *                           fields of @MappedSuperclass parents are always collected
+     */
+    private static List<Field> collectIndexedFields(Class clz, boolean stopAtParentEntity) {
+        List<Field> ret = new ArrayList<>();
+        for (Class c = clz; c != null && c != Object.class; c = c.getSuperclass()) {
+            if (stopAtParentEntity && c != clz && c.isAnnotationPresent(Entity.class)) {
+                break;
+            }
+
+            for (Field f : c.getDeclaredFields()) {
+                if (INDEXED_FIELDS.contains(f.getName()) && f.getType() == String.class && !Modifier.isStatic(f.getModifiers())) {
+                    f.setAccessible(true);
+                    ret.add(f);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static Change change(String uuid, String resourceType, String key, String text) {
+        Change c = new Change();
+        c.uuid = uuid;
+        c.resourceType = resourceType;
+        c.key = key;
+        c.text = text;
+        return c;
+    }
+
+    private synchronized void apply(Change c) {
+        if (changesDuringRebuild != null) {
+            changesDuringRebuild.add(c);
+        }
+
+        try {
+            if (c.removed) {
+                index.remove(c.uuid);
+                segment.appendRemove(c.uuid);
+            } else {
+                index.put(c.uuid, c.resourceType, c.key, c.text);
+                segment.appendPut(c.uuid, c.resourceType, c.key, c.text);
+            }
+        } catch (IOException e) {
+            logger.warn("failed to write the inventory text index journal", e);
+        }
+    }
+
+    private void broadcast() {
+        IndexChangedData data = new IndexChangedData();
+        synchronized (broadcastLock) {
+            if (changesToBroadcast.isEmpty()) {
+                return;
+            }
+
+            data.changes = changesToBroadcast;
+            changesToBroadcast = new ArrayList<>();
+        }
+
+        evtf.fire(INDEX_CHANGED_PATH, data);
+    }
+
+    private synchronized void takeSnapshot() {
+        try {
+            segment.writeSnapshot(System.currentTimeMillis(), index.snapshot());
+        } catch (IOException e) {
+            logger.warn("failed to write the inventory text index snapshot", e);
+        }
+    }
+
+    private void startPeriodicTasks() {
+        broadcastTask = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.MILLISECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return SearchGlobalProperty.INVENTORY_TEXT_INDEX_BROADCAST_INTERVAL;
+            }
+
+            @Override
+            public String getName() {
+                return "broadcast-inventory-text-index-changes";
+            }
+
+            @Override
+            public void run() {
+                try {
+                    broadcast();
+                } catch (Throwable t) {
+                    logger.warn("unhandled error", t);
+                }
+            }
+        });
+
+        snapshotTask = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return SearchGlobalProperty.INVENTORY_TEXT_INDEX_SNAPSHOT_INTERVAL;
+            }
+
+            @Override
+            public String getName() {
+                return "snapshot-inventory-text-index";
+            }
+
+            @Override
+            public void run() {
+                if (ready) {
+                    takeSnapshot();
+                }
+            }
+        }, SearchGlobalProperty.INVENTORY_TEXT_INDEX_SNAPSHOT_INTERVAL);
+    }
+
+    private void rebuildInBackground() {
+        thdf.submit(new Task<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    rebuild();
+                } catch (Throwable t) {
+                    logger.warn("failed to rebuild the inventory text index", t);
+                }
+                return null;
+            }
+
+            @Override
+            public String getName() {
+                return "rebuild-inventory-text-index";
+            }
+        });
+    }
+
+    private void rebuild() {
+        synchronized (this) {
+            changesDuringRebuild = new ArrayList<>();
+        }
+
+        long start = System.currentTimeMillis();
+        InventoryTextIndex fresh = new InventoryTextIndex();
+
+        paginate("select vo.uuid, vo.resourceName, vo.resourceType from ResourceVO vo where vo.uuid > :last order by vo.uuid",
+                t -> fresh.put(t.get(0, String.class), t.get(2, String.class), NAME, t.get(1, String.class)));
+
+        Set<Class<? extends ResourceVO>> resourceClasses = Platform.getReflections().getSubTypesOf(ResourceVO.class);
+        for (Class<? extends ResourceVO> clz : resourceClasses) {
+            if (!clz.isAnnotationPresent(Entity.class)) {
+                continue;
+            }
+
+            String resourceType = ResourceTypeMetadata.getBaseResourceTypeFromConcreteType(clz).getSimpleName();
+            for (Field f : collectIndexedFields(clz, true)) {
+                paginate(String.format("select vo.uuid, vo.%s from %s vo where vo.uuid > :last and vo.%s is not null order by vo.uuid",
+                        f.getName(), clz.getSimpleName(), f.getName()),
+                        t -> fresh.put(t.get(0, String.class), resourceType, f.getName(), t.get(1, String.class)));
+            }
+        }
+
+        for (Class<? extends TagAO> clz : Arrays.asList(SystemTagVO.class, UserTagVO.class)) {
+            paginate(String.format("select vo.uuid, vo.resourceUuid, vo.resourceType, vo.tag from %s vo where vo.uuid > :last order by vo.uuid", clz.getSimpleName()),
+                    t -> fresh.put(t.get(1, String.class), baseResourceType(t.get(2, String.class)), TAG_PREFIX + t.get(0, String.class), t.get(3, String.class)));
+        }
+
+        paginate("select vo.uuid, vo.vmInstanceUuid, vo.ip from VmNicVO vo where vo.uuid > :last and vo.vmInstanceUuid is not null" +
+                        " and vo.ip is not null order by vo.uuid",
+                t -> fresh.put(t.get(1, String.class), VmInstanceVO.class.getSimpleName(), NIC_IP_PREFIX + t.get(0, String.class), t.get(2, String.class)));
+
+        synchronized (this) {
+            index.load(fresh.snapshot());
+            List<Change> changes = changesDuringRebuild;
+            changesDuringRebuild = null;
+            changes.forEach(this::apply);
+            takeSnapshot();
+            ready = true;
+        }
+
+        logger.debug(String.format("rebuilt the inventory text index of %s resources in %s ms", index.size(), System.currentTimeMillis() - start));
+    }
+
+    private interface TupleConsumer {
+        void accept(Tuple t);
+    }
+
+    private void paginate(String sql, TupleConsumer consumer) {
+        String last = "";
+        while (true) {
+            List<Tuple> tuples = SQL.New(sql, Tuple.class)
+                    .param("last", last)
+                    .limit(SearchGlobalProperty.INVENTORY_TEXT_INDEX_REBUILD_BATCH_SIZE)
+                    .list();
+
+            for (Tuple t : tuples) {
+                if (t.get(1) != null) {
+                    consumer.accept(t);
+                }
+            }
+
+            if (tuples.size() < SearchGlobalProperty.INVENTORY_TEXT_INDEX_REBUILD_BATCH_SIZE) {
+                return;
+            }
+
+            last = tuples.get(tuples.size() - 1).get(0, String.class);
+        }
+    }
+}
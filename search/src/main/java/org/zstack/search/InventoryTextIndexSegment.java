@@ -0,0 +1,225 @@
+package org.zstack.search;
+
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk form of InventoryTextIndex: a memory-mapped snapshot segment holding all documents,
+ * plus an append-only journal of the changes applied after the snapshot was taken.
+ */
+public class InventoryTextIndexSegment {
+    private static final CLogger logger = Utils.getLogger(InventoryTextIndexSegment.class);
+
+    private static final int MAGIC = 0x5a534958;
+    private static final int VERSION = 1;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private DataOutputStream journal;
+
+    public static class Snapshot {
+        public long createTime;
+        public List<InventoryTextIndex.Doc> docs = new ArrayList<>();
+    }
+
+    public InventoryTextIndexSegment(File dir) {
+        snapshotFile = new File(dir, "inventory-index.seg");
+        journalFile = new File(dir, "inventory-index.journal");
+    }
+
+    /**
+     * writes a new snapshot and starts a new, empty journal
+     */
+    public synchronized void writeSnapshot(long createTime, List<InventoryTextIndex.Doc> docs) throws IOException {
+        List<byte[]> encoded = new ArrayList<>();
+        long size = 4 + 4 + 8 + 4;
+        for (InventoryTextIndex.Doc doc : docs) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            writeString(out, doc.getUuid());
+            writeString(out, doc.getResourceType());
+            out.writeInt(doc.getTexts().size());
+            for (Map.Entry<String, String> e : doc.getTexts().entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+            out.flush();
+
+            encoded.add(bos.toByteArray());
+            size += bos.size();
+        }
+
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buf.putInt(MAGIC);
+            buf.putInt(VERSION);
+            buf.putLong(createTime);
+            buf.putInt(encoded.size());
+            encoded.forEach(buf::put);
+            buf.force();
+        }
+
+        Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        closeJournal();
+        Files.deleteIfExists(journalFile.toPath());
+    }
+
+    /**
+     * @return null if there is no usable snapshot
+     */
+    public synchronized Snapshot readSnapshot() {
+        if (!snapshotFile.exists()) {
+            return null;
+        }
+
+        try (FileChannel ch = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                logger.warn(String.format("unknown format of the inventory index snapshot[%s], ignore it", snapshotFile));
+                return null;
+            }
+
+            Snapshot s = new Snapshot();
+            s.createTime = buf.getLong();
+            int count = buf.getInt();
+            for (int i = 0; i < count; i++) {
+                InventoryTextIndex.Doc doc = new InventoryTextIndex.Doc(readString(buf), readString(buf));
+                int texts = buf.getInt();
+                for (int j = 0; j < texts; j++) {
+                    doc.getTexts().put(readString(buf), readString(buf));
+                }
+                s.docs.add(doc);
+            }
+
+            return s;
+        } catch (Exception e) {
+            logger.warn(String.format("failed to read the inventory index snapshot[%s], ignore it", snapshotFile), e);
+            return null;
+        }
+    }
+
+    public synchronized void appendPut(String uuid, String resourceType, String key, String text) throws IOException {
+        DataOutputStream out = getJournal();
+        out.writeByte(OP_PUT);
+        writeString(out, uuid);
+        writeString(out, resourceType);
+        writeString(out, key);
+        writeString(out, text);
+        out.flush();
+    }
+
+    public synchronized void appendRemove(String uuid) throws IOException {
+        DataOutputStream out = getJournal();
+        out.writeByte(OP_REMOVE);
+        writeString(out, uuid);
+        out.flush();
+    }
+
+    /**
+     * replays the journal into the index, a truncated tail left by a crash is ignored
+     */
+    public synchronized int replayJournal(InventoryTextIndex index) {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                byte op = in.readByte();
+                if (op == OP_PUT) {
+                    index.put(readString(in), readString(in), readString(in), readString(in));
+                } else if (op == OP_REMOVE) {
+                    index.remove(readString(in));
+                } else {
+                    logger.warn(String.format("unknown record in the inventory index journal[%s], stop replaying", journalFile));
+                    break;
+                }
+
+                count ++;
+            }
+        } catch (EOFException ignored) {
+            // end of the journal
+        } catch (IOException e) {
+            logger.warn(String.format("failed to replay the inventory index journal[%s]", journalFile), e);
+        }
+
+        return count;
+    }
+
+    public synchronized void close() {
+        closeJournal();
+    }
+
+    private DataOutputStream getJournal() throws IOException {
+        if (journal == null) {
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+        }
+
+        return journal;
+    }
+
+    private void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.warn(String.format("failed to close the inventory index journal[%s]", journalFile), e);
+        }
+
+        journal = null;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,139 @@
+package org.zstack.search;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.header.vo.ResourceAttributes;
+import org.zstack.header.vo.ResourceTypeMetadata;
+import org.zstack.header.vo.ResourceVO;
+import org.zstack.header.zql.ASTNode;
+import org.zstack.header.zql.MarshalZQLASTTreeExtensionPoint;
+import org.zstack.header.zql.RestrictByExprExtensionPoint;
+import org.zstack.header.zql.ZQLExtensionContext;
+import org.zstack.zql.ZQLContext;
+import org.zstack.zql.ast.ZQLMetadata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Narrows down a ZQL query on resources having the condition name like 'x%' or name like '%x%' to the
+ * uuids found by the InventoryTextIndex, so MySQL looks up the rows by primary key instead of scanning
+ * the table. The condition itself is kept, the index only has to find a superset of the matched resources.
+ *
+ * Changes made by other management nodes reach the index after InventoryTextIndex.broadcastInterval
+ * milliseconds; the query is not narrowed down if the index is not ready or finds more than
+ * InventoryTextIndex.maxZQLMatches resources.
+ */
+public class InventoryTextIndexZQLExtension implements MarshalZQLASTTreeExtensionPoint, RestrictByExprExtensionPoint {
+    private static final String ENTITY_NAME = "__INVENTORY_TEXT_INDEX__";
+    private static final String NAME = "name";
+    // LIKE patterns without wildcards or escapes but the leading and trailing %, and with ASCII letters,
+    // digits and separators only, which the index compares the same way as MySQL collations
+    private static final Pattern PREFIX = Pattern.compile("([\\p{Alnum} .:-]+)%");
+    private static final Pattern SUBSTRING = Pattern.compile("%([\\p{Alnum} .:-]+)%");
+
+    @Autowired
+    private InventoryTextIndexManager indexMgr;
+
+    @Override
+    public void marshalZQLASTTree(ASTNode.Query node) {
+        if (!indexMgr.isReady() || node.getConditions() == null || node.getConditions().size() != 1) {
+            return;
+        }
+
+        ZQLMetadata.InventoryMetadata src = ZQLMetadata.getInventoryMetadataByName(ZQLContext.getQueryTargetInventoryName());
+        Class voClass = src.inventoryAnnotation.mappingVOClass();
+        if (!ResourceVO.class.isAssignableFrom(voClass)) {
+            return;
+        }
+
+        // the index keeps the name by the name field of the resource
+        ResourceAttributes at = (ResourceAttributes) voClass.getAnnotation(ResourceAttributes.class);
+        if (at != null && !NAME.equals(at.nameField())) {
+            return;
+        }
+
+        List<ASTNode.Expr> exprs = new ArrayList<>();
+        collectRequiredExprs(node.getConditions().get(0), exprs);
+        for (ASTNode.Expr expr : exprs) {
+            String pattern = isNameLike(expr) ? getPattern(expr.getRight()) : null;
+            if (pattern != null && (PREFIX.matcher(pattern).matches() || SUBSTRING.matcher(pattern).matches())) {
+                ASTNode.RestrictExpr r = new ASTNode.RestrictExpr();
+                r.setEntity(ENTITY_NAME);
+                r.setField(NAME);
+                r.setOperator(expr.getOperator());
+                r.setValue(expr.getRight());
+                node.addRestrictExpr(r);
+                return;
+            }
+        }
+    }
+
+    /**
+     * collects expressions every matched row must satisfy, i.e. not under an OR
+     */
+    private static void collectRequiredExprs(ASTNode.Condition c, List<ASTNode.Expr> exprs) {
+        if (c instanceof ASTNode.Expr) {
+            exprs.add((ASTNode.Expr) c);
+        } else if (c instanceof ASTNode.LogicalOperator && "and".equalsIgnoreCase(((ASTNode.LogicalOperator) c).getOperator())) {
+            collectRequiredExprs(((ASTNode.LogicalOperator) c).getLeft(), exprs);
+            collectRequiredExprs(((ASTNode.LogicalOperator) c).getRight(), exprs);
+        }
+    }
+
+    private static boolean isNameLike(ASTNode.Expr expr) {
+        return "like".equals(expr.getOperator()) && expr.getLeft() != null && expr.getLeft().size() == 1
+                && NAME.equals(expr.getLeft().get(0));
+    }
+
+    /**
+     * @return the string without quotes, or null if the value is not a string
+     */
+    private static String getPattern(ASTNode.Value value) {
+        if (!(value instanceof ASTNode.PlainValue)) {
+            return null;
+        }
+
+        ASTNode.PlainValue v = (ASTNode.PlainValue) value;
+        if (v.getType() != String.class || v.getText().length() < 2) {
+            return null;
+        }
+
+        return v.getText().substring(1, v.getText().length() - 1);
+    }
+
+    @Override
+    public String restrictByExpr(ZQLExtensionContext context, ASTNode.RestrictExpr expr) {
+        if (!ENTITY_NAME.equals(expr.getEntity()) || !NAME.equals(expr.getField())) {
+            // not for us
+            return null;
+        }
+
+        ZQLMetadata.InventoryMetadata src = ZQLMetadata.getInventoryMetadataByName(context.getQueryTargetInventoryName());
+        String resourceType = ResourceTypeMetadata.getBaseResourceTypeFromConcreteType(src.inventoryAnnotation.mappingVOClass()).getSimpleName();
+        String pattern = getPattern(expr.getValue());
+        int max = SearchGlobalProperty.INVENTORY_TEXT_INDEX_MAX_ZQL_MATCHES;
+
+        List<String> uuids;
+        Matcher m;
+        if ((m = PREFIX.matcher(pattern)).matches()) {
+            uuids = indexMgr.searchByPrefix(m.group(1), resourceType, max + 1);
+        } else if ((m = SUBSTRING.matcher(pattern)).matches()) {
+            uuids = indexMgr.searchBySubstring(m.group(1), resourceType, max + 1);
+        } else {
+            throw new SkipThisRestrictExprException();
+        }
+
+        // without a match, the condition is left to find resources the index may miss, e.g. just created by
+        // another management node
+        if (uuids.isEmpty() || uuids.size() > max) {
+            throw new SkipThisRestrictExprException();
+        }
+
+        return String.format("(%s.uuid IN (%s))", src.simpleInventoryName(),
+                StringUtils.join(uuids.stream().map(it -> String.format("'%s'", it)).collect(Collectors.toList()), ","));
+    }
+}
@@ -0,0 +1,20 @@
+package org.zstack.search;
+
+import org.zstack.core.GlobalProperty;
+import org.zstack.core.GlobalPropertyDefinition;
+
+@GlobalPropertyDefinition
+public class SearchGlobalProperty {
+    @GlobalProperty(name="InventoryTextIndex.enabled", defaultValue = "false")
+    public static boolean INVENTORY_TEXT_INDEX_ENABLED;
+    @GlobalProperty(name="InventoryTextIndex.folder", defaultValue = "inventoryIndex")
+    public static String INVENTORY_TEXT_INDEX_FOLDER;
+    @GlobalProperty(name="InventoryTextIndex.snapshotInterval", defaultValue = "600")
+    public static long INVENTORY_TEXT_INDEX_SNAPSHOT_INTERVAL;
+    @GlobalProperty(name="InventoryTextIndex.broadcastInterval", defaultValue = "1000")
+    public static long INVENTORY_TEXT_INDEX_BROADCAST_INTERVAL;
+    @GlobalProperty(name="InventoryTextIndex.rebuildBatchSize", defaultValue = "1000")
+    public static int INVENTORY_TEXT_INDEX_REBUILD_BATCH_SIZE;
+    @GlobalProperty(name="InventoryTextIndex.maxZQLMatches", defaultValue = "1000")
+    public static int INVENTORY_TEXT_INDEX_MAX_ZQL_MATCHES;
+}
@@ -2,6 +2,7 @@ package org.zstack.zql;
 
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.lang.StringUtils;
 import org.springframework.beans.factory.annotation.Autowire;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -37,7 +38,9 @@ import org.zstack.zql.ast.visitors.result.QueryResult;
 import org.zstack.zql.ast.visitors.result.ReturnWithResult;
 
 import javax.persistence.Query;
+import java.beans.PropertyDescriptor;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
@@ -93,10 +96,12 @@ public class ZQL {
     }
 
     private List entityVOtoInventories(List vos) {
-        List ret = new ArrayList();
+        List ret = new ArrayList(vos.size());
         if (astResult.targetFieldNames != null && !astResult.targetFieldNames.isEmpty()) {
+            // resolve setters once rather than looking up every property of every row
+            List<Method> setters = resolveInventoryFieldSetters();
             vos.forEach(it -> {
-                ret.add(entityVOtoInventory(it));
+                ret.add(entityVOtoInventory(it, setters));
             });
         } else {
             vos.forEach(it -> ret.add(ToInventory.toInventory(it)));
@@ -105,19 +110,32 @@ public class ZQL {
         return ret;
     }
 
+    private List<Method> resolveInventoryFieldSetters() {
+        Map<String, Method> setters = new HashMap<>();
+        for (PropertyDescriptor pd : PropertyUtils.getPropertyDescriptors(astResult.inventoryMetadata.selfInventoryClass)) {
+            if (pd.getWriteMethod() != null) {
+                setters.put(pd.getName(), pd.getWriteMethod());
+            }
+        }
+
+        return astResult.targetFieldNames.stream().map(setters::get).collect(Collectors.toList());
+    }
+
     private Object entityVOtoInventory(Object vo) {
+        return entityVOtoInventory(vo, resolveInventoryFieldSetters());
+    }
+
+    private Object entityVOtoInventory(Object vo, List<Method> setters) {
         try {
             ZQLMetadata.InventoryMetadata inventoryMetadata = astResult.inventoryMetadata;
             Object inv = inventoryMetadata.selfInventoryClass.getConstructor().newInstance();
             if (vo instanceof Object[]) {
                 Object[] fieldValues = (Object[]) vo;
                 for (int i = 0; i < astResult.targetFieldNames.size(); i++) {
-                    String fieldName = astResult.targetFieldNames.get(i);
-                    BeanUtils.setProperty(inv, fieldName, inventoryMetadata.toInventoryFieldObject(fieldName, fieldValues[i]));
+                    setInventoryField(inv, i, fieldValues[i], setters);
                 }
             } else {
-                String fieldName =  astResult.targetFieldNames.get(0);
-                BeanUtils.setProperty(inv, fieldName, astResult.inventoryMetadata.toInventoryFieldObject(fieldName, vo));
+                setInventoryField(inv, 0, vo, setters);
             }
             return inv;
         } catch (Exception e) {
@@ -125,6 +143,17 @@ public class ZQL {
         }
     }
 
+    private void setInventoryField(Object inv, int index, Object value, List<Method> setters) throws Exception {
+        String fieldName = astResult.targetFieldNames.get(index);
+        Object fieldValue = astResult.inventoryMetadata.toInventoryFieldObject(fieldName, value);
+        Method setter = index < setters.size() ? setters.get(index) : null;
+        if (setter != null) {
+            setter.invoke(inv, fieldValue);
+        } else {
+            BeanUtils.setProperty(inv, fieldName, fieldValue);
+        }
+    }
+
     private static void callExtensions(ASTNode.Query node) {
         Platform.getComponentLoader().getComponent(PluginRegistry.class)
                 .getExtensionList(MarshalZQLASTTreeExtensionPoint.class)
@@ -10,6 +10,8 @@ import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.config.GlobalConfig;
 import org.zstack.core.config.GlobalConfigUpdateExtensionPoint;
 import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.debug.DebugManager;
+import org.zstack.core.debug.DebugSignalHandler;
 import org.zstack.core.thread.*;
 import org.zstack.core.workflow.SimpleFlowChain;
 import org.zstack.header.core.Completion;
@@ -28,17 +30,21 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.TypedQuery;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 /**
  * Created by xing5 on 2016/7/18.
  */
-public abstract class ImageCacheCleaner {
+public abstract class ImageCacheCleaner implements DebugSignalHandler {
     private static final CLogger logger = Utils.getLogger(ImageCacheCleaner.class);
 
+    public static final String DUMP_IMAGE_CACHE_CLEANER_DEBUG_SIGNAL = "DumpImageCacheCleaner";
+
     @Autowired
     protected DatabaseFacade dbf;
     @Autowired
@@ -49,12 +55,23 @@ public abstract class ImageCacheCleaner {
     protected ResourceDestinationMaker destMaker;
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private ImageCachePrewarmer prewarmer;
 
     protected Future<Void> gcThread;
 
+    // scope of a cleanup -> id of the last stale cache handled in the scope, the next cycle of the scope resumes after it
+    private final Map<String, Long> cursors = new ConcurrentHashMap<>();
+    private volatile long lastCycleDuration;
+    private volatile long lastCycleReclaimed;
+    private volatile long lastCycleFailed;
+    private volatile long lastCycleRemaining;
+    private final AtomicLong totalReclaimed = new AtomicLong();
+
     protected abstract String getPrimaryStorageType();
 
     protected void startGC() {
+        DebugManager.registerDebugSignalHandler(DUMP_IMAGE_CACHE_CLEANER_DEBUG_SIGNAL, this);
         cleanupIntervalConfig().installUpdateExtension(new GlobalConfigUpdateExtensionPoint() {
             @Override
             public void updateGlobalConfig(GlobalConfig oldConfig, GlobalConfig newConfig) {
@@ -102,43 +119,119 @@ public abstract class ImageCacheCleaner {
         });
     }
 
-    private void cleanUpVolumeCache(String psUuid, NoErrorCompletion completion) {
+    /**
+     * @return the key of the group the stale cache is deleted in, caches of a group are deleted one by one
+     */
+    protected String getCleanupGroup(ImageCacheShadowVO vo) {
+        return vo.getPrimaryStorageUuid();
+    }
+
+    protected void deleteStaleImageCache(ImageCacheShadowVO vo, Completion completion) {
+        DeleteImageCacheOnPrimaryStorageMsg msg = new DeleteImageCacheOnPrimaryStorageMsg();
+        msg.setImageUuid(vo.getImageUuid());
+        msg.setInstallPath(vo.getInstallUrl());
+        msg.setPrimaryStorageUuid(vo.getPrimaryStorageUuid());
+        bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, vo.getPrimaryStorageUuid());
+        bus.send(msg, new CloudBusCallBack(completion) {
+            @Override
+            public void run(MessageReply reply) {
+                if (reply.isSuccess()) {
+                    completion.success();
+                } else {
+                    completion.fail(reply.getError());
+                }
+            }
+        });
+    }
+
+    private static String getCleanupScope(String psUuid) {
+        return psUuid == null ? "all" : psUuid;
+    }
+
+    /**
+     * takes at most the batch size of stale caches, resuming after the cache the last cycle of the same
+     * scope stopped at, so periodic cleanups of all primary storage and cleanups of one primary storage
+     * don't move each other's cursor
+     */
+    private List<ImageCacheShadowVO> nextBatch(String scope, List<ImageCacheShadowVO> shadowVOs) {
+        int batchSize = PrimaryStorageGlobalConfig.IMAGE_CACHE_GARBAGE_COLLECTOR_BATCH_SIZE.value(Integer.class);
+        List<ImageCacheShadowVO> sorted = shadowVOs.stream()
+                .sorted(Comparator.comparingLong(ImageCacheShadowVO::getId))
+                .collect(Collectors.toList());
+
+        long cursor = cursors.getOrDefault(scope, 0L);
+        List<ImageCacheShadowVO> batch = sorted.stream().filter(vo -> vo.getId() > cursor)
+                .limit(batchSize).collect(Collectors.toList());
+        if (batch.size() < batchSize) {
+            // wraps around to the caches before the cursor
+            sorted.stream().filter(vo -> vo.getId() <= cursor)
+                    .limit(batchSize - batch.size()).forEach(batch::add);
+        }
+
+        if (!batch.isEmpty()) {
+            cursors.put(scope, batch.get(batch.size() - 1).getId());
+        }
+
+        return batch;
+    }
+
+    protected void cleanUpVolumeCache(String psUuid, NoErrorCompletion completion) {
         List<ImageCacheShadowVO> shadowVOs = createShadowImageCacheVOs(psUuid);
         if (shadowVOs == null || shadowVOs.isEmpty()) {
             completion.done();
             return;
         }
 
-        new While<>(shadowVOs).each((vo, whileCompletion) -> {
-            if (!destMaker.isManagedByUs(vo.getImageUuid())) {
-                whileCompletion.done();
-                return;
-            }
+        shadowVOs = shadowVOs.stream().filter(vo -> destMaker.isManagedByUs(vo.getImageUuid())).collect(Collectors.toList());
+        List<ImageCacheShadowVO> batch = nextBatch(getCleanupScope(psUuid), shadowVOs);
+        if (batch.isEmpty()) {
+            completion.done();
+            return;
+        }
 
-            DeleteImageCacheOnPrimaryStorageMsg msg = new DeleteImageCacheOnPrimaryStorageMsg();
-            msg.setImageUuid(vo.getImageUuid());
-            msg.setInstallPath(vo.getInstallUrl());
-            msg.setPrimaryStorageUuid(vo.getPrimaryStorageUuid());
-            bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, vo.getPrimaryStorageUuid());
-            bus.send(msg, new CloudBusCallBack(whileCompletion) {
-                @Override
-                public void run(MessageReply reply) {
-                    if (!reply.isSuccess()) {
-                        logger.warn(String.format("failed to delete the stale image cache[%s] on the primary storage[%s], %s," +
-                                "will re-try later", vo.getInstallUrl(), vo.getPrimaryStorageUuid(), reply.getError()));
-                        whileCompletion.done();
-                        return;
-                    }
+        Map<String, List<ImageCacheShadowVO>> groups = new LinkedHashMap<>();
+        batch.forEach(vo -> groups.computeIfAbsent(getCleanupGroup(vo), k -> new ArrayList<>()).add(vo));
 
+        long startTime = System.currentTimeMillis();
+        List<Long> reclaimed = Collections.synchronizedList(new ArrayList<>());
+        int remaining = shadowVOs.size();
+        new While<>(groups.values()).step((group, whileCompletion) -> new While<>(group).each((vo, groupCompletion) -> {
+            deleteStaleImageCache(vo, new Completion(groupCompletion) {
+                @Override
+                public void success() {
                     logger.debug(String.format("successfully deleted the stale image cache[%s] on the primary storage[%s]",
                             vo.getInstallUrl(), vo.getPrimaryStorageUuid()));
-                    dbf.remove(vo);
-                    whileCompletion.done();
+                    reclaimed.add(vo.getId());
+                    groupCompletion.done();
+                }
+
+                @Override
+                public void fail(ErrorCode errorCode) {
+                    logger.warn(String.format("failed to delete the stale image cache[%s] on the primary storage[%s], %s," +
+                            "will re-try later", vo.getInstallUrl(), vo.getPrimaryStorageUuid(), errorCode));
+                    groupCompletion.done();
                 }
             });
-        }).run(new NoErrorCompletion() {
+        }).run(new NoErrorCompletion(whileCompletion) {
             @Override
             public void done() {
+                whileCompletion.done();
+            }
+        }), PrimaryStorageGlobalConfig.IMAGE_CACHE_GARBAGE_COLLECTOR_PARALLELISM_DEGREE.value(Integer.class)).run(new NoErrorCompletion(completion) {
+            @Override
+            public void done() {
+                if (!reclaimed.isEmpty()) {
+                    dbf.removeByPrimaryKeys(new ArrayList<>(reclaimed), ImageCacheShadowVO.class);
+                }
+
+                lastCycleDuration = System.currentTimeMillis() - startTime;
+                lastCycleReclaimed = reclaimed.size();
+                lastCycleFailed = batch.size() - reclaimed.size();
+                lastCycleRemaining = remaining - reclaimed.size();
+                totalReclaimed.addAndGet(reclaimed.size());
+                logger.info(String.format("%s reclaimed %s stale image caches in %sms, %s failed, %s left",
+                        ImageCacheCleaner.this.getClass().getSimpleName(), lastCycleReclaimed, lastCycleDuration,
+                        lastCycleFailed, lastCycleRemaining));
                 completion.done();
             }
         });
@@ -211,6 +304,16 @@ public abstract class ImageCacheCleaner {
         }).start();
     }
 
+    @Override
+    public void handleDebugSignal() {
+        logger.debug(String.format("\n================= BEGIN %s DUMP ================" +
+                        "\nlast cycle: duration: %sms, reclaimed: %s, failed: %s, left: %s, cursors: %s" +
+                        "\ntotal reclaimed: %s" +
+                        "\n================= END %s DUMP ================",
+                getClass().getSimpleName(), lastCycleDuration, lastCycleReclaimed, lastCycleFailed, lastCycleRemaining,
+                cursors, totalReclaimed.get(), getClass().getSimpleName()));
+    }
+
     private void startGCThread() {
         logger.debug(String.format("%s starts with the interval %s secs", this.getClass().getSimpleName(), PrimaryStorageGlobalConfig.IMAGE_CACHE_GARBAGE_COLLECTOR_INTERVAL.value(Long.class)));
 
@@ -292,6 +395,11 @@ public abstract class ImageCacheCleaner {
         }
         deleted.addAll(cq.getResultList());
 
+        if (!deleted.isEmpty()) {
+            // caches of images being prewarmed are left to the next round
+            deleted = prewarmer.excludePrewarming(deleted);
+        }
+
         if (deleted.isEmpty()) {
             return null;
         }
@@ -0,0 +1,444 @@
+package org.zstack.storage.primary;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.cloudbus.ResourceDestinationMaker;
+import org.zstack.core.config.GlobalConfig;
+import org.zstack.core.config.GlobalConfigUpdateExtensionPoint;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.Q;
+import org.zstack.core.db.SQL;
+import org.zstack.core.debug.DebugManager;
+import org.zstack.core.debug.DebugSignalHandler;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.cluster.ClusterVO;
+import org.zstack.header.cluster.ClusterVO_;
+import org.zstack.header.host.HostState;
+import org.zstack.header.host.HostStatus;
+import org.zstack.header.host.HostVO;
+import org.zstack.header.host.HostVO_;
+import org.zstack.header.image.*;
+import org.zstack.header.image.ImageConstant.ImageMediaType;
+import org.zstack.header.managementnode.ManagementNodeReadyExtensionPoint;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.storage.backup.BackupStorageState;
+import org.zstack.header.storage.backup.BackupStorageStatus;
+import org.zstack.header.storage.primary.*;
+import org.zstack.header.tag.SystemTagVO;
+import org.zstack.header.tag.SystemTagVO_;
+import org.zstack.header.tag.UserTagVO;
+import org.zstack.header.tag.UserTagVO_;
+import org.zstack.header.vm.VmInstanceSpec.ImageSpec;
+import org.zstack.header.zone.ZoneVO;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.Tuple;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads images into the caches of primary storage in background before any VM needs them.
+ *
+ * An image is prewarmed into the primary storage attached to a zone or a cluster tagged by
+ * PrimaryStorageSystemTags.ZONE_IMAGE_CACHE_PREWARM_IMAGE or CLUSTER_IMAGE_CACHE_PREWARM_IMAGE, and
+ * images having a user tag are prewarmed the same way by ZONE_IMAGE_CACHE_PREWARM_USERTAG or
+ * CLUSTER_IMAGE_CACHE_PREWARM_USERTAG. For primary storage caching images per host, the image is
+ * prewarmed on every connected host of the zone or the cluster.
+ *
+ * Caches are populated by DownloadVolumeTemplateToPrimaryStorageMsg, i.e. through the same backup
+ * storage mediators and the same single flight as VM creations. At most the parallelism degree of
+ * downloads run at a time on a management node, and downloads are started no faster than the
+ * bandwidth allows for the sizes of the images.
+ */
+public class ImageCachePrewarmer implements Component, ManagementNodeReadyExtensionPoint, DebugSignalHandler {
+    private static final CLogger logger = Utils.getLogger(ImageCachePrewarmer.class);
+
+    public static final String DUMP_IMAGE_CACHE_PREWARMER_DEBUG_SIGNAL = "DumpImageCachePrewarmer";
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private CloudBus bus;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private ResourceDestinationMaker destMaker;
+
+    private static class Target {
+        String imageUuid;
+        String primaryStorageUuid;
+        String zoneUuid;
+        String hostUuid;
+        long size;
+
+        String getKey() {
+            return hostUuid == null ? String.format("%s/%s", primaryStorageUuid, imageUuid) :
+                    String.format("%s/%s/%s", primaryStorageUuid, imageUuid, hostUuid);
+        }
+    }
+
+    private final LinkedList<Target> pending = new LinkedList<>();
+    // keys of targets pending or downloading
+    private final Set<String> scheduled = new HashSet<>();
+    private int running;
+    private long nextStartTime;
+    private boolean pumpScheduled;
+
+    private long prewarmed;
+    private long failed;
+
+    private Future<Void> prewarmThread;
+
+    private synchronized void startPrewarmThread() {
+        if (prewarmThread != null) {
+            prewarmThread.cancel(true);
+        }
+
+        prewarmThread = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return PrimaryStorageGlobalConfig.IMAGE_CACHE_PREWARM_INTERVAL.value(Long.class);
+            }
+
+            @Override
+            public String getName() {
+                return "image-cache-prewarm-thread";
+            }
+
+            @Override
+            public void run() {
+                try {
+                    prewarm();
+                } catch (Throwable t) {
+                    logger.warn("unhandled exception when prewarming image caches", t);
+                }
+            }
+        });
+    }
+
+    private void prewarm() {
+        List<Target> targets = collectTargets();
+        synchronized (this) {
+            for (Target t : targets) {
+                if (scheduled.add(t.getKey())) {
+                    pending.add(t);
+                }
+            }
+        }
+
+        pump();
+    }
+
+    private List<Target> collectTargets() {
+        List<Tuple> tags = Q.New(SystemTagVO.class)
+                .select(SystemTagVO_.resourceUuid, SystemTagVO_.resourceType, SystemTagVO_.tag)
+                .like(SystemTagVO_.tag, "imageCache::prewarm::%")
+                .in(SystemTagVO_.resourceType, Arrays.asList(ZoneVO.class.getSimpleName(), ClusterVO.class.getSimpleName()))
+                .listTuple();
+        if (tags.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // image uuid -> uuids of clusters the image is prewarmed for
+        Map<String, Set<String>> images = new HashMap<>();
+        for (Tuple t : tags) {
+            String resourceUuid = t.get(0, String.class);
+            String tag = t.get(2, String.class);
+
+            List<String> clusterUuids;
+            if (ZoneVO.class.getSimpleName().equals(t.get(1, String.class))) {
+                clusterUuids = Q.New(ClusterVO.class).select(ClusterVO_.uuid).eq(ClusterVO_.zoneUuid, resourceUuid).listValues();
+            } else {
+                clusterUuids = Collections.singletonList(resourceUuid);
+            }
+
+            // tags of zones and clusters share the same formats
+            List<String> imageUuids;
+            if (PrimaryStorageSystemTags.ZONE_IMAGE_CACHE_PREWARM_IMAGE.isMatch(tag)) {
+                imageUuids = Collections.singletonList(PrimaryStorageSystemTags.ZONE_IMAGE_CACHE_PREWARM_IMAGE
+                        .getTokenByTag(tag, PrimaryStorageSystemTags.IMAGE_CACHE_PREWARM_IMAGE_TOKEN));
+            } else if (PrimaryStorageSystemTags.ZONE_IMAGE_CACHE_PREWARM_USERTAG.isMatch(tag)) {
+                String userTag = PrimaryStorageSystemTags.ZONE_IMAGE_CACHE_PREWARM_USERTAG
+                        .getTokenByTag(tag, PrimaryStorageSystemTags.IMAGE_CACHE_PREWARM_USERTAG_TOKEN);
+                imageUuids = Q.New(UserTagVO.class).select(UserTagVO_.resourceUuid)
+                        .eq(UserTagVO_.resourceType, ImageVO.class.getSimpleName())
+                        .eq(UserTagVO_.tag, userTag)
+                        .listValues();
+            } else {
+                continue;
+            }
+
+            imageUuids.stream().filter(destMaker::isManagedByUs)
+                    .forEach(uuid -> images.computeIfAbsent(uuid, k -> new HashSet<>()).addAll(clusterUuids));
+        }
+
+        List<Target> targets = new ArrayList<>();
+        images.forEach((imageUuid, clusterUuids) -> {
+            if (!clusterUuids.isEmpty()) {
+                collectTargets(imageUuid, clusterUuids, targets);
+            }
+        });
+        return targets;
+    }
+
+    private void collectTargets(String imageUuid, Set<String> clusterUuids, List<Target> targets) {
+        ImageVO image = dbf.findByUuid(imageUuid, ImageVO.class);
+        if (image == null || image.getStatus() != ImageStatus.Ready || image.getState() != ImageState.Enabled
+                || image.getMediaType() != ImageMediaType.RootVolumeTemplate) {
+            return;
+        }
+
+        List<Tuple> pss = SQL.New("select distinct ps.uuid, ps.type, ps.zoneUuid, ref.clusterUuid" +
+                " from PrimaryStorageVO ps, PrimaryStorageClusterRefVO ref" +
+                " where ps.uuid = ref.primaryStorageUuid and ref.clusterUuid in (:clusterUuids)" +
+                " and ps.state = :state and ps.status = :status", Tuple.class)
+                .param("clusterUuids", clusterUuids)
+                .param("state", PrimaryStorageState.Enabled)
+                .param("status", PrimaryStorageStatus.Connected)
+                .list();
+
+        // primary storage uuid -> clusters of the primary storage to prewarm
+        Map<String, List<String>> psClusters = new HashMap<>();
+        Map<String, Tuple> psTuples = new HashMap<>();
+        for (Tuple t : pss) {
+            String psUuid = t.get(0, String.class);
+            psClusters.computeIfAbsent(psUuid, k -> new ArrayList<>()).add(t.get(3, String.class));
+            psTuples.putIfAbsent(psUuid, t);
+        }
+
+        psClusters.forEach((psUuid, clusters) -> {
+            Tuple t = psTuples.get(psUuid);
+            if (!PrimaryStorageType.valueOf(t.get(1, String.class)).isImageCachedPerHost()) {
+                if (!isCached(psUuid, imageUuid, null)) {
+                    targets.add(makeTarget(image, psUuid, t.get(2, String.class), null));
+                }
+                return;
+            }
+
+            List<String> hostUuids = Q.New(HostVO.class).select(HostVO_.uuid)
+                    .in(HostVO_.clusterUuid, clusters)
+                    .eq(HostVO_.status, HostStatus.Connected)
+                    .eq(HostVO_.state, HostState.Enabled)
+                    .listValues();
+            for (String hostUuid : hostUuids) {
+                if (!isCached(psUuid, imageUuid, hostUuid)) {
+                    targets.add(makeTarget(image, psUuid, t.get(2, String.class), hostUuid));
+                }
+            }
+        });
+    }
+
+    private boolean isCached(String psUuid, String imageUuid, String hostUuid) {
+        Q q = Q.New(ImageCacheVO.class)
+                .eq(ImageCacheVO_.primaryStorageUuid, psUuid)
+                .eq(ImageCacheVO_.imageUuid, imageUuid);
+        if (hostUuid != null) {
+            // caches per host carry the host uuid in their install urls
+            q.like(ImageCacheVO_.installUrl, String.format("%%%s%%", hostUuid));
+        }
+
+        return q.isExists();
+    }
+
+    private Target makeTarget(ImageVO image, String psUuid, String zoneUuid, String hostUuid) {
+        Target t = new Target();
+        t.imageUuid = image.getUuid();
+        t.primaryStorageUuid = psUuid;
+        t.zoneUuid = zoneUuid;
+        t.hostUuid = hostUuid;
+        t.size = image.getActualSize();
+        return t;
+    }
+
+    private void pump() {
+        List<Target> toStart = new ArrayList<>();
+        synchronized (this) {
+            int parallelism = PrimaryStorageGlobalConfig.IMAGE_CACHE_PREWARM_PARALLELISM_DEGREE.value(Integer.class);
+            long bandwidth = PrimaryStorageGlobalConfig.IMAGE_CACHE_PREWARM_BANDWIDTH.value(Long.class);
+            long now = System.currentTimeMillis();
+
+            while (running < parallelism && !pending.isEmpty()) {
+                if (bandwidth > 0 && nextStartTime > now) {
+                    if (!pumpScheduled) {
+                        pumpScheduled = true;
+                        thdf.submitTimeoutTask(() -> {
+                            synchronized (this) {
+                                pumpScheduled = false;
+                            }
+
+                            pump();
+                        }, TimeUnit.MILLISECONDS, nextStartTime - now);
+                    }
+                    break;
+                }
+
+                Target t = pending.poll();
+                running++;
+                if (bandwidth > 0) {
+                    // the next download starts after this one could have been transferred at the bandwidth
+                    nextStartTime = Math.max(now, nextStartTime) + t.size * 1000 / bandwidth;
+                }
+                toStart.add(t);
+            }
+        }
+
+        toStart.forEach(this::download);
+    }
+
+    private void done(Target t, boolean success) {
+        synchronized (this) {
+            running--;
+            scheduled.remove(t.getKey());
+            if (success) {
+                prewarmed++;
+            } else {
+                failed++;
+            }
+        }
+
+        pump();
+    }
+
+    private void download(Target t) {
+        ImageBackupStorageRefVO ref;
+        try {
+            ref = findBackupStorageRef(t);
+        } catch (Throwable e) {
+            logger.warn(String.format("failed to find a backup storage to prewarm the image[uuid:%s] on the primary storage[uuid:%s]",
+                    t.imageUuid, t.primaryStorageUuid), e);
+            done(t, false);
+            return;
+        }
+
+        ImageVO image = dbf.findByUuid(t.imageUuid, ImageVO.class);
+        if (ref == null || image == null) {
+            logger.debug(String.format("no backup storage available to prewarm the image[uuid:%s] on the primary storage[uuid:%s] now",
+                    t.imageUuid, t.primaryStorageUuid));
+            done(t, false);
+            return;
+        }
+
+        ImageSpec spec = new ImageSpec();
+        spec.setInventory(ImageInventory.valueOf(image));
+        spec.setSelectedBackupStorage(ImageBackupStorageRefInventory.valueOf(ref));
+
+        DownloadVolumeTemplateToPrimaryStorageMsg msg = new DownloadVolumeTemplateToPrimaryStorageMsg();
+        msg.setPrimaryStorageUuid(t.primaryStorageUuid);
+        msg.setHostUuid(t.hostUuid);
+        msg.setTemplateSpec(spec);
+        bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, t.primaryStorageUuid);
+        bus.send(msg, new CloudBusCallBack(null) {
+            @Override
+            public void run(MessageReply reply) {
+                if (reply.isSuccess()) {
+                    logger.debug(String.format("prewarmed the image[uuid:%s] in the cache of the primary storage[uuid:%s, host:%s]",
+                            t.imageUuid, t.primaryStorageUuid, t.hostUuid));
+                } else {
+                    logger.warn(String.format("failed to prewarm the image[uuid:%s] in the cache of the primary storage[uuid:%s, host:%s]," +
+                            " will retry in next round, %s", t.imageUuid, t.primaryStorageUuid, t.hostUuid, reply.getError()));
+                }
+
+                done(t, reply.isSuccess());
+            }
+        });
+    }
+
+    private ImageBackupStorageRefVO findBackupStorageRef(Target t) {
+        List<ImageBackupStorageRefVO> refs = SQL.New("select ref from ImageBackupStorageRefVO ref, BackupStorageVO bs, BackupStorageZoneRefVO zref" +
+                " where ref.imageUuid = :imageUuid and ref.status = :refStatus and bs.uuid = ref.backupStorageUuid" +
+                " and bs.status = :bsStatus and bs.state = :bsState" +
+                " and zref.backupStorageUuid = bs.uuid and zref.zoneUuid = :zoneUuid", ImageBackupStorageRefVO.class)
+                .param("imageUuid", t.imageUuid)
+                .param("refStatus", ImageStatus.Ready)
+                .param("bsStatus", BackupStorageStatus.Connected)
+                .param("bsState", BackupStorageState.Enabled)
+                .param("zoneUuid", t.zoneUuid)
+                .list();
+
+        String psType = Q.New(PrimaryStorageVO.class).select(PrimaryStorageVO_.type)
+                .eq(PrimaryStorageVO_.uuid, t.primaryStorageUuid).findValue();
+        if (psType == null) {
+            return null;
+        }
+
+        List<String> supported = PrimaryStorageType.valueOf(psType).findBackupStorage(t.primaryStorageUuid);
+        return refs.stream().filter(ref -> supported == null || supported.contains(ref.getBackupStorageUuid()))
+                .findFirst().orElse(null);
+    }
+
+    /**
+     * @return ids of the image caches whose images are not pending or being prewarmed on their primary storage
+     */
+    public List<Long> excludePrewarming(List<Long> imageCacheIds) {
+        Set<String> prefixes = new HashSet<>();
+        synchronized (this) {
+            if (scheduled.isEmpty()) {
+                return imageCacheIds;
+            }
+
+            for (String key : scheduled) {
+                String[] parts = key.split("/");
+                prefixes.add(String.format("%s/%s", parts[0], parts[1]));
+            }
+        }
+
+        List<Tuple> caches = Q.New(ImageCacheVO.class)
+                .select(ImageCacheVO_.id, ImageCacheVO_.primaryStorageUuid, ImageCacheVO_.imageUuid)
+                .in(ImageCacheVO_.id, imageCacheIds)
+                .listTuple();
+        List<Long> ret = new ArrayList<>();
+        for (Tuple t : caches) {
+            if (!prefixes.contains(String.format("%s/%s", t.get(1, String.class), t.get(2, String.class)))) {
+                ret.add(t.get(0, Long.class));
+            }
+        }
+
+        return ret;
+    }
+
+    @Override
+    public synchronized void handleDebugSignal() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n================= BEGIN IMAGE CACHE PREWARMER DUMP ================");
+        sb.append(String.format("\nprewarmed: %s, failed: %s, downloading: %s, pending: %s", prewarmed, failed, running, pending.size()));
+        for (Target t : pending) {
+            sb.append(String.format("\npending image[uuid:%s, size:%s] on primary storage[uuid:%s, host:%s]",
+                    t.imageUuid, t.size, t.primaryStorageUuid, t.hostUuid));
+        }
+        sb.append("\n================= END IMAGE CACHE PREWARMER DUMP ================");
+        logger.debug(sb.toString());
+    }
+
+    @Override
+    public void managementNodeReady() {
+        PrimaryStorageGlobalConfig.IMAGE_CACHE_PREWARM_INTERVAL.installUpdateExtension(new GlobalConfigUpdateExtensionPoint() {
+            @Override
+            public void updateGlobalConfig(GlobalConfig oldConfig, GlobalConfig newConfig) {
+                startPrewarmThread();
+            }
+        });
+
+        startPrewarmThread();
+    }
+
+    @Override
+    public boolean start() {
+        DebugManager.registerDebugSignalHandler(DUMP_IMAGE_CACHE_PREWARMER_DEBUG_SIGNAL, this);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+}
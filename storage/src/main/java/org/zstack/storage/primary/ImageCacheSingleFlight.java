@@ -0,0 +1,198 @@
+package org.zstack.storage.primary;
+
+import org.zstack.core.debug.DebugManager;
+import org.zstack.core.debug.DebugSignalHandler;
+import org.zstack.header.Component;
+import org.zstack.header.core.ReturnValueCompletion;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static org.zstack.core.Platform.inerr;
+
+/**
+ * Populates an image cache at most once at a time on a management node.
+ *
+ * Callers populating the cache of the same image on the same primary storage, or on the same host
+ * for primary storage caching images per host, join the population in flight instead of queueing
+ * behind it and checking the cache again one by one; all of them get the result of the population
+ * in flight when it completes.
+ */
+public class ImageCacheSingleFlight implements Component, DebugSignalHandler {
+    private static final CLogger logger = Utils.getLogger(ImageCacheSingleFlight.class);
+
+    public static final String DUMP_IMAGE_CACHE_SINGLE_FLIGHT_DEBUG_SIGNAL = "DumpImageCacheSingleFlight";
+
+    public static class FlightInfo {
+        public String primaryStorageUuid;
+        public String imageUuid;
+        public String hostUuid;
+        public String stage;
+        public int waiters;
+        public long elapsed;
+    }
+
+    private static class Flight {
+        final String primaryStorageUuid;
+        final String imageUuid;
+        final String hostUuid;
+        final long startTime = System.currentTimeMillis();
+        final List<ReturnValueCompletion> waiters = new ArrayList<>();
+        volatile String stage = "started";
+
+        Flight(String primaryStorageUuid, String imageUuid, String hostUuid) {
+            this.primaryStorageUuid = primaryStorageUuid;
+            this.imageUuid = imageUuid;
+            this.hostUuid = hostUuid;
+        }
+    }
+
+    private final Map<String, Flight> flights = new HashMap<>();
+
+    private final AtomicLong populations = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+
+    private static String makeKey(String psUuid, String imageUuid, String hostUuid) {
+        return hostUuid == null ? String.format("%s/%s", psUuid, imageUuid) : String.format("%s/%s/%s", psUuid, imageUuid, hostUuid);
+    }
+
+    /**
+     * @param hostUuid    the host the image is cached on, null for primary storage caching an image once for all hosts
+     * @param populator   checks and populates the cache, it runs only if no population of the same cache is in flight
+     */
+    public <T> void populate(String psUuid, String imageUuid, String hostUuid,
+                             ReturnValueCompletion<T> completion, Consumer<ReturnValueCompletion<T>> populator) {
+        String key = makeKey(psUuid, imageUuid, hostUuid);
+        Flight flight;
+        synchronized (flights) {
+            flight = flights.get(key);
+            if (flight != null) {
+                flight.waiters.add(completion);
+                joined.incrementAndGet();
+                logger.debug(String.format("join the population of the image[uuid:%s] cache on the primary storage[uuid:%s, host:%s]" +
+                        " in flight, %s waiters", imageUuid, psUuid, hostUuid, flight.waiters.size()));
+                return;
+            }
+
+            flight = new Flight(psUuid, imageUuid, hostUuid);
+            flight.waiters.add(completion);
+            flights.put(key, flight);
+        }
+
+        populations.incrementAndGet();
+
+        // the completion also backs the populator up, an exception thrown inside fails all waiters
+        ReturnValueCompletion<T> done = new ReturnValueCompletion<T>(null) {
+            @Override
+            public void success(T returnValue) {
+                for (ReturnValueCompletion<T> w : ImageCacheSingleFlight.this.<T>land(key)) {
+                    try {
+                        w.success(returnValue);
+                    } catch (Throwable t) {
+                        logger.warn(String.format("unhandled exception when completing a waiter of the image[uuid:%s] cache population", imageUuid), t);
+                    }
+                }
+            }
+
+            @Override
+            public void fail(ErrorCode errorCode) {
+                for (ReturnValueCompletion<T> w : ImageCacheSingleFlight.this.<T>land(key)) {
+                    try {
+                        w.fail(errorCode);
+                    } catch (Throwable t) {
+                        logger.warn(String.format("unhandled exception when failing a waiter of the image[uuid:%s] cache population", imageUuid), t);
+                    }
+                }
+            }
+        };
+
+        try {
+            populator.accept(done);
+        } catch (Throwable t) {
+            logger.warn(String.format("unhandled exception when populating the image[uuid:%s] cache on the primary storage[uuid:%s, host:%s]",
+                    imageUuid, psUuid, hostUuid), t);
+            done.fail(inerr("%s", t.getMessage()));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<ReturnValueCompletion<T>> land(String key) {
+        Flight flight;
+        synchronized (flights) {
+            flight = flights.remove(key);
+        }
+
+        if (flight == null) {
+            // completed already
+            return new ArrayList<>();
+        }
+
+        List<ReturnValueCompletion<T>> ret = new ArrayList<>();
+        flight.waiters.forEach(w -> ret.add((ReturnValueCompletion<T>) w));
+        return ret;
+    }
+
+    /**
+     * records the stage of the population in flight, e.g. allocating capacity or downloading
+     */
+    public void progress(String psUuid, String imageUuid, String hostUuid, String stage) {
+        Flight flight;
+        synchronized (flights) {
+            flight = flights.get(makeKey(psUuid, imageUuid, hostUuid));
+        }
+
+        if (flight != null) {
+            flight.stage = stage;
+        }
+    }
+
+    public List<FlightInfo> getFlights() {
+        long now = System.currentTimeMillis();
+        List<FlightInfo> ret = new ArrayList<>();
+        synchronized (flights) {
+            for (Flight f : flights.values()) {
+                FlightInfo info = new FlightInfo();
+                info.primaryStorageUuid = f.primaryStorageUuid;
+                info.imageUuid = f.imageUuid;
+                info.hostUuid = f.hostUuid;
+                info.stage = f.stage;
+                info.waiters = f.waiters.size();
+                info.elapsed = now - f.startTime;
+                ret.add(info);
+            }
+        }
+
+        return ret;
+    }
+
+    @Override
+    public void handleDebugSignal() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n================= BEGIN IMAGE CACHE SINGLE FLIGHT DUMP ================");
+        sb.append(String.format("\npopulations: %s, callers joined a population in flight: %s", populations.get(), joined.get()));
+        for (FlightInfo info : getFlights()) {
+            sb.append(String.format("\nimage[uuid:%s] on primary storage[uuid:%s, host:%s]: stage: %s, waiters: %s, elapsed: %sms",
+                    info.imageUuid, info.primaryStorageUuid, info.hostUuid, info.stage, info.waiters, info.elapsed));
+        }
+        sb.append("\n================= END IMAGE CACHE SINGLE FLIGHT DUMP ================");
+        logger.debug(sb.toString());
+    }
+
+    @Override
+    public boolean start() {
+        DebugManager.registerDebugSignalHandler(DUMP_IMAGE_CACHE_SINGLE_FLIGHT_DEBUG_SIGNAL, this);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+}
@@ -90,6 +90,10 @@ public abstract class PrimaryStorageBase extends AbstractPrimaryStorage {
     protected PrimaryStoragePingTracker tracker;
     @Autowired
     protected StorageTrash trash;
+    @Autowired
+    protected PrimaryStorageUsageTracker usageTracker;
+    @Autowired
+    protected ImageCacheSingleFlight imageCacheSingleFlight;
 
     public PrimaryStorageBase() {
     }
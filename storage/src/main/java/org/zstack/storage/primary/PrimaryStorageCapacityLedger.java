@@ -0,0 +1,300 @@
+package org.zstack.storage.primary;
+
+import org.zstack.core.db.Q;
+import org.zstack.core.db.SQL;
+import org.zstack.core.debug.DebugManager;
+import org.zstack.core.debug.DebugSignalHandler;
+import org.zstack.header.Component;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.storage.primary.PrimaryStorageCapacityVO;
+import org.zstack.header.storage.primary.PrimaryStorageCapacityVO_;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies changes of the available capacity of primary storage as deltas, without locking
+ * PrimaryStorageCapacityVO and writing back what was read.
+ *
+ * Every change is a relative update of the capacity row and a reservation checks the available
+ * capacity in the same statement, so the database stays the only judge of the capacity even
+ * with multiple management nodes and the row is locked only as long as the statement runs.
+ *
+ * Changes of a primary storage submitted while an update of it is running are appended to the
+ * ledger of the primary storage and compacted into one update by the next thread taking the
+ * lead. The compacted update checks every reservation and every increase of the batch as if the
+ * changes were applied one by one in their order. If it's rejected, the changes are applied one by
+ * one, so a batch never fails a change that succeeds alone nor applies one that fails alone.
+ *
+ * A caller whose change is in a batch being applied waits until the batch is done, i.e. at most the
+ * time of the update of the batch ahead of it and of its own batch. The wait is not interrupted,
+ * because the change is applied by the leader anyway and the caller must learn its result.
+ */
+public class PrimaryStorageCapacityLedger implements Component, DebugSignalHandler {
+    private static final CLogger logger = Utils.getLogger(PrimaryStorageCapacityLedger.class);
+
+    public static final String DUMP_PRIMARY_STORAGE_CAPACITY_LEDGER_DEBUG_SIGNAL = "DumpPrimaryStorageCapacityLedger";
+
+    public enum Result {
+        Applied,
+        ShortOfCapacity,
+        ExceedTotalCapacity,
+        NotFound
+    }
+
+    private enum Op {
+        // decreases the available capacity if there is enough
+        Reserve,
+        // decreases the available capacity unconditionally
+        Decrease,
+        // increases the available capacity if it doesn't exceed the total capacity
+        Increase
+    }
+
+    private static class Entry {
+        final Op op;
+        final long size;
+        private Result result;
+        private RuntimeException error;
+        private boolean lead;
+
+        Entry(Op op, long size) {
+            this.op = op;
+            this.size = size;
+        }
+
+        synchronized void complete(Result r) {
+            result = r;
+            notifyAll();
+        }
+
+        synchronized void fail(RuntimeException e) {
+            error = e;
+            notifyAll();
+        }
+
+        synchronized void lead() {
+            lead = true;
+            notifyAll();
+        }
+
+        /**
+         * @return true if the entry is handed the lead before it completes
+         */
+        synchronized boolean await() {
+            boolean interrupted = false;
+            while (result == null && error == null && !lead) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (lead) {
+                lead = false;
+                return true;
+            }
+
+            return false;
+        }
+
+        synchronized Result get() {
+            if (error != null) {
+                throw error;
+            }
+
+            return result;
+        }
+    }
+
+    private static class Ledger {
+        final List<Entry> entries = new ArrayList<>();
+        boolean applying;
+    }
+
+    private final Map<String, Ledger> ledgers = new HashMap<>();
+
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong compacted = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+
+    public Result reserve(String psUuid, long size) {
+        return submit(psUuid, new Entry(Op.Reserve, size));
+    }
+
+    public Result decrease(String psUuid, long size) {
+        return submit(psUuid, new Entry(Op.Decrease, size));
+    }
+
+    public Result increase(String psUuid, long size) {
+        return submit(psUuid, new Entry(Op.Increase, size));
+    }
+
+    private Result submit(String psUuid, Entry e) {
+        changes.incrementAndGet();
+
+        boolean lead;
+        synchronized (ledgers) {
+            Ledger l = ledgers.computeIfAbsent(psUuid, k -> new Ledger());
+            l.entries.add(e);
+            lead = !l.applying;
+            l.applying = true;
+        }
+
+        if (!lead) {
+            lead = e.await();
+        }
+
+        // the entry is in the batch drained by its leader, so it completes after drain()
+        while (lead) {
+            drain(psUuid);
+            lead = e.await();
+        }
+
+        return e.get();
+    }
+
+    private void drain(String psUuid) {
+        List<Entry> batch;
+        synchronized (ledgers) {
+            Ledger l = ledgers.get(psUuid);
+            batch = new ArrayList<>(l.entries);
+            l.entries.clear();
+        }
+
+        try {
+            apply(psUuid, batch);
+        } catch (Throwable t) {
+            logger.warn(String.format("failed to apply %s capacity changes of the primary storage[uuid:%s]", batch.size(), psUuid), t);
+            RuntimeException ex = t instanceof RuntimeException ? (RuntimeException) t : new CloudRuntimeException(t);
+            batch.stream().filter(e -> e.result == null).forEach(e -> e.fail(ex));
+        } finally {
+            synchronized (ledgers) {
+                Ledger l = ledgers.get(psUuid);
+                if (l.entries.isEmpty()) {
+                    ledgers.remove(psUuid);
+                } else {
+                    // hands the lead to the oldest waiting entry, so no thread drains for others forever
+                    l.entries.get(0).lead();
+                }
+            }
+        }
+    }
+
+    private void apply(String psUuid, List<Entry> batch) {
+        if (batch.size() > 1) {
+            compacted.addAndGet(batch.size());
+            if (applyCompacted(psUuid, batch)) {
+                batch.forEach(e -> e.complete(Result.Applied));
+                return;
+            }
+
+            replayed.addAndGet(batch.size());
+        }
+
+        for (Entry e : batch) {
+            e.complete(applyOne(psUuid, e));
+        }
+    }
+
+    private boolean applyCompacted(String psUuid, List<Entry> batch) {
+        // delta: the sum of all changes
+        // lowest: the lowest change summed up to a reservation, which must leave the capacity non-negative
+        // highest: the highest change summed up to an increase, which must not exceed the total capacity
+        long delta = 0;
+        Long lowest = null;
+        Long highest = null;
+        for (Entry e : batch) {
+            delta += e.op == Op.Increase ? e.size : -e.size;
+            if (e.op == Op.Reserve) {
+                lowest = lowest == null ? delta : Math.min(lowest, delta);
+            } else if (e.op == Op.Increase) {
+                highest = highest == null ? delta : Math.max(highest, delta);
+            }
+        }
+
+        StringBuilder sql = new StringBuilder("update PrimaryStorageCapacityVO c set c.availableCapacity = c.availableCapacity + :delta" +
+                " where c.uuid = :uuid");
+        if (lowest != null) {
+            sql.append(" and c.availableCapacity + :lowest >= 0");
+        }
+        if (highest != null) {
+            sql.append(" and c.availableCapacity + :highest <= c.totalCapacity");
+        }
+
+        SQL q = SQL.New(sql.toString()).param("delta", delta).param("uuid", psUuid);
+        if (lowest != null) {
+            q.param("lowest", lowest);
+        }
+        if (highest != null) {
+            q.param("highest", highest);
+        }
+
+        updates.incrementAndGet();
+        return q.execute() > 0;
+    }
+
+    private Result applyOne(String psUuid, Entry e) {
+        updates.incrementAndGet();
+
+        int updated;
+        if (e.op == Op.Reserve) {
+            updated = SQL.New("update PrimaryStorageCapacityVO c set c.availableCapacity = c.availableCapacity - :size" +
+                    " where c.uuid = :uuid and c.availableCapacity >= :size")
+                    .param("size", e.size).param("uuid", psUuid).execute();
+        } else if (e.op == Op.Decrease) {
+            updated = SQL.New("update PrimaryStorageCapacityVO c set c.availableCapacity = c.availableCapacity - :size" +
+                    " where c.uuid = :uuid")
+                    .param("size", e.size).param("uuid", psUuid).execute();
+        } else {
+            updated = SQL.New("update PrimaryStorageCapacityVO c set c.availableCapacity = c.availableCapacity + :size" +
+                    " where c.uuid = :uuid and c.availableCapacity + :size <= c.totalCapacity")
+                    .param("size", e.size).param("uuid", psUuid).execute();
+        }
+
+        if (updated > 0) {
+            if (logger.isTraceEnabled()) {
+                logger.trace(String.format("[Primary Storage Capacity] %s %s bytes on the primary storage[uuid:%s]", e.op, e.size, psUuid));
+            }
+
+            return Result.Applied;
+        }
+
+        if (!Q.New(PrimaryStorageCapacityVO.class).eq(PrimaryStorageCapacityVO_.uuid, psUuid).isExists()) {
+            return Result.NotFound;
+        }
+
+        return e.op == Op.Increase ? Result.ExceedTotalCapacity : Result.ShortOfCapacity;
+    }
+
+    @Override
+    public void handleDebugSignal() {
+        long c = changes.get();
+        logger.debug(String.format("\n================= BEGIN PRIMARY STORAGE CAPACITY LEDGER DUMP ================" +
+                        "\ncapacity changes: %s, database updates: %s (%.2f per change), changes compacted: %s, changes replayed one by one: %s" +
+                        "\n================= END PRIMARY STORAGE CAPACITY LEDGER DUMP ================",
+                c, updates.get(), c == 0 ? 0 : (double) updates.get() / c, compacted.get(), replayed.get()));
+    }
+
+    @Override
+    public boolean start() {
+        DebugManager.registerDebugSignalHandler(DUMP_PRIMARY_STORAGE_CAPACITY_LEDGER_DEBUG_SIGNAL, this);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+}
@@ -39,6 +39,8 @@ public class PrimaryStorageCapacityRecalculator {
     private PrimaryStorageOverProvisioningManager ratioMgr;
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private PrimaryStorageUsageTracker usageTracker;
 
     public List<String> psUuids;
     private Map<String, RecalculatePrimaryStorageCapacityExtensionPoint> recalculateCapacityExtensions = new HashMap<>();
@@ -62,85 +64,16 @@ public class PrimaryStorageCapacityRecalculator {
         }
 
         final Map<String, Long> psCap = new HashMap<>();
-        new Runnable() {
-            @Override
-            @Transactional(readOnly = true)
-            public void run() {
-                // calculate all volume size
-                {
-                    String sql = "select sum(vol.size), vol.primaryStorageUuid" +
-                            " from VolumeVO vol" +
-                            " where vol.primaryStorageUuid in (:psUuids)" +
-                            " and vol.status in (:volStatus)" +
-                            " group by vol.primaryStorageUuid";
-                    TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
-                    q.setParameter("psUuids", psUuids);
-                    List<VolumeStatus> needCountVolumeStates = asList(VolumeStatus.Creating, VolumeStatus.Ready, VolumeStatus.Deleted);
-                    q.setParameter("volStatus", needCountVolumeStates);
-                    List<Tuple> ts = q.getResultList();
-
-                    for (Tuple t : ts) {
-                        if (t.get(0, Long.class) == null) {
-                            // no volume
-                            continue;
-                        }
-
-                        long cap = t.get(0, Long.class);
-                        String psUuid = t.get(1, String.class);
-                        psCap.put(psUuid, ratioMgr.calculateByRatio(psUuid, cap));
-                    }
-                }
-
-                // calculate all image cache size
-                {
-                    String sql = "select sum(i.size), i.primaryStorageUuid" +
-                            " from ImageCacheVO i" +
-                            " where i.primaryStorageUuid in (:psUuids)" +
-                            " group by i.primaryStorageUuid";
-                    TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
-                    q.setParameter("psUuids", psUuids);
-                    List<Tuple> ts = q.getResultList();
-                    for (Tuple t : ts) {
-                        if (t.get(0, Long.class) == null) {
-                            // no image cache
-                            continue;
-                        }
-
-                        // templates in image cache are physical size
-                        // do not calculate over-provisioning
-                        long cap = t.get(0, Long.class);
-                        String psUuid = t.get(1, String.class);
-                        Long ncap = psCap.get(psUuid);
-                        ncap = ncap == null ? cap : ncap + cap;
-                        psCap.put(psUuid, ncap);
-                    }
-                }
-
-                // calculate all snapshot size
-                {
-                    String sql = "select sum(snapshot.size), snapshot.primaryStorageUuid" +
-                            " from VolumeSnapshotVO snapshot" +
-                            " where snapshot.primaryStorageUuid in (:psUuids)" +
-                            " group by snapshot.primaryStorageUuid";
-                    TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
-                    q.setParameter("psUuids", psUuids);
-                    List<Tuple> ts = q.getResultList();
-
-                    for (Tuple t : ts) {
-                        if (t.get(0, Long.class) == null) {
-                            // no snapshot
-                            continue;
-                        }
-
-                        long cap = t.get(0, Long.class);
-                        String psUuid = t.get(1, String.class);
-                        Long ncap = psCap.get(psUuid);
-                        ncap = ncap == null ? cap : ncap + cap;
-                        psCap.put(psUuid, ncap);
-                    }
+        if (usageTracker.isEnabled()) {
+            for (String psUuid : psUuids) {
+                Long used = usageTracker.getUsedCapacity(psUuid);
+                if (used != null) {
+                    psCap.put(psUuid, used);
                 }
             }
-        }.run();
+        } else {
+            calculateUsedCapacityByScan(psCap);
+        }
 
 
         if (psCap.isEmpty()) {
@@ -155,7 +88,12 @@ public class PrimaryStorageCapacityRecalculator {
                                 " where ps.uuid = :psUuid";
                         TypedQuery<String> q = dbf.getEntityManager().createQuery(sql, String.class);
                         q.setParameter("psUuid", psUuid);
-                        String type = q.getSingleResult();
+                        List<String> types = q.getResultList();
+                        if (types.isEmpty()) {
+                            logger.debug(String.format("the primary storage[uuid:%s] is deleted, skip re-calculating its capacity", psUuid));
+                            return;
+                        }
+                        String type = types.get(0);
 
                         RecalculatePrimaryStorageCapacityExtensionPoint ext = recalculateCapacityExtensions.get(type);
                         RecalculatePrimaryStorageCapacityStruct struct = new RecalculatePrimaryStorageCapacityStruct();
@@ -202,7 +140,12 @@ public class PrimaryStorageCapacityRecalculator {
                                 " where ps.uuid = :psUuid";
                         TypedQuery<String> q = dbf.getEntityManager().createQuery(sql, String.class);
                         q.setParameter("psUuid", psUuid);
-                        String type = q.getSingleResult();
+                        List<String> types = q.getResultList();
+                        if (types.isEmpty()) {
+                            logger.debug(String.format("the primary storage[uuid:%s] is deleted, skip re-calculating its capacity", psUuid));
+                            return;
+                        }
+                        String type = types.get(0);
 
                         RecalculatePrimaryStorageCapacityExtensionPoint ext = recalculateCapacityExtensions.get(type);
                         RecalculatePrimaryStorageCapacityStruct struct = new RecalculatePrimaryStorageCapacityStruct();
@@ -236,4 +179,86 @@ public class PrimaryStorageCapacityRecalculator {
             }
         }
     }
+
+    private void calculateUsedCapacityByScan(final Map<String, Long> psCap) {
+        new Runnable() {
+            @Override
+            @Transactional(readOnly = true)
+            public void run() {
+                // calculate all volume size
+                {
+                    String sql = "select sum(vol.size), vol.primaryStorageUuid" +
+                            " from VolumeVO vol" +
+                            " where vol.primaryStorageUuid in (:psUuids)" +
+                            " and vol.status in (:volStatus)" +
+                            " group by vol.primaryStorageUuid";
+                    TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+                    q.setParameter("psUuids", psUuids);
+                    List<VolumeStatus> needCountVolumeStates = asList(VolumeStatus.Creating, VolumeStatus.Ready, VolumeStatus.Deleted);
+                    q.setParameter("volStatus", needCountVolumeStates);
+                    List<Tuple> ts = q.getResultList();
+
+                    for (Tuple t : ts) {
+                        if (t.get(0, Long.class) == null) {
+                            // no volume
+                            continue;
+                        }
+
+                        long cap = t.get(0, Long.class);
+                        String psUuid = t.get(1, String.class);
+                        psCap.put(psUuid, ratioMgr.calculateByRatio(psUuid, cap));
+                    }
+                }
+
+                // calculate all image cache size
+                {
+                    String sql = "select sum(i.size), i.primaryStorageUuid" +
+                            " from ImageCacheVO i" +
+                            " where i.primaryStorageUuid in (:psUuids)" +
+                            " group by i.primaryStorageUuid";
+                    TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+                    q.setParameter("psUuids", psUuids);
+                    List<Tuple> ts = q.getResultList();
+                    for (Tuple t : ts) {
+                        if (t.get(0, Long.class) == null) {
+                            // no image cache
+                            continue;
+                        }
+
+                        // templates in image cache are physical size
+                        // do not calculate over-provisioning
+                        long cap = t.get(0, Long.class);
+                        String psUuid = t.get(1, String.class);
+                        Long ncap = psCap.get(psUuid);
+                        ncap = ncap == null ? cap : ncap + cap;
+                        psCap.put(psUuid, ncap);
+                    }
+                }
+
+                // calculate all snapshot size
+                {
+                    String sql = "select sum(snapshot.size), snapshot.primaryStorageUuid" +
+                            " from VolumeSnapshotVO snapshot" +
+                            " where snapshot.primaryStorageUuid in (:psUuids)" +
+                            " group by snapshot.primaryStorageUuid";
+                    TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+                    q.setParameter("psUuids", psUuids);
+                    List<Tuple> ts = q.getResultList();
+
+                    for (Tuple t : ts) {
+                        if (t.get(0, Long.class) == null) {
+                            // no snapshot
+                            continue;
+                        }
+
+                        long cap = t.get(0, Long.class);
+                        String psUuid = t.get(1, String.class);
+                        Long ncap = psCap.get(psUuid);
+                        ncap = ncap == null ? cap : ncap + cap;
+                        psCap.put(psUuid, ncap);
+                    }
+                }
+            }
+        }.run();
+    }
 }
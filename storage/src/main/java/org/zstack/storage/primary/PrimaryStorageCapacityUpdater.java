@@ -4,6 +4,7 @@ import org.springframework.beans.factory.annotation.Autowire;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.DeadlockAutoRestart;
@@ -38,6 +39,8 @@ public class PrimaryStorageCapacityUpdater {
     private CloudBus bus;
     @Autowired
     private ErrorFacade errf;
+    @Autowired
+    private PrimaryStorageCapacityLedger ledger;
 
     private String primaryStorageUuid;
     private TypedQuery<PrimaryStorageCapacityVO> query;
@@ -57,6 +60,16 @@ public class PrimaryStorageCapacityUpdater {
         this.query = query;
     }
 
+    /**
+     * changes made in a transaction of the caller go with the transaction, they can't be applied
+     * by the ledger which updates the capacity in its own transactions
+     */
+    private boolean useLedger() {
+        return primaryStorageUuid != null
+                && PrimaryStorageGlobalConfig.CAPACITY_LEDGER_ENABLED.value(Boolean.class)
+                && !TransactionSynchronizationManager.isActualTransactionActive();
+    }
+
     private void logDeletedPrimaryStorage() {
         logger.warn(String.format("[Primary Storage Capacity] unable to update capacity for the primary storage[uuid:%s]." +
                 " It may have been deleted, cannot find it in database", primaryStorageUuid));
@@ -185,6 +198,16 @@ public class PrimaryStorageCapacityUpdater {
 
     @DeadlockAutoRestart
     public boolean increaseAvailableCapacity(long size) {
+        if (useLedger()) {
+            PrimaryStorageCapacityLedger.Result r = ledger.increase(primaryStorageUuid, size);
+            if (r == PrimaryStorageCapacityLedger.Result.ExceedTotalCapacity) {
+                throw new CloudRuntimeException(String.format("invalid primary storage[uuid:%s] capacity, available capacity" +
+                        " will exceed the total capacity after increasing %s", primaryStorageUuid, size));
+            }
+
+            return isApplied(r);
+        }
+
         boolean ret = _increaseAvailableCapacity(size);
         checkResize();
         return ret;
@@ -204,6 +227,10 @@ public class PrimaryStorageCapacityUpdater {
 
     @DeadlockAutoRestart
     public boolean decreaseAvailableCapacity(long size) {
+        if (useLedger()) {
+            return isApplied(ledger.decrease(primaryStorageUuid, size));
+        }
+
         boolean ret = _decreaseAvailableCapacity(size);
         checkResize();
         return ret;
@@ -294,6 +321,24 @@ public class PrimaryStorageCapacityUpdater {
 
     @DeadlockAutoRestart
     public boolean reserve(long size, boolean exceptionOnFailure) {
-        return _reserve(size, exceptionOnFailure);
+        if (!useLedger()) {
+            return _reserve(size, exceptionOnFailure);
+        }
+
+        PrimaryStorageCapacityLedger.Result r = ledger.reserve(primaryStorageUuid, size);
+        if (r == PrimaryStorageCapacityLedger.Result.ShortOfCapacity && exceptionOnFailure) {
+            throw new OperationFailureException(operr("cannot reserve %s bytes on the primary storage[uuid:%s]," +
+                    " it's short of available capacity", size, primaryStorageUuid));
+        }
+
+        return isApplied(r);
+    }
+
+    private boolean isApplied(PrimaryStorageCapacityLedger.Result r) {
+        if (r == PrimaryStorageCapacityLedger.Result.NotFound) {
+            logDeletedPrimaryStorage();
+        }
+
+        return r == PrimaryStorageCapacityLedger.Result.Applied;
     }
 }
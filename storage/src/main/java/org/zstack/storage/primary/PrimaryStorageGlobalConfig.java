@@ -26,4 +26,20 @@ public class PrimaryStorageGlobalConfig {
     public static GlobalConfig PING_INTERVAL = new GlobalConfig(CATEGORY, "ping.interval");
     @GlobalConfigValidation(numberGreaterThan = 0)
     public static GlobalConfig PING_PARALLELISM_DEGREE = new GlobalConfig(CATEGORY, "ping.parallelismDegree");
+    @GlobalConfigValidation
+    public static GlobalConfig CAPACITY_LEDGER_ENABLED = new GlobalConfig(CATEGORY, "capacityLedger.enabled");
+    @GlobalConfigValidation
+    public static GlobalConfig CAPACITY_INCREMENTAL_USAGE_ENABLED = new GlobalConfig(CATEGORY, "capacity.incrementalUsage.enabled");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig CAPACITY_RECONCILE_INTERVAL = new GlobalConfig(CATEGORY, "capacity.reconcileInterval");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig IMAGE_CACHE_PREWARM_INTERVAL = new GlobalConfig(CATEGORY, "imageCache.prewarm.interval");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig IMAGE_CACHE_PREWARM_PARALLELISM_DEGREE = new GlobalConfig(CATEGORY, "imageCache.prewarm.parallelismDegree");
+    @GlobalConfigValidation(numberGreaterThan = -1)
+    public static GlobalConfig IMAGE_CACHE_PREWARM_BANDWIDTH = new GlobalConfig(CATEGORY, "imageCache.prewarm.bandwidth");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig IMAGE_CACHE_GARBAGE_COLLECTOR_BATCH_SIZE = new GlobalConfig(CATEGORY, "imageCache.garbageCollector.batchSize");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig IMAGE_CACHE_GARBAGE_COLLECTOR_PARALLELISM_DEGREE = new GlobalConfig(CATEGORY, "imageCache.garbageCollector.parallelismDegree");
 }
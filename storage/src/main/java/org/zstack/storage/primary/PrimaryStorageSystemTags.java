@@ -1,7 +1,9 @@
 package org.zstack.storage.primary;
 
+import org.zstack.header.cluster.ClusterVO;
 import org.zstack.header.storage.primary.PrimaryStorageVO;
 import org.zstack.header.tag.TagDefinition;
+import org.zstack.header.zone.ZoneVO;
 import org.zstack.tag.PatternedSystemTag;
 import org.zstack.tag.SystemTag;
 
@@ -21,4 +23,12 @@ public class PrimaryStorageSystemTags {
 
     public static final String PRIMARY_STORAGE_GATEWAY_TOKEN = "storageGateway";
     public static PatternedSystemTag PRIMARY_STORAGE_GATEWAY = new PatternedSystemTag(String.format("primaryStorage::gateway::cidr::{%s}", PRIMARY_STORAGE_GATEWAY_TOKEN), PrimaryStorageVO.class);
+
+    public static final String IMAGE_CACHE_PREWARM_IMAGE_TOKEN = "imageUuid";
+    public static PatternedSystemTag ZONE_IMAGE_CACHE_PREWARM_IMAGE = new PatternedSystemTag(String.format("imageCache::prewarm::image::{%s}", IMAGE_CACHE_PREWARM_IMAGE_TOKEN), ZoneVO.class);
+    public static PatternedSystemTag CLUSTER_IMAGE_CACHE_PREWARM_IMAGE = new PatternedSystemTag(String.format("imageCache::prewarm::image::{%s}", IMAGE_CACHE_PREWARM_IMAGE_TOKEN), ClusterVO.class);
+
+    public static final String IMAGE_CACHE_PREWARM_USERTAG_TOKEN = "tag";
+    public static PatternedSystemTag ZONE_IMAGE_CACHE_PREWARM_USERTAG = new PatternedSystemTag(String.format("imageCache::prewarm::userTag::{%s}", IMAGE_CACHE_PREWARM_USERTAG_TOKEN), ZoneVO.class);
+    public static PatternedSystemTag CLUSTER_IMAGE_CACHE_PREWARM_USERTAG = new PatternedSystemTag(String.format("imageCache::prewarm::userTag::{%s}", IMAGE_CACHE_PREWARM_USERTAG_TOKEN), ClusterVO.class);
 }
@@ -0,0 +1,509 @@
+package org.zstack.storage.primary;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.db.*;
+import org.zstack.core.debug.DebugManager;
+import org.zstack.core.debug.DebugSignalHandler;
+import org.zstack.core.thread.AsyncThread;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.storage.primary.ImageCacheVO;
+import org.zstack.header.storage.primary.PrimaryStorageCanonicalEvent;
+import org.zstack.header.storage.primary.PrimaryStorageVO;
+import org.zstack.header.storage.primary.PrimaryStorageVO_;
+import org.zstack.header.storage.snapshot.VolumeSnapshotVO;
+import org.zstack.header.volume.VolumeStatus;
+import org.zstack.header.volume.VolumeVO;
+import org.zstack.header.volume.VolumeVO_;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.Tuple;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Keeps the used capacity of primary storage as running totals of volumes, image caches and snapshots,
+ * so PrimaryStorageCapacityRecalculator doesn't sum them up from the database on every recalculation.
+ *
+ * The totals of a primary storage are loaded from the database the first time they are asked for, then
+ * kept by lifecycle events of the entities on this management node and by usage changed canonical events
+ * batched by other management nodes. Every event sets the size an entity takes on a primary storage instead of
+ * adding a delta, so an event applied twice or a lost previous state can't skew the totals. Lifecycle events
+ * fire when a transaction flushes, their changes are applied and published only after the transaction commits,
+ * so a rolled back transaction is never counted.
+ *
+ * Changes bypassing the entity lifecycle, e.g. bulk SQL updates, are caught by the reconciliation every primaryStorage.capacity.reconcileInterval seconds, which sums up the
+ * entities from the database again, reports the drift and recalculates the capacity of drifted storage.
+ */
+public class PrimaryStorageUsageTracker implements Component, SoftDeleteEntityExtensionPoint,
+        HardDeleteEntityExtensionPoint, DebugSignalHandler {
+    private static final CLogger logger = Utils.getLogger(PrimaryStorageUsageTracker.class);
+
+    public static final String DUMP_PRIMARY_STORAGE_USAGE_TRACKER_DEBUG_SIGNAL = "DumpPrimaryStorageUsageTracker";
+
+    // statuses of volumes taking capacity, the same as counted by PrimaryStorageCapacityRecalculator
+    private static final List<VolumeStatus> COUNTED_VOLUME_STATUS = asList(VolumeStatus.Creating, VolumeStatus.Ready, VolumeStatus.Deleted);
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private EventFacade evtf;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private PrimaryStorageOverProvisioningManager ratioMgr;
+
+    private enum UsageType {
+        Volume,
+        ImageCache,
+        Snapshot
+    }
+
+    private static class Change {
+        final UsageType type;
+        final String id;
+        final String psUuid;
+        final long size;
+
+        Change(UsageType type, String id, String psUuid, long size) {
+            this.type = type;
+            this.id = id;
+            this.psUuid = psUuid;
+            this.size = size;
+        }
+    }
+
+    private static class Usage {
+        final Map<UsageType, Map<String, Long>> sizes = new EnumMap<>(UsageType.class);
+        final long[] totals = new long[UsageType.values().length];
+        boolean loaded;
+        // changes arrived while the usage is being (re)loaded, applied again after the load
+        List<Change> pendings;
+
+        Usage() {
+            for (UsageType t : UsageType.values()) {
+                sizes.put(t, new HashMap<>());
+            }
+        }
+
+        void set(UsageType type, String id, long size) {
+            Long old = size == 0 ? sizes.get(type).remove(id) : sizes.get(type).put(id, size);
+            totals[type.ordinal()] += size - (old == null ? 0 : old);
+        }
+    }
+
+    private final Map<String, Usage> usages = new HashMap<>();
+    // loads of the same primary storage are serialized, loads of different primary storage run in parallel
+    private final Map<String, Object> loadLocks = new ConcurrentHashMap<>();
+    private final List<Change> outbox = new ArrayList<>();
+    private boolean publishing;
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong reconciliations = new AtomicLong();
+    private final AtomicLong drifts = new AtomicLong();
+
+    public boolean isEnabled() {
+        return PrimaryStorageGlobalConfig.CAPACITY_INCREMENTAL_USAGE_ENABLED.value(Boolean.class);
+    }
+
+    /**
+     * @return the capacity taken by volumes, image caches and snapshots on the primary storage,
+     * with the over provisioning ratio applied to volumes, or null if the primary storage is not found
+     */
+    public Long getUsedCapacity(String psUuid) {
+        long[] totals;
+        synchronized (usages) {
+            Usage u = usages.get(psUuid);
+            totals = u != null && u.loaded ? u.totals.clone() : null;
+        }
+
+        if (totals == null) {
+            totals = load(psUuid, false);
+        }
+
+        if (totals == null) {
+            return null;
+        }
+
+        return ratioMgr.calculateByRatio(psUuid, totals[UsageType.Volume.ordinal()])
+                + totals[UsageType.ImageCache.ordinal()]
+                + totals[UsageType.Snapshot.ordinal()];
+    }
+
+    private static Map<UsageType, Map<String, Long>> scan(String psUuid) {
+        Map<UsageType, Map<String, Long>> sizes = new EnumMap<>(UsageType.class);
+
+        List<Tuple> ts = SQL.New("select vol.uuid, vol.size from VolumeVO vol" +
+                " where vol.primaryStorageUuid = :psUuid and vol.status in (:volStatus)", Tuple.class)
+                .param("psUuid", psUuid).param("volStatus", COUNTED_VOLUME_STATUS).list();
+        sizes.put(UsageType.Volume, toSizes(ts));
+
+        // templates in image cache are physical size
+        ts = SQL.New("select i.id, i.size from ImageCacheVO i where i.primaryStorageUuid = :psUuid", Tuple.class)
+                .param("psUuid", psUuid).list();
+        sizes.put(UsageType.ImageCache, toSizes(ts));
+
+        ts = SQL.New("select s.uuid, s.size from VolumeSnapshotVO s where s.primaryStorageUuid = :psUuid", Tuple.class)
+                .param("psUuid", psUuid).list();
+        sizes.put(UsageType.Snapshot, toSizes(ts));
+
+        return sizes;
+    }
+
+    private static Map<String, Long> toSizes(List<Tuple> ts) {
+        Map<String, Long> sizes = new HashMap<>();
+        for (Tuple t : ts) {
+            long size = t.get(1, Long.class);
+            if (size != 0) {
+                sizes.put(String.valueOf(t.get(0)), size);
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * (re)loads the usage of the primary storage from the database
+     *
+     * @param reload false to return the usage loaded by another thread while waiting for the lock
+     * @return totals of the usage before applying changes arrived during the load,
+     * or null if the primary storage is not found
+     */
+    private long[] load(String psUuid, boolean reload) {
+        synchronized (loadLocks.computeIfAbsent(psUuid, k -> new Object())) {
+            if (!reload) {
+                synchronized (usages) {
+                    Usage u = usages.get(psUuid);
+                    if (u != null && u.loaded) {
+                        return u.totals.clone();
+                    }
+                }
+            }
+
+            if (!Q.New(PrimaryStorageVO.class).eq(PrimaryStorageVO_.uuid, psUuid).isExists()) {
+                // don't keep a usage of zeros for a deleted primary storage
+                synchronized (usages) {
+                    usages.remove(psUuid);
+                }
+                loadLocks.remove(psUuid);
+                return null;
+            }
+
+            loads.incrementAndGet();
+
+            synchronized (usages) {
+                // a usage being reloaded keeps serving its totals until the load completes
+                usages.computeIfAbsent(psUuid, k -> new Usage()).pendings = new ArrayList<>();
+            }
+
+            Map<UsageType, Map<String, Long>> scanned;
+            try {
+                scanned = scan(psUuid);
+            } catch (RuntimeException e) {
+                synchronized (usages) {
+                    usages.remove(psUuid);
+                }
+                throw e;
+            }
+
+            Usage loaded = new Usage();
+            scanned.forEach((type, sizes) -> sizes.forEach((id, size) -> loaded.set(type, id, size)));
+            long[] totals = loaded.totals.clone();
+
+            synchronized (usages) {
+                Usage u = usages.get(psUuid);
+                if (u == null) {
+                    // the primary storage is deleted during the load
+                    return totals;
+                }
+
+                u.pendings.forEach(c -> loaded.set(c.type, c.id, c.size));
+                loaded.loaded = true;
+                usages.put(psUuid, loaded);
+            }
+
+            return totals;
+        }
+    }
+
+    /**
+     * sums up the usage of every loaded primary storage from the database again and reports the drift
+     * of the kept totals
+     */
+    private void reconcile() {
+        List<String> psUuids;
+        long[][] kept;
+        synchronized (usages) {
+            psUuids = new ArrayList<>(usages.keySet());
+            kept = new long[psUuids.size()][];
+            for (int i = 0; i < psUuids.size(); i++) {
+                Usage u = usages.get(psUuids.get(i));
+                kept[i] = u.loaded ? u.totals.clone() : null;
+            }
+        }
+
+        List<String> drifted = new ArrayList<>();
+        for (int i = 0; i < psUuids.size(); i++) {
+            if (kept[i] == null) {
+                continue;
+            }
+
+            String psUuid = psUuids.get(i);
+            reconciliations.incrementAndGet();
+            long[] actual = load(psUuid, true);
+            if (actual == null) {
+                // the primary storage is deleted
+                continue;
+            }
+
+            if (!Arrays.equals(kept[i], actual)) {
+                drifts.incrementAndGet();
+                drifted.add(psUuid);
+                logger.warn(String.format("[Primary Storage Usage] the usage kept of the primary storage[uuid:%s] drifted from the database," +
+                                " volumes: %s --> %s, image caches: %s --> %s, snapshots: %s --> %s", psUuid,
+                        kept[i][UsageType.Volume.ordinal()], actual[UsageType.Volume.ordinal()],
+                        kept[i][UsageType.ImageCache.ordinal()], actual[UsageType.ImageCache.ordinal()],
+                        kept[i][UsageType.Snapshot.ordinal()], actual[UsageType.Snapshot.ordinal()]));
+            }
+        }
+
+        if (!drifted.isEmpty()) {
+            PrimaryStorageCapacityRecalculator recalculator = new PrimaryStorageCapacityRecalculator();
+            recalculator.psUuids = drifted;
+            recalculator.recalculate();
+        }
+    }
+
+    private void scheduleReconcile() {
+        thdf.submitTimeoutTask(() -> {
+            try {
+                if (isEnabled()) {
+                    reconcile();
+                }
+            } catch (Throwable t) {
+                logger.warn("failed to reconcile the usage of primary storage", t);
+            } finally {
+                scheduleReconcile();
+            }
+        }, TimeUnit.SECONDS, PrimaryStorageGlobalConfig.CAPACITY_RECONCILE_INTERVAL.value(Long.class));
+    }
+
+    private void apply(Change c) {
+        synchronized (usages) {
+            for (Map.Entry<String, Usage> e : usages.entrySet()) {
+                Usage u = e.getValue();
+                // on other primary storage, the entity is moved or removed
+                long size = e.getKey().equals(c.psUuid) ? c.size : 0;
+                if (u.loaded) {
+                    u.set(c.type, c.id, size);
+                }
+                if (u.pendings != null) {
+                    u.pendings.add(new Change(c.type, c.id, e.getKey(), size));
+                }
+            }
+        }
+    }
+
+    private void change(UsageType type, String id, String psUuid, long size) {
+        Change c = new Change(type, id, psUuid, size);
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            commit(c);
+            return;
+        }
+
+        // entity lifecycle callbacks run in the flush of a transaction, which may still roll back
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                commit(c);
+            }
+        });
+    }
+
+    private void commit(Change c) {
+        apply(c);
+
+        // changes are committed by the thread of the transaction, so they are published by another thread
+        synchronized (outbox) {
+            outbox.add(c);
+            if (publishing) {
+                return;
+            }
+            publishing = true;
+        }
+
+        publish();
+    }
+
+    @AsyncThread
+    private void publish() {
+        while (true) {
+            List<Change> changes;
+            synchronized (outbox) {
+                if (outbox.isEmpty()) {
+                    publishing = false;
+                    return;
+                }
+
+                changes = new ArrayList<>(outbox);
+                outbox.clear();
+            }
+
+            try {
+                PrimaryStorageCanonicalEvent.UsageChangedData d = new PrimaryStorageCanonicalEvent.UsageChangedData();
+                d.setChanges(changes.stream().map(c -> {
+                    PrimaryStorageCanonicalEvent.UsageChange uc = new PrimaryStorageCanonicalEvent.UsageChange();
+                    uc.setUsageType(c.type.toString());
+                    uc.setResourceId(c.id);
+                    uc.setPrimaryStorageUuid(c.psUuid);
+                    uc.setSize(c.size);
+                    return uc;
+                }).collect(Collectors.toList()));
+                evtf.fire(PrimaryStorageCanonicalEvent.PRIMARY_STORAGE_USAGE_CHANGED_PATH, d);
+            } catch (Throwable t) {
+                logger.warn(String.format("failed to publish %s usage changes of primary storage, other management nodes" +
+                        " catch them up on their reconciliation", changes.size()), t);
+            }
+        }
+    }
+
+    private void volumeChanged(VolumeVO vol) {
+        change(UsageType.Volume, vol.getUuid(), vol.getPrimaryStorageUuid(),
+                COUNTED_VOLUME_STATUS.contains(vol.getStatus()) ? vol.getSize() : 0);
+    }
+
+    /**
+     * reloads the usage of a volume updated by SQL, which bypasses the entity lifecycle
+     */
+    public void volumeChanged(String volUuid) {
+        Tuple t = Q.New(VolumeVO.class).select(VolumeVO_.primaryStorageUuid, VolumeVO_.size, VolumeVO_.status)
+                .eq(VolumeVO_.uuid, volUuid).findTuple();
+        if (t == null) {
+            change(UsageType.Volume, volUuid, null, 0);
+        } else {
+            change(UsageType.Volume, volUuid, t.get(0, String.class),
+                    COUNTED_VOLUME_STATUS.contains(t.get(2, VolumeStatus.class)) ? t.get(1, Long.class) : 0);
+        }
+    }
+
+    /**
+     * removes the usage of volumes, snapshots and image caches deleted by SQL, which bypasses the entity lifecycle
+     */
+    public void removed(Collection<String> volUuids, Collection<String> snapshotUuids, Collection<Long> imageCacheIds) {
+        volUuids.forEach(uuid -> change(UsageType.Volume, uuid, null, 0));
+        snapshotUuids.forEach(uuid -> change(UsageType.Snapshot, uuid, null, 0));
+        imageCacheIds.forEach(id -> change(UsageType.ImageCache, String.valueOf(id), null, 0));
+    }
+
+    private void installEntityLifeCycleCallbacks() {
+        dbf.installEntityLifeCycleCallback(VolumeVO.class, EntityEvent.POST_PERSIST, (evt, o) -> volumeChanged((VolumeVO) o));
+        dbf.installEntityLifeCycleCallback(VolumeVO.class, EntityEvent.POST_UPDATE, (evt, o) -> volumeChanged((VolumeVO) o));
+        dbf.installEntityLifeCycleCallback(VolumeVO.class, EntityEvent.POST_REMOVE,
+                (evt, o) -> change(UsageType.Volume, ((VolumeVO) o).getUuid(), null, 0));
+
+        EntityLifeCycleCallback imageCacheChanged = (evt, o) -> {
+            ImageCacheVO c = (ImageCacheVO) o;
+            change(UsageType.ImageCache, String.valueOf(c.getId()), c.getPrimaryStorageUuid(), c.getSize());
+        };
+        dbf.installEntityLifeCycleCallback(ImageCacheVO.class, EntityEvent.POST_PERSIST, imageCacheChanged);
+        dbf.installEntityLifeCycleCallback(ImageCacheVO.class, EntityEvent.POST_UPDATE, imageCacheChanged);
+        dbf.installEntityLifeCycleCallback(ImageCacheVO.class, EntityEvent.POST_REMOVE,
+                (evt, o) -> change(UsageType.ImageCache, String.valueOf(((ImageCacheVO) o).getId()), null, 0));
+
+        EntityLifeCycleCallback snapshotChanged = (evt, o) -> {
+            VolumeSnapshotVO s = (VolumeSnapshotVO) o;
+            change(UsageType.Snapshot, s.getUuid(), s.getPrimaryStorageUuid(), s.getSize());
+        };
+        dbf.installEntityLifeCycleCallback(VolumeSnapshotVO.class, EntityEvent.POST_PERSIST, snapshotChanged);
+        dbf.installEntityLifeCycleCallback(VolumeSnapshotVO.class, EntityEvent.POST_UPDATE, snapshotChanged);
+        dbf.installEntityLifeCycleCallback(VolumeSnapshotVO.class, EntityEvent.POST_REMOVE,
+                (evt, o) -> change(UsageType.Snapshot, ((VolumeSnapshotVO) o).getUuid(), null, 0));
+    }
+
+    @Override
+    public List<Class> getEntityClassForSoftDeleteEntityExtension() {
+        return asList(VolumeVO.class, VolumeSnapshotVO.class);
+    }
+
+    @Override
+    public void postSoftDelete(Collection entityIds, Class entityClass) {
+        UsageType type = entityClass == VolumeVO.class ? UsageType.Volume : UsageType.Snapshot;
+        for (Object id : entityIds) {
+            change(type, String.valueOf(id), null, 0);
+        }
+    }
+
+    @Override
+    public List<Class> getEntityClassForHardDeleteEntityExtension() {
+        return asList(ImageCacheVO.class);
+    }
+
+    @Override
+    public void postHardDelete(Collection entityIds, Class entityClass) {
+        for (Object id : entityIds) {
+            change(UsageType.ImageCache, String.valueOf(id), null, 0);
+        }
+    }
+
+    @Override
+    public void handleDebugSignal() {
+        StringBuilder sb = new StringBuilder("\n================= BEGIN PRIMARY STORAGE USAGE TRACKER DUMP ================");
+        sb.append(String.format("\nloads: %s, reconciliations: %s, drifts: %s", loads.get(), reconciliations.get(), drifts.get()));
+        synchronized (usages) {
+            usages.forEach((psUuid, u) -> sb.append(String.format("\n[uuid:%s] loaded: %s, volumes: %s, image caches: %s, snapshots: %s",
+                    psUuid, u.loaded, u.totals[UsageType.Volume.ordinal()], u.totals[UsageType.ImageCache.ordinal()],
+                    u.totals[UsageType.Snapshot.ordinal()])));
+        }
+        sb.append("\n================= END PRIMARY STORAGE USAGE TRACKER DUMP ================");
+        logger.debug(sb.toString());
+    }
+
+    @Override
+    public boolean start() {
+        installEntityLifeCycleCallbacks();
+
+        evtf.on(PrimaryStorageCanonicalEvent.PRIMARY_STORAGE_USAGE_CHANGED_PATH, new EventCallback() {
+            @Override
+            protected void run(Map tokens, Object data) {
+                if (evtf.isFromThisManagementNode(tokens)) {
+                    // already applied
+                    return;
+                }
+
+                PrimaryStorageCanonicalEvent.UsageChangedData d = (PrimaryStorageCanonicalEvent.UsageChangedData) data;
+                for (PrimaryStorageCanonicalEvent.UsageChange c : d.getChanges()) {
+                    apply(new Change(UsageType.valueOf(c.getUsageType()), c.getResourceId(), c.getPrimaryStorageUuid(), c.getSize()));
+                }
+            }
+        });
+
+        evtf.on(PrimaryStorageCanonicalEvent.PRIMARY_STORAGE_DELETED_PATH, new EventCallback() {
+            @Override
+            protected void run(Map tokens, Object data) {
+                PrimaryStorageCanonicalEvent.PrimaryStorageDeletedData d = (PrimaryStorageCanonicalEvent.PrimaryStorageDeletedData) data;
+                synchronized (usages) {
+                    usages.remove(d.getPrimaryStorageUuid());
+                }
+                loadLocks.remove(d.getPrimaryStorageUuid());
+            }
+        });
+
+        DebugManager.registerDebugSignalHandler(DUMP_PRIMARY_STORAGE_USAGE_TRACKER_DEBUG_SIGNAL, this);
+        scheduleReconcile();
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+}
@@ -18,4 +18,8 @@ public class VolumeSnapshotGlobalConfig {
     public static GlobalConfig SNAPSHOT_BACKUP_PARALLELISM_DEGREE = new GlobalConfig(CATEGORY, "backup.parallelismDegree");
     @GlobalConfigValidation
     public static GlobalConfig SNAPSHOT_BEFORE_REVERTVOLUME = new GlobalConfig(CATEGORY, "snapshot.before.revertvolume");
+    @GlobalConfigValidation
+    public static GlobalConfig TREE_CACHE_ENABLED = new GlobalConfig(CATEGORY, "treeCache.enabled");
+    @GlobalConfigValidation(numberGreaterThan = 0)
+    public static GlobalConfig TREE_CACHE_SIZE = new GlobalConfig(CATEGORY, "treeCache.size");
 }
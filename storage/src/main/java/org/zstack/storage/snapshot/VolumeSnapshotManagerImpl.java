@@ -85,6 +85,8 @@ public class VolumeSnapshotManagerImpl extends AbstractService implements
     private PluginRegistry pluginRgty;
     @Autowired
     private TagManager tagMgr;
+    @Autowired
+    private VolumeSnapshotTreeCache treeCache;
 
     private void passThrough(VolumeSnapshotMessage msg) {
         VolumeSnapshotVO vo = dbf.findByUuid(msg.getSnapshotUuid(), VolumeSnapshotVO.class);
@@ -312,10 +314,7 @@ public class VolumeSnapshotManagerImpl extends AbstractService implements
             }
 
             VolumeSnapshotTreeInventory inv = VolumeSnapshotTreeInventory.valueOf(treeVO);
-            SimpleQuery<VolumeSnapshotVO> q = dbf.createQuery(VolumeSnapshotVO.class);
-            q.add(VolumeSnapshotVO_.treeUuid, Op.EQ, msg.getTreeUuid());
-            List<VolumeSnapshotVO> vos = q.list();
-            VolumeSnapshotTree tree = VolumeSnapshotTree.fromVOs(vos);
+            VolumeSnapshotTree tree = treeCache.getTree(msg.getTreeUuid());
             inv.setTree(tree.getRoot().toLeafInventory());
             reply.setInventories(Arrays.asList(inv));
         } else if (msg.getVolumeUuid() != null) {
@@ -331,10 +330,7 @@ public class VolumeSnapshotManagerImpl extends AbstractService implements
             List<VolumeSnapshotTreeInventory> treeInventories = new ArrayList<>();
             for (VolumeSnapshotTreeVO vo : trees) {
                 VolumeSnapshotTreeInventory inv = VolumeSnapshotTreeInventory.valueOf(vo);
-                SimpleQuery<VolumeSnapshotVO> sq = dbf.createQuery(VolumeSnapshotVO.class);
-                sq.add(VolumeSnapshotVO_.treeUuid, Op.EQ, vo.getUuid());
-                List<VolumeSnapshotVO> vos = sq.list();
-                VolumeSnapshotTree tree = VolumeSnapshotTree.fromVOs(vos);
+                VolumeSnapshotTree tree = treeCache.getTree(vo.getUuid());
                 inv.setTree(tree.getRoot().toLeafInventory());
                 treeInventories.add(inv);
             }
@@ -927,10 +923,7 @@ public class VolumeSnapshotManagerImpl extends AbstractService implements
         }
 
         for (VolumeSnapshotTreeInventory inv : reply.getInventories()) {
-            SimpleQuery<VolumeSnapshotVO> sq = dbf.createQuery(VolumeSnapshotVO.class);
-            sq.add(VolumeSnapshotVO_.treeUuid, Op.EQ, inv.getUuid());
-            List<VolumeSnapshotVO> vos = sq.list();
-            VolumeSnapshotTree tree = VolumeSnapshotTree.fromVOs(vos);
+            VolumeSnapshotTree tree = treeCache.getTree(inv.getUuid());
             inv.setTree(tree.getRoot().toLeafInventory());
         }
     }
@@ -1154,11 +1147,13 @@ public class VolumeSnapshotManagerImpl extends AbstractService implements
     @Override
     public void afterReimageVmInstance(VolumeInventory inventory) {
         removeVolumeFromOldSnapshotTreeInDb(inventory.getUuid());
+        treeCache.invalidateByVolume(inventory.getUuid());
     }
 
     @Override
     public void afterOverwriteVolume(VolumeInventory volume, VolumeInventory transientVolume) {
         removeVolumeFromOldSnapshotTreeInDb(volume.getUuid());
+        treeCache.invalidateByVolume(volume.getUuid());
     }
 
     @Transactional
@@ -1200,6 +1195,8 @@ public class VolumeSnapshotManagerImpl extends AbstractService implements
                 sql(VolumeSnapshotVO.class).eq(VolumeSnapshotVO_.volumeUuid, volumeUuid).delete();
             }
         }.execute();
+
+        treeCache.invalidateByVolume(volumeUuid);
     }
 
     @Override
@@ -126,6 +126,8 @@ public class VolumeSnapshotTreeBase {
     private PluginRegistry pluginRgty;
     @Autowired
     private PrimaryStorageOverProvisioningManager psRaitoMgr;
+    @Autowired
+    private VolumeSnapshotTreeCache treeCache;
 
     public VolumeSnapshotTreeBase(VolumeSnapshotVO vo, boolean syncOnVolume) {
         currentRoot = vo;
@@ -155,12 +157,7 @@ public class VolumeSnapshotTreeBase {
 
         currentRoot = vo;
         buildFullSnapshotTree();
-        currentLeaf = fullTree.findSnapshot(new Function<Boolean, VolumeSnapshotInventory>() {
-            @Override
-            public Boolean call(VolumeSnapshotInventory arg) {
-                return arg.getUuid().equals(currentRoot.getUuid());
-            }
-        });
+        currentLeaf = fullTree.findSnapshot(currentRoot.getUuid());
     }
 
     private VolumeSnapshotInventory getSelfInventory() {
@@ -168,11 +165,7 @@ public class VolumeSnapshotTreeBase {
     }
 
     private void buildFullSnapshotTree() {
-        SimpleQuery<VolumeSnapshotVO> q = dbf.createQuery(VolumeSnapshotVO.class);
-        q.add(VolumeSnapshotVO_.treeUuid, SimpleQuery.Op.EQ, currentRoot.getTreeUuid());
-        List<VolumeSnapshotVO> vos = q.list();
-
-        fullTree = VolumeSnapshotTree.fromVOs(vos);
+        fullTree = treeCache.getTree(currentRoot.getTreeUuid());
     }
 
     @MessageSafe
@@ -542,6 +535,11 @@ public class VolumeSnapshotTreeBase {
                     }
                 }.execute();
 
+                treeCache.invalidate(currentRoot.getTreeUuid());
+                if (msg.isVolumeDeletion()) {
+                    treeCache.invalidateByVolume(currentRoot.getVolumeUuid());
+                }
+
                 if (!cleanup()) {
                     changeStatusOfSnapshots(StatusEvent.ready, currentLeaf.getDescendants(), new Completion(msg, completion) {
                         @Override
@@ -986,6 +984,10 @@ public class VolumeSnapshotTreeBase {
             }
         }.execute();
 
+        if (ret.value) {
+            treeCache.invalidate(currentRoot.getTreeUuid());
+        }
+
         return ret.value;
     }
 
@@ -1548,6 +1550,7 @@ public class VolumeSnapshotTreeBase {
 
                         dbf.update(volume);
                         updateLatest();
+                        treeCache.invalidate(currentRoot.getTreeUuid());
                         completion.success();
                     }
                 });
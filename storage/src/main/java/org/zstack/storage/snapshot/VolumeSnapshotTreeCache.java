@@ -0,0 +1,473 @@
+package org.zstack.storage.snapshot;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.db.*;
+import org.zstack.core.debug.DebugManager;
+import org.zstack.core.debug.DebugSignalHandler;
+import org.zstack.core.thread.AsyncThread;
+import org.zstack.header.Component;
+import org.zstack.header.storage.snapshot.*;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Caches VolumeSnapshotTrees by tree uuid, so operations on a snapshot don't load every snapshot of
+ * its tree and rebuild the tree each time.
+ *
+ * Lifecycle events of snapshots and their backup storage refs mark the changed snapshots dirty in
+ * the tree they belong to and bump the version of the tree; the next lookup reloads only the dirty
+ * snapshots and merges them into the cached tree. Changes made by bulk SQL bypass the entity
+ * lifecycle and must invalidate the trees they touch. Dirty snapshots and invalidated trees are
+ * published to other management nodes by a canonical event.
+ *
+ * A change made in a transaction is marked at once, so the transaction itself reads it, and marked
+ * again and published after the transaction completes, because a lookup by another thread before the
+ * commit still reads the old rows and may cache them.
+ *
+ * Cached trees are shared and must not be modified by callers.
+ */
+public class VolumeSnapshotTreeCache implements Component, SoftDeleteEntityExtensionPoint, DebugSignalHandler {
+    private static final CLogger logger = Utils.getLogger(VolumeSnapshotTreeCache.class);
+
+    public static final String DUMP_VOLUME_SNAPSHOT_TREE_CACHE_DEBUG_SIGNAL = "DumpVolumeSnapshotTreeCache";
+
+    private static final String TREE_CHANGED_PATH = "/volumeSnapshot/tree/change";
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private EventFacade evtf;
+
+    public static class TreeChangedData {
+        // tree uuid -> uuids of dirty snapshots, null for an invalidated tree
+        private Map<String, List<String>> trees;
+        // uuids of dirty snapshots whose trees are unknown to the publisher
+        private List<String> snapshotUuids;
+        // uuids of volumes whose trees are invalidated
+        private List<String> volumeUuids;
+
+        public Map<String, List<String>> getTrees() {
+            return trees;
+        }
+
+        public void setTrees(Map<String, List<String>> trees) {
+            this.trees = trees;
+        }
+
+        public List<String> getSnapshotUuids() {
+            return snapshotUuids;
+        }
+
+        public void setSnapshotUuids(List<String> snapshotUuids) {
+            this.snapshotUuids = snapshotUuids;
+        }
+
+        public List<String> getVolumeUuids() {
+            return volumeUuids;
+        }
+
+        public void setVolumeUuids(List<String> volumeUuids) {
+            this.volumeUuids = volumeUuids;
+        }
+    }
+
+    private static class Entry {
+        VolumeSnapshotTree tree;
+        long version;
+        Set<String> dirty = new HashSet<>();
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() <= VolumeSnapshotGlobalConfig.TREE_CACHE_SIZE.value(Integer.class)) {
+                return false;
+            }
+
+            forget(eldest.getValue());
+            return true;
+        }
+    };
+    // snapshot uuid -> tree uuid, of snapshots in cached trees
+    private final Map<String, String> snapshotTrees = new HashMap<>();
+
+    private final TreeChangedData outbox = new TreeChangedData();
+    private boolean publishing;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong merges = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+
+    private void forget(Entry e) {
+        if (e.tree != null) {
+            e.tree.getInventories().forEach(inv -> snapshotTrees.remove(inv.getUuid()));
+        }
+    }
+
+    private static VolumeSnapshotTree loadTree(String treeUuid) {
+        return VolumeSnapshotTree.fromVOs(Q.New(VolumeSnapshotVO.class).eq(VolumeSnapshotVO_.treeUuid, treeUuid).list());
+    }
+
+    /**
+     * @return the tree of all snapshots with the tree uuid, shared by callers and must not be modified
+     */
+    public VolumeSnapshotTree getTree(String treeUuid) {
+        if (!VolumeSnapshotGlobalConfig.TREE_CACHE_ENABLED.value(Boolean.class)) {
+            return loadTree(treeUuid);
+        }
+
+        while (true) {
+            Entry e;
+            long version;
+            VolumeSnapshotTree tree;
+            Set<String> dirty;
+            synchronized (entries) {
+                e = entries.computeIfAbsent(treeUuid, k -> new Entry());
+                version = e.version;
+                tree = e.tree;
+                dirty = new HashSet<>(e.dirty);
+            }
+
+            if (tree != null && dirty.isEmpty()) {
+                hits.incrementAndGet();
+                return tree;
+            }
+
+            if (tree == null) {
+                loads.incrementAndGet();
+                tree = loadTree(treeUuid);
+            } else {
+                merges.incrementAndGet();
+                tree = merge(treeUuid, tree, dirty);
+            }
+
+            synchronized (entries) {
+                if (entries.get(treeUuid) != e || e.version != version) {
+                    // changed during the load, load again
+                    continue;
+                }
+
+                forget(e);
+                e.tree = tree;
+                e.dirty.clear();
+                tree.getInventories().forEach(inv -> snapshotTrees.put(inv.getUuid(), treeUuid));
+            }
+
+            return tree;
+        }
+    }
+
+    private static VolumeSnapshotTree merge(String treeUuid, VolumeSnapshotTree tree, Set<String> dirty) {
+        // keeps the order of snapshots, which is the order of children in the tree
+        Map<String, VolumeSnapshotInventory> invs = new LinkedHashMap<>();
+        tree.getInventories().forEach(inv -> invs.put(inv.getUuid(), inv));
+        dirty.forEach(invs::remove);
+
+        List<VolumeSnapshotVO> vos = Q.New(VolumeSnapshotVO.class).in(VolumeSnapshotVO_.uuid, dirty).list();
+        for (VolumeSnapshotVO vo : vos) {
+            if (treeUuid.equals(vo.getTreeUuid())) {
+                invs.put(vo.getUuid(), VolumeSnapshotInventory.valueOf(vo));
+            }
+        }
+
+        List<VolumeSnapshotInventory> merged = new ArrayList<>();
+        for (VolumeSnapshotInventory inv : tree.getInventories()) {
+            VolumeSnapshotInventory m = invs.remove(inv.getUuid());
+            if (m != null) {
+                merged.add(m);
+            }
+        }
+        merged.addAll(invs.values());
+
+        return VolumeSnapshotTree.fromInventories(merged);
+    }
+
+    private void markDirty(String treeUuid, String snapshotUuid) {
+        synchronized (entries) {
+            Entry e = entries.get(treeUuid);
+            if (e == null) {
+                return;
+            }
+
+            e.version++;
+            if (snapshotUuid == null) {
+                forget(e);
+                e.tree = null;
+            } else {
+                e.dirty.add(snapshotUuid);
+            }
+        }
+    }
+
+    private void markDirty(String snapshotUuid) {
+        String treeUuid;
+        synchronized (entries) {
+            treeUuid = snapshotTrees.get(snapshotUuid);
+        }
+
+        if (treeUuid != null) {
+            markDirty(treeUuid, snapshotUuid);
+        }
+    }
+
+    private void changed(String treeUuid, String snapshotUuid) {
+        if (treeUuid == null) {
+            snapshotChanged(snapshotUuid);
+        } else {
+            snapshotChanged(treeUuid, snapshotUuid);
+        }
+    }
+
+    /**
+     * @param treeUuid null if the tree of the snapshot is unknown
+     * @param snapshotUuid null to invalidate the tree
+     */
+    private void changedInTransaction(String treeUuid, String snapshotUuid) {
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            changed(treeUuid, snapshotUuid);
+            return;
+        }
+
+        if (treeUuid == null) {
+            markDirty(snapshotUuid);
+        } else {
+            markDirty(treeUuid, snapshotUuid);
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                changed(treeUuid, snapshotUuid);
+            }
+        });
+    }
+
+    private void snapshotChanged(String snapshotUuid) {
+        String treeUuid;
+        synchronized (entries) {
+            treeUuid = snapshotTrees.get(snapshotUuid);
+        }
+
+        if (treeUuid != null) {
+            snapshotChanged(treeUuid, snapshotUuid);
+            return;
+        }
+
+        synchronized (outbox) {
+            if (outbox.snapshotUuids == null) {
+                outbox.snapshotUuids = new ArrayList<>();
+            }
+            outbox.snapshotUuids.add(snapshotUuid);
+        }
+
+        schedulePublish();
+    }
+
+    private void snapshotChanged(String treeUuid, String snapshotUuid) {
+        markDirty(treeUuid, snapshotUuid);
+        synchronized (outbox) {
+            if (outbox.trees == null) {
+                outbox.trees = new HashMap<>();
+            }
+
+            if (snapshotUuid == null) {
+                outbox.trees.put(treeUuid, null);
+            } else if (!outbox.trees.containsKey(treeUuid)) {
+                outbox.trees.put(treeUuid, new ArrayList<>(asList(snapshotUuid)));
+            } else if (outbox.trees.get(treeUuid) != null) {
+                outbox.trees.get(treeUuid).add(snapshotUuid);
+            }
+        }
+
+        schedulePublish();
+    }
+
+    /**
+     * drops the cached tree, e.g. after snapshots of the tree are changed by SQL
+     */
+    public void invalidate(String treeUuid) {
+        changedInTransaction(treeUuid, null);
+    }
+
+    /**
+     * drops cached trees of the volume, e.g. after snapshots of the volume are changed by SQL
+     */
+    public void invalidateByVolume(String volumeUuid) {
+        invalidateVolumeLocally(volumeUuid);
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            volumeInvalidated(volumeUuid);
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                invalidateVolumeLocally(volumeUuid);
+                volumeInvalidated(volumeUuid);
+            }
+        });
+    }
+
+    private void volumeInvalidated(String volumeUuid) {
+        synchronized (outbox) {
+            if (outbox.volumeUuids == null) {
+                outbox.volumeUuids = new ArrayList<>();
+            }
+            outbox.volumeUuids.add(volumeUuid);
+        }
+
+        schedulePublish();
+    }
+
+    private void invalidateVolumeLocally(String volumeUuid) {
+        synchronized (entries) {
+            for (Entry e : entries.values()) {
+                if (e.tree != null && volumeUuid.equals(e.tree.getVolumeUuid())) {
+                    e.version++;
+                    forget(e);
+                    e.tree = null;
+                }
+            }
+        }
+    }
+
+    private void schedulePublish() {
+        synchronized (outbox) {
+            if (publishing) {
+                return;
+            }
+            publishing = true;
+        }
+
+        publish();
+    }
+
+    // changes are published by another thread, off the thread completing the transaction
+    @AsyncThread
+    private void publish() {
+        while (true) {
+            TreeChangedData d = new TreeChangedData();
+            synchronized (outbox) {
+                if (outbox.trees == null && outbox.snapshotUuids == null && outbox.volumeUuids == null) {
+                    publishing = false;
+                    return;
+                }
+
+                d.trees = outbox.trees;
+                d.snapshotUuids = outbox.snapshotUuids;
+                d.volumeUuids = outbox.volumeUuids;
+                outbox.trees = null;
+                outbox.snapshotUuids = null;
+                outbox.volumeUuids = null;
+            }
+
+            try {
+                evtf.fire(TREE_CHANGED_PATH, d);
+            } catch (Throwable t) {
+                logger.warn("failed to publish changes of volume snapshot trees", t);
+            }
+        }
+    }
+
+    private void installEntityLifeCycleCallbacks() {
+        EntityLifeCycleCallback snapshotChanged = (evt, o) -> {
+            VolumeSnapshotVO s = (VolumeSnapshotVO) o;
+            changedInTransaction(s.getTreeUuid(), s.getUuid());
+        };
+        dbf.installEntityLifeCycleCallback(VolumeSnapshotVO.class, EntityEvent.POST_PERSIST, snapshotChanged);
+        dbf.installEntityLifeCycleCallback(VolumeSnapshotVO.class, EntityEvent.POST_UPDATE, snapshotChanged);
+        dbf.installEntityLifeCycleCallback(VolumeSnapshotVO.class, EntityEvent.POST_REMOVE, snapshotChanged);
+
+        EntityLifeCycleCallback refChanged = (evt, o) -> {
+            VolumeSnapshotBackupStorageRefVO ref = (VolumeSnapshotBackupStorageRefVO) o;
+            changedInTransaction(null, ref.getVolumeSnapshotUuid());
+        };
+        dbf.installEntityLifeCycleCallback(VolumeSnapshotBackupStorageRefVO.class, EntityEvent.POST_PERSIST, refChanged);
+        dbf.installEntityLifeCycleCallback(VolumeSnapshotBackupStorageRefVO.class, EntityEvent.POST_UPDATE, refChanged);
+        dbf.installEntityLifeCycleCallback(VolumeSnapshotBackupStorageRefVO.class, EntityEvent.POST_REMOVE, refChanged);
+    }
+
+    @Override
+    public List<Class> getEntityClassForSoftDeleteEntityExtension() {
+        return asList(VolumeSnapshotVO.class);
+    }
+
+    @Override
+    public void postSoftDelete(Collection entityIds, Class entityClass) {
+        for (Object id : entityIds) {
+            changedInTransaction(null, (String) id);
+        }
+    }
+
+    @Override
+    public void handleDebugSignal() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+
+        logger.debug(String.format("\n================= BEGIN VOLUME SNAPSHOT TREE CACHE DUMP ================" +
+                        "\ncached trees: %s, hits: %s, merges of dirty snapshots: %s, full loads: %s" +
+                        "\n================= END VOLUME SNAPSHOT TREE CACHE DUMP ================",
+                size, hits.get(), merges.get(), loads.get()));
+    }
+
+    @Override
+    public boolean start() {
+        installEntityLifeCycleCallbacks();
+        DebugManager.registerDebugSignalHandler(DUMP_VOLUME_SNAPSHOT_TREE_CACHE_DEBUG_SIGNAL, this);
+
+        evtf.on(TREE_CHANGED_PATH, new EventCallback() {
+            @Override
+            protected void run(Map tokens, Object data) {
+                if (evtf.isFromThisManagementNode(tokens)) {
+                    return;
+                }
+
+                TreeChangedData d = (TreeChangedData) data;
+                if (d.trees != null) {
+                    d.trees.forEach((treeUuid, snapshotUuids) -> {
+                        if (snapshotUuids == null) {
+                            markDirty(treeUuid, null);
+                        } else {
+                            snapshotUuids.forEach(uuid -> markDirty(treeUuid, uuid));
+                        }
+                    });
+                }
+
+                if (d.snapshotUuids != null) {
+                    for (String uuid : d.snapshotUuids) {
+                        String treeUuid;
+                        synchronized (entries) {
+                            treeUuid = snapshotTrees.get(uuid);
+                        }
+
+                        if (treeUuid != null) {
+                            markDirty(treeUuid, uuid);
+                        }
+                    }
+                }
+
+                if (d.volumeUuids != null) {
+                    d.volumeUuids.forEach(VolumeSnapshotTreeCache.this::invalidateVolumeLocally);
+                }
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+}
@@ -46,6 +46,7 @@ import org.zstack.header.volume.*;
 import org.zstack.header.volume.VolumeConstant.Capability;
 import org.zstack.header.volume.VolumeDeletionPolicyManager.VolumeDeletionPolicy;
 import org.zstack.identity.AccountManager;
+import org.zstack.storage.primary.PrimaryStorageUsageTracker;
 import org.zstack.tag.SystemTagCreator;
 import org.zstack.tag.TagManager;
 import org.zstack.utils.CollectionUtils;
@@ -91,6 +92,8 @@ public class VolumeBase implements Volume {
     private PluginRegistry pluginRgty;
     @Autowired
     private VolumeDeletionPolicyManager deletionPolicyMgr;
+    @Autowired
+    private PrimaryStorageUsageTracker usageTracker;
 
     public VolumeBase(VolumeVO vo) {
         self = vo;
@@ -334,6 +337,7 @@ public class VolumeBase implements Volume {
 
                 VolumeStatus bs = self.getStatus();
                 SQL.New(VolumeVO.class).eq(VolumeVO_.uuid, msg.getVolumeUuid()).set(VolumeVO_.status, msg.getStatus()).update();
+                usageTracker.volumeChanged(msg.getVolumeUuid());
                 refreshVO();
                 logger.debug(String.format("volume[uuid:%s] status changed from %s to %s in db", self.getUuid(), bs, self.getStatus()));
                 chain.next();
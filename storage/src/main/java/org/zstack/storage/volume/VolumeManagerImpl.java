@@ -44,6 +44,7 @@ import org.zstack.header.volume.VolumeDeletionPolicyManager.VolumeDeletionPolicy
 import org.zstack.identity.AccountManager;
 import org.zstack.storage.primary.PrimaryStorageDeleteBitGC;
 import org.zstack.storage.primary.PrimaryStorageGlobalConfig;
+import org.zstack.storage.primary.PrimaryStorageUsageTracker;
 import org.zstack.tag.TagManager;
 import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.Utils;
@@ -82,6 +83,8 @@ public class VolumeManagerImpl extends AbstractService implements VolumeManager,
     private VolumeDeletionPolicyManager deletionPolicyMgr;
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private PrimaryStorageUsageTracker usageTracker;
 
     private Future<Void> volumeExpungeTask;
 
@@ -863,12 +866,14 @@ public class VolumeManagerImpl extends AbstractService implements VolumeManager,
             SQL.New(VolumeVO.class).eq(VolumeVO_.uuid, vm.getRootVolumeUuid())
                     .set(VolumeVO_.status, VolumeStatus.Deleted)
                     .update();
+            usageTracker.volumeChanged(vm.getRootVolumeUuid());
         }
         if (oldState == VmInstanceState.VolumeMigrating && newState == VmInstanceState.Stopped && vm != null && vm.getRootVolumeUuid() != null) {
             // maybe restart mn, and we need restore from VolumeMigrating state
             SQL.New(VolumeVO.class).eq(VolumeVO_.uuid, vm.getRootVolumeUuid()).eq(VolumeVO_.status, VolumeStatus.Migrating)
                     .set(VolumeVO_.status, VolumeStatus.Ready)
                     .update();
+            usageTracker.volumeChanged(vm.getRootVolumeUuid());
         }
     }
 }
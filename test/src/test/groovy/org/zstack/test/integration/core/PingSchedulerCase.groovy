@@ -0,0 +1,148 @@
+package org.zstack.test.integration.core
+
+import org.zstack.core.Platform
+import org.zstack.core.tacker.PingScheduler
+import org.zstack.header.core.Completion
+import org.zstack.testlib.SubCase
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+
+import static org.zstack.core.Platform.operr
+
+/**
+ * pings of a group are spread over the ping interval, and a ping never completing or failing doesn't hold
+ * back pings of other resources
+ */
+class PingSchedulerCase extends SubCase {
+    PingScheduler scheduler
+    List<PingScheduler.Group> groups = []
+
+    // ping times of resources in milliseconds
+    Map<String, List<Long>> pinged = new ConcurrentHashMap<>()
+
+    @Override
+    void clean() {
+        groups.each { it.untrackAll() }
+    }
+
+    @Override
+    void setup() {
+    }
+
+    @Override
+    void environment() {
+    }
+
+    @Override
+    void test() {
+        scheduler = bean(PingScheduler.class)
+
+        testPingsSpreadOverInterval()
+        testSlowOrFailedPingNotStallingOthers()
+    }
+
+    private PingScheduler.Group createGroup(long intervalMs, Closure handler) {
+        PingScheduler.Group g = scheduler.createGroup("ping-scheduler-case-${Platform.uuid}".toString(), new PingScheduler.PingHandler() {
+            @Override
+            TimeUnit getTimeUnit() {
+                return TimeUnit.MILLISECONDS
+            }
+
+            @Override
+            long getPingInterval() {
+                return intervalMs
+            }
+
+            @Override
+            void ping(String resourceUuid, Completion completion) {
+                pinged.computeIfAbsent(resourceUuid, { new CopyOnWriteArrayList<Long>() }).add(System.currentTimeMillis())
+                handler(resourceUuid, completion)
+            }
+        })
+
+        groups.add(g)
+        return g
+    }
+
+    private int count(String uuid) {
+        return pinged[uuid]?.size() ?: 0
+    }
+
+    void testPingsSpreadOverInterval() {
+        long interval = 2000
+        List<String> uuids = (1..100).collect { Platform.uuid }
+        PingScheduler.Group g = createGroup(interval) { String uuid, Completion completion ->
+            completion.success()
+        }
+
+        long start = System.currentTimeMillis()
+        g.track(uuids)
+        retryInSecs {
+            assert uuids.every { count(it) >= 2 }
+        }
+        g.untrackAll()
+
+        // first pings fall into every quarter of the interval rather than a burst
+        int[] quarters = new int[4]
+        uuids.each {
+            long offset = pinged[it][0] - start
+            assert offset < interval + 500
+            quarters[(int) Math.min(3, offset * 4 / interval)] ++
+        }
+        quarters.each {
+            assert it >= 10
+            assert it <= 50
+        }
+
+        // the next ping is one interval later, give or take the jitter and the tick
+        uuids.each {
+            long gap = pinged[it][1] - pinged[it][0]
+            assert gap >= interval * 0.9
+            assert gap <= interval * 1.1 + 500
+        }
+    }
+
+    void testSlowOrFailedPingNotStallingOthers() {
+        String slow = Platform.uuid
+        String failed = Platform.uuid
+        String thrown = Platform.uuid
+        List<String> others = (1..10).collect { Platform.uuid }
+        Completion slowCompletion = null
+
+        PingScheduler.Group g = createGroup(300) { String uuid, Completion completion ->
+            if (uuid == slow) {
+                // held until the test completes it
+                slowCompletion = completion
+            } else if (uuid == failed) {
+                completion.fail(operr("on purpose"))
+            } else if (uuid == thrown) {
+                throw new RuntimeException("on purpose")
+            } else {
+                completion.success()
+            }
+        }
+
+        g.track([slow, failed, thrown] + others)
+        retryInSecs {
+            assert others.every { count(it) >= 5 }
+            assert count(failed) >= 5
+            assert count(thrown) >= 5
+        }
+
+        // not pinged again before the previous ping completes
+        assert count(slow) == 1
+        PingScheduler.PingStats stats = g.getStats()
+        assert stats.inflight == 1
+        assert stats.failures >= 10
+
+        slowCompletion.success()
+        retryInSecs {
+            assert count(slow) >= 2
+        }
+
+        g.untrackAll()
+        assert g.getStats().tracked == 0
+    }
+}
@@ -0,0 +1,158 @@
+package org.zstack.test.integration.core.job
+
+import org.zstack.core.Platform
+import org.zstack.core.job.Job
+import org.zstack.core.job.JobGlobalProperty
+import org.zstack.core.job.JobQueueFacade
+import org.zstack.core.job.JobQueueFacadeImpl2
+import org.zstack.header.core.ReturnValueCompletion
+import org.zstack.header.errorcode.ErrorCode
+import org.zstack.testlib.SubCase
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import static org.zstack.core.Platform.operr
+
+/**
+ * non-restartable jobs of a queue run in memory one by one in the order they are issued, and a job throwing
+ * or failing doesn't stop the jobs behind it
+ */
+class JobQueueInMemoryCase extends SubCase {
+    JobQueueFacadeImpl2 jobf
+
+    @Override
+    void clean() {
+    }
+
+    @Override
+    void setup() {
+    }
+
+    @Override
+    void environment() {
+    }
+
+    @Override
+    void test() {
+        jobf = bean(JobQueueFacade.class) as JobQueueFacadeImpl2
+        JobGlobalProperty.IN_MEMORY_NON_RESTARTABLE_JOBS = true
+
+        testJobsRunInOrder()
+        testThrowingJobFailed()
+        testFailedJobFollowed()
+    }
+
+    private static Job job(Closure c) {
+        return new Job() {
+            @Override
+            void run(ReturnValueCompletion<Object> completion) {
+                c(completion)
+            }
+        }
+    }
+
+    // records the result of each job in the order they complete
+    private void execute(String queueName, Job job, List results, String name) {
+        jobf.execute(queueName, "owner", job, new ReturnValueCompletion<Object>(null) {
+            @Override
+            void success(Object returnValue) {
+                results.add(returnValue)
+            }
+
+            @Override
+            void fail(ErrorCode errorCode) {
+                results.add("${name} failed".toString())
+            }
+        }, Object.class)
+    }
+
+    private Map<String, Deque> queues() {
+        synchronized (jobf.@inMemoryQueues) {
+            return new HashMap<>(jobf.@inMemoryQueues as Map)
+        }
+    }
+
+    void testJobsRunInOrder() {
+        String queueName = Platform.uuid
+        List started = Collections.synchronizedList([])
+        List results = Collections.synchronizedList([])
+        CountDownLatch latch = new CountDownLatch(1)
+
+        execute(queueName, job { ReturnValueCompletion completion ->
+            started.add(1)
+            latch.await(10, TimeUnit.SECONDS)
+            completion.success(1)
+        }, results, "job1")
+        retryInSecs {
+            assert started == [1]
+        }
+
+        (2..4).each { i ->
+            execute(queueName, job { ReturnValueCompletion completion ->
+                started.add(i)
+                completion.success(i)
+            }, results, "job${i}")
+        }
+
+        // the jobs wait for the first one
+        TimeUnit.SECONDS.sleep(1)
+        assert started == [1]
+        assert queues()[queueName].size() == 3
+
+        latch.countDown()
+        retryInSecs {
+            assert results == [1, 2, 3, 4]
+            assert !queues().containsKey(queueName)
+        }
+        assert started == [1, 2, 3, 4]
+    }
+
+    void testThrowingJobFailed() {
+        String queueName = Platform.uuid
+        List results = Collections.synchronizedList([])
+        CountDownLatch latch = new CountDownLatch(1)
+
+        execute(queueName, job { ReturnValueCompletion completion ->
+            latch.await(10, TimeUnit.SECONDS)
+            throw new RuntimeException("on purpose")
+        }, results, "job1")
+        execute(queueName, job { ReturnValueCompletion completion ->
+            completion.success(2)
+        }, results, "job2")
+
+        latch.countDown()
+        retryInSecs {
+            assert results == ["job1 failed", 2]
+            assert !queues().containsKey(queueName)
+        }
+    }
+
+    void testFailedJobFollowed() {
+        String queueName = Platform.uuid
+        List results = Collections.synchronizedList([])
+
+        execute(queueName, job { ReturnValueCompletion completion ->
+            completion.fail(operr("on purpose"))
+            // completing twice doesn't start the next job again
+            completion.success(1)
+        }, results, "job1")
+        execute(queueName, job { ReturnValueCompletion completion ->
+            completion.success(2)
+        }, results, "job2")
+
+        retryInSecs {
+            assert results == ["job1 failed", 2]
+            assert !queues().containsKey(queueName)
+        }
+
+        // the queue is created again for the job issued after it's released
+        execute(queueName, job { ReturnValueCompletion completion ->
+            completion.success(3)
+        }, results, "job3")
+        retryInSecs {
+            assert results == ["job1 failed", 2, 3]
+            assert !queues().containsKey(queueName)
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package org.zstack.test.integration.kvm.host
+
+import org.springframework.http.HttpEntity
+import org.zstack.compute.host.HostGlobalConfig
+import org.zstack.compute.host.HostReconnectScheduler
+import org.zstack.core.db.SQL
+import org.zstack.header.core.FutureCompletion
+import org.zstack.header.host.HostStatus
+import org.zstack.header.host.HostVO
+import org.zstack.header.host.HostVO_
+import org.zstack.kvm.KVMAgentCommands
+import org.zstack.kvm.KVMConstant
+import org.zstack.sdk.GetHostReconnectQueueResult
+import org.zstack.sdk.HostInventory
+import org.zstack.test.integration.kvm.KvmTest
+import org.zstack.test.integration.kvm.hostallocator.Env
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * reconnects admitted by the HostReconnectScheduler run at most host.reconnect.parallelismDegree at a time,
+ * requests of the same host are merged, and a host failing to reconnect backs off exponentially; the queue is
+ * reported by the API GetHostReconnectQueue
+ */
+class HostReconnectSchedulerCase extends SubCase {
+    EnvSpec env
+    HostReconnectScheduler scheduler
+    String kvm1
+    String kvm2
+    String kvm3
+
+    @Override
+    void clean() {
+        env.delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(KvmTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = Env.noVmThreeHostEnv()
+    }
+
+    @Override
+    void test() {
+        env.create {
+            scheduler = bean(HostReconnectScheduler.class)
+            kvm1 = (env.inventoryByName("kvm1") as HostInventory).uuid
+            kvm2 = (env.inventoryByName("kvm2") as HostInventory).uuid
+            kvm3 = (env.inventoryByName("kvm3") as HostInventory).uuid
+
+            testParallelismLimitedAndRequestsMerged()
+            testBackoffAfterFailure()
+            testCancelBackingOffReconnect()
+        }
+    }
+
+    // reconnects of connected hosts are skipped without connecting the agents
+    private static void setDisconnected(List<String> hostUuids) {
+        SQL.New(HostVO.class).in(HostVO_.uuid, hostUuids).set(HostVO_.status, HostStatus.Disconnected).update()
+    }
+
+    private FutureCompletion reconnect(String hostUuid) {
+        FutureCompletion completion = new FutureCompletion(null)
+        scheduler.reconnect(hostUuid, completion)
+        return completion
+    }
+
+    private GetHostReconnectQueueResult queue() {
+        return getHostReconnectQueue {} as GetHostReconnectQueueResult
+    }
+
+    void testParallelismLimitedAndRequestsMerged() {
+        HostGlobalConfig.RECONNECT_PARALLELISM_DEGREE.updateValue(1)
+
+        List<String> connected = Collections.synchronizedList([])
+        CountDownLatch latch = new CountDownLatch(1)
+        env.afterSimulator(KVMConstant.KVM_CONNECT_PATH) { rsp, HttpEntity<String> e ->
+            def cmd = json(e.body, KVMAgentCommands.ConnectCmd.class)
+            connected.add(cmd.hostUuid)
+            latch.await(30, TimeUnit.SECONDS)
+            return rsp
+        }
+
+        setDisconnected([kvm1, kvm2, kvm3])
+        List<FutureCompletion> completions = [reconnect(kvm1), reconnect(kvm2), reconnect(kvm3)]
+        retryInSecs {
+            assert connected == [kvm1]
+        }
+
+        // requested again while queued, served by the queued reconnect
+        completions.add(reconnect(kvm3))
+
+        GetHostReconnectQueueResult q = queue()
+        assert q.running == 1
+        assert q.queueDepth == 2
+        assert q.backingOff == 0
+
+        TimeUnit.SECONDS.sleep(1)
+        assert connected == [kvm1]
+
+        latch.countDown()
+        completions.each {
+            it.await(TimeUnit.SECONDS.toMillis(30))
+            assert it.success
+        }
+        assert connected == [kvm1, kvm2, kvm3]
+
+        q = queue()
+        assert q.running == 0
+        assert q.queueDepth == 0
+
+        env.cleanAfterSimulatorHandlers()
+        HostGlobalConfig.RECONNECT_PARALLELISM_DEGREE.updateValue(HostGlobalConfig.RECONNECT_PARALLELISM_DEGREE.defaultValue(Integer.class))
+    }
+
+    void testBackoffAfterFailure() {
+        HostGlobalConfig.RECONNECT_BACKOFF_INITIAL.updateValue(2)
+        HostGlobalConfig.RECONNECT_BACKOFF_MAX.updateValue(3)
+
+        boolean fail = true
+        List<Long> connectTimes = Collections.synchronizedList([])
+        env.afterSimulator(KVMConstant.KVM_CONNECT_PATH) { KVMAgentCommands.ConnectResponse rsp, HttpEntity<String> e ->
+            def cmd = json(e.body, KVMAgentCommands.ConnectCmd.class)
+            if (cmd.hostUuid == kvm1) {
+                connectTimes.add(System.currentTimeMillis())
+                if (fail) {
+                    rsp.success = false
+                    rsp.error = "on purpose"
+                }
+            }
+            return rsp
+        }
+
+        setDisconnected([kvm1])
+        FutureCompletion completion = reconnect(kvm1)
+        completion.await(TimeUnit.SECONDS.toMillis(30))
+        assert !completion.success
+
+        // the next reconnect waits 2 seconds
+        completion = reconnect(kvm1)
+        GetHostReconnectQueueResult q = queue()
+        assert q.queueDepth == 1
+        assert q.backingOff == 1
+        assert q.etaInSeconds > 0
+
+        completion.await(TimeUnit.SECONDS.toMillis(30))
+        assert !completion.success
+        assert connectTimes.size() == 2
+        assert connectTimes[1] - connectTimes[0] >= TimeUnit.SECONDS.toMillis(2)
+
+        // doubled on the second failure, capped by host.reconnect.backoff.max
+        fail = false
+        completion = reconnect(kvm1)
+        completion.await(TimeUnit.SECONDS.toMillis(30))
+        assert completion.success
+        assert connectTimes.size() == 3
+        assert connectTimes[2] - connectTimes[1] >= TimeUnit.SECONDS.toMillis(3)
+
+        // a successful reconnect clears the backoff
+        setDisconnected([kvm1])
+        completion = reconnect(kvm1)
+        completion.await(TimeUnit.SECONDS.toMillis(30))
+        assert completion.success
+        assert connectTimes[3] - connectTimes[2] < TimeUnit.SECONDS.toMillis(2)
+
+        env.cleanAfterSimulatorHandlers()
+    }
+
+    void testCancelBackingOffReconnect() {
+        HostGlobalConfig.RECONNECT_BACKOFF_INITIAL.updateValue(60)
+
+        env.afterSimulator(KVMConstant.KVM_CONNECT_PATH) { KVMAgentCommands.ConnectResponse rsp, HttpEntity<String> e ->
+            rsp.success = false
+            rsp.error = "on purpose"
+            return rsp
+        }
+
+        setDisconnected([kvm2])
+        FutureCompletion completion = reconnect(kvm2)
+        completion.await(TimeUnit.SECONDS.toMillis(30))
+        assert !completion.success
+
+        completion = reconnect(kvm2)
+        assert queue().backingOff == 1
+
+        scheduler.cancel([kvm2])
+        completion.await(TimeUnit.SECONDS.toMillis(30))
+        assert !completion.success
+
+        GetHostReconnectQueueResult q = queue()
+        assert q.queueDepth == 0
+        assert q.backingOff == 0
+
+        env.cleanAfterSimulatorHandlers()
+        reconnectHost {
+            uuid = kvm2
+        }
+    }
+}
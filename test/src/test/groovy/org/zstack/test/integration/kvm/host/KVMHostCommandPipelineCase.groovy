@@ -0,0 +1,149 @@
+package org.zstack.test.integration.kvm.host
+
+import org.springframework.http.HttpEntity
+import org.zstack.core.cloudbus.CloudBus
+import org.zstack.core.cloudbus.CloudBusListCallBack
+import org.zstack.header.host.CheckVmStateOnHypervisorMsg
+import org.zstack.header.host.CheckVmStateOnHypervisorReply
+import org.zstack.header.host.HostConstant
+import org.zstack.header.message.MessageReply
+import org.zstack.header.vm.VmInstanceState
+import org.zstack.kvm.KVMConstant
+import org.zstack.kvm.KVMGlobalProperty
+import org.zstack.sdk.HostInventory
+import org.zstack.sdk.VmInstanceInventory
+import org.zstack.test.integration.kvm.Env
+import org.zstack.test.integration.kvm.KvmTest
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+import org.zstack.utils.gson.JSONObjectUtil
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * commands to the same host sent within the pipeline window go to the agent in one batch,
+ * and every caller gets its own response
+ */
+class KVMHostCommandPipelineCase extends SubCase {
+    EnvSpec env
+    HostInventory host
+    VmInstanceInventory vm
+    CloudBus bus
+
+    boolean pipelineEnabled
+    long pipelineWindow
+
+    @Override
+    void setup() {
+        useSpring(KvmTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = Env.oneVmBasicEnv()
+    }
+
+    @Override
+    void test() {
+        env.create {
+            host = env.inventoryByName("kvm") as HostInventory
+            vm = env.inventoryByName("vm") as VmInstanceInventory
+            bus = bean(CloudBus.class)
+
+            pipelineEnabled = KVMGlobalProperty.COMMAND_PIPELINE_ENABLED
+            pipelineWindow = KVMGlobalProperty.COMMAND_PIPELINE_WINDOW
+            KVMGlobalProperty.COMMAND_PIPELINE_ENABLED = true
+            KVMGlobalProperty.COMMAND_PIPELINE_WINDOW = 2000
+
+            testCommandsSentInOneBatch()
+            testFailedCommandInBatch()
+            testSingleCommandNotBatched()
+        }
+    }
+
+    @Override
+    void clean() {
+        KVMGlobalProperty.COMMAND_PIPELINE_ENABLED = pipelineEnabled
+        KVMGlobalProperty.COMMAND_PIPELINE_WINDOW = pipelineWindow
+        env.delete()
+    }
+
+    private List<MessageReply> checkVmStates(int num) {
+        List<CheckVmStateOnHypervisorMsg> msgs = []
+        for (int i = 0; i < num; i++) {
+            CheckVmStateOnHypervisorMsg msg = new CheckVmStateOnHypervisorMsg()
+            msg.hostUuid = host.uuid
+            msg.vmInstanceUuids = [vm.uuid]
+            bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, host.uuid)
+            msgs.add(msg)
+        }
+
+        List<MessageReply> replies = []
+        CountDownLatch latch = new CountDownLatch(1)
+        bus.send(msgs, num, new CloudBusListCallBack(null) {
+            @Override
+            void run(List<MessageReply> rs) {
+                replies.addAll(rs)
+                latch.countDown()
+            }
+        })
+
+        assert latch.await(30, TimeUnit.SECONDS)
+        return replies
+    }
+
+    private List<Integer> recordBatches() {
+        List<Integer> batchSizes = Collections.synchronizedList([])
+        env.afterSimulator(KVMConstant.KVM_BATCH_COMMANDS_PATH) { rsp, HttpEntity<String> e ->
+            Map batch = JSONObjectUtil.toObject(e.body, LinkedHashMap.class)
+            batchSizes.add((batch.commands as List).size())
+            return rsp
+        }
+
+        return batchSizes
+    }
+
+    void testCommandsSentInOneBatch() {
+        def batchSizes = recordBatches()
+
+        List<MessageReply> replies = checkVmStates(5)
+
+        assert batchSizes.sum() == 5
+        assert batchSizes.every { it > 1 }
+        replies.each { MessageReply r ->
+            assert r.success
+            assert r instanceof CheckVmStateOnHypervisorReply
+            assert r.states[vm.uuid] == VmInstanceState.Running.toString()
+        }
+
+        env.cleanAfterSimulatorHandlers()
+    }
+
+    void testFailedCommandInBatch() {
+        def batchSizes = recordBatches()
+        env.simulator(KVMConstant.KVM_VM_CHECK_STATE) {
+            throw new Exception("on purpose")
+        }
+
+        List<MessageReply> replies = checkVmStates(3)
+
+        assert batchSizes.sum() == 3
+        replies.each { assert !it.success }
+
+        env.cleanSimulatorHandlers()
+        env.cleanAfterSimulatorHandlers()
+    }
+
+    void testSingleCommandNotBatched() {
+        def batchSizes = recordBatches()
+
+        List<MessageReply> replies = checkVmStates(1)
+
+        assert batchSizes.isEmpty()
+        assert replies[0].success
+        assert (replies[0] as CheckVmStateOnHypervisorReply).states[vm.uuid] == VmInstanceState.Running.toString()
+
+        env.cleanAfterSimulatorHandlers()
+    }
+}
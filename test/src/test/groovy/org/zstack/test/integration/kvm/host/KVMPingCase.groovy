@@ -448,6 +448,8 @@ class KVMPingCase extends SubCase {
             HostGlobalConfig.PING_HOST_INTERVAL.updateValue(1)
             HostGlobalConfig.MAXIMUM_PING_FAILURE.updateValue(1)
             HostGlobalConfig.SLEEP_TIME_AFTER_PING_FAILURE.updateValue(0)
+            HostGlobalConfig.RECONNECT_BACKOFF_INITIAL.updateValue(1)
+            HostGlobalConfig.RECONNECT_BACKOFF_MAX.updateValue(1)
 
             functionForMockTestObjectFactory[HostReconnectTask.class] = {
                 if (it instanceof KVMReconnectHostTask) {
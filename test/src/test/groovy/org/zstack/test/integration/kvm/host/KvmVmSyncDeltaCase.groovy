@@ -0,0 +1,172 @@
+package org.zstack.test.integration.kvm.host
+
+import org.springframework.http.HttpEntity
+import org.zstack.core.cloudbus.CloudBus
+import org.zstack.header.core.NoErrorCompletion
+import org.zstack.header.message.MessageReply
+import org.zstack.header.vm.VmStateChangedOnHostMsg
+import org.zstack.kvm.KVMAgentCommands.VmSyncCmd
+import org.zstack.kvm.KVMAgentCommands.VmSyncResponse
+import org.zstack.kvm.KVMConstant
+import org.zstack.kvm.KVMHostInventory
+import org.zstack.kvm.KVMHostVO
+import org.zstack.kvm.KvmVmSyncPingTask
+import org.zstack.sdk.HostInventory
+import org.zstack.sdk.VmInstanceInventory
+import org.zstack.test.integration.kvm.Env
+import org.zstack.test.integration.kvm.KvmTest
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * a host connecting reports the states of all VMs, host pings then ask for the changes since the generation
+ * last applied and trace the changed VMs only; a reply going back in generation, e.g. the agent restarted and
+ * the deltas in between are missed, makes a full sync
+ */
+class KvmVmSyncDeltaCase extends SubCase {
+    EnvSpec env
+    HostInventory host
+    VmInstanceInventory vm
+    KvmVmSyncPingTask task
+
+    // sinceGeneration of the vm sync commands received by the agent
+    List<Long> sinceGenerations = Collections.synchronizedList([])
+    // replies of the agent in order
+    List<VmSyncResponse> responses = Collections.synchronizedList([])
+    // VmStateChangedOnHostMsg sent by the tracer, as vmUuid:stateOnHost
+    List<String> traced = Collections.synchronizedList([])
+
+    @Override
+    void setup() {
+        useSpring(KvmTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = Env.oneVmBasicEnv()
+    }
+
+    @Override
+    void test() {
+        env.create {
+            host = env.inventoryByName("kvm") as HostInventory
+            vm = env.inventoryByName("vm") as VmInstanceInventory
+            task = bean(KvmVmSyncPingTask.class)
+
+            env.simulator(KVMConstant.KVM_VM_SYNC_PATH) { HttpEntity<String> e ->
+                VmSyncCmd cmd = json(e.body, VmSyncCmd.class)
+                sinceGenerations.add(cmd.sinceGeneration)
+                if (!responses.isEmpty()) {
+                    return responses.remove(0)
+                }
+
+                // nothing changed if not given, e.g. pinged by the host tracker
+                return cmd.sinceGeneration == null ? response(1, true, [(vm.uuid): KVMConstant.KvmVmState.Running.toString()]) :
+                        response(cmd.sinceGeneration, false, [:])
+            }
+
+            // keep the VM state in the database as it is, so every trace of the VM is recorded
+            env.message(VmStateChangedOnHostMsg.class) { VmStateChangedOnHostMsg msg, CloudBus bus ->
+                traced.add("${msg.vmInstanceUuid}:${msg.stateOnHost}".toString())
+                bus.reply(msg, new MessageReply())
+            }
+
+            testFullReportOnConnecting()
+            testDeltaReportOnPing()
+            testMissedDeltaResyncs()
+
+            env.cleanMessageHandlers()
+            env.cleanSimulatorHandlers()
+        }
+    }
+
+    @Override
+    void clean() {
+        env.delete()
+    }
+
+    private static VmSyncResponse response(long generation, boolean full, Map<String, String> states, List<String> removedVms = null) {
+        VmSyncResponse rsp = new VmSyncResponse()
+        rsp.generation = generation
+        rsp.fullSync = full
+        rsp.states = new HashMap<>(states)
+        rsp.removedVms = removedVms
+        return rsp
+    }
+
+    private long knownGeneration() {
+        def states = (task.@hostVmStates as Map)[host.uuid]
+        assert states != null
+        return states.@generation as long
+    }
+
+    private void ping() {
+        CountDownLatch latch = new CountDownLatch(1)
+        KVMHostInventory inv = KVMHostInventory.valueOf(dbFindByUuid(host.uuid, KVMHostVO.class))
+        task.kvmPingAgentNoFailure(inv, new NoErrorCompletion() {
+            @Override
+            void done() {
+                latch.countDown()
+            }
+        })
+        assert latch.await(30, TimeUnit.SECONDS)
+    }
+
+    private void reset() {
+        sinceGenerations.clear()
+        traced.clear()
+    }
+
+    void testFullReportOnConnecting() {
+        responses.add(response(1, true, [(vm.uuid): KVMConstant.KvmVmState.Running.toString()]))
+        reconnectHost {
+            uuid = host.uuid
+        }
+
+        assert sinceGenerations == [null]
+        assert knownGeneration() == 1
+
+        // the VM is running as in the database
+        TimeUnit.SECONDS.sleep(1)
+        assert traced.isEmpty()
+    }
+
+    void testDeltaReportOnPing() {
+        reset()
+
+        responses.add(response(2, false, [(vm.uuid): KVMConstant.KvmVmState.Paused.toString()]))
+        ping()
+        assert sinceGenerations == [1L]
+        assert knownGeneration() == 2
+        retryInSecs {
+            assert traced == ["${vm.uuid}:Paused".toString()]
+        }
+
+        // the VM not changed since generation 2 is not traced again, though still differing from the database
+        responses.add(response(2, false, [:]))
+        ping()
+        assert sinceGenerations == [1L, 2L]
+        TimeUnit.SECONDS.sleep(1)
+        assert traced.size() == 1
+    }
+
+    void testMissedDeltaResyncs() {
+        reset()
+
+        // the agent restarted and lost the changes after generation 1
+        responses.add(response(1, false, [:]))
+        responses.add(response(3, true, [:]))
+        ping()
+
+        assert sinceGenerations == [2L, null]
+        assert knownGeneration() == 3
+
+        // the full report traces all VMs, the VM missing on the host is reported stopped
+        retryInSecs {
+            assert traced == ["${vm.uuid}:Stopped".toString()]
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.zstack.test.integration.kvm.host
+
+import org.zstack.header.host.HostStatus
+import org.zstack.header.host.HostVO
+import org.zstack.kvm.KVMAgentCommands
+import org.zstack.kvm.KVMConstant
+import org.zstack.kvm.KvmVmSyncPingTask
+import org.zstack.sdk.HostInventory
+import org.zstack.test.integration.kvm.Env
+import org.zstack.test.integration.kvm.KvmTest
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+
+/**
+ * the VM states kept for incremental vm sync are dropped when the host is disconnected or deleted
+ */
+class KvmVmSyncHostStatesCase extends SubCase {
+    EnvSpec env
+    HostInventory host
+    KvmVmSyncPingTask task
+
+    @Override
+    void setup() {
+        useSpring(KvmTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = Env.oneVmBasicEnv()
+    }
+
+    @Override
+    void test() {
+        env.create {
+            host = env.inventoryByName("kvm") as HostInventory
+            task = bean(KvmVmSyncPingTask.class)
+
+            env.afterSimulator(KVMConstant.KVM_VM_SYNC_PATH) { KVMAgentCommands.VmSyncResponse rsp ->
+                rsp.generation = 1L
+                rsp.fullSync = true
+                return rsp
+            }
+
+            testStatesDroppedWhenHostDisconnected()
+            testStatesDroppedWhenHostDeleted()
+        }
+    }
+
+    @Override
+    void clean() {
+        env.delete()
+    }
+
+    private Map getHostVmStates() {
+        return task.@hostVmStates as Map
+    }
+
+    void testStatesDroppedWhenHostDisconnected() {
+        reconnectHost {
+            uuid = host.uuid
+        }
+        assert getHostVmStates().containsKey(host.uuid)
+
+        env.simulator(KVMConstant.KVM_CONNECT_PATH) {
+            throw new Exception("on purpose")
+        }
+
+        expect(AssertionError.class) {
+            reconnectHost {
+                uuid = host.uuid
+            }
+        }
+
+        retryInSecs {
+            assert dbFindByUuid(host.uuid, HostVO.class).status == HostStatus.Disconnected
+            assert !getHostVmStates().containsKey(host.uuid)
+        }
+
+        env.cleanSimulatorHandlers()
+        env.afterSimulator(KVMConstant.KVM_VM_SYNC_PATH) { KVMAgentCommands.VmSyncResponse rsp ->
+            rsp.generation = 1L
+            rsp.fullSync = true
+            return rsp
+        }
+    }
+
+    void testStatesDroppedWhenHostDeleted() {
+        reconnectHost {
+            uuid = host.uuid
+        }
+        assert getHostVmStates().containsKey(host.uuid)
+
+        deleteHost {
+            uuid = host.uuid
+        }
+
+        assert !getHostVmStates().containsKey(host.uuid)
+    }
+}
@@ -0,0 +1,173 @@
+package org.zstack.test.integration.kvm.hostallocator
+
+import org.zstack.compute.allocator.HostAllocatorGlobalConfig
+import org.zstack.compute.allocator.HostAllocatorManagerImpl
+import org.zstack.compute.allocator.HostCapacityReserver
+import org.zstack.core.db.Q
+import org.zstack.core.thread.ChainTask
+import org.zstack.core.thread.SyncTaskChain
+import org.zstack.core.thread.ThreadFacade
+import org.zstack.header.allocator.HostCapacityVO
+import org.zstack.header.allocator.UnableToReserveHostCapacityException
+import org.zstack.header.vm.VmInstanceVO
+import org.zstack.header.vm.VmInstanceVO_
+import org.zstack.sdk.HostInventory
+import org.zstack.sdk.ImageInventory
+import org.zstack.sdk.InstanceOfferingInventory
+import org.zstack.sdk.L3NetworkInventory
+import org.zstack.sdk.VmInstanceInventory
+import org.zstack.test.integration.kvm.KvmTest
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+import org.zstack.utils.data.SizeUnit
+
+import java.util.concurrent.CountDownLatch
+
+/**
+ * allocations of new VMs queued behind the host-allocator chain are allocated in one gang,
+ * and HostCapacityReserver.reserveAll reserves capacities of several hosts all or nothing
+ */
+class GangHostAllocationCase extends SubCase {
+    EnvSpec env
+    HostCapacityReserver reserver
+
+    @Override
+    void clean() {
+        env.delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(KvmTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = Env.noVmThreeHostEnv()
+    }
+
+    @Override
+    void test() {
+        env.create {
+            reserver = bean(HostCapacityReserver.class)
+
+            testQueuedVmsAllocatedInOneGang()
+            testReserveAll()
+        }
+    }
+
+    private long batches() {
+        return reserver.@batches.get()
+    }
+
+    private HostCapacityVO capacityOf(String hostUuid) {
+        return dbFindByUuid(hostUuid, HostCapacityVO.class)
+    }
+
+    void testQueuedVmsAllocatedInOneGang() {
+        HostAllocatorGlobalConfig.GANG_ENABLED.updateValue(true)
+        HostAllocatorGlobalConfig.GANG_PLACEMENT_STRATEGY.updateValue("Spread")
+
+        InstanceOfferingInventory offering = env.inventoryByName("instanceOffering") as InstanceOfferingInventory
+        ImageInventory image = env.inventoryByName("image1") as ImageInventory
+        L3NetworkInventory l3 = env.inventoryByName("l3") as L3NetworkInventory
+        HostAllocatorManagerImpl hostAllocatorMgr = bean(HostAllocatorManagerImpl.class)
+        long batchesBefore = batches()
+
+        // hold the host-allocator chain so the allocations of all VMs queue up behind it
+        CountDownLatch latch = new CountDownLatch(1)
+        bean(ThreadFacade.class).chainSubmit(new ChainTask(null) {
+            @Override
+            String getSyncSignature() {
+                return "host-allocator"
+            }
+
+            @Override
+            void run(SyncTaskChain chain) {
+                Thread.start {
+                    latch.await()
+                    chain.next()
+                }
+            }
+
+            @Override
+            String getName() {
+                return "hold-host-allocator"
+            }
+        })
+
+        List<VmInstanceInventory> vms = Collections.synchronizedList([])
+        def threads = (1..3).collect { i ->
+            Thread.start {
+                vms.add(createVmInstance {
+                    name = "gang-vm-" + i
+                    instanceOfferingUuid = offering.uuid
+                    imageUuid = image.uuid
+                    l3NetworkUuids = [l3.uuid]
+                } as VmInstanceInventory)
+            }
+        }
+
+        retryInSecs {
+            assert (hostAllocatorMgr.@gangQueue as List).size() == 3
+        }
+        latch.countDown()
+        threads.each { it.join() }
+
+        assert vms.size() == 3
+        assert batches() == batchesBefore + 1
+
+        // spread on three hosts of the same capacity
+        List<String> hostUuids = Q.New(VmInstanceVO.class).select(VmInstanceVO_.hostUuid)
+                .in(VmInstanceVO_.uuid, vms.collect { it.uuid }).listValues()
+        assert hostUuids.toSet().size() == 3
+        hostUuids.each {
+            assert capacityOf(it).availableMemory == SizeUnit.GIGABYTE.toByte(10) - offering.memorySize
+            assert capacityOf(it).availableCpu == 8 - offering.cpuNum
+        }
+
+        HostAllocatorGlobalConfig.GANG_ENABLED.updateValue(false)
+    }
+
+    void testReserveAll() {
+        String host1 = (env.inventoryByName("kvm1") as HostInventory).uuid
+        String host2 = (env.inventoryByName("kvm2") as HostInventory).uuid
+        HostCapacityVO cap1 = capacityOf(host1)
+        HostCapacityVO cap2 = capacityOf(host2)
+        long gb = SizeUnit.GIGABYTE.toByte(1)
+
+        reserver.reserveAll([
+                new HostCapacityReserver.Reservation(host1, 1, gb),
+                new HostCapacityReserver.Reservation(host2, 2, 2 * gb),
+                new HostCapacityReserver.Reservation(host1, 1, gb)
+        ])
+
+        assert capacityOf(host1).availableCpu == cap1.availableCpu - 2
+        assert capacityOf(host1).availableMemory == cap1.availableMemory - 2 * gb
+        assert capacityOf(host2).availableCpu == cap2.availableCpu - 2
+        assert capacityOf(host2).availableMemory == cap2.availableMemory - 2 * gb
+
+        // all or nothing, host1 has room but host2 doesn't
+        expect(UnableToReserveHostCapacityException.class) {
+            reserver.reserveAll([
+                    new HostCapacityReserver.Reservation(host1, 1, gb),
+                    new HostCapacityReserver.Reservation(host2, 1, 100 * gb)
+            ])
+        }
+
+        assert capacityOf(host1).availableCpu == cap1.availableCpu - 2
+        assert capacityOf(host1).availableMemory == cap1.availableMemory - 2 * gb
+        assert capacityOf(host2).availableMemory == cap2.availableMemory - 2 * gb
+
+        // negative reservations return the capacity
+        reserver.reserveAll([
+                new HostCapacityReserver.Reservation(host1, -2, -2 * gb),
+                new HostCapacityReserver.Reservation(host2, -2, -2 * gb)
+        ])
+
+        assert capacityOf(host1).availableCpu == cap1.availableCpu
+        assert capacityOf(host1).availableMemory == cap1.availableMemory
+        assert capacityOf(host2).availableCpu == cap2.availableCpu
+        assert capacityOf(host2).availableMemory == cap2.availableMemory
+    }
+}
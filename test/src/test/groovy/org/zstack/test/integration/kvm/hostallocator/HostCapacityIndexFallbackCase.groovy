@@ -0,0 +1,82 @@
+package org.zstack.test.integration.kvm.hostallocator
+
+import org.zstack.compute.allocator.HostAllocatorGlobalConfig
+import org.zstack.compute.allocator.HostCapacityIndexManager
+import org.zstack.core.db.SQL
+import org.zstack.header.allocator.HostCapacityVO
+import org.zstack.header.allocator.HostCapacityVO_
+import org.zstack.sdk.HostInventory
+import org.zstack.sdk.ImageInventory
+import org.zstack.sdk.InstanceOfferingInventory
+import org.zstack.sdk.L3NetworkInventory
+import org.zstack.sdk.VmInstanceInventory
+import org.zstack.test.integration.kvm.KvmTest
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+import org.zstack.utils.data.SizeUnit
+
+/**
+ * a stale host capacity index doesn't fail the allocation, the allocation starts over without the index
+ * when all hosts narrowed down by the index are rejected by the capacity in the database
+ */
+class HostCapacityIndexFallbackCase extends SubCase {
+    EnvSpec env
+    HostCapacityIndexManager indexMgr
+
+    @Override
+    void clean() {
+        env.delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(KvmTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = Env.noVmThreeHostEnv()
+    }
+
+    @Override
+    void test() {
+        env.create {
+            indexMgr = bean(HostCapacityIndexManager.class)
+            HostAllocatorGlobalConfig.USE_PAGINATION.updateValue(false)
+
+            testStaleIndexFallback()
+        }
+    }
+
+    private void setCapacity(String hostUuid, long cpu, long memory) {
+        SQL.New(HostCapacityVO.class).eq(HostCapacityVO_.uuid, hostUuid)
+                .set(HostCapacityVO_.availableCpu, cpu)
+                .set(HostCapacityVO_.availableMemory, memory)
+                .update()
+    }
+
+    void testStaleIndexFallback() {
+        String kvm1 = (env.inventoryByName("kvm1") as HostInventory).uuid
+        String kvm2 = (env.inventoryByName("kvm2") as HostInventory).uuid
+        String kvm3 = (env.inventoryByName("kvm3") as HostInventory).uuid
+        long memory = SizeUnit.GIGABYTE.toByte(10)
+
+        // the database has room on kvm2 only, changed behind the index as by another management node
+        setCapacity(kvm1, 0, 0)
+        setCapacity(kvm3, 0, 0)
+        // while the index still has room on kvm1 only
+        indexMgr.updateCapacity(kvm1, 8, memory)
+        indexMgr.updateCapacity(kvm2, 0, 0)
+        indexMgr.updateCapacity(kvm3, 0, 0)
+        assert indexMgr.findHosts(null, null, 2, SizeUnit.GIGABYTE.toByte(2)) == [kvm1]
+
+        VmInstanceInventory vm = createVmInstance {
+            name = "vm"
+            instanceOfferingUuid = (env.inventoryByName("instanceOffering") as InstanceOfferingInventory).uuid
+            imageUuid = (env.inventoryByName("image1") as ImageInventory).uuid
+            l3NetworkUuids = [(env.inventoryByName("l3") as L3NetworkInventory).uuid]
+        } as VmInstanceInventory
+
+        assert vm.hostUuid == kvm2
+    }
+}
@@ -0,0 +1,103 @@
+package org.zstack.test.integration.kvm.hostallocator
+
+import org.zstack.compute.allocator.HostCapacityReserver
+import org.zstack.core.db.SQL
+import org.zstack.header.allocator.HostCapacityVO
+import org.zstack.header.allocator.HostCapacityVO_
+import org.zstack.header.allocator.UnableToReserveHostCapacityException
+import org.zstack.sdk.HostInventory
+import org.zstack.test.integration.kvm.KvmTest
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * concurrent reservations on a host are admitted by the capacity in the database only, so one of two
+ * reservations competing for the room of one succeeds, and concurrent reservations never over-commit the host
+ */
+class HostCapacityReserverCase extends SubCase {
+    EnvSpec env
+    HostCapacityReserver reserver
+    String hostUuid
+
+    @Override
+    void clean() {
+        env.delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(KvmTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = Env.noVmThreeHostEnv()
+    }
+
+    @Override
+    void test() {
+        env.create {
+            reserver = bean(HostCapacityReserver.class)
+            hostUuid = (env.inventoryByName("kvm1") as HostInventory).uuid
+
+            testOneOfTwoReserved()
+            testConcurrentReservationsNotOverCommitted()
+        }
+    }
+
+    private long availableCpu() {
+        return dbFindByUuid(hostUuid, HostCapacityVO.class).availableCpu
+    }
+
+    private void setAvailableCpu(long cpu) {
+        SQL.New(HostCapacityVO.class).eq(HostCapacityVO_.uuid, hostUuid).set(HostCapacityVO_.availableCpu, cpu).update()
+    }
+
+    // reserves cpu in the threads all at once, returns the number of successful reservations
+    private int reserveConcurrently(int threads, long cpu) {
+        CyclicBarrier barrier = new CyclicBarrier(threads)
+        AtomicInteger reserved = new AtomicInteger()
+        AtomicInteger rejected = new AtomicInteger()
+
+        def ts = (1..threads).collect {
+            Thread.start {
+                barrier.await(10, TimeUnit.SECONDS)
+                try {
+                    reserver.reserve(hostUuid, cpu, 0)
+                    reserved.incrementAndGet()
+                } catch (UnableToReserveHostCapacityException ignored) {
+                    rejected.incrementAndGet()
+                }
+            }
+        }
+        ts.each { it.join(30000) }
+
+        assert reserved.get() + rejected.get() == threads
+        return reserved.get()
+    }
+
+    void testOneOfTwoReserved() {
+        long cpu = availableCpu()
+
+        10.times {
+            setAvailableCpu(4)
+            assert reserveConcurrently(2, 4) == 1
+            assert availableCpu() == 0
+        }
+
+        setAvailableCpu(cpu)
+    }
+
+    void testConcurrentReservationsNotOverCommitted() {
+        long cpu = availableCpu()
+        setAvailableCpu(8)
+        assert reserveConcurrently(12, 1) == 8
+        assert availableCpu() == 0
+
+        setAvailableCpu(cpu)
+    }
+}
@@ -0,0 +1,154 @@
+package org.zstack.test.integration.kvm.vm
+
+import org.zstack.core.Platform
+import org.zstack.core.cloudbus.CloudBus
+import org.zstack.core.thread.ThreadFacade
+import org.zstack.header.message.MessageReply
+import org.zstack.header.vm.VmStateChangedOnHostMsg
+import org.zstack.kvm.KVMAgentCommands.ReportVmStateCmd
+import org.zstack.sdk.HostInventory
+import org.zstack.sdk.ImageInventory
+import org.zstack.sdk.InstanceOfferingInventory
+import org.zstack.sdk.L3NetworkInventory
+import org.zstack.sdk.VmInstanceInventory
+import org.zstack.test.integration.kvm.Env
+import org.zstack.test.integration.kvm.KvmTest
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * a VM waiting for the reply of its previous state report doesn't hold back other VMs reported in the same
+ * batch, and reports of a migrating VM from the source and the destination host are handled one by one
+ */
+class VmStateReportCoalescerCase extends SubCase {
+    EnvSpec env
+    HostInventory host
+    VmInstanceInventory vm1
+    VmInstanceInventory vm2
+    Object coalescer
+
+    // VmStateChangedOnHostMsg handled, as vmUuid@hostUuid in the order they are received
+    List<String> received = Collections.synchronizedList([])
+    // replies of the VMs are held until the latches are released
+    Map<String, CountDownLatch> held = new ConcurrentHashMap<>()
+
+    @Override
+    void clean() {
+        env.delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(KvmTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = Env.oneVmBasicEnv()
+    }
+
+    @Override
+    void test() {
+        env.create {
+            host = env.inventoryByName("kvm") as HostInventory
+            vm1 = env.inventoryByName("vm") as VmInstanceInventory
+            vm2 = createVmInstance {
+                name = "vm2"
+                instanceOfferingUuid = (env.inventoryByName("instanceOffering") as InstanceOfferingInventory).uuid
+                imageUuid = (env.inventoryByName("image1") as ImageInventory).uuid
+                l3NetworkUuids = [(env.inventoryByName("l3") as L3NetworkInventory).uuid]
+            } as VmInstanceInventory
+
+            // a coalescer of its own, so reports of the real agents don't interfere
+            def ctor = Class.forName("org.zstack.kvm.KVMVmStateReportCoalescer")
+                    .getDeclaredConstructor(CloudBus.class, ThreadFacade.class)
+            ctor.accessible = true
+            coalescer = ctor.newInstance(bean(CloudBus.class), bean(ThreadFacade.class))
+
+            env.message(VmStateChangedOnHostMsg.class) { VmStateChangedOnHostMsg msg, CloudBus bus ->
+                received.add("${msg.vmInstanceUuid}@${msg.hostUuid}".toString())
+                CountDownLatch latch = held[msg.vmInstanceUuid]
+                Thread.start {
+                    if (latch != null) {
+                        latch.await(30, TimeUnit.SECONDS)
+                    }
+                    bus.reply(msg, new MessageReply())
+                }
+            }
+
+            testDelayedReplyNotBlockingOthers()
+            testMigratingVmReportedInOrder()
+
+            env.cleanMessageHandlers()
+        }
+    }
+
+    private void report(String vmUuid, String hostUuid, String state) {
+        ReportVmStateCmd cmd = new ReportVmStateCmd()
+        cmd.vmUuid = vmUuid
+        cmd.hostUuid = hostUuid
+        cmd.vmState = state
+        coalescer.report(cmd)
+    }
+
+    private int count(String vmUuid, String hostUuid) {
+        return received.count { it == "${vmUuid}@${hostUuid}".toString() } as int
+    }
+
+    void testDelayedReplyNotBlockingOthers() {
+        received.clear()
+        CountDownLatch latch = new CountDownLatch(1)
+        held[vm1.uuid] = latch
+
+        report(vm1.uuid, host.uuid, "Running")
+        report(vm2.uuid, host.uuid, "Running")
+        retryInSecs {
+            assert count(vm1.uuid, host.uuid) == 1
+            assert count(vm2.uuid, host.uuid) == 1
+        }
+
+        // vm2 of the same batch is released by its own reply
+        report(vm2.uuid, host.uuid, "Paused")
+        report(vm1.uuid, host.uuid, "Paused")
+        retryInSecs {
+            assert count(vm2.uuid, host.uuid) == 2
+        }
+
+        // the new report of vm1 waits for the reply of the previous one
+        TimeUnit.SECONDS.sleep(1)
+        assert count(vm1.uuid, host.uuid) == 1
+
+        held.remove(vm1.uuid)
+        latch.countDown()
+        retryInSecs {
+            assert count(vm1.uuid, host.uuid) == 2
+        }
+    }
+
+    void testMigratingVmReportedInOrder() {
+        received.clear()
+        String dstHostUuid = Platform.uuid
+        CountDownLatch latch = new CountDownLatch(1)
+        held[vm1.uuid] = latch
+
+        // the source host reports the VM stopped, then the destination host reports it running
+        report(vm1.uuid, host.uuid, "Shutdown")
+        retryInSecs {
+            assert count(vm1.uuid, host.uuid) == 1
+        }
+        report(vm1.uuid, dstHostUuid, "Running")
+
+        TimeUnit.SECONDS.sleep(1)
+        assert count(vm1.uuid, dstHostUuid) == 0
+
+        held.remove(vm1.uuid)
+        latch.countDown()
+        retryInSecs {
+            assert received == ["${vm1.uuid}@${host.uuid}".toString(), "${vm1.uuid}@${dstHostUuid}".toString()]
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package org.zstack.test.integration.rest
+
+import groovy.json.JsonSlurper
+import org.zstack.core.Platform
+import org.zstack.core.db.SQL
+import org.zstack.header.zone.APIDeleteZoneEvent
+import org.zstack.header.zone.APIDeleteZoneMsg
+import org.zstack.rest.AsyncRestApiStore
+import org.zstack.rest.AsyncRestVO
+import org.zstack.rest.RequestData
+import org.zstack.rest.RestConstants
+import org.zstack.rest.RestGlobalProperty
+import org.zstack.rest.RestServer
+import org.zstack.test.integration.ZStackTest
+import org.zstack.testlib.SubCase
+import org.zstack.testlib.WebBeanConstructor
+
+/**
+ * a client waiting for async jobs by long polling or by the event stream is answered once the jobs complete or
+ * the wait ends, and a client closing the event stream doesn't hold the servlet thread until the wait ends
+ */
+class RestAsyncJobWaitCase extends SubCase {
+    RestServer restServer
+    AsyncRestApiStore store
+    long heartbeatSeconds
+
+    @Override
+    void clean() {
+        RestGlobalProperty.ASYNC_JOB_EVENT_STREAM_HEARTBEAT_SECONDS = heartbeatSeconds
+        SQL.New(AsyncRestVO.class).delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(ZStackTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+    }
+
+    @Override
+    void test() {
+        restServer = bean(RestServer.class)
+        store = restServer.@asyncStore as AsyncRestApiStore
+        heartbeatSeconds = RestGlobalProperty.ASYNC_JOB_EVENT_STREAM_HEARTBEAT_SECONDS
+        RestGlobalProperty.ASYNC_JOB_EVENT_STREAM_HEARTBEAT_SECONDS = 1
+
+        testCompletedWhileLongPolling()
+        testLongPollTimeout()
+        testEventStream()
+        testEventStreamClientDisconnected()
+    }
+
+    private String submitJob() {
+        RequestData d = new RequestData()
+        d.@apiMessage = new APIDeleteZoneMsg(Platform.uuid)
+        store.save(d)
+        return d.@apiMessage.id
+    }
+
+    private void completeJob(String apiId) {
+        restServer.handleEvent(new APIDeleteZoneEvent(apiId))
+    }
+
+    private int waiterCount() {
+        return restServer.@jobWaiter.getWaiterCount() as int
+    }
+
+    private static String jobsPath(String suffix) {
+        return "${RestConstants.API_VERSION}${RestConstants.ASYNC_JOB_PATH}${suffix}"
+    }
+
+    private static HttpURLConnection get(String suffix) {
+        HttpURLConnection c = new URL("http://127.0.0.1:${WebBeanConstructor.port}${jobsPath(suffix)}").openConnection() as HttpURLConnection
+        c.readTimeout = 30000
+        return c
+    }
+
+    void testCompletedWhileLongPolling() {
+        String apiId = submitJob()
+        int code = 0
+        long elapsed = 0
+
+        Thread t = Thread.start {
+            long start = System.currentTimeMillis()
+            code = get("/${apiId}?${RestConstants.ASYNC_JOB_WAIT_SECONDS}=10").responseCode
+            elapsed = System.currentTimeMillis() - start
+        }
+
+        retryInSecs {
+            assert waiterCount() == 1
+        }
+        completeJob(apiId)
+        t.join(15000)
+
+        // answered by the completion rather than the end of the wait
+        assert code == 200
+        assert elapsed < 10000
+        assert waiterCount() == 0
+    }
+
+    void testLongPollTimeout() {
+        String apiId = submitJob()
+
+        long start = System.currentTimeMillis()
+        assert get("/${apiId}?${RestConstants.ASYNC_JOB_WAIT_SECONDS}=1").responseCode == 202
+        assert System.currentTimeMillis() - start >= 1000
+        assert waiterCount() == 0
+
+        assert get("/${apiId}?${RestConstants.ASYNC_JOB_WAIT_SECONDS}=-1").responseCode == 400
+
+        completeJob(apiId)
+        assert get("/${apiId}?${RestConstants.ASYNC_JOB_WAIT_SECONDS}=1").responseCode == 200
+    }
+
+    void testEventStream() {
+        String done = submitJob()
+        completeJob(done)
+        String pending = submitJob()
+        String expired = Platform.uuid
+
+        HttpURLConnection c = get("?${RestConstants.ASYNC_JOB_UUIDS}=${done},${pending},${expired}&${RestConstants.ASYNC_JOB_WAIT_SECONDS}=10")
+        List<Map> events = Collections.synchronizedList([])
+        Thread t = Thread.start {
+            c.inputStream.withReader { reader ->
+                reader.eachLine { String line ->
+                    if (line.startsWith("data: ")) {
+                        events.add(new JsonSlurper().parseText(line.substring("data: ".length())) as Map)
+                    }
+                }
+            }
+        }
+
+        // jobs already finished are pushed first
+        retryInSecs {
+            assert events.size() == 2
+        }
+        assert waiterCount() == 1
+
+        completeJob(pending)
+        t.join(15000)
+
+        assert c.contentType.startsWith("text/event-stream")
+        assert events.collect { [it.uuid, it.state, it.statusCode] } == [
+                [done, "done", 200],
+                [expired, "expired", 404],
+                [pending, "done", 200]
+        ]
+        assert waiterCount() == 0
+    }
+
+    void testEventStreamClientDisconnected() {
+        String done = submitJob()
+        completeJob(done)
+        String pending = submitJob()
+
+        Socket socket = new Socket("127.0.0.1", WebBeanConstructor.port)
+        String path = jobsPath("?${RestConstants.ASYNC_JOB_UUIDS}=${done},${pending}&${RestConstants.ASYNC_JOB_WAIT_SECONDS}=60")
+        socket.outputStream.write("GET ${path} HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n".getBytes("UTF-8"))
+        socket.outputStream.flush()
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.inputStream, "UTF-8"))
+        String line
+        while ((line = reader.readLine()) != null && !line.startsWith("data: ")) {
+        }
+        assert line != null && line.contains(done)
+        assert waiterCount() == 1
+
+        socket.close()
+
+        // found by the heartbeat long before the wait ends
+        retryInSecs {
+            assert waiterCount() == 0
+        }
+
+        completeJob(pending)
+    }
+}
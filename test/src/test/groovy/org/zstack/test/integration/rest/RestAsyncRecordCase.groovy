@@ -0,0 +1,75 @@
+package org.zstack.test.integration.rest
+
+import org.zstack.core.Platform
+import org.zstack.core.db.Q
+import org.zstack.core.db.SQL
+import org.zstack.header.zone.APIDeleteZoneEvent
+import org.zstack.header.zone.APIDeleteZoneMsg
+import org.zstack.rest.AsyncRestState
+import org.zstack.rest.AsyncRestVO
+import org.zstack.rest.AsyncRestVO_
+import org.zstack.rest.MysqlAsyncRestStore
+import org.zstack.rest.RequestData
+import org.zstack.test.integration.ZStackTest
+import org.zstack.testlib.SubCase
+
+/**
+ * the record of an async API is in the database once it's saved, so a management node other than the one
+ * receiving the request sees the job processing instead of expired, and can complete it
+ */
+class RestAsyncRecordCase extends SubCase {
+    MysqlAsyncRestStore store
+
+    @Override
+    void clean() {
+        SQL.New(AsyncRestVO.class).delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(ZStackTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+    }
+
+    @Override
+    void test() {
+        store = bean(MysqlAsyncRestStore.class)
+
+        testPolledByOtherNodeBeforeCompleted()
+        testUnknownJobExpired()
+    }
+
+    private RequestData save() {
+        RequestData d = new RequestData()
+        d.@apiMessage = new APIDeleteZoneMsg(Platform.uuid)
+        store.save(d)
+        return d
+    }
+
+    void testPolledByOtherNodeBeforeCompleted() {
+        RequestData d = save()
+        String apiId = d.@apiMessage.id
+
+        assert Q.New(AsyncRestVO.class).select(AsyncRestVO_.state).eq(AsyncRestVO_.uuid, apiId).findValue() == AsyncRestState.processing
+
+        // another node doesn't have the request in memory, it reads the record
+        (store.@inflight as Map).remove(apiId)
+        assert store.query(apiId).state == AsyncRestState.processing
+
+        // and completes the job received by the node
+        assert store.complete(new APIDeleteZoneEvent(apiId)) != null
+        assert store.query(apiId).state == AsyncRestState.done
+        assert store.query(apiId).result.apiId == apiId
+
+        // completed only once
+        assert store.complete(new APIDeleteZoneEvent(apiId)) == null
+    }
+
+    void testUnknownJobExpired() {
+        String apiId = Platform.uuid
+        assert store.query(apiId).state == AsyncRestState.expired
+    }
+}
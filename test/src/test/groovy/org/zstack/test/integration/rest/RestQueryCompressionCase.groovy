@@ -0,0 +1,95 @@
+package org.zstack.test.integration.rest
+
+import groovy.json.JsonSlurper
+import org.zstack.rest.RestConstants
+import org.zstack.rest.RestGlobalProperty
+import org.zstack.sdk.ZoneInventory
+import org.zstack.test.integration.ZStackTest
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+import org.zstack.testlib.WebBeanConstructor
+
+import java.util.zip.GZIPInputStream
+
+/**
+ * query replies are gzip-compressed only for clients accepting gzip, and vary on Accept-Encoding so caches keep
+ * the encodings apart
+ */
+class RestQueryCompressionCase extends SubCase {
+    EnvSpec env
+    boolean compress
+
+    @Override
+    void clean() {
+        RestGlobalProperty.COMPRESS_QUERY_RESPONSE = compress
+        env.delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(ZStackTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = makeEnv {
+            zone {
+                name = "zone"
+            }
+        }
+    }
+
+    @Override
+    void test() {
+        env.create {
+            compress = RestGlobalProperty.COMPRESS_QUERY_RESPONSE
+            RestGlobalProperty.COMPRESS_QUERY_RESPONSE = true
+
+            testCompressedWithAcceptEncoding()
+            testNotCompressedWithoutAcceptEncoding()
+            testNotCompressedIfDisabled()
+        }
+    }
+
+    private HttpURLConnection queryZones(String acceptEncoding) {
+        HttpURLConnection c = new URL("http://127.0.0.1:${WebBeanConstructor.port}${RestConstants.API_VERSION}/zones").openConnection() as HttpURLConnection
+        c.setRequestProperty("Authorization", "OAuth ${env.session.uuid}")
+        if (acceptEncoding != null) {
+            c.setRequestProperty("Accept-Encoding", acceptEncoding)
+        }
+        assert c.responseCode == 200
+        return c
+    }
+
+    private void assertZoneQueried(InputStream body) {
+        ZoneInventory zone = env.inventoryByName("zone") as ZoneInventory
+        Map ret = new JsonSlurper().parse(body, "UTF-8") as Map
+        assert ret.inventories.collect { it.uuid } == [zone.uuid]
+    }
+
+    void testCompressedWithAcceptEncoding() {
+        HttpURLConnection c = queryZones("gzip, deflate")
+        assert c.getHeaderField("Content-Encoding") == "gzip"
+        assert c.getHeaderField("Vary") == "Accept-Encoding"
+        assertZoneQueried(new GZIPInputStream(c.inputStream))
+    }
+
+    void testNotCompressedWithoutAcceptEncoding() {
+        HttpURLConnection c = queryZones(null)
+        assert c.getHeaderField("Content-Encoding") == null
+        // the same URL is compressed for other clients
+        assert c.getHeaderField("Vary") == "Accept-Encoding"
+        assertZoneQueried(c.inputStream)
+    }
+
+    void testNotCompressedIfDisabled() {
+        RestGlobalProperty.COMPRESS_QUERY_RESPONSE = false
+
+        HttpURLConnection c = queryZones("gzip")
+        assert c.getHeaderField("Content-Encoding") == null
+        assert c.getHeaderField("Vary") == null
+        assertZoneQueried(c.inputStream)
+
+        RestGlobalProperty.COMPRESS_QUERY_RESPONSE = true
+    }
+}
@@ -0,0 +1,142 @@
+package org.zstack.test.integration.storage.primary
+
+import org.zstack.core.db.SQL
+import org.zstack.header.storage.primary.PrimaryStorageCapacityVO
+import org.zstack.header.storage.primary.PrimaryStorageCapacityVO_
+import org.zstack.sdk.PrimaryStorageInventory
+import org.zstack.storage.primary.PrimaryStorageCapacityLedger
+import org.zstack.storage.primary.PrimaryStorageCapacityLedger.Result
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+
+/**
+ * changes of the available capacity compacted into one update are checked as if they were
+ * applied one by one, and concurrent changes of one primary storage are neither lost nor
+ * over-committed
+ */
+class PrimaryStorageCapacityLedgerCase extends SubCase {
+    EnvSpec env
+    PrimaryStorageInventory ps
+    PrimaryStorageCapacityLedger ledger
+
+    @Override
+    void clean() {
+        env.delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(PrimaryStorageTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        // the primary storage is not attached to any cluster, so no one else reports its capacity
+        env = env {
+            zone {
+                name = "zone"
+
+                nfsPrimaryStorage {
+                    name = "nfs"
+                    url = "localhost:/nfs"
+                }
+            }
+        }
+    }
+
+    @Override
+    void test() {
+        env.create {
+            ps = env.inventoryByName("nfs") as PrimaryStorageInventory
+            ledger = bean(PrimaryStorageCapacityLedger.class)
+
+            testIncreaseCheckedOnItsOwn()
+            testBatchCheckedInOrder()
+            testConcurrentChanges()
+        }
+    }
+
+    private void setCapacity(long total, long available) {
+        SQL.New(PrimaryStorageCapacityVO.class).eq(PrimaryStorageCapacityVO_.uuid, ps.uuid)
+                .set(PrimaryStorageCapacityVO_.totalCapacity, total)
+                .set(PrimaryStorageCapacityVO_.availableCapacity, available)
+                .update()
+    }
+
+    private long getAvailable() {
+        return dbFindByUuid(ps.uuid, PrimaryStorageCapacityVO.class).availableCapacity
+    }
+
+    // applies the changes as one batch drained by a leader, e.g. [["Increase", 10], ["Decrease", 10]]
+    private List<Result> applyBatch(List<List> changes) {
+        Class opClass = Class.forName(PrimaryStorageCapacityLedger.class.name + '$Op')
+        Class entryClass = Class.forName(PrimaryStorageCapacityLedger.class.name + '$Entry')
+        def ctor = entryClass.getDeclaredConstructor(opClass, long.class)
+        ctor.accessible = true
+
+        List batch = changes.collect { ctor.newInstance(Enum.valueOf(opClass, it[0] as String), it[1] as long) }
+        ledger.apply(ps.uuid, batch)
+        return batch.collect { it.get() as Result }
+    }
+
+    void testIncreaseCheckedOnItsOwn() {
+        setCapacity(100, 100)
+
+        // the increase exceeds the total capacity even though the decrease after it makes room
+        assert applyBatch([["Increase", 10], ["Decrease", 10]]) == [Result.ExceedTotalCapacity, Result.Applied]
+        assert getAvailable() == 90
+
+        assert applyBatch([["Reserve", 100], ["Increase", 10]]) == [Result.ShortOfCapacity, Result.Applied]
+        assert getAvailable() == 100
+    }
+
+    void testBatchCheckedInOrder() {
+        setCapacity(100, 100)
+        long replayed = ledger.@replayed.get()
+
+        // 100 -> 50 -> 80 -> 10, every change succeeds in order, so the batch is applied by one update
+        assert applyBatch([["Decrease", 50], ["Increase", 30], ["Reserve", 70]]) == [Result.Applied, Result.Applied, Result.Applied]
+        assert getAvailable() == 10
+        assert ledger.@replayed.get() == replayed
+    }
+
+    private List<Result> runConcurrently(int num, Closure<Result> c) {
+        List<Result> results = Collections.synchronizedList([])
+        def threads = (1..num).collect {
+            Thread.start {
+                results.add(c())
+            }
+        }
+        threads.each { it.join() }
+        return results
+    }
+
+    void testConcurrentChanges() {
+        setCapacity(1000, 1000)
+
+        List<Result> results = runConcurrently(50) {
+            Result r = ledger.reserve(ps.uuid, 10)
+            assert r == Result.Applied
+            return ledger.increase(ps.uuid, 10)
+        }
+        assert results.size() == 50
+        assert results.every { it == Result.Applied }
+        assert getAvailable() == 1000
+
+        // 1000 bytes fit 100 reservations of 10 bytes
+        results = runConcurrently(200) {
+            return ledger.reserve(ps.uuid, 10)
+        }
+        assert results.count { it == Result.Applied } == 100
+        assert results.count { it == Result.ShortOfCapacity } == 100
+        assert getAvailable() == 0
+
+        // 33 increases of 30 bytes fit in the total capacity of 1000 bytes
+        results = runConcurrently(50) {
+            return ledger.increase(ps.uuid, 30)
+        }
+        assert results.count { it == Result.Applied } == 33
+        assert results.count { it == Result.ExceedTotalCapacity } == 17
+        assert getAvailable() == 990
+    }
+}
@@ -0,0 +1,203 @@
+package org.zstack.test.integration.storage.primary
+
+import org.springframework.transaction.PlatformTransactionManager
+import org.springframework.transaction.support.TransactionTemplate
+import org.zstack.core.Platform
+import org.zstack.core.db.DatabaseFacade
+import org.zstack.core.db.Q
+import org.zstack.core.db.SQL
+import org.zstack.header.storage.primary.ImageCacheVO
+import org.zstack.header.storage.primary.ImageCacheVO_
+import org.zstack.header.volume.VolumeStatus
+import org.zstack.header.volume.VolumeVO
+import org.zstack.header.volume.VolumeVO_
+import org.zstack.sdk.DiskOfferingInventory
+import org.zstack.sdk.HostInventory
+import org.zstack.sdk.PrimaryStorageInventory
+import org.zstack.sdk.VmInstanceInventory
+import org.zstack.sdk.VolumeInventory
+import org.zstack.storage.primary.PrimaryStorageOverProvisioningManager
+import org.zstack.storage.primary.PrimaryStorageUsageTracker
+import org.zstack.storage.primary.local.LocalStorageSystemTags
+import org.zstack.test.integration.kvm.Env
+import org.zstack.test.integration.kvm.KvmTest
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+
+import static org.zstack.utils.CollectionDSL.e
+import static org.zstack.utils.CollectionDSL.map
+
+/**
+ * the used capacity kept by PrimaryStorageUsageTracker follows committed changes of volumes and image caches,
+ * ignores rolled back ones, doesn't cache deleted primary storage and drifts are found by the reconciliation;
+ * entities deleted by SQL when a host is removed from the local storage are not counted any more
+ */
+class PrimaryStorageUsageTrackerCase extends SubCase {
+    EnvSpec env
+    PrimaryStorageInventory ps
+    PrimaryStorageUsageTracker tracker
+
+    @Override
+    void clean() {
+        env.delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(KvmTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = Env.oneVmBasicEnv()
+    }
+
+    @Override
+    void test() {
+        env.create {
+            ps = env.inventoryByName("local") as PrimaryStorageInventory
+            tracker = bean(PrimaryStorageUsageTracker.class)
+
+            testUsageFollowsVolumes()
+            testRolledBackChangeNotCounted()
+            testDeletedPrimaryStorageNotCached()
+            testReconcileFindsDrift()
+            testHostRemovalTracked()
+        }
+    }
+
+    // the used capacity summed up from the database
+    private long scanned() {
+        long volumes = SQL.New("select sum(vol.size) from VolumeVO vol where vol.primaryStorageUuid = :psUuid" +
+                " and vol.status in (:volStatus)", Long.class).param("psUuid", ps.uuid)
+                .param("volStatus", [VolumeStatus.Creating, VolumeStatus.Ready, VolumeStatus.Deleted]).find() ?: 0
+        long caches = SQL.New("select sum(i.size) from ImageCacheVO i where i.primaryStorageUuid = :psUuid", Long.class)
+                .param("psUuid", ps.uuid).find() ?: 0
+        long snapshots = SQL.New("select sum(s.size) from VolumeSnapshotVO s where s.primaryStorageUuid = :psUuid", Long.class)
+                .param("psUuid", ps.uuid).find() ?: 0
+        return bean(PrimaryStorageOverProvisioningManager.class).calculateByRatio(ps.uuid, volumes) + caches + snapshots
+    }
+
+    private long loads() {
+        return tracker.@loads.get()
+    }
+
+    void testUsageFollowsVolumes() {
+        long used = tracker.getUsedCapacity(ps.uuid)
+        assert used == scanned()
+        long loads = loads()
+
+        HostInventory host = env.inventoryByName("kvm") as HostInventory
+        DiskOfferingInventory offering = env.inventoryByName("diskOffering") as DiskOfferingInventory
+        VolumeInventory vol = createDataVolume {
+            name = "data"
+            diskOfferingUuid = offering.uuid
+            primaryStorageUuid = ps.uuid
+            systemTags = [LocalStorageSystemTags.DEST_HOST_FOR_CREATING_DATA_VOLUME.instantiateTag(
+                    map(e(LocalStorageSystemTags.DEST_HOST_FOR_CREATING_DATA_VOLUME_TOKEN, host.uuid)))]
+        } as VolumeInventory
+
+        retryInSecs {
+            assert tracker.getUsedCapacity(ps.uuid) == used + offering.diskSize
+            assert tracker.getUsedCapacity(ps.uuid) == scanned()
+        }
+
+        deleteDataVolume {
+            uuid = vol.uuid
+        }
+        expungeDataVolume {
+            uuid = vol.uuid
+        }
+
+        retryInSecs {
+            assert tracker.getUsedCapacity(ps.uuid) == used
+        }
+        // kept by lifecycle events instead of being loaded again
+        assert loads() == loads
+    }
+
+    private void changeImageCacheSize(long delta, boolean rollback) {
+        long used = tracker.getUsedCapacity(ps.uuid)
+        Long id = Q.New(ImageCacheVO.class).select(ImageCacheVO_.id).eq(ImageCacheVO_.primaryStorageUuid, ps.uuid).findValue()
+        DatabaseFacade dbf = bean(DatabaseFacade.class)
+
+        new TransactionTemplate(bean(PlatformTransactionManager.class)).execute { status ->
+            ImageCacheVO c = dbf.getEntityManager().find(ImageCacheVO.class, id)
+            c.size += delta
+            dbf.getEntityManager().merge(c)
+            dbf.getEntityManager().flush()
+
+            // flushed but not committed yet
+            assert tracker.getUsedCapacity(ps.uuid) == used
+
+            if (rollback) {
+                status.setRollbackOnly()
+            }
+            return null
+        }
+    }
+
+    void testRolledBackChangeNotCounted() {
+        long used = tracker.getUsedCapacity(ps.uuid)
+
+        changeImageCacheSize(1000, true)
+        assert tracker.getUsedCapacity(ps.uuid) == used
+        assert tracker.getUsedCapacity(ps.uuid) == scanned()
+
+        changeImageCacheSize(1000, false)
+        assert tracker.getUsedCapacity(ps.uuid) == used + 1000
+        assert tracker.getUsedCapacity(ps.uuid) == scanned()
+
+        changeImageCacheSize(-1000, false)
+        assert tracker.getUsedCapacity(ps.uuid) == used
+    }
+
+    void testDeletedPrimaryStorageNotCached() {
+        String psUuid = Platform.getUuid()
+
+        assert tracker.getUsedCapacity(psUuid) == null
+        assert !(tracker.@usages as Map).containsKey(psUuid)
+        assert !(tracker.@loadLocks as Map).containsKey(psUuid)
+    }
+
+    void testReconcileFindsDrift() {
+        long used = tracker.getUsedCapacity(ps.uuid)
+        long drifts = tracker.@drifts.get()
+
+        tracker.reconcile()
+        assert tracker.@drifts.get() == drifts
+
+        // SQL updates bypass the entity lifecycle
+        VmInstanceInventory vm = env.inventoryByName("vm") as VmInstanceInventory
+        SQL.New(VolumeVO.class).eq(VolumeVO_.uuid, vm.rootVolumeUuid)
+                .set(VolumeVO_.size, dbFindByUuid(vm.rootVolumeUuid, VolumeVO.class).size + 1000)
+                .update()
+        assert tracker.getUsedCapacity(ps.uuid) == used
+
+        tracker.reconcile()
+        assert tracker.@drifts.get() == drifts + 1
+        assert tracker.getUsedCapacity(ps.uuid) == scanned()
+        assert tracker.getUsedCapacity(ps.uuid) != used
+    }
+
+    void testHostRemovalTracked() {
+        long used = tracker.getUsedCapacity(ps.uuid)
+        long drifts = tracker.@drifts.get()
+        assert Q.New(ImageCacheVO.class).eq(ImageCacheVO_.primaryStorageUuid, ps.uuid).isExists()
+
+        HostInventory host = env.inventoryByName("kvm") as HostInventory
+        deleteHost {
+            uuid = host.uuid
+        }
+
+        // image caches on the host are deleted by SQL
+        assert !Q.New(ImageCacheVO.class).eq(ImageCacheVO_.primaryStorageUuid, ps.uuid).isExists()
+        retryInSecs {
+            assert tracker.getUsedCapacity(ps.uuid) == scanned()
+        }
+        assert tracker.getUsedCapacity(ps.uuid) < used
+
+        tracker.reconcile()
+        assert tracker.@drifts.get() == drifts
+    }
+}
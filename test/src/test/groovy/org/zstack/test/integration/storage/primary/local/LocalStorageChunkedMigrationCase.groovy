@@ -0,0 +1,160 @@
+package org.zstack.test.integration.storage.primary.local
+
+import org.springframework.http.HttpEntity
+import org.zstack.core.db.Q
+import org.zstack.sdk.HostInventory
+import org.zstack.sdk.VmInstanceInventory
+import org.zstack.sdk.VolumeInventory
+import org.zstack.storage.primary.local.LocalStorageKvmMigrateVmFlow
+import org.zstack.storage.primary.local.LocalStoragePrimaryStorageGlobalConfig
+import org.zstack.storage.primary.local.LocalStorageResourceRefVO
+import org.zstack.storage.primary.local.LocalStorageResourceRefVO_
+import org.zstack.test.integration.storage.Env
+import org.zstack.test.integration.storage.StorageTest
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.HttpError
+import org.zstack.testlib.SubCase
+import org.zstack.utils.gson.JSONObjectUtil
+
+/**
+ * a chunked copy interrupted during the transfer is resumed with the chunks verified by all previous attempts,
+ * and fails once migration.resumeTimes is used up; other errors are not resumed
+ */
+class LocalStorageChunkedMigrationCase extends SubCase {
+    EnvSpec env
+    VolumeInventory volume
+
+    // verified chunks of the volume carried by each copy command
+    List<List<Integer>> attempts = Collections.synchronizedList([])
+    volatile int interruptions
+    volatile boolean unreachable
+
+    @Override
+    void clean() {
+        env.delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(StorageTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = Env.localStorageOneVmWithOneDataVolumeEnv()
+    }
+
+    @Override
+    void test() {
+        env.create {
+            VmInstanceInventory vm = env.inventoryByName("vm") as VmInstanceInventory
+            volume = vm.allVolumes.find { it.uuid != vm.rootVolumeUuid }
+            detachDataVolumeFromVm {
+                uuid = volume.uuid
+                vmUuid = vm.uuid
+            }
+
+            LocalStoragePrimaryStorageGlobalConfig.MIGRATION_CHUNKED_ENABLE.updateValue(true)
+            simulateInterruptions()
+
+            testInterruptedCopyResumed()
+            testUnreachableHostNotResumed()
+            testFailedAfterResumeTimes()
+
+            env.cleanAfterSimulatorHandlers()
+        }
+    }
+
+    private void simulateInterruptions() {
+        env.afterSimulator(LocalStorageKvmMigrateVmFlow.COPY_TO_REMOTE_BITS_PATH) { LocalStorageKvmMigrateVmFlow.CopyBitsFromRemoteRsp rsp, HttpEntity<String> e ->
+            def cmd = JSONObjectUtil.toObject(e.body, LocalStorageKvmMigrateVmFlow.CopyBitsFromRemoteCmd.class)
+            if (cmd.volumeUuid != volume.uuid) {
+                return rsp
+            }
+
+            String path = cmd.paths[0]
+            attempts.add(new ArrayList<>(cmd.verifiedChunks[path] ?: []))
+
+            if (unreachable) {
+                throw new HttpError(503, "on purpose")
+            }
+
+            if (interruptions > 0) {
+                interruptions--
+                // reports only the chunk verified by this attempt, chunks of previous attempts are kept by the copier
+                rsp.verifiedChunks = [(path): [attempts.size() - 1]]
+                rsp.success = false
+                rsp.error = "interrupted on purpose"
+            }
+            return rsp
+        }
+    }
+
+    private String hostOfVolume() {
+        return Q.New(LocalStorageResourceRefVO.class)
+                .select(LocalStorageResourceRefVO_.hostUuid)
+                .eq(LocalStorageResourceRefVO_.resourceUuid, volume.uuid)
+                .findValue()
+    }
+
+    private String otherHost() {
+        HostInventory kvm = env.inventoryByName("kvm") as HostInventory
+        HostInventory kvm1 = env.inventoryByName("kvm1") as HostInventory
+        return hostOfVolume() == kvm.uuid ? kvm1.uuid : kvm.uuid
+    }
+
+    void testInterruptedCopyResumed() {
+        LocalStoragePrimaryStorageGlobalConfig.MIGRATION_RESUME_TIMES.updateValue(2)
+        attempts.clear()
+        interruptions = 2
+        String dst = otherHost()
+
+        localStorageMigrateVolume {
+            volumeUuid = volume.uuid
+            destHostUuid = dst
+        }
+
+        assert attempts == [[], [0], [0, 1]]
+        assert hostOfVolume() == dst
+    }
+
+    void testUnreachableHostNotResumed() {
+        LocalStoragePrimaryStorageGlobalConfig.MIGRATION_RESUME_TIMES.updateValue(2)
+        attempts.clear()
+        unreachable = true
+        String src = hostOfVolume()
+
+        try {
+            expect(AssertionError.class) {
+                localStorageMigrateVolume {
+                    volumeUuid = volume.uuid
+                    destHostUuid = otherHost()
+                }
+            }
+        } finally {
+            unreachable = false
+        }
+
+        assert attempts.size() == 1
+        assert hostOfVolume() == src
+    }
+
+    void testFailedAfterResumeTimes() {
+        LocalStoragePrimaryStorageGlobalConfig.MIGRATION_RESUME_TIMES.updateValue(1)
+        attempts.clear()
+        interruptions = 3
+        String src = hostOfVolume()
+
+        expect(AssertionError.class) {
+            localStorageMigrateVolume {
+                volumeUuid = volume.uuid
+                destHostUuid = otherHost()
+            }
+        }
+
+        // the first attempt and one resume
+        assert attempts == [[], [0]]
+        assert hostOfVolume() == src
+        interruptions = 0
+    }
+}
@@ -0,0 +1,225 @@
+package org.zstack.test.integration.storage.primary.local
+
+import org.zstack.core.db.Q
+import org.zstack.header.storage.primary.PrimaryStorageCapacityVO
+import org.zstack.sdk.HostInventory
+import org.zstack.sdk.PrimaryStorageInventory
+import org.zstack.storage.primary.local.LocalStorageHostCapacityView
+import org.zstack.storage.primary.local.LocalStorageHostRefVO
+import org.zstack.storage.primary.local.LocalStorageHostRefVO_
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+import org.zstack.testlib.Test
+import org.zstack.utils.data.SizeUnit
+
+/**
+ * reports of hosts of the same local primary storage queued behind a running update are applied by the next
+ * leader in one batch keeping only the latest report of each host, and unchanged reports skip the database
+ */
+class LocalStorageHostCapacityViewCase extends SubCase {
+    EnvSpec env
+    PrimaryStorageInventory ps
+    HostInventory host1
+    HostInventory host2
+    LocalStorageHostCapacityView view
+
+    @Override
+    void clean() {
+        env.delete()
+    }
+
+    @Override
+    void setup() {
+        spring {
+            sftpBackupStorage()
+            localStorage()
+            kvm()
+        }
+    }
+
+    @Override
+    void environment() {
+        env = Test.makeEnv {
+            sftpBackupStorage {
+                name = "sftp"
+                url = "/sftp"
+                username = "root"
+                password = "password"
+                hostname = "localhost"
+            }
+
+            zone {
+                name = "zone"
+
+                cluster {
+                    name = "cluster"
+                    hypervisorType = "KVM"
+
+                    kvm {
+                        name = "kvm1"
+                        managementIp = "localhost"
+                        username = "root"
+                        password = "password"
+                    }
+
+                    kvm {
+                        name = "kvm2"
+                        username = "root"
+                        password = "password"
+                    }
+
+                    attachPrimaryStorage("local")
+                }
+
+                localPrimaryStorage {
+                    name = "local"
+                    url = "/local_ps"
+                }
+
+                attachBackupStorage("sftp")
+            }
+        }
+    }
+
+    @Override
+    void test() {
+        env.create {
+            ps = env.inventoryByName("local") as PrimaryStorageInventory
+            host1 = env.inventoryByName("kvm1") as HostInventory
+            host2 = env.inventoryByName("kvm2") as HostInventory
+            view = bean(LocalStorageHostCapacityView.class)
+
+            testQueuedReportsAppliedInOneBatch()
+            testInterruptedFollowerAppliesItsReport()
+            testUnchangedReportDropped()
+        }
+    }
+
+    private LocalStorageHostRefVO refOf(String hostUuid) {
+        return Q.New(LocalStorageHostRefVO.class).eq(LocalStorageHostRefVO_.primaryStorageUuid, ps.uuid)
+                .eq(LocalStorageHostRefVO_.hostUuid, hostUuid).find()
+    }
+
+    private Object slotOf(String psUuid) {
+        synchronized (view.@slots) {
+            return (view.@slots as Map).get(psUuid)
+        }
+    }
+
+    // acts as a leader applying an update of the primary storage, reports submitted now queue up
+    private Object holdSlot() {
+        Class slotClass = Class.forName(LocalStorageHostCapacityView.class.name + '$Slot')
+        def ctor = slotClass.getDeclaredConstructor()
+        ctor.accessible = true
+        def slot = ctor.newInstance()
+        slot.@applying = true
+        synchronized (view.@slots) {
+            (view.@slots as Map).put(ps.uuid, slot)
+        }
+        return slot
+    }
+
+    private Thread report(String hostUuid, long total, long available) {
+        return Thread.start {
+            view.report(ps.uuid, hostUuid, total, available)
+        }
+    }
+
+    void testQueuedReportsAppliedInOneBatch() {
+        LocalStorageHostRefVO ref1 = refOf(host1.uuid)
+        LocalStorageHostRefVO ref2 = refOf(host2.uuid)
+        PrimaryStorageCapacityVO cap = dbFindByUuid(ps.uuid, PrimaryStorageCapacityVO.class)
+        long total = ref1.totalPhysicalCapacity
+        long gb = SizeUnit.GIGABYTE.toByte(1)
+
+        long batches = view.@batches.get()
+        long superseded = view.@superseded.get()
+
+        def slot = holdSlot()
+
+        List<Thread> followers = []
+        followers.add(report(host1.uuid, total, ref1.availablePhysicalCapacity - gb))
+        retryInSecs {
+            assert slot.@submitted == 1
+        }
+        followers.add(report(host1.uuid, total, ref1.availablePhysicalCapacity - 2 * gb))
+        retryInSecs {
+            assert slot.@submitted == 2
+        }
+        followers.add(report(host2.uuid, ref2.totalPhysicalCapacity, ref2.availablePhysicalCapacity - 3 * gb))
+        retryInSecs {
+            assert slot.@submitted == 3
+        }
+
+        // only the latest report of host1 is kept, and every follower waits for the leader
+        assert (slot.@pending as Map).keySet() == [host1.uuid, host2.uuid] as Set
+        assert view.@superseded.get() == superseded + 1
+        assert followers.every { it.alive }
+        assert view.@batches.get() == batches
+
+        // the leader is done, drains the queued reports in one batch and wakes the followers up
+        view.drain(ps.uuid)
+        followers.each { it.join(10000) }
+        assert followers.every { !it.alive }
+
+        assert view.@batches.get() == batches + 1
+        assert slotOf(ps.uuid) == null
+        assert refOf(host1.uuid).availablePhysicalCapacity == ref1.availablePhysicalCapacity - 2 * gb
+        assert refOf(host2.uuid).availablePhysicalCapacity == ref2.availablePhysicalCapacity - 3 * gb
+        assert dbFindByUuid(ps.uuid, PrimaryStorageCapacityVO.class).availablePhysicalCapacity == cap.availablePhysicalCapacity - 5 * gb
+    }
+
+    void testInterruptedFollowerAppliesItsReport() {
+        LocalStorageHostRefVO ref = refOf(host1.uuid)
+        long gb = SizeUnit.GIGABYTE.toByte(1)
+        long batches = view.@batches.get()
+
+        def slot = holdSlot()
+        boolean interrupted = false
+        Thread follower = Thread.start {
+            view.report(ps.uuid, host1.uuid, ref.totalPhysicalCapacity, ref.availablePhysicalCapacity - gb)
+            interrupted = Thread.currentThread().isInterrupted()
+        }
+        retryInSecs {
+            assert slot.@submitted == 1
+        }
+
+        // the report is still queued, the follower keeps waiting
+        follower.interrupt()
+        follower.join(1000)
+        assert follower.alive
+        assert refOf(host1.uuid).availablePhysicalCapacity == ref.availablePhysicalCapacity
+
+        // the leader gives up the slot without draining, the interrupted follower takes the lead and applies its report
+        synchronized (view.@slots) {
+            slot.@applying = false
+            (view.@slots).notifyAll()
+        }
+        follower.join(10000)
+        assert !follower.alive
+        assert interrupted
+
+        assert view.@batches.get() == batches + 1
+        assert slotOf(ps.uuid) == null
+        assert refOf(host1.uuid).availablePhysicalCapacity == ref.availablePhysicalCapacity - gb
+    }
+
+    void testUnchangedReportDropped() {
+        LocalStorageHostRefVO ref = refOf(host2.uuid)
+        long batches = view.@batches.get()
+        long unchanged = view.@unchanged.get()
+
+        view.report(ps.uuid, host2.uuid, ref.totalPhysicalCapacity, ref.availablePhysicalCapacity)
+        assert view.@unchanged.get() == unchanged + 1
+        assert view.@batches.get() == batches
+
+        // a forgotten host is checked against the database again
+        view.forget(ps.uuid, host2.uuid)
+        view.report(ps.uuid, host2.uuid, ref.totalPhysicalCapacity, ref.availablePhysicalCapacity)
+        assert view.@unchanged.get() == unchanged + 1
+        assert view.@batches.get() == batches + 1
+
+        view.report(ps.uuid, host2.uuid, ref.totalPhysicalCapacity, ref.availablePhysicalCapacity)
+        assert view.@unchanged.get() == unchanged + 2
+    }
+}
@@ -0,0 +1,161 @@
+package org.zstack.test.integration.storage.primary.nfs.imagecleaner.imagecache
+
+import org.zstack.core.Platform
+import org.zstack.core.db.DatabaseFacade
+import org.zstack.core.db.Q
+import org.zstack.header.image.ImageConstant.ImageMediaType
+import org.zstack.header.storage.primary.ImageCacheShadowVO
+import org.zstack.header.storage.primary.ImageCacheShadowVO_
+import org.zstack.header.storage.primary.ImageCacheVO
+import org.zstack.header.storage.primary.ImageCacheVO_
+import org.zstack.sdk.PrimaryStorageInventory
+import org.zstack.storage.primary.ImageCacheCleaner
+import org.zstack.storage.primary.PrimaryStorageGlobalConfig
+import org.zstack.storage.primary.nfs.NfsPrimaryStorageImageCacheCleaner
+import org.zstack.test.integration.storage.StorageTest
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+
+import java.lang.reflect.Field
+import java.lang.reflect.Method
+
+/**
+ * a cleanup cycle deletes at most the batch size of stale image caches, and cleanups of all primary storage
+ * and of one primary storage resume from their own cursors
+ */
+class ImageCacheCleanerBatchCase extends SubCase {
+    EnvSpec env
+    PrimaryStorageInventory ps
+    NfsPrimaryStorageImageCacheCleaner cleaner
+
+    @Override
+    void clean() {
+        env.delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(StorageTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = env {
+            sftpBackupStorage {
+                name = "sftp"
+                url = "/sftp"
+                username = "root"
+                password = "password"
+                hostname = "localhost"
+            }
+
+            zone {
+                name = "zone"
+
+                cluster {
+                    name = "cluster"
+                    hypervisorType = "KVM"
+
+                    kvm {
+                        name = "kvm"
+                        managementIp = "localhost"
+                        username = "root"
+                        password = "password"
+                    }
+
+                    attachPrimaryStorage("nfs")
+                }
+
+                nfsPrimaryStorage {
+                    name = "nfs"
+                    url = "localhost:/nfs"
+                }
+
+                attachBackupStorage("sftp")
+            }
+        }
+    }
+
+    @Override
+    void test() {
+        env.create {
+            ps = env.inventoryByName("nfs") as PrimaryStorageInventory
+            cleaner = bean(NfsPrimaryStorageImageCacheCleaner.class)
+            PrimaryStorageGlobalConfig.IMAGE_CACHE_GARBAGE_COLLECTOR_BATCH_SIZE.updateValue(2)
+
+            testCursorPerScope()
+            testCycleLimitedByBatchSize()
+        }
+    }
+
+    // states of the cleaner are private fields of the abstract ImageCacheCleaner
+    private Object cleanerField(String name) {
+        Field f = ImageCacheCleaner.class.getDeclaredField(name)
+        f.accessible = true
+        return f.get(cleaner)
+    }
+
+    private long totalReclaimed() {
+        return cleanerField("totalReclaimed").get()
+    }
+
+    private List<Long> nextBatch(String scope, List<ImageCacheShadowVO> shadows) {
+        Method m = ImageCacheCleaner.class.getDeclaredMethod("nextBatch", String.class, List.class)
+        m.accessible = true
+        return (m.invoke(cleaner, scope, shadows) as List<ImageCacheShadowVO>).collect { it.id }
+    }
+
+    void testCursorPerScope() {
+        List<ImageCacheShadowVO> shadows = [5, 1, 3, 4, 2].collect {
+            ImageCacheShadowVO vo = new ImageCacheShadowVO()
+            vo.id = it
+            return vo
+        }
+
+        assert nextBatch(ps.uuid, shadows) == [1L, 2L]
+        assert nextBatch("all", shadows) == [1L, 2L]
+        assert nextBatch(ps.uuid, shadows) == [3L, 4L]
+        // wraps around to the caches before the cursor
+        assert nextBatch(ps.uuid, shadows) == [5L, 1L]
+        assert nextBatch("all", shadows) == [3L, 4L]
+
+        (cleanerField("cursors") as Map).clear()
+    }
+
+    private void createStaleImageCache() {
+        // the image of the cache doesn't exist
+        String imageUuid = Platform.getUuid()
+        ImageCacheVO vo = new ImageCacheVO()
+        vo.primaryStorageUuid = ps.uuid
+        vo.imageUuid = imageUuid
+        vo.installUrl = "/nfs/imagecache/template/${imageUuid}/${imageUuid}.qcow2".toString()
+        vo.mediaType = ImageMediaType.RootVolumeTemplate
+        vo.size = 1
+        vo.md5sum = "md5"
+        bean(DatabaseFacade.class).persist(vo)
+    }
+
+    private long staleLeft() {
+        return Q.New(ImageCacheShadowVO.class).eq(ImageCacheShadowVO_.primaryStorageUuid, ps.uuid).count()
+    }
+
+    void testCycleLimitedByBatchSize() {
+        3.times { createStaleImageCache() }
+        long reclaimed = totalReclaimed()
+
+        cleaner.cleanup(ps.uuid)
+        retryInSecs {
+            assert totalReclaimed() == reclaimed + 2
+            assert cleanerField("lastCycleRemaining") == 1
+            assert staleLeft() == 1
+        }
+        assert !Q.New(ImageCacheVO.class).eq(ImageCacheVO_.primaryStorageUuid, ps.uuid).isExists()
+
+        cleaner.cleanup(ps.uuid)
+        retryInSecs {
+            assert totalReclaimed() == reclaimed + 3
+            assert cleanerField("lastCycleRemaining") == 0
+            assert staleLeft() == 0
+        }
+    }
+}
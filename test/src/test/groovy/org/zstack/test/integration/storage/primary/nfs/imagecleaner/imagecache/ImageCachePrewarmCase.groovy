@@ -0,0 +1,203 @@
+package org.zstack.test.integration.storage.primary.nfs.imagecleaner.imagecache
+
+import org.zstack.core.Platform
+import org.zstack.core.db.DatabaseFacade
+import org.zstack.core.db.Q
+import org.zstack.core.db.SQL
+import org.zstack.header.image.ImageConstant.ImageMediaType
+import org.zstack.header.storage.primary.ImageCacheVO
+import org.zstack.header.storage.primary.ImageCacheVO_
+import org.zstack.header.zone.ZoneVO
+import org.zstack.sdk.ImageInventory
+import org.zstack.sdk.PrimaryStorageInventory
+import org.zstack.sdk.ZoneInventory
+import org.zstack.storage.primary.ImageCachePrewarmer
+import org.zstack.storage.primary.PrimaryStorageGlobalConfig
+import org.zstack.storage.primary.PrimaryStorageSystemTags
+import org.zstack.storage.primary.nfs.NfsPrimaryStorageImageCacheCleaner
+import org.zstack.storage.primary.nfs.NfsPrimaryToSftpBackupKVMBackend
+import org.zstack.test.integration.storage.StorageTest
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import static org.zstack.utils.CollectionDSL.e
+import static org.zstack.utils.CollectionDSL.map
+
+/**
+ * images tagged on a zone are prewarmed into the cache of the NFS primary storage no more than the parallelism
+ * degree at a time, and the image cache cleaner leaves caches of images being prewarmed alone
+ */
+class ImageCachePrewarmCase extends SubCase {
+    EnvSpec env
+    PrimaryStorageInventory ps
+    ImageCachePrewarmer prewarmer
+    DatabaseFacade dbf
+
+    @Override
+    void clean() {
+        env.delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(StorageTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = env {
+            sftpBackupStorage {
+                name = "sftp"
+                url = "/sftp"
+                username = "root"
+                password = "password"
+                hostname = "localhost"
+
+                image {
+                    name = "image1"
+                    url = "http://zstack.org/download/test1.qcow2"
+                }
+
+                image {
+                    name = "image2"
+                    url = "http://zstack.org/download/test2.qcow2"
+                }
+            }
+
+            zone {
+                name = "zone"
+
+                cluster {
+                    name = "cluster"
+                    hypervisorType = "KVM"
+
+                    kvm {
+                        name = "kvm"
+                        managementIp = "localhost"
+                        username = "root"
+                        password = "password"
+                    }
+
+                    attachPrimaryStorage("nfs")
+                }
+
+                nfsPrimaryStorage {
+                    name = "nfs"
+                    url = "localhost:/nfs"
+                }
+
+                attachBackupStorage("sftp")
+            }
+        }
+    }
+
+    @Override
+    void test() {
+        env.create {
+            ps = env.inventoryByName("nfs") as PrimaryStorageInventory
+            prewarmer = bean(ImageCachePrewarmer.class)
+            dbf = bean(DatabaseFacade.class)
+
+            testImagesPrewarmedOneByOne()
+        }
+    }
+
+    private boolean isCached(String imageUuid) {
+        return Q.New(ImageCacheVO.class).eq(ImageCacheVO_.primaryStorageUuid, ps.uuid)
+                .eq(ImageCacheVO_.imageUuid, imageUuid).isExists()
+    }
+
+    private void prewarmOnZone(String imageUuid) {
+        ZoneInventory zone = env.inventoryByName("zone") as ZoneInventory
+        createSystemTag {
+            resourceType = ZoneVO.class.simpleName
+            resourceUuid = zone.uuid
+            tag = PrimaryStorageSystemTags.ZONE_IMAGE_CACHE_PREWARM_IMAGE.instantiateTag(
+                    map(e(PrimaryStorageSystemTags.IMAGE_CACHE_PREWARM_IMAGE_TOKEN, imageUuid)))
+        }
+    }
+
+    void testImagesPrewarmedOneByOne() {
+        ImageInventory image1 = env.inventoryByName("image1") as ImageInventory
+        ImageInventory image2 = env.inventoryByName("image2") as ImageInventory
+        assert !isCached(image1.uuid)
+        assert !isCached(image2.uuid)
+
+        PrimaryStorageGlobalConfig.IMAGE_CACHE_PREWARM_PARALLELISM_DEGREE.updateValue(1)
+        PrimaryStorageGlobalConfig.IMAGE_CACHE_PREWARM_BANDWIDTH.updateValue(0)
+
+        // hold downloads until the cleaner is checked
+        CountDownLatch latch = new CountDownLatch(1)
+        List downloads = Collections.synchronizedList([])
+        env.afterSimulator(NfsPrimaryToSftpBackupKVMBackend.DOWNLOAD_FROM_SFTP_PATH) { rsp ->
+            downloads.add(rsp)
+            latch.await(30, TimeUnit.SECONDS)
+            return rsp
+        }
+
+        prewarmOnZone(image1.uuid)
+        prewarmOnZone(image2.uuid)
+        PrimaryStorageGlobalConfig.IMAGE_CACHE_PREWARM_INTERVAL.updateValue(1)
+
+        try {
+            retryInSecs {
+                assert prewarmer.@running == 1
+                assert (prewarmer.@pending as List).size() == 1
+            }
+            assert downloads.size() == 1
+
+            testCleanerExcludesPrewarming(image1.uuid)
+        } finally {
+            latch.countDown()
+        }
+
+        retryInSecs {
+            assert isCached(image1.uuid)
+            assert isCached(image2.uuid)
+            assert prewarmer.@running == 0
+            assert (prewarmer.@scheduled as Set).isEmpty()
+        }
+        assert downloads.size() == 2
+
+        // cached images are not downloaded again
+        TimeUnit.SECONDS.sleep(3)
+        assert downloads.size() == 2
+
+        env.cleanAfterSimulatorHandlers()
+    }
+
+    private ImageCacheVO createImageCache(String imageUuid) {
+        ImageCacheVO vo = new ImageCacheVO()
+        vo.primaryStorageUuid = ps.uuid
+        vo.imageUuid = imageUuid
+        vo.installUrl = "/nfs/imagecache/template/${imageUuid}/${imageUuid}.qcow2".toString()
+        vo.mediaType = ImageMediaType.RootVolumeTemplate
+        vo.size = 1
+        vo.md5sum = "md5"
+        return dbf.persistAndRefresh(vo)
+    }
+
+    private void setImageDeleted(String imageUuid, String deleted) {
+        SQL.New("update ImageEO set deleted = :deleted where uuid = :uuid")
+                .param("deleted", deleted).param("uuid", imageUuid).execute()
+    }
+
+    void testCleanerExcludesPrewarming(String imageUuid) {
+        NfsPrimaryStorageImageCacheCleaner cleaner = bean(NfsPrimaryStorageImageCacheCleaner.class)
+
+        // caches of deleted images are stale
+        ImageCacheVO prewarming = createImageCache(imageUuid)
+        ImageCacheVO stale = createImageCache(Platform.getUuid())
+        setImageDeleted(imageUuid, new Date().toString())
+
+        try {
+            assert cleaner.getStaleImageCacheIds(ps.uuid) == [stale.id]
+        } finally {
+            setImageDeleted(imageUuid, null)
+            SQL.New(ImageCacheVO.class).in(ImageCacheVO_.id, [prewarming.id, stale.id]).hardDelete()
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.zstack.test.integration.storage.snapshot
+
+import org.springframework.transaction.PlatformTransactionManager
+import org.springframework.transaction.support.TransactionTemplate
+import org.zstack.core.db.DatabaseFacade
+import org.zstack.header.storage.snapshot.VolumeSnapshotTree
+import org.zstack.header.storage.snapshot.VolumeSnapshotVO
+import org.zstack.sdk.VmInstanceInventory
+import org.zstack.sdk.VolumeSnapshotInventory
+import org.zstack.storage.snapshot.VolumeSnapshotGlobalConfig
+import org.zstack.storage.snapshot.VolumeSnapshotTreeCache
+import org.zstack.test.integration.ldap.Env
+import org.zstack.test.integration.storage.StorageTest
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+
+/**
+ * cached snapshot trees are merged with changed snapshots, dropped when invalidated, and a tree loaded
+ * by another thread before a transaction commits doesn't hide the change of the transaction
+ */
+class VolumeSnapshotTreeCacheCase extends SubCase {
+    EnvSpec env
+    VmInstanceInventory vm
+    VolumeSnapshotTreeCache cache
+    VolumeSnapshotInventory snapshot
+
+    @Override
+    void clean() {
+        env.delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(StorageTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = Env.localStorageOneVmEnv()
+    }
+
+    @Override
+    void test() {
+        env.create {
+            vm = env.inventoryByName("vm") as VmInstanceInventory
+            cache = bean(VolumeSnapshotTreeCache.class)
+            VolumeSnapshotGlobalConfig.TREE_CACHE_ENABLED.updateValue(true)
+
+            createVolumeSnapshot {
+                volumeUuid = vm.rootVolumeUuid
+                name = "root"
+            }
+            snapshot = createVolumeSnapshot {
+                volumeUuid = vm.rootVolumeUuid
+                name = "leaf"
+            } as VolumeSnapshotInventory
+
+            testChangedSnapshotMerged()
+            testInvalidatedTreeLoaded()
+            testChangeCommittedDuringLoad()
+            testRolledBackChangeDropped()
+        }
+    }
+
+    private String nameInCache() {
+        VolumeSnapshotTree tree = cache.getTree(snapshot.treeUuid)
+        return tree.findSnapshot(snapshot.uuid).inventory.name
+    }
+
+    void testChangedSnapshotMerged() {
+        cache.getTree(snapshot.treeUuid)
+        long hits = cache.@hits.get()
+        long merges = cache.@merges.get()
+        long loads = cache.@loads.get()
+
+        VolumeSnapshotTree tree = cache.getTree(snapshot.treeUuid)
+        assert cache.getTree(snapshot.treeUuid).is(tree)
+        assert cache.@hits.get() == hits + 2
+
+        updateVolumeSnapshot {
+            uuid = snapshot.uuid
+            name = "updated"
+        }
+
+        assert nameInCache() == "updated"
+        assert tree.findSnapshot(snapshot.uuid).inventory.name == "leaf"
+        assert cache.@merges.get() > merges
+        assert cache.@loads.get() == loads
+    }
+
+    void testInvalidatedTreeLoaded() {
+        cache.getTree(snapshot.treeUuid)
+        long loads = cache.@loads.get()
+
+        cache.invalidate(snapshot.treeUuid)
+        cache.getTree(snapshot.treeUuid)
+        assert cache.@loads.get() == loads + 1
+
+        cache.invalidateByVolume(vm.rootVolumeUuid)
+        cache.getTree(snapshot.treeUuid)
+        assert cache.@loads.get() == loads + 2
+    }
+
+    // renames the snapshot in a transaction, and runs the closure after the change is flushed
+    private void renameInTransaction(String name, boolean rollback, Closure flushed) {
+        DatabaseFacade dbf = bean(DatabaseFacade.class)
+
+        new TransactionTemplate(bean(PlatformTransactionManager.class)).execute { status ->
+            VolumeSnapshotVO vo = dbf.getEntityManager().find(VolumeSnapshotVO.class, snapshot.uuid)
+            vo.name = name
+            dbf.getEntityManager().merge(vo)
+            dbf.getEntityManager().flush()
+
+            flushed()
+
+            if (rollback) {
+                status.setRollbackOnly()
+            }
+            return null
+        }
+    }
+
+    void testChangeCommittedDuringLoad() {
+        String before = nameInCache()
+
+        renameInTransaction("committed", false) {
+            // another thread doesn't read the uncommitted change and caches the old snapshot
+            String name = null
+            Thread.start {
+                name = nameInCache()
+            }.join()
+            assert name == before
+        }
+
+        assert nameInCache() == "committed"
+    }
+
+    void testRolledBackChangeDropped() {
+        String before = nameInCache()
+
+        renameInTransaction("rolled-back", true) {
+            // the transaction reads its own change
+            assert nameInCache() == "rolled-back"
+        }
+
+        assert nameInCache() == before
+    }
+}
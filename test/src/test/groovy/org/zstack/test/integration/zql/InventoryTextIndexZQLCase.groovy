@@ -0,0 +1,142 @@
+package org.zstack.test.integration.zql
+
+import org.springframework.transaction.PlatformTransactionManager
+import org.springframework.transaction.support.TransactionTemplate
+import org.zstack.core.Platform
+import org.zstack.core.db.DatabaseFacade
+import org.zstack.header.zone.ZoneState
+import org.zstack.header.zone.ZoneVO
+import org.zstack.sdk.ZoneInventory
+import org.zstack.search.InventoryTextIndexManager
+import org.zstack.search.InventoryTextIndexManagerImpl
+import org.zstack.search.SearchGlobalProperty
+import org.zstack.test.integration.kvm.Env
+import org.zstack.test.integration.kvm.KvmTest
+import org.zstack.testlib.EnvSpec
+import org.zstack.testlib.SubCase
+import org.zstack.zql.ZQL
+import org.zstack.zql.ZQLQueryReturn
+
+/**
+ * ZQL queries with name like conditions are narrowed down by the inventory text index, which is rebuilt on start
+ * and only takes committed changes
+ */
+class InventoryTextIndexZQLCase extends SubCase {
+    EnvSpec env
+    InventoryTextIndexManagerImpl indexMgr
+
+    @Override
+    void clean() {
+        indexMgr?.stop()
+        SearchGlobalProperty.INVENTORY_TEXT_INDEX_ENABLED = false
+        env.delete()
+    }
+
+    @Override
+    void setup() {
+        useSpring(KvmTest.springSpec)
+    }
+
+    @Override
+    void environment() {
+        env = Env.oneVmBasicEnv()
+    }
+
+    @Override
+    void test() {
+        env.create {
+            SearchGlobalProperty.INVENTORY_TEXT_INDEX_ENABLED = true
+            indexMgr = bean(InventoryTextIndexManager.class) as InventoryTextIndexManagerImpl
+            indexMgr.start()
+
+            testRebuiltOnStart()
+            testQueryNarrowedDown()
+            testRolledBackChangeNotIndexed()
+        }
+    }
+
+    void testRebuiltOnStart() {
+        ZoneInventory zone = env.inventoryByName("zone") as ZoneInventory
+
+        retryInSecs {
+            assert indexMgr.isReady()
+        }
+        assert indexMgr.searchByPrefix(zone.name, "ZoneVO", 10) == [zone.uuid]
+    }
+
+    private static ZQL query(String text, List<String> expectedUuids) {
+        ZQL zql = ZQL.fromString(text)
+        ZQLQueryReturn ret = zql.getSingleResult()
+        assert ret.inventories.collect { it.uuid }.toSet() == expectedUuids.toSet()
+        return zql
+    }
+
+    void testQueryNarrowedDown() {
+        ZoneInventory zone = env.inventoryByName("zone") as ZoneInventory
+        ZoneInventory zone1 = createZone {
+            name = "text-index-zone"
+        } as ZoneInventory
+
+        // indexed after the API commits
+        retryInSecs {
+            assert indexMgr.searchBySubstring("index-zone", "ZoneVO", 10) == [zone1.uuid]
+        }
+
+        ZQL zql = query("query zone where name like '%index-zone%'", [zone1.uuid])
+        assert zql.toString().contains("'${zone1.uuid}'")
+
+        zql = query("query zone where name like 'text-ind%' and state = 'Enabled'", [zone1.uuid])
+        assert zql.toString().contains("'${zone1.uuid}'")
+
+        // zones not matching the like condition are found by the other side of the OR
+        zql = query("query zone where name like '%index-zone%' or uuid = '${zone.uuid}'", [zone.uuid, zone1.uuid])
+        assert !zql.toString().contains("'${zone1.uuid}'")
+
+        // wildcards in the middle are left to the condition
+        zql = query("query zone where name like '%index_zone%'", [zone1.uuid])
+        assert !zql.toString().contains("'${zone1.uuid}'")
+
+        // the index finds zone1 by the word zone, the condition still applies to the resources found
+        zql = query("query zone where name like 'zone%'", [zone.uuid])
+        assert zql.toString().contains("'${zone1.uuid}'")
+
+        deleteZone {
+            uuid = zone1.uuid
+        }
+    }
+
+    private ZoneVO persistZone(String name, boolean rollback) {
+        ZoneVO vo = new ZoneVO()
+        vo.uuid = Platform.uuid
+        vo.name = name
+        vo.type = "zstack"
+        vo.state = ZoneState.Enabled
+
+        DatabaseFacade dbf = bean(DatabaseFacade.class)
+        new TransactionTemplate(bean(PlatformTransactionManager.class)).execute { status ->
+            dbf.getEntityManager().persist(vo)
+            dbf.getEntityManager().flush()
+
+            // flushed but not committed yet
+            assert indexMgr.searchByPrefix(name, null, 10).isEmpty()
+
+            if (rollback) {
+                status.setRollbackOnly()
+            }
+            return null
+        }
+
+        return vo
+    }
+
+    void testRolledBackChangeNotIndexed() {
+        persistZone("rolled-back-zone", true)
+        assert indexMgr.searchByPrefix("rolled-back-zone", null, 10).isEmpty()
+
+        ZoneVO vo = persistZone("committed-zone", false)
+        assert indexMgr.searchByPrefix("committed-zone", null, 10) == [vo.uuid]
+
+        bean(DatabaseFacade.class).removeByPrimaryKey(vo.uuid, ZoneVO.class)
+        assert indexMgr.searchByPrefix("committed-zone", null, 10).isEmpty()
+    }
+}
@@ -6,6 +6,15 @@ import org.junit.runner.RunWith
 import org.junit.runner.notification.Failure
 import org.junit.runners.Suite
 import org.zstack.configuration.OfferingUserConfigUtils
+import org.zstack.test.unittest.allocator.HostCapacityIndexCase
+import org.zstack.test.unittest.allocator.HostPlacementCase
+import org.zstack.test.unittest.ansible.AnsibleDeploymentManifestCase
+import org.zstack.test.unittest.core.JobContextObjectCase
+import org.zstack.test.unittest.kvm.KVMAgentCommandEncoderCase
+import org.zstack.test.unittest.search.InventoryTextIndexCase
+import org.zstack.test.unittest.storage.CephMonSelectorCase
+import org.zstack.test.unittest.storage.ImageCacheSingleFlightCase
+import org.zstack.test.unittest.storage.VolumeSnapshotTreeCase
 import org.zstack.test.unittest.utils.NetworkUtilsCase
 import org.zstack.test.unittest.utils.OfferingUserConfigUtilsCase
 
@@ -18,7 +27,16 @@ import java.util.stream.Collectors
 @RunWith(Suite.class)
 @Suite.SuiteClasses([
         NetworkUtilsCase.class,
-        OfferingUserConfigUtilsCase.class
+        OfferingUserConfigUtilsCase.class,
+        InventoryTextIndexCase.class,
+        KVMAgentCommandEncoderCase.class,
+        HostCapacityIndexCase.class,
+        HostPlacementCase.class,
+        AnsibleDeploymentManifestCase.class,
+        VolumeSnapshotTreeCase.class,
+        ImageCacheSingleFlightCase.class,
+        CephMonSelectorCase.class,
+        JobContextObjectCase.class
     ])
 class JUnitTestSuite {
 
@@ -0,0 +1,74 @@
+package org.zstack.test.unittest.allocator
+
+import org.junit.Test
+import org.zstack.compute.allocator.HostCapacityIndex
+import org.zstack.header.host.HostState
+import org.zstack.header.host.HostStatus
+
+import java.util.function.ToLongBiFunction
+
+class HostCapacityIndexCase {
+    private static HostCapacityIndex.Row row(String uuid, String cluster, String hvType, long cpu, long mem) {
+        def r = new HostCapacityIndex.Row()
+        r.uuid = uuid
+        r.zoneUuid = "zone"
+        r.clusterUuid = cluster
+        r.hypervisorType = hvType
+        r.state = HostState.Enabled
+        r.status = HostStatus.Connected
+        r.availableCpu = cpu
+        r.availableMemory = mem
+        return r
+    }
+
+    private static final ToLongBiFunction<String, Long> NO_RATIO = { String uuid, Long mem -> mem } as ToLongBiFunction
+
+    @Test
+    void testFind() {
+        HostCapacityIndex index = new HostCapacityIndex()
+        index.load([
+                row("host1", "cluster1", "KVM", 8, 8000),
+                row("host2", "cluster1", "KVM", 2, 8000),
+                row("host3", "cluster2", "KVM", 8, 1000),
+                row("host4", "cluster2", "Simulator", 8, 8000)
+        ])
+
+        assert index.find(null, null, null, 4, 4000, NO_RATIO).toSet() == ["host1", "host4"].toSet()
+        assert index.find(null, null, "KVM", 4, 4000, NO_RATIO) == ["host1"]
+        assert index.find(null, ["cluster2"], null, 0, 0, NO_RATIO).toSet() == ["host3", "host4"].toSet()
+        assert index.find(["zone"], ["cluster1"], "KVM", 2, 0, NO_RATIO).toSet() == ["host1", "host2"].toSet()
+        assert index.find(["otherZone"], null, null, 0, 0, NO_RATIO).isEmpty()
+        assert index.find(null, null, "KVM", 8, 4000, { String uuid, Long mem -> mem * 4 } as ToLongBiFunction).toSet() == ["host1", "host3"].toSet()
+
+        index.updateStatus("host1", HostStatus.Disconnected)
+        assert index.find(null, null, "KVM", 4, 4000, NO_RATIO).isEmpty()
+        index.updateStatus("host1", HostStatus.Connected)
+        index.updateState("host1", HostState.Disabled)
+        assert index.find(null, null, "KVM", 4, 4000, NO_RATIO).isEmpty()
+        index.updateState("host1", HostState.Enabled)
+
+        index.updateCapacity("host1", 1, 8000)
+        assert index.find(null, null, "KVM", 4, 0, NO_RATIO) == ["host3"]
+        assert !index.updateCapacity("nohost", 1, 1)
+    }
+
+    @Test
+    void testPutAndRemove() {
+        HostCapacityIndex index = new HostCapacityIndex()
+        (1..100).each { index.put(row("host$it", "cluster${it % 3}", "KVM", it, it * 1000)) }
+        assert index.size() == 100
+        assert index.find(null, ["cluster0"], null, 0, 0, NO_RATIO).size() == 33
+
+        (1..50).each { index.remove("host$it") }
+        assert index.size() == 50
+        assert index.find(null, null, null, 0, 0, NO_RATIO).size() == 50
+
+        // moves a host to another cluster, slots of removed hosts are reused
+        index.put(row("host99", "clusterX", "KVM", 99, 99000))
+        index.put(row("new", "clusterX", "KVM", 1, 1000))
+        assert index.size() == 51
+        assert index.find(null, ["clusterX"], null, 0, 0, NO_RATIO).toSet() == ["host99", "new"].toSet()
+        assert !index.find(null, ["cluster0"], null, 0, 0, NO_RATIO).contains("host99")
+        assert index.find(null, null, null, 101, 0, NO_RATIO).isEmpty()
+    }
+}
@@ -0,0 +1,62 @@
+package org.zstack.test.unittest.allocator
+
+import org.junit.Test
+import org.zstack.compute.allocator.HostPlacement
+import org.zstack.header.allocator.HostPlacementStrategy
+
+import java.util.function.ToLongBiFunction
+
+class HostPlacementCase {
+    private static final ToLongBiFunction<String, Long> NO_RATIO = { String uuid, Long mem -> mem } as ToLongBiFunction
+
+    private static HostPlacement.Request req(long cpu, long mem, List<String> candidates) {
+        return new HostPlacement.Request(cpu, mem, candidates)
+    }
+
+    @Test
+    void testBinPacking() {
+        HostPlacement placement = new HostPlacement(HostPlacementStrategy.BinPacking, NO_RATIO)
+        placement.addHost("host1", 8, 8000)
+        placement.addHost("host2", 8, 4000)
+
+        def candidates = ["host1", "host2"]
+        assert placement.place([req(1, 2000, candidates), req(1, 2000, candidates), req(1, 2000, candidates)]) == ["host2", "host2", "host1"]
+    }
+
+    @Test
+    void testSpread() {
+        HostPlacement placement = new HostPlacement(HostPlacementStrategy.Spread, NO_RATIO)
+        placement.addHost("host1", 8, 8000)
+        placement.addHost("host2", 2, 4000)
+
+        // host1 and host2 have the same memory left before the third VM, host2 has less CPU left
+        def candidates = ["host1", "host2"]
+        assert placement.place([req(1, 2000, candidates), req(1, 2000, candidates), req(1, 2000, candidates)]) == ["host1", "host1", "host1"]
+    }
+
+    @Test
+    void testLargestFirst() {
+        HostPlacement placement = new HostPlacement(HostPlacementStrategy.BinPacking, NO_RATIO)
+        placement.addHost("host1", 8, 5000)
+
+        // the larger VM is placed first even if it comes later
+        assert placement.place([req(1, 1000, ["host1"]), req(1, 5000, ["host1"])]) == [null, "host1"]
+    }
+
+    @Test
+    void testUnplaceable() {
+        HostPlacement placement = new HostPlacement(HostPlacementStrategy.Spread, NO_RATIO)
+        placement.addHost("host1", 8, 8000)
+
+        assert placement.place([req(1, 9000, ["host1"]), req(9, 1000, ["host1"]), req(1, 1000, ["host2"]), req(1, 1000, ["host1"])]) ==
+                [null, null, null, "host1"]
+    }
+
+    @Test
+    void testMemoryByRatio() {
+        HostPlacement placement = new HostPlacement(HostPlacementStrategy.Spread, { String uuid, Long mem -> (long) (mem / 2) } as ToLongBiFunction)
+        placement.addHost("host1", 8, 2000)
+
+        assert placement.place([req(1, 3000, ["host1"]), req(1, 2000, ["host1"])]) == ["host1", null]
+    }
+}
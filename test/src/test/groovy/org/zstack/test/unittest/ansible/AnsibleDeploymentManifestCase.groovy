@@ -0,0 +1,113 @@
+package org.zstack.test.unittest.ansible
+
+import org.junit.Test
+import org.zstack.core.ansible.AnsibleDeploymentManifest
+import org.zstack.core.ansible.AnsibleGlobalProperty
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+class AnsibleDeploymentManifestCase {
+    // runs the check script locally, standing in for the remote host
+    private static String runScript(AnsibleDeploymentManifest manifest) {
+        Process p = new ProcessBuilder("bash", "-c", manifest.buildScript()).start()
+        String out = p.inputStream.text
+        p.waitFor()
+        return out
+    }
+
+    private static void createFiles(Path root) {
+        Files.createDirectories(root.resolve("lib/sub"))
+        root.resolve("agent.tar.gz").toFile().text = "agent"
+        root.resolve("lib/a.py").toFile().text = "a"
+        root.resolve("lib/sub/b.py").toFile().text = "b"
+    }
+
+    @Test
+    void testDiff() {
+        Path src = Files.createTempDirectory("manifest-src")
+        Path dst = Files.createTempDirectory("manifest-dst")
+        createFiles(src)
+        createFiles(dst)
+
+        AnsibleDeploymentManifest manifest = new AnsibleDeploymentManifest()
+        manifest.addFile(src.resolve("agent.tar.gz").toString(), dst.resolve("agent.tar.gz").toString())
+        manifest.addFolder(src.resolve("lib").toString(), dst.resolve("lib").toString())
+        assert manifest.diff(runScript(manifest)) == null
+
+        dst.resolve("lib/sub/b.py").toFile().text = "changed"
+        assert manifest.diff(runScript(manifest)).contains("sub/b.py")
+
+        dst.resolve("lib/sub/b.py").toFile().text = "b"
+        dst.resolve("lib/extra.py").toFile().text = "extra"
+        assert manifest.diff(runScript(manifest)).contains("expects 2 files but got 3")
+
+        dst.resolve("lib/extra.py").toFile().delete()
+        dst.resolve("agent.tar.gz").toFile().delete()
+        assert manifest.diff(runScript(manifest)).contains("agent.tar.gz")
+
+        src.toFile().deleteDir()
+        dst.toFile().deleteDir()
+    }
+
+    @Test
+    void testFolderComparedByPathSegments() {
+        Path src = Files.createTempDirectory("manifest-src")
+        Path dst = Files.createTempDirectory("manifest-dst")
+        createFiles(src)
+        createFiles(dst)
+        Files.createDirectories(dst.resolve("lib-old"))
+        dst.resolve("lib-old/old.py").toFile().text = "old"
+
+        AnsibleDeploymentManifest manifest = new AnsibleDeploymentManifest()
+        manifest.addFolder(src.resolve("lib").toString(), dst.toString() + "/./lib/")
+        manifest.addFolder(src.resolve("lib").toString(), dst.resolve("lib-old").toString())
+        String out = runScript(manifest)
+
+        // files of lib-old are not counted in lib though their paths share the prefix
+        assert manifest.diff(out).contains("the folder[${dst.resolve("lib-old")}] expects 2 files but got 1")
+
+        manifest = new AnsibleDeploymentManifest()
+        manifest.addFolder(src.resolve("lib").toString(), dst.toString() + "/./lib/")
+        assert manifest.diff(runScript(manifest)) == null
+
+        src.toFile().deleteDir()
+        dst.toFile().deleteDir()
+    }
+
+    @Test
+    void testMatchedHostForgotten() {
+        Path src = Files.createTempDirectory("manifest-src")
+        createFiles(src)
+
+        def manifestOf = { String hostname, int port ->
+            AnsibleDeploymentManifest m = new AnsibleDeploymentManifest().setHostname(hostname).setPort(port)
+            m.addFile(src.resolve("agent.tar.gz").toString(), "/var/lib/zstack/agent.tar.gz")
+            return m
+        }
+
+        AnsibleDeploymentManifest m1 = manifestOf("10.0.0.1", 22)
+        AnsibleDeploymentManifest m2 = manifestOf("10.0.0.1", 2222)
+        AnsibleDeploymentManifest m3 = manifestOf("10.0.0.10", 22)
+        [m1, m2, m3].each { it.markMatched() }
+        assert [m1, m2, m3].every { it.isMatched(it.getDigest()) }
+
+        // e.g. the host failed to connect
+        AnsibleDeploymentManifest.invalidate("10.0.0.1")
+        assert !m1.isMatched(m1.getDigest())
+        assert !m2.isMatched(m2.getDigest())
+        assert m3.isMatched(m3.getDigest())
+
+        long ttl = AnsibleGlobalProperty.DEPLOYMENT_MANIFEST_MATCHED_HOST_TTL
+        try {
+            AnsibleGlobalProperty.DEPLOYMENT_MANIFEST_MATCHED_HOST_TTL = -1
+            m1.markMatched()
+            assert !m1.isMatched(m1.getDigest())
+        } finally {
+            AnsibleGlobalProperty.DEPLOYMENT_MANIFEST_MATCHED_HOST_TTL = ttl
+            [m1, m2, m3].each { it.invalidate() }
+        }
+
+        src.toFile().deleteDir()
+    }
+}
@@ -0,0 +1,67 @@
+package org.zstack.test.unittest.core
+
+import org.junit.Test
+import org.zstack.core.job.Job
+import org.zstack.core.job.JobContext
+import org.zstack.core.job.JobContextObject
+import org.zstack.header.core.ReturnValueCompletion
+import org.zstack.utils.serializable.SerializableHelper
+
+class JobContextObjectCase {
+    static class ContextJob implements Job {
+        @JobContext
+        private String name
+        @JobContext
+        private Long size
+        @JobContext
+        private Integer count
+        @JobContext
+        private Boolean force
+        @JobContext
+        private String nothing
+        @JobContext
+        private ArrayList<String> uuids
+
+        @Override
+        void run(ReturnValueCompletion<Object> completion) {
+            completion.success(null)
+        }
+    }
+
+    private static ContextJob makeJob() {
+        ContextJob job = new ContextJob()
+        job.name = "中文" + "x" * 70000
+        job.size = 1L << 40
+        job.count = -1
+        job.force = true
+        job.uuids = ["a", "b"] as ArrayList
+        return job
+    }
+
+    private static void assertSameContext(ContextJob job, ContextJob loaded) {
+        assert loaded.name == job.name
+        assert loaded.size == job.size
+        assert loaded.count == job.count
+        assert loaded.force == job.force
+        assert loaded.nothing == null
+        assert loaded.uuids == job.uuids
+    }
+
+    @Test
+    void testCompactFormat() {
+        ContextJob job = makeJob()
+        JobContextObject ctx = new JobContextObject(job)
+        byte[] bits = ctx.toBytes()
+
+        assert bits.length < SerializableHelper.writeObject(ctx).length
+        assertSameContext(job, JobContextObject.fromBytes(bits).load() as ContextJob)
+    }
+
+    @Test
+    void testReadJavaSerializedContext() {
+        ContextJob job = makeJob()
+        byte[] bits = SerializableHelper.writeObject(new JobContextObject(job))
+
+        assertSameContext(job, JobContextObject.fromBytes(bits).load() as ContextJob)
+    }
+}
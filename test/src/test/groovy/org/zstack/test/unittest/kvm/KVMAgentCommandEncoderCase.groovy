@@ -0,0 +1,60 @@
+package org.zstack.test.unittest.kvm
+
+import org.junit.Test
+import org.zstack.kvm.KVMAgentCommandEncoder
+import org.zstack.kvm.KVMAgentCommands
+import org.zstack.kvm.KVMConstant
+import org.zstack.kvm.VolumeTO
+import org.zstack.utils.gson.JSONObjectUtil
+
+class KVMAgentCommandEncoderCase {
+    private static String spliceAddons(String commandStr, Map addons) {
+        String addonStr = String.format("\"%s\":%s}", KVMConstant.KVM_HOST_ADDONS, JSONObjectUtil.toJsonString(addons))
+        return commandStr == "{}" ? commandStr.replaceAll("\\}\$", addonStr) : commandStr.replaceAll("\\}\$", "," + addonStr)
+    }
+
+    private static KVMAgentCommands.StartVmCmd startVmCmd() {
+        KVMAgentCommands.StartVmCmd cmd = new KVMAgentCommands.StartVmCmd()
+        cmd.setVmInstanceUuid(UUID.randomUUID().toString().replace("-", ""))
+        cmd.setBootDev(["hd", "cdrom"])
+        cmd.setDataVolumes((0..<30).collect { i ->
+            VolumeTO to = new VolumeTO()
+            to.setInstallPath("/zstack_ps/dataVolumes/acct-1/vol-${i}/vol-${i}.qcow2")
+            to.setDeviceId(i)
+            return to
+        })
+        cmd.setNics((0..<10).collect { i ->
+            KVMAgentCommands.NicTO to = new KVMAgentCommands.NicTO()
+            to.setUuid(UUID.randomUUID().toString().replace("-", ""))
+            to.setMac("fa:00:00:00:00:0${i}")
+            to.setDeviceId(i)
+            return to
+        })
+        return cmd
+    }
+
+    @Test
+    void testEncodeCommandWithAddons() {
+        def cmd = startVmCmd()
+        def addons = new LinkedHashMap<String, Object>()
+        addons.put("qos", ["outbound": 1024L])
+        addons.put("name", "a \"quoted\" <name>")
+
+        assert KVMAgentCommandEncoder.encode(cmd, addons) == spliceAddons(JSONObjectUtil.toJsonString(cmd), addons)
+        assert KVMAgentCommandEncoder.encode(cmd, [:]) == spliceAddons(JSONObjectUtil.toJsonString(cmd), [:])
+
+        def empty = new KVMAgentCommands.AgentCommand()
+        assert KVMAgentCommandEncoder.encode(empty, addons) == spliceAddons("{}", addons)
+    }
+
+    @Test
+    void testEncodeCommandStringWithAddons() {
+        def addons = ["key": "value"]
+
+        assert KVMAgentCommandEncoder.encode("{}", addons) == "{\"kvmHostAddons\":{\"key\":\"value\"}}"
+        assert KVMAgentCommandEncoder.encode("{ }", addons) == "{ \"kvmHostAddons\":{\"key\":\"value\"}}"
+
+        String cmdStr = JSONObjectUtil.toJsonString(startVmCmd())
+        assert KVMAgentCommandEncoder.encode(cmdStr, addons) == spliceAddons(cmdStr, addons)
+    }
+}
@@ -0,0 +1,71 @@
+package org.zstack.test.unittest.search
+
+import org.junit.Test
+import org.zstack.search.InventoryTextIndex
+import org.zstack.search.InventoryTextIndexSegment
+
+import java.nio.file.Files
+
+class InventoryTextIndexCase {
+    @Test
+    void testPrefixAndSubstringSearch() {
+        InventoryTextIndex index = new InventoryTextIndex()
+        index.put("vm1", "VmInstanceVO", "name", "web-server-01")
+        index.put("vm1", "VmInstanceVO", "nicIp:nic1", "192.168.0.10")
+        index.put("vm2", "VmInstanceVO", "name", "db-server")
+        index.put("host1", "HostVO", "managementIp", "192.168.0.100")
+
+        assert index.searchByPrefix("web", null, 10) == ["vm1"]
+        assert index.searchByPrefix("server", null, 10).toSet() == ["vm1", "vm2"].toSet()
+        assert index.searchByPrefix("192.168.0.1", "VmInstanceVO", 10) == ["vm1"]
+        assert index.searchByPrefix("192.168.0.1", null, 10).toSet() == ["vm1", "host1"].toSet()
+        assert index.searchBySubstring("rver-0", null, 10) == ["vm1"]
+        assert index.searchBySubstring("SERVER", null, 10).toSet() == ["vm1", "vm2"].toSet()
+        assert index.searchBySubstring("nothing", null, 10).isEmpty()
+        assert index.searchByPrefix("server", null, 1).size() == 1
+
+        index.put("vm1", "VmInstanceVO", "name", "app")
+        assert index.searchByPrefix("web", null, 10).isEmpty()
+        assert index.searchBySubstring("168.0.10", "VmInstanceVO", 10) == ["vm1"]
+
+        index.put("vm1", "VmInstanceVO", "nicIp:nic1", null)
+        assert index.searchBySubstring("168.0.10", "VmInstanceVO", 10).isEmpty()
+
+        index.remove("vm2")
+        assert !index.contains("vm2")
+        assert index.searchByPrefix("db", null, 10).isEmpty()
+
+        // matched as by case and accent insensitive collations
+        index.put("vm3", "VmInstanceVO", "name", "Café-Réseau")
+        assert index.searchByPrefix("cafe", null, 10) == ["vm3"]
+        assert index.searchBySubstring("e-rese", null, 10) == ["vm3"]
+    }
+
+    @Test
+    void testSnapshotAndJournal() {
+        File dir = Files.createTempDirectory("inventory-index").toFile()
+        try {
+            InventoryTextIndexSegment segment = new InventoryTextIndexSegment(dir)
+            InventoryTextIndex index = new InventoryTextIndex()
+            index.put("vm1", "VmInstanceVO", "name", "web-server-01")
+            index.put("vm2", "VmInstanceVO", "name", "云主机")
+            segment.writeSnapshot(1000L, index.snapshot())
+
+            segment.appendPut("vm3", "VmInstanceVO", "name", "cache")
+            segment.appendRemove("vm1")
+            segment.close()
+
+            InventoryTextIndexSegment.Snapshot snapshot = segment.readSnapshot()
+            assert snapshot.createTime == 1000L
+            InventoryTextIndex restored = new InventoryTextIndex()
+            restored.load(snapshot.docs)
+            assert segment.replayJournal(restored) == 2
+
+            assert restored.searchByPrefix("云", null, 10) == ["vm2"]
+            assert restored.searchByPrefix("cache", null, 10) == ["vm3"]
+            assert !restored.contains("vm1")
+        } finally {
+            dir.deleteDir()
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.zstack.test.unittest.storage
+
+import org.junit.Test
+import org.zstack.storage.ceph.CephMonSelector
+
+import java.util.function.Function
+
+class CephMonSelectorCase {
+    private static final Function<String, String> ID = { String it -> it } as Function
+
+    @Test
+    void testPreferredMonIsSticky() {
+        CephMonSelector selector = new CephMonSelector()
+        def mons = ["mon1", "mon2", "mon3"]
+
+        String preferred = selector.order("ps", mons, ID)[0]
+        10.times {
+            assert selector.order("ps", mons, ID)[0] == preferred
+        }
+
+        // a slightly slower preferred mon is kept
+        mons.each { selector.record("ps", it, it == preferred ? 15 : 10, true) }
+        assert selector.order("ps", mons, ID)[0] == preferred
+    }
+
+    @Test
+    void testSlowOrFailingMonIsGivenUp() {
+        CephMonSelector selector = new CephMonSelector()
+        def mons = ["mon1", "mon2", "mon3"]
+        selector.record("ps", "mon1", 10, true)
+        selector.record("ps", "mon2", 20, true)
+        selector.record("ps", "mon3", 30, true)
+        assert selector.order("ps", mons, ID) == ["mon1", "mon2", "mon3"]
+
+        // much slower than the fastest healthy mon
+        5.times { selector.record("ps", "mon1", 1000, true) }
+        assert selector.order("ps", mons, ID) == ["mon2", "mon3", "mon1"]
+
+        3.times { selector.record("ps", "mon2", 20, false) }
+        List<String> ordered = selector.order("ps", mons, ID)
+        assert ordered[0] == "mon3"
+        // unhealthy mons go last
+        assert ordered[2] == "mon2"
+    }
+}
@@ -0,0 +1,56 @@
+package org.zstack.test.unittest.storage
+
+import org.junit.Test
+import org.zstack.header.core.ReturnValueCompletion
+import org.zstack.header.errorcode.ErrorCode
+import org.zstack.storage.primary.ImageCacheSingleFlight
+
+import java.util.function.Consumer
+
+class ImageCacheSingleFlightCase {
+    private static ReturnValueCompletion<String> collect(List results) {
+        return new ReturnValueCompletion<String>(null) {
+            @Override
+            void success(String returnValue) {
+                results.add(returnValue)
+            }
+
+            @Override
+            void fail(ErrorCode errorCode) {
+                results.add(errorCode)
+            }
+        }
+    }
+
+    @Test
+    void testCallersJoinPopulationInFlight() {
+        ImageCacheSingleFlight flight = new ImageCacheSingleFlight()
+        List<ReturnValueCompletion<String>> populations = []
+        Consumer<ReturnValueCompletion<String>> populator = { ReturnValueCompletion<String> c -> populations.add(c) } as Consumer
+
+        def results = []
+        10.times { flight.populate("ps", "image", null, collect(results), populator) }
+        // the same image cached on another host is another population
+        flight.populate("ps", "image", "host", collect(results), populator)
+
+        assert populations.size() == 2
+        assert flight.flights.size() == 2
+        assert flight.flights.find { it.hostUuid == null }.waiters == 10
+
+        flight.progress("ps", "image", null, "downloading")
+        assert flight.flights.find { it.hostUuid == null }.stage == "downloading"
+
+        populations[0].success("cache")
+        assert results == ["cache"] * 10
+        assert flight.flights.size() == 1
+
+        ErrorCode err = new ErrorCode()
+        populations[1].fail(err)
+        assert results.last().is(err)
+        assert flight.flights.isEmpty()
+
+        // completed populations are not shared any more
+        flight.populate("ps", "image", null, collect(results), populator)
+        assert populations.size() == 3
+    }
+}
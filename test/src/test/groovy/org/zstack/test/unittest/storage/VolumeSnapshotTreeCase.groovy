@@ -0,0 +1,78 @@
+package org.zstack.test.unittest.storage
+
+import org.junit.Test
+import org.zstack.header.storage.snapshot.VolumeSnapshotInventory
+import org.zstack.header.storage.snapshot.VolumeSnapshotTree
+import org.zstack.utils.function.Function
+
+class VolumeSnapshotTreeCase {
+    private static VolumeSnapshotInventory snapshot(String uuid, String parentUuid) {
+        VolumeSnapshotInventory inv = new VolumeSnapshotInventory()
+        inv.uuid = uuid
+        inv.parentUuid = parentUuid
+        inv.volumeUuid = "volume"
+        return inv
+    }
+
+    private static Function<Boolean, VolumeSnapshotInventory> collect(List<String> uuids) {
+        return { VolumeSnapshotInventory inv -> uuids.add(inv.uuid); return false } as Function<Boolean, VolumeSnapshotInventory>
+    }
+
+    //       root
+    //      /    \
+    //     a      b
+    //    / \
+    //  a1   a2
+    private static VolumeSnapshotTree tree() {
+        return VolumeSnapshotTree.fromInventories([
+                snapshot("root", null),
+                snapshot("a", "root"),
+                snapshot("a1", "a"),
+                snapshot("b", "root"),
+                snapshot("a2", "a")
+        ])
+    }
+
+    @Test
+    void testFindSnapshotByUuid() {
+        VolumeSnapshotTree tree = tree()
+        assert tree.findSnapshot("a2").parent.uuid == "a"
+        assert tree.findSnapshot("root").is(tree.root)
+        assert tree.findSnapshot("c") == null
+    }
+
+    @Test
+    void testTraversalOrder() {
+        VolumeSnapshotTree tree = tree()
+
+        def visited = []
+        assert tree.findSnapshot(collect(visited)) == null
+        assert visited == ["root", "a1", "a2", "a", "b"]
+
+        visited = []
+        assert tree.root.walkDown(collect(visited)) == null
+        assert visited == ["root", "a", "a1", "a2", "b"]
+
+        assert tree.findSnapshot("a2").ancestors*.uuid == ["root", "a", "a2"]
+        assert tree.findSnapshot("a").descendants*.uuid == ["a", "a1", "a2"]
+
+        def inv = tree.root.toLeafInventory()
+        assert inv.children*.inventory*.uuid == ["a", "b"]
+        assert inv.children[0].children*.inventory*.uuid == ["a1", "a2"]
+        assert inv.children[0].children[1].parentUuid == "a"
+    }
+
+    @Test
+    void testLongChainDoesNotRecurse() {
+        List<VolumeSnapshotInventory> invs = [snapshot("s0", null)]
+        for (int i = 1; i < 100000; i++) {
+            invs.add(snapshot("s" + i, "s" + (i - 1)))
+        }
+
+        VolumeSnapshotTree tree = VolumeSnapshotTree.fromInventories(invs)
+        assert tree.root.descendants.size() == 100000
+        assert tree.findSnapshot("s99999").ancestors.size() == 100000
+        assert tree.findSnapshot({ VolumeSnapshotInventory inv -> inv.uuid == "s50000" } as Function<Boolean, VolumeSnapshotInventory>).uuid == "s50000"
+        assert tree.root.toLeafInventory().children[0].inventory.uuid == "s1"
+    }
+}
@@ -56,7 +56,7 @@ public class TestMultipleNode10 {
     @Test
     public void test() throws InterruptedException, ApiSenderException, IOException {
         try {
-            nodeMgr.setProperties("-DbFacadeDataSource.maxPoolSize=50")
+            nodeMgr.setProperties("-DbFacadeDataSource.maxPoolSize=50 -DJobQueueFacade.inMemoryNonRestartableJobs=false")
                     .createLightWeightNodeWithCore(2, 300, Arrays.asList("silentService.xml", "silentJobService.xml"));
             List<ManagementNodeInventory> nodes = api.listManagementNodes();
 
@@ -57,7 +57,7 @@ public class TestMultipleNode8 {
     @Test
     public void test() throws InterruptedException, ApiSenderException, IOException {
         try {
-            nodeMgr.setProperties("-DbFacadeDataSource.maxPoolSize=50")
+            nodeMgr.setProperties("-DbFacadeDataSource.maxPoolSize=50 -DJobQueueFacade.inMemoryNonRestartableJobs=false")
                     .createLightWeightNodeWithCore(1, 300, Arrays.asList("silentService.xml", "silentJobService.xml"));
             List<ManagementNodeInventory> nodes = api.listManagementNodes();
             ManagementNodeInventory target = CollectionUtils.find(nodes, new Function<ManagementNodeInventory, ManagementNodeInventory>() {
@@ -12626,6 +12626,33 @@ trait ApiHelper {
     }
 
 
+    def getHostReconnectQueue(@DelegatesTo(strategy = Closure.OWNER_FIRST, value = org.zstack.sdk.GetHostReconnectQueueAction.class) Closure c) {
+        def a = new org.zstack.sdk.GetHostReconnectQueueAction()
+        a.sessionId = Test.currentEnvSpec?.session?.uuid
+        c.resolveStrategy = Closure.OWNER_FIRST
+        c.delegate = a
+        c()
+        
+
+        if (System.getProperty("apipath") != null) {
+            if (a.apiId == null) {
+                a.apiId = Platform.uuid
+            }
+    
+            def tracker = new ApiPathTracker(a.apiId)
+            def out = errorOut(a.call())
+            def path = tracker.getApiPath()
+            if (!path.isEmpty()) {
+                Test.apiPaths[a.class.name] = path.join(" --->\n")
+            }
+        
+            return out
+        } else {
+            return errorOut(a.call())
+        }
+    }
+
+
     def getHypervisorTypes(@DelegatesTo(strategy = Closure.OWNER_FIRST, value = org.zstack.sdk.GetHypervisorTypesAction.class) Closure c) {
         def a = new org.zstack.sdk.GetHypervisorTypesAction()
         a.sessionId = Test.currentEnvSpec?.session?.uuid
@@ -1,6 +1,7 @@
 package org.zstack.testlib
 
 import org.springframework.http.HttpEntity
+import org.springframework.http.HttpHeaders
 import org.zstack.core.db.Q
 import org.zstack.core.db.SQL
 import org.zstack.header.Constants
@@ -60,6 +61,52 @@ class KVMSimulator implements Simulator {
             return new KVMAgentCommands.AgentResponse()
         }
 
+        // runs every command of the batch with the simulator registered for its path,
+        // the same way the agent does
+        spec.simulator(KVMConstant.KVM_BATCH_COMMANDS_PATH) { HttpEntity<String> e, EnvSpec espec ->
+            def batch = JSONObjectUtil.toObject(e.body, LinkedHashMap.class)
+            def responses = []
+            batch.commands.each { Map c ->
+                Closure handler = espec.getSimulator(c.path as String)
+                if (handler == null) {
+                    responses.add([success: false, error: "no handler found for the path ${c.path}".toString()])
+                    return
+                }
+
+                HttpHeaders headers = new HttpHeaders()
+                (c.headers as Map)?.each { k, v -> headers.add(k as String, v as String) }
+                def entity = new HttpEntity<String>(JSONObjectUtil.toJsonString(c.cmd), headers)
+
+                try {
+                    def ret
+                    if (handler.maximumNumberOfParameters == 0) {
+                        ret = handler()
+                    } else if (handler.maximumNumberOfParameters == 1) {
+                        ret = handler(entity)
+                    } else {
+                        ret = handler(entity, espec)
+                    }
+
+                    Closure postHandler = espec.getPostSimulator(c.path as String)
+                    if (postHandler != null) {
+                        if (postHandler.maximumNumberOfParameters <= 1) {
+                            ret = postHandler(ret)
+                        } else if (postHandler.maximumNumberOfParameters == 2) {
+                            ret = postHandler(ret, entity)
+                        } else {
+                            ret = postHandler(ret, entity, espec)
+                        }
+                    }
+
+                    responses.add([success: true, rsp: ret == null ? [:] : ret])
+                } catch (Throwable t) {
+                    responses.add([success: false, error: t.message])
+                }
+            }
+
+            return [success: true, responses: responses]
+        }
+
         spec.simulator(KVMConstant.KVM_VM_CHECK_STATE) { HttpEntity<String> e ->
             KVMAgentCommands.CheckVmStateCmd cmd = JSONObjectUtil.toObject(e.body, KVMAgentCommands.CheckVmStateCmd.class)
             List<VmInstanceVO> vms = Q.New(VmInstanceVO.class).in(VmInstanceVO_.uuid, cmd.vmUuids).list()
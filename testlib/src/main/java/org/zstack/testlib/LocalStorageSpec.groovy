@@ -73,10 +73,15 @@ class LocalStorageSpec extends PrimaryStorageSpec {
 
             simulator(LocalStorageKvmMigrateVmFlow.COPY_TO_REMOTE_BITS_PATH) { HttpEntity<String> e ->
                 def cmd = JSONObjectUtil.toObject(e.body, LocalStorageKvmMigrateVmFlow.CopyBitsFromRemoteCmd.class)
-                def rsp = new LocalStorageKvmBackend.AgentResponse()
+                def rsp = new LocalStorageKvmMigrateVmFlow.CopyBitsFromRemoteRsp()
                 if (cmd.volumeUuid == null || cmd.uuid == cmd.volumeUuid) {
                     rsp.success = false
                 }
+                // a chunked copy reports the chunks verified on the destination, cases interrupting the copy
+                // in afterSimulator replace them with the chunks verified before the interruption
+                if (cmd.chunkSize != null) {
+                    rsp.verifiedChunks = cmd.verifiedChunks ?: [:]
+                }
                 return rsp
             }
 
@@ -2,6 +2,8 @@ package org.zstack.utils.gson;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
 import org.json.JSONArray;
 
 import java.util.Collection;
@@ -44,10 +46,18 @@ public class JSONObjectUtil {
         return gson.fromJson(content, clazz);
     }
 
+    public static <T> T fromJsonElement(JsonElement content, Class<T> clazz){
+        return gson.fromJson(content, clazz);
+    }
+
     public static String toJsonString(Object obj) {
         return gson.toJson(obj);
     }
 
+    public static void toJson(Object obj, JsonWriter writer) {
+        gson.toJson(obj, obj.getClass(), writer);
+    }
+
     public static <T> T rehashObject(Object obj, Class<T> clazz) {
         String str = toJsonString(obj);
         return toObject(str, clazz);